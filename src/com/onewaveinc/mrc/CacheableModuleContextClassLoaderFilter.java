@@ -0,0 +1,16 @@
+package com.onewaveinc.mrc;
+
+/**
+ * 可缓存的类装载过滤器。对相同的输入总是产生相同输出的过滤器可以实现此接口，
+ * 其处理结果会被 {@link ClassTransformCache} 缓存，再次启动时不需要重新执行过滤器
+ */
+public interface CacheableModuleContextClassLoaderFilter extends ModuleContextClassLoaderFilter {
+
+    /**
+     * 获取过滤器版本。过滤器的处理逻辑发生变化时，必须返回不同的版本，以使旧的缓存失效
+     * 
+     * @return 过滤器版本
+     */
+    String getVersion();
+
+}
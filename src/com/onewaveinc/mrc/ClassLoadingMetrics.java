@@ -0,0 +1,240 @@
+package com.onewaveinc.mrc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 类装载统计。按来源（定义类的模块，或 ext / app / mrc 装载路径）分别记录装载的类数、读取的字节数、
+ * 各阶段耗时及查找未命中次数。计数均为无锁的原子操作，可以在生产环境中一直开启
+ */
+public class ClassLoadingMetrics {
+
+    /**
+     * 耗时直方图。第 i 个桶记录耗时在 [2^(i-1), 2^i) 微秒之间的次数，第 0 个桶记录耗时小于 1 微秒的次数
+     */
+    public static class Histogram {
+
+        public static final int BUCKETS = 32;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        private final AtomicLong total = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = nanos / 1000;
+            int bucket = micros <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+            total.addAndGet(nanos);
+        }
+
+        /**
+         * 获取指定桶的计数
+         * 
+         * @param bucket 桶序号
+         * @return 计数
+         */
+        public long getCount(int bucket) {
+            return buckets.get(bucket);
+        }
+
+        /**
+         * 获取总耗时
+         * 
+         * @return 总耗时，单位纳秒
+         */
+        public long getTotalNanos() {
+            return total.get();
+        }
+
+        /**
+         * 获取近似的百分位耗时
+         * 
+         * @param percentile 百分位，0 到 100 之间
+         * @return 耗时上限，单位微秒
+         */
+        public long getPercentileMicros(double percentile) {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += buckets.get(i);
+            }
+            if (count == 0) return 0;
+            long threshold = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= threshold) return 1L << i;
+            }
+            return 1L << (BUCKETS - 1);
+        }
+
+    }
+
+    /**
+     * 一个来源的统计数据
+     */
+    public static class Counters {
+
+        private final AtomicLong bytes = new AtomicLong();
+
+        private final AtomicLong classes = new AtomicLong();
+
+        private final Histogram defineTime = new Histogram();
+
+        private final Histogram filterTime = new Histogram();
+
+        private final Histogram ioTime = new Histogram();
+
+        private final AtomicLong misses = new AtomicLong();
+
+        private final String source;
+
+        Counters(String source) {
+            this.source = source;
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public long getClasses() {
+            return classes.get();
+        }
+
+        public Histogram getDefineTime() {
+            return defineTime;
+        }
+
+        public Histogram getFilterTime() {
+            return filterTime;
+        }
+
+        public Histogram getIoTime() {
+            return ioTime;
+        }
+
+        public long getMisses() {
+            return misses.get();
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * 获取总耗时
+         * 
+         * @return 读取、过滤、定义的总耗时，单位纳秒
+         */
+        public long getTotalNanos() {
+            return ioTime.getTotalNanos() + filterTime.getTotalNanos() + defineTime.getTotalNanos();
+        }
+
+    }
+
+    /**
+     * 来源：由 app classloader 载入的 MRC 核心类
+     */
+    public static final String SOURCE_APP = "[app]";
+
+    /**
+     * 来源：由 ext classloader 载入的 JRE 类
+     */
+    public static final String SOURCE_EXT = "[ext]";
+
+    /**
+     * 来源：由 mrc classloader 定义但不属于任何模块的类
+     */
+    public static final String SOURCE_MRC = "[mrc]";
+
+    private volatile ConcurrentHashMap<String,Counters> counters = new ConcurrentHashMap<String,Counters>();
+
+    /**
+     * 获取指定来源的统计数据
+     * 
+     * @param source 来源
+     * @return 统计数据。没有记录时，返回 null
+     */
+    public Counters getCounters(String source) {
+        return counters.get(source);
+    }
+
+    /**
+     * 获取所有来源的统计数据，按总耗时从高到低排列
+     * 
+     * @return 统计数据列表
+     */
+    public List<Counters> getAllCounters() {
+        List<Counters> list = new ArrayList<Counters>(counters.values());
+        Collections.sort(list, new Comparator<Counters>() {
+            public int compare(Counters o1, Counters o2) {
+                long c = o2.getTotalNanos() - o1.getTotalNanos();
+                if (c == 0) c = o2.getClasses() - o1.getClasses();
+                return c > 0 ? 1 : (c < 0 ? -1 : o1.getSource().compareTo(o2.getSource()));
+            }
+        });
+        return list;
+    }
+
+    /**
+     * 清空所有统计数据
+     */
+    public void reset() {
+        counters = new ConcurrentHashMap<String,Counters>();
+    }
+
+    /**
+     * 记录一次委托装载（ext / app）
+     * 
+     * @param source 来源
+     * @param nanos 耗时
+     */
+    void recordDelegate(String source, long nanos) {
+        Counters c = getOrCreate(source);
+        c.classes.incrementAndGet();
+        c.defineTime.record(nanos);
+    }
+
+    /**
+     * 记录一次类定义
+     * 
+     * @param source 来源
+     * @param bytes 读取的字节数
+     * @param ioNanos 读取耗时
+     * @param filterNanos 过滤耗时
+     * @param defineNanos 定义耗时
+     */
+    void recordDefine(String source, int bytes, long ioNanos, long filterNanos, long defineNanos) {
+        Counters c = getOrCreate(source);
+        c.classes.incrementAndGet();
+        c.bytes.addAndGet(bytes);
+        c.ioTime.record(ioNanos);
+        if (filterNanos > 0) c.filterTime.record(filterNanos);
+        c.defineTime.record(defineNanos);
+    }
+
+    /**
+     * 记录一次查找未命中
+     * 
+     * @param source 来源
+     */
+    void recordMiss(String source) {
+        getOrCreate(source).misses.incrementAndGet();
+    }
+
+    private Counters getOrCreate(String source) {
+        ConcurrentHashMap<String,Counters> map = counters;
+        Counters c = map.get(source);
+        if (c == null) {
+            Counters newCounters = new Counters(source);
+            c = map.putIfAbsent(source, newCounters);
+            if (c == null) c = newCounters;
+        }
+        return c;
+    }
+
+}
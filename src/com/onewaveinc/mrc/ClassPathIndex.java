@@ -0,0 +1,693 @@
+package com.onewaveinc.mrc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 类路径索引。记录每个包（即资源所在目录）由哪些类路径项提供，查找类和资源时只需访问拥有该包的类路径项。<br>
+ * jar 文件和挂载的安装包在类路径中不会变化；目录中的文件可能在建立索引后增加，索引未命中时仍需在目录类路径项中逐个查找
+ */
+class ClassPathIndex {
+
+    /**
+     * 类路径项，对应一个目录或一个 jar 文件。jar 文件在第一次被访问时打开，之后一直保持打开，其 manifest 也只解析一次。<br>
+     * 挂载的模块安装包中的目录和 jar 文件同样作为类路径项，直接从安装包中读取
+     */
+    static class Entry {
+
+        /**
+         * 类路径项所在的模块安装包。不是安装包中的目录或 jar 文件时为 null
+         */
+        private final ModuleArchive archive;
+
+        /**
+         * 类路径项在安装包中的目录，以 / 结尾。安装包中的 jar 文件为空字符串
+         */
+        private final String archivePrefix;
+
+        private final File file;
+
+        private final boolean jar;
+
+        private volatile JarFile jarFile;
+
+        private volatile Manifest manifest;
+
+        private volatile boolean manifestLoaded;
+
+        private Set<String> packages;
+
+        /**
+         * 类路径项所属的来源，用于类装载统计
+         */
+        private volatile String source;
+
+        private final URL url;
+
+        Entry(URL url, File file) {
+            this.url = url;
+            this.file = file;
+            this.jar = file.isFile();
+            this.archive = null;
+            this.archivePrefix = null;
+        }
+
+        /**
+         * @param url 类路径项的 URL
+         * @param archive 模块安装包，或安装包中的 jar 文件对应的嵌套安装包
+         * @param archivePrefix 类路径项在安装包中的目录，以 / 结尾。jar 文件为空字符串
+         * @param jar 类路径项是否为 jar 文件
+         */
+        Entry(URL url, ModuleArchive archive, String archivePrefix, boolean jar) {
+            this.url = url;
+            this.file = archive.getFile();
+            this.jar = jar;
+            this.archive = archive;
+            this.archivePrefix = archivePrefix;
+        }
+
+        /**
+         * 读取类路径项中指定资源的数据
+         * 
+         * @param name 资源名，path/to/resource
+         * @return 资源数据。资源不存在时，返回 null
+         * @throws IOException
+         */
+        byte[] getBytes(String name) throws IOException {
+            if (archive != null) {
+                return archive.isFile(archivePrefix + name) ? archive.getBytes(archivePrefix + name) : null;
+            }
+
+            InputStream in;
+            long size;
+            if (jar) {
+                JarFile jarFile = getJarFile();
+                JarEntry jarEntry = jarFile == null ? null : jarFile.getJarEntry(name);
+                if (jarEntry == null) return null;
+                in = jarFile.getInputStream(jarEntry);
+                size = jarEntry.getSize();
+            } else {
+                File resourceFile = new File(file, name);
+                if (!resourceFile.isFile()) return null;
+                in = new FileInputStream(resourceFile);
+                size = resourceFile.length();
+            }
+
+            try {
+                if (size < 0 || size > Integer.MAX_VALUE) {
+                    // 大小未知时，逐块读取
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    byte[] buf = new byte[8192];
+                    int c;
+                    while ((c = in.read(buf)) != -1) {
+                        out.write(buf, 0, c);
+                    }
+                    return out.toByteArray();
+                }
+                // 大小已知时，直接读入一个大小恰好的数组
+                byte[] data = new byte[(int) size];
+                new DataInputStream(in).readFully(data);
+                return data;
+            } finally {
+                in.close();
+            }
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        /**
+         * 获取 jar 文件的 manifest
+         * 
+         * @return manifest。不是 jar 文件或 jar 文件没有 manifest 时，返回 null
+         * @throws IOException
+         */
+        Manifest getManifest() throws IOException {
+            if (!manifestLoaded) {
+                synchronized (this) {
+                    if (!manifestLoaded) {
+                        if (archive != null) {
+                            manifest = jar ? readArchiveManifest() : null;
+                        } else {
+                            JarFile jarFile = jar ? getJarFile() : null;
+                            manifest = jarFile == null ? null : jarFile.getManifest();
+                        }
+                        manifestLoaded = true;
+                    }
+                }
+            }
+            return manifest;
+        }
+
+        /**
+         * 判断类路径项中是否存在指定资源
+         * 
+         * @param name 资源名，path/to/resource
+         * @return 当且仅当资源存在时，返回 true
+         */
+        boolean contains(String name) {
+            if (archive != null) {
+                return archive.isFile(archivePrefix + name);
+            } else if (jar) {
+                JarFile jarFile = getJarFile();
+                return jarFile != null && jarFile.getEntry(name) != null;
+            } else {
+                return new File(file, name).isFile();
+            }
+        }
+
+        /**
+         * 获取类路径项中指定资源的 URL
+         * 
+         * @param name 资源名，path/to/resource
+         * @return 资源的 URL。资源不存在时，返回 null
+         */
+        URL getResource(String name) {
+            try {
+                if (archive != null) {
+                    return contains(name) ? archive.getURL(archivePrefix + name) : null;
+                } else if (jar) {
+                    if (!contains(name)) return null;
+                    return new URL("jar:" + url.toExternalForm() + "!/" + name);
+                } else {
+                    File resourceFile = new File(file, name);
+                    if (!resourceFile.isFile()) return null;
+                    return resourceFile.toURI().toURL();
+                }
+            } catch (MalformedURLException e) {
+                return null;
+            }
+        }
+
+        URL getURL() {
+            return url;
+        }
+
+        boolean isJar() {
+            return jar;
+        }
+
+        /**
+         * 判断类路径项是否为文件系统中的目录，其内容可能在建立索引后发生变化
+         */
+        boolean isDirectory() {
+            return archive == null && !jar;
+        }
+
+        JarFile getJarFile() {
+            if (archive != null) return null;
+            JarFile result = jarFile;
+            if (result == null) {
+                synchronized (this) {
+                    result = jarFile;
+                    if (result == null) {
+                        try {
+                            result = jarFile = new JarFile(file);
+                        } catch (IOException e) {
+                            logger.log(Level.WARNING, "打开类路径文件 " + file.getAbsolutePath() + " 时出错", e);
+                        }
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * 关闭打开的 jar 文件
+         */
+        synchronized void close() {
+            if (jarFile != null) {
+                try {
+                    jarFile.close();
+                } catch (IOException ignore) {}
+                jarFile = null;
+            }
+            manifest = null;
+            manifestLoaded = false;
+        }
+
+        Set<String> getPackages() {
+            return packages;
+        }
+
+        void setPackages(Set<String> packages) {
+            this.packages = packages;
+        }
+
+        String getSource() {
+            return source;
+        }
+
+        void setSource(String source) {
+            this.source = source;
+        }
+
+        /**
+         * 扫描类路径项，得到其包含的所有包
+         * 
+         * @throws IOException
+         */
+        void scan() throws IOException {
+            Set<String> packages = new HashSet<String>();
+            if (archive != null) {
+                for (String name : archive.getNames()) {
+                    if (name.startsWith(archivePrefix)) {
+                        packages.add(getPackage(name.substring(archivePrefix.length())));
+                    }
+                }
+            } else if (jar) {
+                JarFile jarFile = getJarFile();
+                if (jarFile == null) throw new IOException("无法打开 " + file.getAbsolutePath());
+                for (Enumeration<JarEntry> e = jarFile.entries(); e.hasMoreElements();) {
+                    JarEntry jarEntry = e.nextElement();
+                    if (!jarEntry.isDirectory()) {
+                        packages.add(getPackage(jarEntry.getName()));
+                    }
+                }
+            } else {
+                scanDirectory(file, "", packages);
+            }
+            this.packages = packages;
+        }
+
+        private void scanDirectory(File directory, String prefix, Set<String> packages) {
+            File[] files = directory.listFiles();
+            if (files == null) return;
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    scanDirectory(f, prefix + f.getName() + "/", packages);
+                } else {
+                    packages.add(prefix);
+                }
+            }
+        }
+
+        private Manifest readArchiveManifest() throws IOException {
+            if (!archive.isFile(JarFile.MANIFEST_NAME)) return null;
+            InputStream in = archive.openStream(JarFile.MANIFEST_NAME);
+            try {
+                return new Manifest(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return archive != null ? url.toExternalForm() : file.getAbsolutePath();
+        }
+
+    }
+
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+
+    private static final Logger logger = Logger.getLogger(ClassPathIndex.class.getName());
+
+    /**
+     * 类路径索引缓存，可以为 null
+     */
+    private ClassPathIndexCache cache;
+
+    /**
+     * 所有类路径项，按类路径顺序排列
+     */
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * 从其他索引共用的类路径项，由其他索引负责关闭
+     */
+    private final Set<Entry> sharedEntries = new HashSet<Entry>();
+
+    /**
+     * 文件系统中的目录类路径项，按类路径顺序排列
+     */
+    private volatile Entry[] directories = NO_ENTRIES;
+
+    /**
+     * 包索引，键为包路径（以 / 结尾，默认包为空字符串），值为拥有该包的类路径项，按类路径顺序排列
+     */
+    private volatile Map<String,Entry[]> packages = new HashMap<String,Entry[]>();
+
+    /**
+     * 是否存在无法建立索引的类路径项。若存在，索引未命中时仍需按类路径逐项查找
+     */
+    private volatile boolean incomplete;
+
+    /**
+     * 在类路径末尾添加类路径项，并更新索引
+     * 
+     * @param urls 类路径项的 URL
+     */
+    synchronized void add(List<URL> urls) {
+        List<Entry> newEntries = new ArrayList<Entry>();
+        for (URL url : urls) {
+            Entry entry = createEntry(url);
+            if (entry != null) newEntries.add(entry);
+        }
+        publish(newEntries);
+    }
+
+    /**
+     * 在类路径末尾添加类路径项，并更新索引。已在指定索引中的类路径项直接共用，不重新扫描
+     * 
+     * @param urls 类路径项的 URL
+     * @param shared 共用类路径项的索引
+     */
+    synchronized void add(List<URL> urls, ClassPathIndex shared) {
+        Map<String,Entry> existing = shared.getEntryMap();
+        List<Entry> newEntries = new ArrayList<Entry>();
+        for (URL url : urls) {
+            Entry entry = existing.get(url.toExternalForm());
+            if (entry != null) {
+                sharedEntries.add(entry);
+            } else {
+                entry = createEntry(url);
+            }
+            if (entry != null) newEntries.add(entry);
+        }
+        publish(newEntries);
+    }
+
+    /**
+     * 更新类路径，用于模块被热部署后。移除的类路径项不再被查找；添加的类路径项若已在类路径中，在原位置重新扫描，否则添加到类路径末尾
+     * 
+     * @param removed 移除的类路径项的 URL
+     * @param added 添加或内容发生变化的类路径项的 URL
+     */
+    synchronized void update(List<URL> removed, List<URL> added) {
+        Set<String> removedKeys = new HashSet<String>();
+        for (URL url : removed) {
+            removedKeys.add(url.toExternalForm());
+        }
+        Map<String,Entry> newEntries = new HashMap<String,Entry>();
+        for (URL url : added) {
+            removedKeys.add(url.toExternalForm());
+            Entry entry = createEntry(url);
+            if (entry != null) newEntries.put(url.toExternalForm(), entry);
+        }
+
+        List<Entry> result = new ArrayList<Entry>();
+        for (Entry entry : entries) {
+            String key = entry.getURL().toExternalForm();
+            if (!removedKeys.contains(key)) {
+                result.add(entry);
+                continue;
+            }
+            if (!sharedEntries.remove(entry)) entry.close();
+            Entry newEntry = newEntries.remove(key);
+            if (newEntry != null) result.add(newEntry);
+        }
+        for (URL url : added) {
+            Entry newEntry = newEntries.remove(url.toExternalForm());
+            if (newEntry != null) result.add(newEntry);
+        }
+        Map<String,Entry[]> newPackages = index(new HashMap<String,Entry[]>(), result);
+        entries.clear();
+        entries.addAll(result);
+        packages = newPackages;
+        directories = getDirectories(entries);
+    }
+
+    /**
+     * 设置类路径索引缓存。设置后添加的 jar 文件，若未发生变化则直接使用缓存的索引
+     * 
+     * @param cache 类路径索引缓存
+     */
+    synchronized void setCache(ClassPathIndexCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * 查找资源。按类路径顺序返回第一个拥有该资源的类路径项中的资源，索引未命中时再查找索引中不拥有该包的目录类路径项
+     * 
+     * @param name 资源名，path/to/resource
+     * @return 资源的 URL。资源不存在时，返回 null
+     */
+    URL findResource(String name) {
+        Entry[] owners = getEntries(name);
+        for (Entry entry : owners) {
+            URL url = entry.getResource(name);
+            if (url != null) return url;
+        }
+        for (Entry entry : directories) {
+            if (contains(owners, entry)) continue;
+            URL url = entry.getResource(name);
+            if (url != null) return url;
+        }
+        return null;
+    }
+
+    /**
+     * 查找拥有指定资源的类路径项。按类路径顺序返回第一个拥有该资源的类路径项，索引未命中时再查找索引中不拥有该包的目录类路径项
+     * 
+     * @param name 资源名，path/to/resource
+     * @return 类路径项。资源不存在时，返回 null
+     */
+    Entry findEntry(String name) {
+        Entry[] owners = getEntries(name);
+        for (Entry entry : owners) {
+            if (entry.contains(name)) return entry;
+        }
+        for (Entry entry : directories) {
+            if (!contains(owners, entry) && entry.contains(name)) return entry;
+        }
+        return null;
+    }
+
+    /**
+     * 关闭所有类路径项打开的 jar 文件。共用的类路径项不关闭
+     */
+    synchronized void close() {
+        for (Entry entry : entries) {
+            if (!sharedEntries.contains(entry)) entry.close();
+        }
+    }
+
+    /**
+     * 获取所有类路径项
+     * 
+     * @return 键为类路径项 URL 的外部形式，值为类路径项
+     */
+    private synchronized Map<String,Entry> getEntryMap() {
+        Map<String,Entry> result = new HashMap<String,Entry>();
+        for (Entry entry : entries) {
+            result.put(entry.getURL().toExternalForm(), entry);
+        }
+        return result;
+    }
+
+    /**
+     * 查找资源。按类路径顺序返回所有拥有该资源的类路径项中的资源，之后是索引中不拥有该包、但在建立索引后增加了该资源的目录类路径项中的资源
+     * 
+     * @param name 资源名，path/to/resource
+     * @return 资源的 URL 列表
+     */
+    List<URL> findResources(String name) {
+        List<URL> urls = new ArrayList<URL>();
+        Entry[] owners = getEntries(name);
+        for (Entry entry : owners) {
+            URL url = entry.getResource(name);
+            if (url != null) urls.add(url);
+        }
+        for (Entry entry : directories) {
+            if (contains(owners, entry)) continue;
+            URL url = entry.getResource(name);
+            if (url != null) urls.add(url);
+        }
+        return urls;
+    }
+
+    /**
+     * 获取拥有指定资源所在包的类路径项
+     * 
+     * @param name 资源名，path/to/resource
+     * @return 类路径项数组，按类路径顺序排列
+     */
+    Entry[] getEntries(String name) {
+        Entry[] result = packages.get(getPackage(name));
+        return result == null ? NO_ENTRIES : result;
+    }
+
+    /**
+     * 判断索引能否确定指定资源的查找结果。目录资源以及存在无法建立索引的类路径项时，索引无法确定查找结果
+     * 
+     * @param name 资源名
+     * @return 当且仅当索引未命中即可判断资源不存在时，返回 true
+     */
+    boolean isIndexed(String name) {
+        return !incomplete && !name.endsWith("/");
+    }
+
+    /**
+     * 判断是否有类路径项拥有指定的包
+     * 
+     * @param packagePath 包路径，以 / 结尾
+     * @return 当且仅当建立索引时有类路径项拥有该包时，返回 true
+     */
+    boolean hasPackage(String packagePath) {
+        return packages.containsKey(packagePath);
+    }
+
+    /**
+     * 判断类路径中是否有文件系统中的目录。有目录时，索引中不存在的包仍可能在目录中找到
+     * 
+     * @return 当且仅当有目录类路径项时，返回 true
+     */
+    boolean hasDirectories() {
+        return directories.length > 0;
+    }
+
+    private void publish(List<Entry> newEntries) {
+        Map<String,Entry[]> newPackages = index(new HashMap<String,Entry[]>(packages), newEntries);
+        entries.addAll(newEntries);
+        packages = newPackages;
+        directories = getDirectories(entries);
+    }
+
+    private static boolean contains(Entry[] entries, Entry entry) {
+        for (Entry e : entries) {
+            if (e == entry) return true;
+        }
+        return false;
+    }
+
+    private static Entry[] getDirectories(List<Entry> entries) {
+        List<Entry> result = new ArrayList<Entry>();
+        for (Entry entry : entries) {
+            if (entry.isDirectory()) result.add(entry);
+        }
+        return result.isEmpty() ? NO_ENTRIES : result.toArray(new Entry[result.size()]);
+    }
+
+    /**
+     * 将类路径项登记到包索引中
+     * 
+     * @param newPackages 包索引
+     * @param newEntries 类路径项，按类路径顺序排列
+     * @return 包索引
+     */
+    private static Map<String,Entry[]> index(Map<String,Entry[]> newPackages, List<Entry> newEntries) {
+        for (Entry entry : newEntries) {
+            for (String packagePath : entry.getPackages()) {
+                Entry[] owners = newPackages.get(packagePath);
+                if (owners == null) {
+                    owners = new Entry[] { entry };
+                } else {
+                    Entry[] newOwners = new Entry[owners.length + 1];
+                    System.arraycopy(owners, 0, newOwners, 0, owners.length);
+                    newOwners[owners.length] = entry;
+                    owners = newOwners;
+                }
+                newPackages.put(packagePath, owners);
+            }
+        }
+        return newPackages;
+    }
+
+    /**
+     * 创建类路径项并建立索引
+     * 
+     * @return 类路径项。不存在或无法建立索引时，返回 null
+     */
+    private Entry createEntry(URL url) {
+        if (ModuleArchive.PROTOCOL.equals(url.getProtocol())) {
+            return createArchiveEntry(url);
+        }
+
+        File file = toFile(url);
+        if (file == null) {
+            logger.fine("类路径项无法建立索引：" + url);
+            incomplete = true;
+            return null;
+        }
+        if (!file.exists()) return null;
+
+        Entry entry = new Entry(url, file);
+        Set<String> cachedPackages = (cache != null && entry.isJar()) ? cache.get(file) : null;
+        try {
+            if (cachedPackages != null) {
+                entry.setPackages(cachedPackages);
+            } else {
+                entry.scan();
+                if (cache != null && entry.isJar()) {
+                    cache.put(file, entry.getPackages());
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "扫描类路径项 " + file.getAbsolutePath() + " 时出错", e);
+            incomplete = true;
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * 获取资源所在的包
+     * 
+     * @param name 资源名，path/to/resource
+     * @return 包路径，以 / 结尾。默认包为空字符串
+     */
+    static String getPackage(String name) {
+        int index = name.lastIndexOf('/');
+        return index == -1 ? "" : name.substring(0, index + 1);
+    }
+
+    /**
+     * 创建挂载的模块安装包中的类路径项。安装包中的目录和 jar 文件的索引直接由中央目录得到，不使用索引缓存
+     * 
+     * @param url mod 协议的 URL
+     * @return 类路径项。安装包中不存在该目录或 jar 文件时，返回 null
+     */
+    private Entry createArchiveEntry(URL url) {
+        try {
+            ModuleArchive archive = ModuleArchive.open(ModuleArchive.getArchiveFile(url));
+            String name = ModuleArchive.getEntryName(url);
+            Entry entry;
+            if (name.length() == 0 || name.endsWith("/")) {
+                if (!archive.isDirectory(name)) return null;
+                entry = new Entry(url, archive, name, false);
+            } else {
+                if (!archive.isFile(name)) return null;
+                entry = new Entry(url, archive.getArchive(name), "", true);
+            }
+            entry.scan();
+            return entry;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "扫描类路径项 " + url + " 时出错", e);
+            incomplete = true;
+            return null;
+        }
+    }
+
+    private static File toFile(URL url) {
+        if (!"file".equals(url.getProtocol())) return null;
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            return new File(url.getPath());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+}
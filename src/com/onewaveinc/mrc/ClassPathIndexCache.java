@@ -0,0 +1,173 @@
+package com.onewaveinc.mrc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 类路径索引缓存。将 jar 文件包含的包保存在 MRC 根目录下，以文件路径、大小和修改时间为键，
+ * 重启时只有发生变化的 jar 文件才需要重新扫描。<br>
+ * 只缓存 jar 文件。目录的修改时间不反映子目录中的变化，没有可靠的键，目录每次启动都重新扫描
+ */
+class ClassPathIndexCache {
+
+    private static class CachedEntry {
+
+        long lastModified;
+
+        long length;
+
+        Set<String> packages;
+
+    }
+
+    private static final int MAGIC = 0x4d524349; // "MRCI"
+
+    private static final int VERSION = 1;
+
+    private static final Logger logger = Logger.getLogger(ClassPathIndexCache.class.getName());
+
+    private Map<String,CachedEntry> entries = new HashMap<String,CachedEntry>();
+
+    private final File file;
+
+    private boolean modified;
+
+    /**
+     * 本次启动中用到的缓存项。保存时只保存这些缓存项，已删除的 jar 文件的缓存项由此被清除
+     */
+    private final Set<String> used = new HashSet<String>();
+
+    /**
+     * @param file 缓存文件
+     */
+    ClassPathIndexCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 获取缓存的 jar 文件包含的包
+     * 
+     * @param jar jar 文件
+     * @return 包路径集合。未缓存、jar 文件已发生变化或不是文件时，返回 null
+     */
+    synchronized Set<String> get(File jar) {
+        if (!jar.isFile()) return null;
+        String path = jar.getAbsolutePath();
+        used.add(path);
+        CachedEntry entry = entries.get(path);
+        if (entry == null || entry.length != jar.length() || entry.lastModified != jar.lastModified()) {
+            return null;
+        }
+        return entry.packages;
+    }
+
+    /**
+     * 缓存 jar 文件包含的包。不是文件时，不缓存
+     * 
+     * @param jar jar 文件
+     * @param packages 包路径集合
+     */
+    synchronized void put(File jar, Set<String> packages) {
+        if (!jar.isFile()) return;
+        CachedEntry entry = new CachedEntry();
+        entry.length = jar.length();
+        entry.lastModified = jar.lastModified();
+        entry.packages = packages;
+        String path = jar.getAbsolutePath();
+        entries.put(path, entry);
+        used.add(path);
+        modified = true;
+    }
+
+    /**
+     * 载入缓存文件。缓存文件不存在或损坏时，使用空缓存
+     */
+    synchronized void load() {
+        if (!file.isFile()) return;
+        Map<String,CachedEntry> loaded = new HashMap<String,CachedEntry>();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    logger.info("类路径索引缓存版本不符，忽略缓存文件：" + file.getAbsolutePath());
+                    return;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String path = in.readUTF();
+                    CachedEntry entry = new CachedEntry();
+                    entry.length = in.readLong();
+                    entry.lastModified = in.readLong();
+                    int packageCount = in.readInt();
+                    entry.packages = new HashSet<String>(packageCount * 2);
+                    for (int j = 0; j < packageCount; j++) {
+                        entry.packages.add(in.readUTF());
+                    }
+                    loaded.put(path, entry);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "读取类路径索引缓存文件 " + file.getAbsolutePath() + " 时出错，忽略缓存", e);
+            return;
+        }
+        entries = loaded;
+    }
+
+    /**
+     * 保存缓存文件。缓存未发生变化时不保存
+     */
+    synchronized void store() {
+        if (!modified && used.containsAll(entries.keySet())) return;
+        File tempFile = null;
+        try {
+            // 先写入同一目录下的临时文件再改名，进程中止时不会留下不完整的缓存文件
+            tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                Map<String,CachedEntry> entriesToStore = new HashMap<String,CachedEntry>();
+                for (String path : used) {
+                    CachedEntry entry = entries.get(path);
+                    if (entry != null) entriesToStore.put(path, entry);
+                }
+                out.writeInt(entriesToStore.size());
+                for (Map.Entry<String,CachedEntry> e : entriesToStore.entrySet()) {
+                    CachedEntry entry = e.getValue();
+                    out.writeUTF(e.getKey());
+                    out.writeLong(entry.length);
+                    out.writeLong(entry.lastModified);
+                    out.writeInt(entry.packages.size());
+                    for (String packagePath : entry.packages) {
+                        out.writeUTF(packagePath);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            // 部分平台上目标文件存在时无法改名
+            if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+                throw new IOException("无法将临时文件 " + tempFile.getName() + " 改名");
+            }
+            modified = false;
+        } catch (IOException e) {
+            if (tempFile != null) tempFile.delete();
+            logger.log(Level.WARNING, "保存类路径索引缓存文件 " + file.getAbsolutePath() + " 时出错", e);
+        }
+    }
+
+}
@@ -0,0 +1,218 @@
+package com.onewaveinc.mrc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 类预加载配置。记录上次启动时 prepare / resolve / start 阶段定义的类，以及当时的类路径和模块版本。
+ * 下次启动时，若类路径中的文件未发生变化，可以在安装模块的同时预先载入这些类
+ */
+class ClassPreloadProfile {
+
+    private static final int MAGIC = 0x4d524350; // "MRCP"
+
+    private static final int VERSION = 1;
+
+    private static final Logger logger = Logger.getLogger(ClassPreloadProfile.class.getName());
+
+    private List<String> classes = new ArrayList<String>();
+
+    private final File file;
+
+    private long[] lastModified;
+
+    private long[] length;
+
+    /**
+     * 模块版本标识，由类路径中所有模块的ID和版本组成
+     */
+    private String modules;
+
+    private Map<URL,String> owners = new HashMap<URL,String>();
+
+    private List<URL> urls = new ArrayList<URL>();
+
+    /**
+     * @param file 配置文件
+     */
+    ClassPreloadProfile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 获取需要预加载的类，按上次启动时的定义顺序排列
+     * 
+     * @return 类名列表
+     */
+    List<String> getClasses() {
+        return classes;
+    }
+
+    /**
+     * 获取类路径项所属的模块
+     * 
+     * @return 键为类路径项的 URL，值为模块ID
+     */
+    Map<URL,String> getOwners() {
+        return owners;
+    }
+
+    /**
+     * 获取上次启动时的类路径
+     * 
+     * @return 类路径项的 URL 列表
+     */
+    List<URL> getURLs() {
+        return urls;
+    }
+
+    /**
+     * 判断类路径中的文件自记录后是否未发生变化
+     * 
+     * @return 当且仅当所有类路径项的大小和修改时间都未发生变化时，返回 true
+     */
+    boolean isUpToDate() {
+        for (int i = 0; i < urls.size(); i++) {
+            File f = toFile(urls.get(i));
+            if (f == null || f.length() != length[i] || f.lastModified() != lastModified[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 判断配置是否与本次启动的类路径和模块版本一致
+     * 
+     * @param urls 本次启动的类路径
+     * @param modules 本次启动的模块版本标识
+     * @return 当且仅当类路径、模块版本和类路径中的文件均未发生变化时，返回 true
+     */
+    boolean matches(List<URL> urls, String modules) {
+        if (!modules.equals(this.modules) || urls.size() != this.urls.size()) return false;
+        for (int i = 0; i < urls.size(); i++) {
+            if (!urls.get(i).toExternalForm().equals(this.urls.get(i).toExternalForm())) return false;
+        }
+        return isUpToDate();
+    }
+
+    /**
+     * 载入配置文件
+     * 
+     * @return 配置文件存在且有效时，返回 true
+     */
+    boolean load() {
+        if (!file.isFile()) return false;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    logger.info("类预加载配置版本不符，忽略配置文件：" + file.getAbsolutePath());
+                    return false;
+                }
+                modules = in.readUTF();
+                int urlCount = in.readInt();
+                length = new long[urlCount];
+                lastModified = new long[urlCount];
+                for (int i = 0; i < urlCount; i++) {
+                    URL url = ModuleArchive.parseURL(in.readUTF());
+                    urls.add(url);
+                    length[i] = in.readLong();
+                    lastModified[i] = in.readLong();
+                    String owner = in.readUTF();
+                    if (owner.length() > 0) owners.put(url, owner);
+                }
+                int classCount = in.readInt();
+                for (int i = 0; i < classCount; i++) {
+                    classes.add(in.readUTF());
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "读取类预加载配置文件 " + file.getAbsolutePath() + " 时出错，忽略配置", e);
+            urls.clear();
+            owners.clear();
+            classes.clear();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 保存配置文件
+     * 
+     * @param urls 类路径
+     * @param owners 类路径项所属的模块
+     * @param modules 模块版本标识
+     * @param classes 需要预加载的类，按定义顺序排列
+     */
+    void store(List<URL> urls, Map<URL,String> owners, String modules, Collection<String> classes) {
+        File tempFile = null;
+        try {
+            // 写入临时文件后改名替换，启动中途退出时旧的配置文件仍然完整
+            tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(modules);
+                out.writeInt(urls.size());
+                for (URL url : urls) {
+                    File f = toFile(url);
+                    out.writeUTF(url.toExternalForm());
+                    out.writeLong(f == null ? -1 : f.length());
+                    out.writeLong(f == null ? -1 : f.lastModified());
+                    String owner = owners.get(url);
+                    out.writeUTF(owner == null ? "" : owner);
+                }
+                out.writeInt(classes.size());
+                for (String name : classes) {
+                    out.writeUTF(name);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+                throw new IOException("无法将临时文件 " + tempFile.getName() + " 改名");
+            }
+        } catch (IOException e) {
+            if (tempFile != null) tempFile.delete();
+            logger.log(Level.WARNING, "保存类预加载配置文件 " + file.getAbsolutePath() + " 时出错", e);
+        }
+    }
+
+    private static File toFile(URL url) {
+        if (ModuleArchive.PROTOCOL.equals(url.getProtocol())) {
+            // 挂载的安装包中的类路径项，以安装包文件判断是否发生变化
+            try {
+                return ModuleArchive.getArchiveFile(url);
+            } catch (MalformedURLException e) {
+                return null;
+            }
+        }
+        if (!"file".equals(url.getProtocol())) return null;
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException e) {
+            return new File(url.getPath());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+}
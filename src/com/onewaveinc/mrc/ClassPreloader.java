@@ -0,0 +1,104 @@
+package com.onewaveinc.mrc;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 类预加载器。使用少量后台线程按类预加载配置中的顺序载入类（不初始化），使模块启动时需要的类已经被定义
+ */
+class ClassPreloader {
+
+    private static final Logger logger = Logger.getLogger(ClassPreloader.class.getName());
+
+    private volatile boolean cancelled;
+
+    private final ModuleContextClassLoader classLoader;
+
+    private final List<String> classes;
+
+    private ExecutorService executor;
+
+    /**
+     * 下一个需要载入的类在列表中的位置
+     */
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final AtomicInteger loaded = new AtomicInteger();
+
+    /**
+     * @param classLoader 载入类使用的类装载器
+     * @param classes 需要预加载的类
+     */
+    ClassPreloader(ModuleContextClassLoader classLoader, List<String> classes) {
+        this.classLoader = classLoader;
+        this.classes = classes;
+    }
+
+    /**
+     * 开始预加载
+     */
+    synchronized void start() {
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "mrc-preload-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+        for (int i = 0; i < threads; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    int index;
+                    while (!cancelled && (index = next.getAndIncrement()) < classes.size()) {
+                        String name = classes.get(index);
+                        try {
+                            Class.forName(name, false, classLoader);
+                            loaded.incrementAndGet();
+                        } catch (Throwable e) {
+                            if (logger.isLoggable(Level.FINE)) {
+                                logger.log(Level.FINE, "预加载类 " + name + " 失败", e);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        logger.info("开始预加载类，类数：" + classes.size() + "，线程数：" + threads);
+    }
+
+    /**
+     * 取消预加载，并等待正在载入的类完成
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        if (executor == null) return;
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warning("等待类预加载线程结束超时");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 获取已经载入的类数
+     * 
+     * @return 类数
+     */
+    int getLoaded() {
+        return loaded.get();
+    }
+
+}
@@ -0,0 +1,169 @@
+package com.onewaveinc.mrc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 类装载过滤器处理结果的缓存。以输入的类数据和过滤器链标识的摘要为键，将过滤后的类数据保存在磁盘上，
+ * 缓存命中时不需要执行过滤器链
+ */
+public class ClassTransformCache {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final Logger logger = Logger.getLogger(ClassTransformCache.class.getName());
+
+    private final File directory;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param directory 缓存目录
+     */
+    public ClassTransformCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * 获取缓存的过滤后的类数据
+     * 
+     * @param chainKey 过滤器链标识
+     * @param classData 过滤前的类数据
+     * @return 过滤后的类数据。未缓存时，返回 null
+     */
+    byte[] get(String chainKey, byte[] classData) {
+        File file = getFile(chainKey, classData);
+        if (file.isFile()) {
+            try {
+                byte[] data = read(file);
+                hits.incrementAndGet();
+                return data;
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "读取类缓存文件 " + file.getAbsolutePath() + " 时出错", e);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * 清空缓存
+     * 
+     * @return 删除的缓存文件数
+     */
+    public int purge() {
+        int count = purge(directory);
+        hits.set(0);
+        misses.set(0);
+        logger.info("清空类缓存目录 " + directory.getAbsolutePath() + "，删除文件数：" + count);
+        return count;
+    }
+
+    /**
+     * 缓存过滤后的类数据
+     * 
+     * @param chainKey 过滤器链标识
+     * @param classData 过滤前的类数据
+     * @param transformedData 过滤后的类数据
+     */
+    void put(String chainKey, byte[] classData, byte[] transformedData) {
+        File file = getFile(chainKey, classData);
+        File parent = file.getParentFile();
+        parent.mkdirs();
+        // 先写入临时文件再改名，避免其他线程或进程读到不完整的文件
+        File tempFile = new File(parent, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(transformedData);
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            logger.log(Level.WARNING, "写入类缓存文件 " + file.getAbsolutePath() + " 时出错", e);
+        }
+    }
+
+    private File getFile(String chainKey, byte[] classData) {
+        MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try {
+            sha1.update(chainKey.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        sha1.update((byte) 0);
+        sha1.update(classData);
+        byte[] digest = sha1.digest();
+
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[digest[i] & 0xf];
+        }
+        String key = new String(chars);
+        return new File(new File(directory, key.substring(0, 2)), key.substring(2) + ".class");
+    }
+
+    private int purge(File file) {
+        int count = 0;
+        File[] files = file.listFiles();
+        if (files == null) return 0;
+        for (File f : files) {
+            if (f.isDirectory()) {
+                count += purge(f);
+                f.delete();
+            } else if (f.delete()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buf = new byte[8192];
+            int c;
+            while ((c = in.read(buf)) != -1) {
+                out.write(buf, 0, c);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+}
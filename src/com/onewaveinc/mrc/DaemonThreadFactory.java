@@ -0,0 +1,28 @@
+package com.onewaveinc.mrc;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 创建守护线程的线程工厂，线程名为前缀加序号
+ */
+class DaemonThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    private final String prefix;
+
+    /**
+     * @param prefix 线程名前缀
+     */
+    DaemonThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, prefix + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+}
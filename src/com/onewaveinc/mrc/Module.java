@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -46,13 +47,20 @@ public class Module {
 
     private static final String MODULE_VERSION = "module.version";
 
+    /**
+     * 模块安装包。模块直接从安装包挂载时存在，否则为 null
+     */
+    private ModuleArchive archive;
+
     private Map<String,Object> attributes = new HashMap<String,Object>();
 
+    private ModuleClassLoader classLoader;
+
     private List<String> classPath;
 
     private String description;
 
-    private boolean enabled = true;
+    private volatile boolean enabled = true;
     
     private String extend;
 
@@ -96,10 +104,23 @@ public class Module {
         return id.equals(anotherModule.id) && version.equals(anotherModule.version);
     }
 
+    ModuleArchive getArchive() {
+        return archive;
+    }
+
     public Object getAttribute(String key) {
         return attributes.get(key);
     }
 
+    /**
+     * 获取模块类装载器。仅在按模块装载类时存在，否则返回 null
+     * 
+     * @return 模块类装载器
+     */
+    public ModuleClassLoader getClassLoader() {
+        return classLoader;
+    }
+
     public List<String> getClassPath() {
         return classPath;
     }
@@ -187,6 +208,15 @@ public class Module {
         return (id + '/' + version).hashCode();
     }
 
+    /**
+     * 判断模块是否直接从安装包挂载。挂载的模块的根目录为安装包文件，模块文件只读
+     * 
+     * @return 当且仅当模块直接从安装包挂载时，返回 true
+     */
+    public boolean isArchive() {
+        return archive != null;
+    }
+
     public boolean isEnabled() {
         return enabled;
     }
@@ -195,6 +225,10 @@ public class Module {
         attributes.put(key, value);
     }
 
+    public void setClassLoader(ModuleClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
     public void setClassPath(List<String> classPath) {
         this.classPath = classPath;
     }
@@ -204,7 +238,12 @@ public class Module {
     }
 
     public void setEnabled(boolean enabled) {
+        if (this.enabled == enabled) return;
         this.enabled = enabled;
+        // 已安装的模块启用或停用后，MRC 需要重新发布模块注册表
+        if (moduleContext != null) {
+            moduleContext.refreshRegistry();
+        }
     }
 
     public void setExtend(String extend) {
@@ -279,28 +318,55 @@ public class Module {
     }
 
     /**
-     * 根据指定模块根目录，载入模块元数据并构建模块实例
+     * 根据指定模块根目录，载入模块元数据并构建模块实例。指定的是模块安装包文件时，直接挂载安装包而不解压
      * 
-     * @param moduleDirectory 模块根目录
+     * @param moduleDirectory 模块根目录，或模块安装包文件
      * @return 模块实例
      * @throws ModuleException
      */
     public static Module load(File moduleDirectory) throws ModuleException {
-        assert moduleDirectory.isDirectory();
+        ModuleArchive archive = null;
+        if (moduleDirectory.isFile()) {
+            try {
+                archive = ModuleArchive.open(moduleDirectory);
+            } catch (IOException e) {
+                throw new ModuleException("打开模块安装包 " + moduleDirectory.getAbsolutePath() + " 时出错", e);
+            }
+        }
 
         // 1. 载入模块元数据文件
         File metadataFile = new File(moduleDirectory.getAbsolutePath() + METADATA_FILE);
         Properties metadata = new Properties();
         try {
-            metadata.load(new FileInputStream(metadataFile));
+            InputStream in = archive != null ? archive.openStream(METADATA_FILE.substring(1)) : new FileInputStream(metadataFile);
+            try {
+                metadata.load(in);
+            } finally {
+                in.close();
+            }
         } catch (FileNotFoundException e) {
             throw new ModuleException("不存在模块元数据文件： " + metadataFile.getAbsolutePath());
         } catch (IOException e) {
             throw new ModuleException("载入模块元数据文件" + metadataFile.getAbsolutePath() + " 时出错");
         }
 
+        return create(moduleDirectory, archive, metadata, null);
+    }
+
+    /**
+     * 根据模块元数据构建模块实例
+     * 
+     * @param moduleDirectory 模块根目录，或模块安装包文件
+     * @param archive 模块安装包。不是直接挂载的安装包时为 null
+     * @param metadata 模块元数据
+     * @param classPath 模块类路径。为 null 时，按模块元数据和模块目录确定
+     * @return 模块实例
+     * @throws ModuleException
+     */
+    static Module create(File moduleDirectory, ModuleArchive archive, Properties metadata, List<String> classPath) throws ModuleException {
         // 2. 创建模块实例
         Module module = new Module(moduleDirectory.getAbsolutePath());
+        module.archive = archive;
 
         // 3. 解析模块 ID
         String id = metadata.getProperty(MODULE_ID);
@@ -350,15 +416,42 @@ public class Module {
 
         // 7. 解析模块类路径
         String classPathString = metadata.getProperty(MODULE_CLASSPATH);
-        List<String> classPath = new ArrayList<String>();
-        if (classPathString != null && classPathString.length() > 0) {
+        if (classPath != null) {
+            // 使用已确定的类路径，如启动快照中记录的类路径
+            classPath = new ArrayList<String>(classPath);
+        } else if (archive != null) {
+            classPath = new ArrayList<String>();
+            // 7.0 挂载的安装包，类路径项为安装包中目录和 jar 文件的 URL
+            List<String> paths = new ArrayList<String>();
+            if (classPathString != null && classPathString.length() > 0) {
+                for (String path : classPathString.split(";")) {
+                    paths.add(path.startsWith("/") ? path.substring(1) : path);
+                }
+            } else {
+                paths.add("bin/");
+                List<String> names = archive.list("lib");
+                if (names != null) {
+                    for (String name : names) {
+                        if (name.endsWith(".jar") && archive.isFile("lib/" + name)) {
+                            paths.add("lib/" + name);
+                        }
+                    }
+                }
+            }
+            for (String path : paths) {
+                if (!path.endsWith("/") && !archive.isFile(path)) path = path + "/";
+                classPath.add(archive.getURL(path).toExternalForm());
+            }
+        } else if (classPathString != null && classPathString.length() > 0) {
             // 7.a 使用配置的类路径
+            classPath = new ArrayList<String>();
             for (String path : classPathString.split(";")) {
                 File f = new File(module.getRootDirectory() + path);
                 classPath.add(f.getAbsolutePath());
             }
         } else {
             // 7.b 使用默认的类路径，即 /bin 以及 /lib/*.jar
+            classPath = new ArrayList<String>();
             String root = module.getRootDirectory();
             classPath.add(new File(root, "bin").getAbsolutePath());
             File libDirectory = new File(root, "lib");
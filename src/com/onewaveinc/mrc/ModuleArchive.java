@@ -0,0 +1,730 @@
+package com.onewaveinc.mrc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * 只读挂载的模块安装包。安装包被映射到内存，只解析其中央目录，文件数据在访问时才读取：
+ * 存储（STORED）的文件直接使用映射区域，压缩（DEFLATED）的文件在访问时解压。
+ * 安装包中的 jar 文件可以作为嵌套的安装包访问，未压缩的 jar 文件不产生任何复制。<br>
+ * 安装包中的文件通过 mod 协议的 URL 访问，格式为 mod:file:/path/to/x.mod!/lib/a.jar!/path/to/resource。
+ * MRC 不向 JVM 注册 mod 协议（URLStreamHandlerFactory 全局只能设置一次，可能已被容器使用），
+ * mod 协议的 URL 由安装包创建，从字符串还原时须使用 {@link #parseURL(String)}，不能使用 new URL(String)。<br>
+ * 被映射的是打开时复制到临时目录的私有副本，而不是安装包本身：映射的文件被原地覆盖或截断时，访问映射区域的线程会收到 SIGBUS
+ * 而导致虚拟机崩溃，私有副本不会被其他进程修改，安装包本身可以被原地覆盖。副本在映射后即被删除。<br>
+ * 已打开的安装包只被弱引用缓存，模块不再引用后映射区域随安装包一起被虚拟机释放
+ */
+class ModuleArchive {
+
+    /**
+     * 中央目录中的一项
+     */
+    private static class ArchiveEntry {
+
+        long compressedSize;
+
+        /**
+         * 文件数据的偏移，在第一次访问时根据本地文件头计算
+         */
+        volatile int dataOffset = -1;
+
+        int localHeaderOffset;
+
+        int method;
+
+        long size;
+
+        long time;
+
+    }
+
+    /**
+     * mod 协议的 URL 处理器
+     */
+    private static class Handler extends URLStreamHandler {
+
+        @Override
+        protected URLConnection openConnection(URL u) throws IOException {
+            return new ArchiveURLConnection(u);
+        }
+
+        @Override
+        protected void parseURL(URL u, String spec, int start, int limit) {
+            String path;
+            if (spec.regionMatches(true, 0, PROTOCOL + ":", 0, PROTOCOL.length() + 1)) {
+                // 绝对 URL
+                path = spec.substring(PROTOCOL.length() + 1);
+            } else {
+                // 相对 URL，相对于最内层安装包的根目录或所在目录
+                String base = u.getPath();
+                String relative = spec.substring(start, limit);
+                if (relative.startsWith("/")) {
+                    int index = base.lastIndexOf(SEPARATOR);
+                    path = base.substring(0, index == -1 ? base.length() : index + 1) + relative;
+                } else {
+                    path = base.substring(0, base.lastIndexOf('/') + 1) + relative;
+                }
+            }
+            setURL(u, PROTOCOL, "", -1, null, null, path, null, null);
+        }
+
+    }
+
+    /**
+     * mod 协议的 URL 连接
+     */
+    private static class ArchiveURLConnection extends URLConnection {
+
+        private ModuleArchive archive;
+
+        private String name;
+
+        ArchiveURLConnection(URL url) {
+            super(url);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (connected) return;
+            String path = url.getPath();
+            int index = path.indexOf(SEPARATOR);
+            if (index == -1) throw new MalformedURLException("缺少 " + SEPARATOR + "：" + url);
+            archive = open(getArchiveFile(url));
+            name = path.substring(index + SEPARATOR.length());
+            int nested = name.indexOf(SEPARATOR);
+            if (nested != -1) {
+                archive = archive.getArchive(name.substring(0, nested));
+                name = name.substring(nested + SEPARATOR.length());
+            }
+            if (!archive.isFile(name)) throw new FileNotFoundException(url.toExternalForm());
+            connected = true;
+        }
+
+        @Override
+        public int getContentLength() {
+            try {
+                connect();
+                long size = archive.getSize(name);
+                return size > Integer.MAX_VALUE ? -1 : (int) size;
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            connect();
+            return archive.openStream(name);
+        }
+
+        @Override
+        public long getLastModified() {
+            try {
+                connect();
+                return archive.getTime(name);
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+
+    }
+
+    /**
+     * 将 ByteBuffer 作为输入流读取
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+    }
+
+    /**
+     * 解压输入流。与 java.util.zip.ZipFile 相同，压缩数据结束后补充一个空字节，并在关闭时释放 Inflater
+     */
+    private static class EntryInflaterInputStream extends InflaterInputStream {
+
+        private boolean eof;
+
+        EntryInflaterInputStream(InputStream in, int size) {
+            super(in, new Inflater(true), Math.max(512, Math.min(size, 8192)));
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            inf.end();
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (eof) throw new ZipException("压缩数据意外结束");
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+    }
+
+    private static final int CENHDR = 46;
+
+    private static final int CENSIG = 0x02014b50;
+
+    private static final int ENDHDR = 22;
+
+    private static final int ENDSIG = 0x06054b50;
+
+    private static final int LOCHDR = 30;
+
+    private static final int LOCSIG = 0x04034b50;
+
+    /**
+     * URL 协议
+     */
+    static final String PROTOCOL = "mod";
+
+    /**
+     * URL 中安装包与其中文件的分隔符
+     */
+    static final String SEPARATOR = "!/";
+
+    private static final URLStreamHandler handler = new Handler();
+
+    private static final Logger logger = Logger.getLogger(ModuleArchive.class.getName());
+
+    /**
+     * 已打开的安装包，键为安装包的绝对路径。只保留弱引用，不再被模块引用的安装包及其映射区域可以被回收
+     */
+    private static final ConcurrentHashMap<String,WeakReference<ModuleArchive>> archives = new ConcurrentHashMap<String,WeakReference<ModuleArchive>>();
+
+    private final ByteBuffer buffer;
+
+    /**
+     * 每个目录下的文件和子目录名，键为目录路径（以 / 结尾，根目录为空字符串）
+     */
+    private final Map<String,List<String>> directories = new HashMap<String,List<String>>();
+
+    private final Map<String,ArchiveEntry> entries = new HashMap<String,ArchiveEntry>();
+
+    private final File file;
+
+    private final long lastModified;
+
+    private final long length;
+
+    /**
+     * 嵌套的安装包，键为文件名
+     */
+    private final ConcurrentHashMap<String,ModuleArchive> nestedArchives = new ConcurrentHashMap<String,ModuleArchive>();
+
+    /**
+     * URL 前缀，以 !/ 结尾
+     */
+    private final String urlPrefix;
+
+    /**
+     * @param file 最外层的安装包文件
+     * @param buffer 安装包数据
+     * @param urlPrefix URL 前缀
+     * @param length 映射时安装包文件的大小
+     * @param lastModified 映射时安装包文件的修改时间
+     */
+    private ModuleArchive(File file, ByteBuffer buffer, String urlPrefix, long length, long lastModified) throws IOException {
+        this.file = file;
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.urlPrefix = urlPrefix;
+        this.length = length;
+        this.lastModified = lastModified;
+        readCentralDirectory();
+    }
+
+    /**
+     * 获取安装包中的文件数据。存储的文件直接返回映射区域，压缩的文件解压后返回
+     * 
+     * @param name 文件名，path/to/file
+     * @return 只读的文件数据
+     * @throws IOException
+     */
+    ByteBuffer getBuffer(String name) throws IOException {
+        ArchiveEntry entry = getEntry(name);
+        ByteBuffer data = getData(entry);
+        if (entry.method == 0) return data.asReadOnlyBuffer();
+        return ByteBuffer.wrap(inflate(entry, data)).asReadOnlyBuffer();
+    }
+
+    /**
+     * 读取安装包中的文件
+     * 
+     * @param name 文件名，path/to/file
+     * @return 文件数据
+     * @throws IOException
+     */
+    byte[] getBytes(String name) throws IOException {
+        ArchiveEntry entry = getEntry(name);
+        ByteBuffer data = getData(entry);
+        if (entry.method != 0) return inflate(entry, data);
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * 获取安装包中的 jar 文件对应的嵌套安装包。存储的 jar 文件直接使用映射区域，压缩的 jar 文件解压到内存中
+     * 
+     * @param name 文件名，path/to/file.jar
+     * @return 嵌套的安装包
+     * @throws IOException
+     */
+    ModuleArchive getArchive(String name) throws IOException {
+        ModuleArchive archive = nestedArchives.get(name);
+        if (archive == null) {
+            ArchiveEntry entry = getEntry(name);
+            if (entry.method != 0) {
+                logger.fine("安装包中的 " + name + " 是压缩的，解压到内存中访问：" + file.getAbsolutePath());
+            }
+            ModuleArchive newArchive = new ModuleArchive(file, getBuffer(name), urlPrefix + name + SEPARATOR, length, lastModified);
+            archive = nestedArchives.putIfAbsent(name, newArchive);
+            if (archive == null) archive = newArchive;
+        }
+        return archive;
+    }
+
+    /**
+     * 获取安装包文件
+     * 
+     * @return 最外层的安装包文件
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * 获取安装包中所有文件的文件名
+     * 
+     * @return 文件名列表，不包括目录
+     */
+    List<String> getNames() {
+        return new ArrayList<String>(entries.keySet());
+    }
+
+    /**
+     * 获取安装包中文件的大小
+     * 
+     * @param name 文件名，path/to/file
+     * @return 文件大小。文件不存在时，返回 0
+     */
+    long getSize(String name) {
+        ArchiveEntry entry = entries.get(name);
+        return entry == null ? 0 : entry.size;
+    }
+
+    /**
+     * 获取安装包中文件的修改时间
+     * 
+     * @param name 文件名，path/to/file
+     * @return 修改时间。文件不存在时，返回 0
+     */
+    long getTime(String name) {
+        ArchiveEntry entry = entries.get(name);
+        return entry == null ? 0 : entry.time;
+    }
+
+    /**
+     * 获取安装包中文件的 URL
+     * 
+     * @param name 文件名，path/to/file
+     * @return mod 协议的 URL
+     */
+    URL getURL(String name) {
+        try {
+            return new URL(null, urlPrefix + name, handler);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * 判断安装包中是否存在指定目录。安装包中没有目录项但有文件位于该目录下时，目录同样存在
+     * 
+     * @param name 目录名，path/to/directory，可以以 / 结尾。根目录为空字符串
+     * @return 当且仅当目录存在时，返回 true
+     */
+    boolean isDirectory(String name) {
+        return directories.containsKey(toDirectoryPath(name));
+    }
+
+    /**
+     * 判断安装包中是否存在指定文件
+     * 
+     * @param name 文件名，path/to/file
+     * @return 当且仅当文件存在时，返回 true
+     */
+    boolean isFile(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * 列举目录下的文件和子目录
+     * 
+     * @param name 目录名，path/to/directory，可以以 / 结尾。根目录为空字符串
+     * @return 文件名和子目录名，按名称排列。目录不存在时，返回 null
+     */
+    List<String> list(String name) {
+        List<String> names = directories.get(toDirectoryPath(name));
+        return names == null ? null : Collections.unmodifiableList(names);
+    }
+
+    /**
+     * 打开安装包中的文件
+     * 
+     * @param name 文件名，path/to/file
+     * @return 输入流
+     * @throws IOException
+     */
+    InputStream openStream(String name) throws IOException {
+        ArchiveEntry entry = getEntry(name);
+        InputStream in = new ByteBufferInputStream(getData(entry));
+        return entry.method == 0 ? in : new EntryInflaterInputStream(in, (int) Math.min(entry.size, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public String toString() {
+        return urlPrefix;
+    }
+
+    /**
+     * 获取 mod 协议 URL 对应的最外层安装包文件
+     * 
+     * @param url mod 协议的 URL
+     * @return 安装包文件
+     * @throws MalformedURLException
+     */
+    static File getArchiveFile(URL url) throws MalformedURLException {
+        String path = url.getPath();
+        int index = path.indexOf(SEPARATOR);
+        try {
+            return new File(new URL(index == -1 ? path : path.substring(0, index)).toURI());
+        } catch (Exception e) {
+            throw new MalformedURLException("无法解析安装包路径：" + url);
+        }
+    }
+
+    /**
+     * 获取 mod 协议 URL 中最外层安装包内的路径
+     * 
+     * @param url mod 协议的 URL
+     * @return 路径，可能包含嵌套安装包的分隔符
+     */
+    static String getEntryName(URL url) {
+        String path = url.getPath();
+        int index = path.indexOf(SEPARATOR);
+        return index == -1 ? "" : path.substring(index + SEPARATOR.length());
+    }
+
+    /**
+     * 不再缓存安装包。之后打开同一文件时重新映射，已打开的安装包在不再被引用后释放映射区域。<br>
+     * 热部署挂载的安装包时调用：被替换的安装包大小和修改时间可能与原文件相同，不能据此判断是否需要重新映射
+     * 
+     * @param file 安装包文件
+     */
+    static void close(File file) {
+        archives.remove(file.getAbsolutePath());
+    }
+
+    /**
+     * 打开安装包。同一个安装包只映射一次，安装包文件发生变化后重新映射。映射的是安装包的私有副本
+     * 
+     * @param file 安装包文件
+     * @return 安装包
+     * @throws IOException
+     */
+    static ModuleArchive open(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        WeakReference<ModuleArchive> reference = archives.get(key);
+        ModuleArchive archive = reference == null ? null : reference.get();
+        if (archive != null && archive.length == file.length() && archive.lastModified == file.lastModified()) {
+            return archive;
+        }
+
+        if (!file.isFile()) throw new FileNotFoundException(key);
+        long length = file.length();
+        long lastModified = file.lastModified();
+        if (length > Integer.MAX_VALUE) throw new IOException("安装包超过 2GB：" + key);
+        File copy = copy(file);
+        ByteBuffer buffer;
+        try {
+            if (file.length() != length || file.lastModified() != lastModified) {
+                throw new IOException("安装包在挂载过程中发生变化：" + key);
+            }
+            RandomAccessFile raf = new RandomAccessFile(copy, "r");
+            try {
+                // 映射建立后即可关闭文件，映射区域在不再被引用后由虚拟机释放
+                FileChannel channel = raf.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                raf.close();
+            }
+        } finally {
+            // 已映射的副本在不允许删除的系统上，于虚拟机退出时删除
+            if (!copy.delete()) copy.deleteOnExit();
+        }
+        archive = new ModuleArchive(file.getAbsoluteFile(), buffer, PROTOCOL + ":" + file.toURI() + SEPARATOR, length, lastModified);
+        archives.put(key, new WeakReference<ModuleArchive>(archive));
+        return archive;
+    }
+
+    /**
+     * 解析 URL，mod 协议的 URL 使用安装包的 URL 处理器
+     * 
+     * @param spec URL 字符串
+     * @return URL
+     * @throws MalformedURLException
+     */
+    static URL parseURL(String spec) throws MalformedURLException {
+        if (spec.startsWith(PROTOCOL + ":")) {
+            return new URL(null, spec, handler);
+        }
+        return new URL(spec);
+    }
+
+    /**
+     * 将模块类路径项转换为 URL。类路径项为文件路径或 mod 协议的 URL
+     * 
+     * @param path 类路径项
+     * @return URL
+     * @throws MalformedURLException
+     */
+    static URL toClassPathURL(String path) throws MalformedURLException {
+        if (path.startsWith(PROTOCOL + ":")) {
+            return new URL(null, path, handler);
+        }
+        return new File(path).toURI().toURL();
+    }
+
+    /**
+     * 将安装包复制到临时目录中
+     * 
+     * @return 私有副本
+     */
+    private static File copy(File file) throws IOException {
+        File copy = File.createTempFile("mrc-", ModuleContext.MODULE_FILE_SUFFIX);
+        boolean success = false;
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                FileOutputStream out = new FileOutputStream(copy);
+                try {
+                    FileChannel source = in.getChannel();
+                    FileChannel target = out.getChannel();
+                    long size = source.size();
+                    long position = 0;
+                    while (position < size) {
+                        position += source.transferTo(position, size - position, target);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            success = true;
+            return copy;
+        } finally {
+            if (!success) copy.delete();
+        }
+    }
+
+    private void addToDirectory(String path) {
+        // 将文件或目录逐级登记到上级目录中
+        for (;;) {
+            String name = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+            String parent = ClassPathIndex.getPackage(name);
+            List<String> names = directories.get(parent);
+            boolean exists = names != null;
+            if (!exists) {
+                names = new ArrayList<String>();
+                directories.put(parent, names);
+            }
+            String child = name.substring(parent.length());
+            if (child.length() > 0 && !names.contains(child)) names.add(child);
+            if (exists || parent.length() == 0) return;
+            path = parent;
+        }
+    }
+
+    private ByteBuffer getData(ArchiveEntry entry) throws IOException {
+        int offset = entry.dataOffset;
+        if (offset == -1) {
+            int header = entry.localHeaderOffset;
+            if (header + LOCHDR > buffer.limit() || buffer.getInt(header) != LOCSIG) {
+                throw new ZipException("本地文件头无效：" + file.getAbsolutePath());
+            }
+            offset = entry.dataOffset = header + LOCHDR + (buffer.getShort(header + 26) & 0xffff) + (buffer.getShort(header + 28) & 0xffff);
+        }
+        if (offset + entry.compressedSize > buffer.limit()) {
+            throw new ZipException("文件数据超出安装包范围：" + file.getAbsolutePath());
+        }
+        ByteBuffer data = buffer.duplicate();
+        data.position(offset);
+        data.limit(offset + (int) entry.compressedSize);
+        return data.slice();
+    }
+
+    private ArchiveEntry getEntry(String name) throws IOException {
+        ArchiveEntry entry = entries.get(name);
+        if (entry == null) throw new FileNotFoundException(urlPrefix + name);
+        return entry;
+    }
+
+    private byte[] inflate(ArchiveEntry entry, ByteBuffer data) throws IOException {
+        if (entry.method != 8) throw new ZipException("不支持的压缩方法 " + entry.method + "：" + urlPrefix);
+        byte[] input = new byte[data.remaining() + 1]; // 末尾补充一个空字节
+        data.get(input, 0, input.length - 1);
+        byte[] output = new byte[(int) entry.size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input);
+            int count = 0;
+            while (count < output.length) {
+                int c = inflater.inflate(output, count, output.length - count);
+                if (c == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                count += c;
+            }
+            if (count != output.length) throw new ZipException("解压后的大小不符：" + urlPrefix);
+        } catch (DataFormatException e) {
+            throw new ZipException("解压时出错：" + urlPrefix + "，" + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return output;
+    }
+
+    /**
+     * 读取中央目录。不支持 ZIP64 格式
+     */
+    private void readCentralDirectory() throws IOException {
+        int end = -1;
+        for (int i = buffer.limit() - ENDHDR; i >= Math.max(0, buffer.limit() - ENDHDR - 0xffff); i--) {
+            if (buffer.getInt(i) == ENDSIG) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) throw new ZipException("不是有效的安装包：" + urlPrefix);
+
+        int count = buffer.getShort(end + 10) & 0xffff;
+        long size = buffer.getInt(end + 12) & 0xffffffffL;
+        long offset = buffer.getInt(end + 16) & 0xffffffffL;
+        if (count == 0xffff || size == 0xffffffffL || offset == 0xffffffffL) {
+            throw new ZipException("不支持 ZIP64 格式的安装包：" + urlPrefix);
+        }
+
+        directories.put("", new ArrayList<String>());
+        int position = (int) offset;
+        for (int i = 0; i < count; i++) {
+            if (position + CENHDR > buffer.limit() || buffer.getInt(position) != CENSIG) {
+                throw new ZipException("中央目录无效：" + urlPrefix);
+            }
+            int nameLength = buffer.getShort(position + 28) & 0xffff;
+            int extraLength = buffer.getShort(position + 30) & 0xffff;
+            int commentLength = buffer.getShort(position + 32) & 0xffff;
+            byte[] nameBytes = new byte[nameLength];
+            ByteBuffer nameBuffer = buffer.duplicate();
+            nameBuffer.position(position + CENHDR);
+            nameBuffer.get(nameBytes);
+            String name = new String(nameBytes, "UTF-8");
+
+            if (name.endsWith("/")) {
+                if (!directories.containsKey(name)) directories.put(name, new ArrayList<String>());
+                addToDirectory(name);
+            } else {
+                ArchiveEntry entry = new ArchiveEntry();
+                entry.method = buffer.getShort(position + 10) & 0xffff;
+                entry.time = dosToJavaTime(buffer.getInt(position + 12) & 0xffffffffL);
+                entry.compressedSize = buffer.getInt(position + 20) & 0xffffffffL;
+                entry.size = buffer.getInt(position + 24) & 0xffffffffL;
+                entry.localHeaderOffset = buffer.getInt(position + 42);
+                entries.put(name, entry);
+                addToDirectory(name);
+            }
+            position += CENHDR + nameLength + extraLength + commentLength;
+        }
+
+        for (List<String> names : directories.values()) {
+            List<String> sorted = new ArrayList<String>(new TreeSet<String>(names));
+            names.clear();
+            names.addAll(sorted);
+        }
+    }
+
+    private static long dosToJavaTime(long dosTime) {
+        Calendar calendar = new GregorianCalendar((int) ((dosTime >> 25) & 0x7f) + 1980, (int) ((dosTime >> 21) & 0x0f) - 1,
+                (int) ((dosTime >> 16) & 0x1f), (int) ((dosTime >> 11) & 0x1f), (int) ((dosTime >> 5) & 0x3f), (int) ((dosTime << 1) & 0x3e));
+        return calendar.getTimeInMillis();
+    }
+
+    private static String toDirectoryPath(String name) {
+        return name.length() == 0 || name.endsWith("/") ? name : name + "/";
+    }
+
+}
@@ -0,0 +1,285 @@
+package com.onewaveinc.mrc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 批量模块签名。在一个 JVM 中并行签名模块安装目录下的所有模块，共用一个模块摘要缓存。<br>
+ * 每个模块的签名清单写入输出目录下的 &lt;模块 ID&gt;-&lt;模块版本&gt;.mf，完整性清单写入 &lt;模块 ID&gt;-&lt;模块版本&gt;.integrity，
+ * 签名结果和每个模块的耗时写入输出目录下的 signature-report.txt。不修改模块本身。<br>
+ * 模块间并行签名，每个模块在签名线程中顺序读取文件，不再使用预读线程
+ */
+class ModuleBatchSigner {
+
+    /**
+     * 单个模块的签名结果
+     */
+    private static class Result {
+
+        String error;
+
+        ModuleIntegrityManifest integrity;
+
+        final Module module;
+
+        ModuleSignature signature;
+
+        long time;
+
+        Result(Module module) {
+            this.module = module;
+        }
+
+    }
+
+    static final String OPTION_BATCH = "-batch";
+
+    static final String OPTION_INTEGRITY = "-integrity";
+
+    private static final String OPTION_OUTPUT = "-out";
+
+    private static final String OPTION_THREADS = "-threads";
+
+    private static final String DEFAULT_OUTPUT_DIRECTORY = "signatures";
+
+    private static final String REPORT_FILE = "signature-report.txt";
+
+    private static final Logger logger = Logger.getLogger(ModuleBatchSigner.class.getName());
+
+    private final ModuleDigestCache cache;
+
+    private final boolean integrity;
+
+    private final File outputDirectory;
+
+    private final int threads;
+
+    /**
+     * @param outputDirectory 输出目录
+     * @param threads 并行签名的模块数
+     * @param cache 模块摘要缓存，可以为 null
+     * @param integrity 是否同时生成完整性清单
+     */
+    ModuleBatchSigner(File outputDirectory, int threads, ModuleDigestCache cache, boolean integrity) {
+        this.outputDirectory = outputDirectory;
+        this.threads = threads;
+        this.cache = cache;
+        this.integrity = integrity;
+    }
+
+    /**
+     * 命令行批量签名
+     * 
+     * @param args -batch [模块安装目录，多个以 ; 分隔] [-out 输出目录] [-threads 线程数] [-integrity]。
+     *            未指定模块安装目录时，签名 MRC 中的所有模块
+     * @param moduleContext MRC，可以为 null
+     * @return 是否全部签名成功
+     */
+    static boolean main(String[] args, ModuleContext moduleContext) throws IOException {
+        String directories = null;
+        File outputDirectory = new File(DEFAULT_OUTPUT_DIRECTORY);
+        int threads = ModuleDigester.getDefaultThreads();
+        boolean integrity = false;
+        for (int i = 1; i < args.length; i++) {
+            if (OPTION_OUTPUT.equals(args[i]) && i + 1 < args.length) {
+                outputDirectory = new File(args[++i]);
+            } else if (OPTION_THREADS.equals(args[i])) {
+                threads = i + 1 < args.length ? parseThreads(args[++i]) : 0;
+                if (threads < 1) {
+                    logger.severe("线程数必须是正整数");
+                    printUsage();
+                    return false;
+                }
+            } else if (OPTION_INTEGRITY.equals(args[i])) {
+                integrity = true;
+            } else {
+                directories = args[i];
+            }
+        }
+
+        List<Module> modules;
+        if (directories != null) {
+            modules = listModules(directories);
+        } else if (moduleContext != null) {
+            modules = moduleContext.getModules();
+        } else {
+            logger.severe("未指定模块安装目录");
+            return false;
+        }
+
+        ModuleDigestCache cache = new ModuleDigestCache(new File(ModuleSignature.DIGEST_CACHE_FILE));
+        cache.load();
+        boolean success = new ModuleBatchSigner(outputDirectory, threads, cache, integrity).sign(modules);
+        cache.store();
+        return success;
+    }
+
+    /**
+     * 列出模块安装目录下的模块目录和模块安装包。不支持模块链接文件
+     * 
+     * @param directories 模块安装目录，多个以 ; 分隔，与 MRC 配置项 modules.dir 的格式相同
+     * @return 模块，按模块安装目录和文件名排列
+     */
+    static List<Module> listModules(String directories) {
+        List<Module> result = new ArrayList<Module>();
+        for (String path : directories.split(";")) {
+            File directory = new File(path.trim());
+            File[] files = directory.listFiles();
+            if (files == null) {
+                logger.warning("模块安装目录不存在: " + directory.getAbsolutePath());
+                continue;
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile() ? !file.getName().endsWith(ModuleContext.MODULE_FILE_SUFFIX) : !new File(file, Module.METADATA_FILE).isFile()) continue;
+                try {
+                    result.add(Module.load(file));
+                } catch (ModuleException e) {
+                    logger.log(Level.WARNING, "分析目录 " + file.getAbsolutePath() + " 时出错", e);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 签名模块，输出签名清单和签名报告
+     * 
+     * @param modules 模块。模块 ID 和版本相同的模块只签名第一个
+     * @return 是否全部签名成功
+     * @throws IOException 无法创建输出目录或写入签名报告时
+     */
+    boolean sign(List<Module> modules) throws IOException {
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException("无法创建输出目录: " + outputDirectory.getAbsolutePath());
+        }
+
+        long t = System.currentTimeMillis();
+        Set<Module> signed = new HashSet<Module>();
+        List<Result> results = new ArrayList<Result>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads), new DaemonThreadFactory("mrc-sign-"));
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>();
+            for (final Module module : modules) {
+                if (!signed.add(module)) {
+                    logger.warning("忽略重复的模块: " + module + " 模块目录: " + module.getRootDirectory());
+                    continue;
+                }
+                futures.add(executor.submit(new Callable<Result>() {
+                    public Result call() {
+                        return sign(module);
+                    }
+                }));
+            }
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("等待模块签名时被中断");
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        long elapsed = System.currentTimeMillis() - t;
+
+        int failures = 0;
+        for (Result result : results) {
+            if (result.error != null) failures++;
+        }
+        writeReport(results, failures, elapsed);
+        logger.info(String.format("批量签名完成，模块数: %d，失败数: %d，线程数: %d，耗时: %d ms，签名报告: %s", results.size(), failures, threads, elapsed,
+                new File(outputDirectory, REPORT_FILE).getAbsolutePath()));
+        return failures == 0;
+    }
+
+    private Result sign(Module module) {
+        Result result = new Result(module);
+        long t = System.currentTimeMillis();
+        try {
+            // 模块间已经并行，模块内不再预读
+            ModuleSignature signature = new ModuleSignature(module, new ModuleDigester(1, cache));
+            if (signature.getMD5Digest() == null) {
+                result.error = "计算模块摘要时出错";
+            } else {
+                if (integrity) {
+                    result.integrity = ModuleSignature.writeIntegrityManifest(module, new File(outputDirectory, getFileName(module) + ".integrity"));
+                }
+                ModuleSignature.writeManifest(signature, result.integrity, new File(outputDirectory, getFileName(module) + ".mf"));
+                result.signature = signature;
+            }
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "签名模块 " + module + " 时出错", e);
+            result.error = String.valueOf(e.getMessage());
+        }
+        result.time = System.currentTimeMillis() - t;
+        return result;
+    }
+
+    private void writeReport(List<Result> results, int failures, long elapsed) throws IOException {
+        List<Result> sorted = new ArrayList<Result>(results);
+        Collections.sort(sorted, new Comparator<Result>() {
+            public int compare(Result o1, Result o2) {
+                int c = o1.module.getId().compareTo(o2.module.getId());
+                return c != 0 ? c : o1.module.getVersion().compareTo(o2.module.getVersion());
+            }
+        });
+
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(outputDirectory, REPORT_FILE)), "UTF-8"));
+        try {
+            out.printf("# 模块数: %d，失败数: %d，线程数: %d，总耗时: %d ms%n", results.size(), failures, threads, elapsed);
+            out.println("# 模块 ID\t模块版本\t耗时(ms)\t结果\tMD5\tSHA-1\t完整性清单根摘要\t模块目录");
+            for (Result result : sorted) {
+                ModuleSignature signature = result.signature;
+                out.printf("%s\t%s\t%d\t%s\t%s\t%s\t%s\t%s%n", result.module.getId(), result.module.getVersion(), result.time,
+                        result.error == null ? "OK" : "FAILED: " + result.error,
+                        signature == null ? "-" : ModuleSignature.encode(signature.getMD5Digest()),
+                        signature == null ? "-" : ModuleSignature.encode(signature.getSHA1Digest()),
+                        result.integrity == null ? "-" : result.integrity.getRootHash(), result.module.getRootDirectory());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int parseThreads(String s) {
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("ModuleSignature -batch [模块安装目录] [选项]");
+        System.out.println("  模块安装目录     多个以 ; 分隔。未指定时，签名 MRC 中的所有模块");
+        System.out.println("  -out 输出目录    签名清单、完整性清单和签名报告的输出目录，默认为 " + DEFAULT_OUTPUT_DIRECTORY);
+        System.out.println("  -threads 线程数  并行签名的模块数，正整数");
+        System.out.println("  -integrity       同时生成完整性清单");
+    }
+
+    private static String getFileName(Module module) {
+        return module.getId() + "-" + module.getVersion();
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.onewaveinc.mrc;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.List;
+
+/**
+ * 模块类装载器。按模块装载类时（mrc.classloader.mode 设置为 module），每个模块有一个模块类装载器，
+ * 类路径为扩展模块和模块自身的类路径，扩展模块在前。模块的类只在模块自身以及其依赖（包括可选依赖）的模块中查找，
+ * JRE 和 MRC 核心部分的类以及不属于任何模块的类交给全局类装载器，其他模块的类不可见
+ */
+public class ModuleClassLoader extends ModuleContextClassLoader {
+
+    static {
+        // 与全局类装载器相同，JDK 7 及以上版本中注册为并行类装载器
+        try {
+            Method method = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+            method.setAccessible(true);
+            method.invoke(null);
+        } catch (Throwable ignore) {}
+    }
+
+    private static final ModuleClassLoader[] NO_DEPENDENCIES = new ModuleClassLoader[0];
+
+    /**
+     * 依赖模块的类装载器，按依赖关系由近及远排列
+     */
+    private volatile ModuleClassLoader[] dependencies = NO_DEPENDENCIES;
+
+    private final ModuleContextClassLoader globalClassLoader;
+
+    private final Module module;
+
+    /**
+     * @param module 模块
+     * @param urls 模块的类路径
+     * @param globalClassLoader 全局类装载器
+     */
+    ModuleClassLoader(Module module, URL[] urls, ModuleContextClassLoader globalClassLoader) {
+        super(urls, globalClassLoader);
+        this.module = module;
+        this.globalClassLoader = globalClassLoader;
+    }
+
+    public Module getModule() {
+        return module;
+    }
+
+    /**
+     * 设置依赖模块的类装载器
+     * 
+     * @param dependencies 依赖模块的类装载器，按依赖关系由近及远排列
+     */
+    void setDependencies(List<ModuleClassLoader> dependencies) {
+        this.dependencies = dependencies.toArray(new ModuleClassLoader[dependencies.size()]);
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        // 这里不加锁：类由拥有它的模块类装载器在 findOwnClass 中加锁定义，持有本模块的锁再去获取依赖模块的锁，
+        // 在模块互相依赖时会与反方向的装载形成死锁
+        Class<?> clazz = findLoadedClass(name);
+        if (clazz == null && !isJdkClass(name) && !name.startsWith("com.onewaveinc.mrc.")) {
+            clazz = findModuleClass(name);
+        }
+
+        if (clazz == null) {
+            // 不属于本模块及依赖模块的类交给全局类装载器，但其他模块的类不可见
+            ModuleClassLoader owner = globalClassLoader.getModuleClassLoader(name.replace('.', '/') + ".class");
+            if (owner != null) {
+                throw new ClassNotFoundException(name + "，该类属于模块 " + owner.getModule() + "，不在模块 " + module + " 的依赖中");
+            }
+            clazz = globalClassLoader.loadClass(name);
+        }
+
+        if (resolve) resolveClass(clazz);
+        return clazz;
+    }
+
+    @Override
+    public String toString() {
+        return "ModuleClassLoader[" + module + "]";
+    }
+
+    /**
+     * 在模块自身和依赖模块中查找并定义类。依次进入各模块的 findOwnClass，同一时刻只持有一个模块类装载器的锁
+     * 
+     * @param name 类名
+     * @return 类。找不到时，返回 null
+     * @throws ClassNotFoundException
+     */
+    private Class<?> findModuleClass(String name) throws ClassNotFoundException {
+        String resourceName = name.replace('.', '/') + ".class";
+        String packagePath = ClassPathIndex.getPackage(resourceName);
+        Class<?> clazz = findOwnClass(name, resourceName, packagePath);
+        if (clazz != null) return clazz;
+        for (ModuleClassLoader dependency : dependencies) {
+            clazz = dependency.findOwnClass(name, resourceName, packagePath);
+            if (clazz != null) return clazz;
+        }
+        return null;
+    }
+
+    /**
+     * 在模块自身的类路径中查找并定义类。类总是由拥有它的模块类装载器在自己的锁内定义，依赖方只获取结果。<br>
+     * 定义类时虚拟机会装载其父类和接口，此时仍持有本模块的锁，但父类不可能反过来依赖正在定义的类，不会形成循环等待
+     * 
+     * @param name 类名
+     * @param resourceName 类文件的资源名
+     * @param packagePath 包路径
+     * @return 类。找不到时，返回 null
+     * @throws ClassNotFoundException
+     */
+    private Class<?> findOwnClass(String name, String resourceName, String packagePath) throws ClassNotFoundException {
+        ClassPathIndex index = getIndex();
+        // 目录中的包可能在建立索引后增加，有目录时不能以索引排除
+        if (!index.hasPackage(packagePath) && !index.hasDirectories()) return null;
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> clazz = findLoadedClass(name);
+            if (clazz != null) return clazz;
+            ClassPathIndex.Entry entry = index.findEntry(resourceName);
+            if (entry == null) return null;
+            try {
+                return defineClass(name, entry, resourceName);
+            } catch (Throwable e) { // 与全局类装载器一致，UnsupportedClassVersionError 等 Error 也需要捕获
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+    }
+
+}
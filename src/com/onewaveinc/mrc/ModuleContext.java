@@ -9,7 +9,8 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.SoftReference;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.JarURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -23,15 +24,21 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.Manifest;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import javax.crypto.Cipher;
 
@@ -101,34 +108,105 @@ public class ModuleContext {
     
     public static final String PROPERTY_MODULES_TEST = "modules.test";
     
+    public static final String PROPERTY_MRC_CLASSLOADER_FILTER_CACHE = "mrc.classloader.filter.cache";
+
+    public static final String PROPERTY_MRC_CLASSLOADER_MODE = "mrc.classloader.mode";
+
+    public static final String PROPERTY_MRC_CLASSLOADER_MODE_MODULE = "module";
+
+    public static final String PROPERTY_MRC_CLASSLOADER_PRELOAD = "mrc.classloader.preload";
+
     public static final String PROPERTY_MRC_CONSOLE_DISABLED = "mrc.console.disabled";
 
     public static final String PROPERTY_MRC_FAILURE = "mrc.failure";
 
+    public static final String PROPERTY_MRC_HOTDEPLOY = "mrc.hotdeploy";
+
+    public static final String PROPERTY_MRC_HOTDEPLOY_INTERVAL = "mrc.hotdeploy.interval";
+
+    public static final String PROPERTY_MRC_HOTDEPLOY_QUIET = "mrc.hotdeploy.quiet";
+
+    public static final String PROPERTY_MRC_INTEGRITY = "mrc.integrity";
+
+    public static final String PROPERTY_MRC_INTEGRITY_ENFORCE = "enforce";
+
+    public static final String PROPERTY_MRC_INTEGRITY_INTERVAL = "mrc.integrity.interval";
+
+    public static final String PROPERTY_MRC_INTEGRITY_WARN = "warn";
+
+    public static final String PROPERTY_MRC_LIFECYCLE_PARALLEL = "mrc.lifecycle.parallel";
+
+    public static final String PROPERTY_MRC_LIFECYCLE_THREADS = "mrc.lifecycle.threads";
+
+    public static final String PROPERTY_MRC_MOUNT = "mrc.mount";
+
     public static final String PROPERTY_MRC_PHASE = "mrc.phase";
 
     public static final String PROPERTY_MRC_READONLY = "mrc.readonly";
 
+    public static final String PROPERTY_MRC_SHUTDOWN_MODULE_TIMEOUT = "mrc.shutdown.module.timeout";
+
+    public static final String PROPERTY_MRC_SHUTDOWN_TIMELINE = "mrc.shutdown.timeline";
+
+    public static final String PROPERTY_MRC_SHUTDOWN_TIMEOUT = "mrc.shutdown.timeout";
+
+    public static final String PROPERTY_MRC_SNAPSHOT = "mrc.snapshot";
+
+    public static final String PROPERTY_MRC_STARTUP_TIMELINE = "mrc.startup.timeline";
+
     public static final String PROPERTY_MRC_STARTLEVEL_SAFE = "mrc.startlevel.safe";
 
     public static final String PROPERTY_MRC_STARTLEVEL_SAFE_DEFAULT_VALUE = "10";
     
     public static final String SERVLET_CONTEXT_ATTRIBUTE = "OW_MODULE_CONTEXT";
 
+    private static final String CLASS_TRANSFORM_CACHE_DIRECTORY = "mrc-class-cache";
+
+    private static final String CLASSPATH_INDEX_FILE = "mrc-classpath.idx";
+
+    private static final String CLASS_PRELOAD_FILE = "mrc-preload.profile";
+
+    /**
+     * 模块安装目录中需要忽略的目录名
+     */
+    private static final Set<String> DIRECTORIES_TO_IGNORE = new HashSet<String>(Arrays.asList("CVS", ".git", ".svn"));
+
+    private static final String INTEGRITY_STATE_FILE = "mrc-integrity.state";
+
     private static final String LICENSE_FILE = "license.key";
 
+    private static final String STARTUP_SNAPSHOT_FILE = "mrc-startup.snapshot";
+
+    /**
+     * 安装模块以及并行通知模块时使用的最大线程数
+     */
+    private static final int MAX_INSTALL_THREADS = 16;
+
     private static final String LICENSE_KEY_ALGORITHM = "RSA";
     
     private static final Logger logger = Logger.getLogger(ModuleContext.class.getName());
 
+    /**
+     * 模块的启动顺序：按启动级别和模块 ID 排序
+     */
+    private static final Comparator<Module> START_ORDER = new Comparator<Module>() {
+        public int compare(Module o1, Module o2) {
+            int c = o1.getStartLevel() - o2.getStartLevel();
+            if (c == 0) {
+                c = o1.getId().compareTo(o2.getId());
+            }
+            return c;
+        }
+    };
+
     private static final byte MAGIC_CODE = 0x11;
 
     private static final String MODULE_MANIFEST_FILE = "/META-INF/MANIFEST.MF";
     
     /**
-     * 模块间共享的属性
+     * 服务注册表，同时保存模块间共享属性。并行通知模块以及处理 HTTP 请求时被多个线程同时访问
      */
-    private Map<String,Object> attributes = new HashMap<String,Object>();
+    private final ServiceRegistry serviceRegistry = new ServiceRegistry();
 
     /**
      * 全局类装载器
@@ -138,17 +216,25 @@ public class ModuleContext {
     private Manifest manifest;
 
     /**
-     * 模块列表
+     * 模块注册表，每次变化时发布新的快照
+     */
+    private volatile ModuleRegistry registry = ModuleRegistry.EMPTY;
+
+    /**
+     * 更新模块注册表时使用的锁
+     */
+    private final Object registryLock = new Object();
+
+    /**
+     * 批量修改中的模块注册表，由 registryLock 保护。为 null 时，模块的安装、启用或停用立即发布新的快照
      */
-    private List<Module> modules = new ArrayList<Module>();
+    private ModuleRegistry.Builder registryBuilder;
 
     /**
      * 模块安装目录列表
      */
     private List<File> modulesDirectory;
     
-    private volatile SoftReference<Map<URL,Module>> modulesURLCache = new SoftReference<Map<URL,Module>>(null);
-
     /**
      * MRC 配置
      */
@@ -167,7 +253,7 @@ public class ModuleContext {
     /**
      * 注册资源
      */
-    private Map<String,URL> resourceURLs = new HashMap<String,URL>();
+    private Map<String,URL> resourceURLs = Collections.synchronizedMap(new HashMap<String,URL>());
 
     /**
      * MRC 根目录
@@ -183,6 +269,26 @@ public class ModuleContext {
      * 最大启动级别
      */
     private int startLevel = Integer.MAX_VALUE;
+
+    /**
+     * 模块安装目录监视器。未启用热部署时为 null
+     */
+    private ModuleDirectoryWatcher watcher;
+
+    /**
+     * 模块完整性校验器。未启用完整性校验时为 null
+     */
+    private ModuleIntegrityVerifier integrityVerifier;
+
+    /**
+     * 最近一次启动的时间线
+     */
+    private volatile StartupTimeline startupTimeline = new StartupTimeline();
+
+    /**
+     * 最近一次停止的时间线。尚未停止过时为 null
+     */
+    private volatile StartupTimeline shutdownTimeline;
     
     /**
      * 构建 MRC 实例
@@ -205,13 +311,14 @@ public class ModuleContext {
     }
 
     /**
-     * 获取模块间共享的属性值
+     * 获取模块间共享的属性值。属性是服务注册表中排名为 0 的服务，
+     * 同名的服务键下以更高排名注册了服务时，返回的是排名最高的服务而不是 setAttribute 设置的值
      * 
      * @param key 属性名
-     * @return 属性值
+     * @return 属性值，即该属性名下排名最高的服务，可以是任意类型
      */
     public Object getAttribute(String key) {
-        return attributes.get(key);
+        return serviceRegistry.getAttribute(key);
     }
 
     /**
@@ -230,12 +337,7 @@ public class ModuleContext {
      * @return 模块实例
      */
     public Module getModule(String id) {
-        for (Module module : modules) {
-            if (module.isEnabled()) {
-                if (module.getId().equals(id)) return module;
-            }
-        }
-        return null;
+        return registry.getModule(id);
     }
 
     /**
@@ -246,32 +348,18 @@ public class ModuleContext {
      * @return 模块实例
      */
     public Module getModule(String id, Version version) {
-        for (Module module : modules) {
-            if (module.getId().equals(id) && module.getVersion().equals(version)) return module;
-        }
-        return null;
+        return registry.getModule(id, version);
     }
 
     /**
      * 根据模块 ID 获取该模块的扩展模块列表
      * 
      * @param id 模块 ID
-     * @return 扩展模块实例
+     * @return 扩展模块实例，最远的扩展模块在前、直接扩展模块在后。没有扩展模块或扩展链存在循环时，返回 null
      */
     public List<Module> getModuleExtensions(String id) {
-        for (Module module : modules) {
-            if (module.isEnabled() && module.getExtend() != null && module.getExtend().equals(id)) {
-                List<Module> extensions = getModuleExtensions(module.getId());
-                if (extensions != null) {
-                    extensions.add(module);
-                } else {
-                    extensions = new ArrayList<Module>();
-                    extensions.add(module);
-                }
-                return extensions;
-            }
-        }
-        return null;
+        List<Module> extensions = registry.getExtensionChain(id);
+        return extensions == null ? null : new ArrayList<Module>(extensions);
     }
     
     /**
@@ -292,50 +380,7 @@ public class ModuleContext {
      */
     public Module getModuleOfResource(URL url) {
         if (url == null) return null;
-        try {
-            if ("jar".equals(url.getProtocol())) {
-                try {
-                    url = ((JarURLConnection) url.openConnection()).getJarFileURL();
-                } catch (IOException ignore) {
-                    return null;
-                }
-            }
-            
-            Map<URL,Module> modulesURL = modulesURLCache.get();
-            if (modulesURL == null) {
-                synchronized (this) {
-                    modulesURL = modulesURLCache.get();
-                    if (modulesURL == null) {
-                        final Map<URL,Module> _modulesURL = modulesURL = new HashMap<URL,Module>();
-                        visitModules(new ModuleVisitor() {
-                            public void visit(Module module) throws Exception {
-                                File file = new File(module.getRootDirectory());
-                                _modulesURL.put(file.toURI().toURL(), module);
-                            }
-                        });
-                        modulesURLCache = new SoftReference<Map<URL,Module>>(_modulesURL);
-                    }
-                }
-            }
-            
-            for (;;) {
-                Module module = modulesURL.get(url);
-                if (module != null) return module;
-                
-                File file = new File(url.toURI()).getParentFile();
-                if (file == null) break;
-                
-                url = file.toURI().toURL();
-            }
-        } catch (IOException ignore) {
-            // EMPTY
-        } catch (RuntimeException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-
-        return null;
+        return registry.getPathIndex().find(url);
     }
 
     /**
@@ -344,7 +389,7 @@ public class ModuleContext {
      * @return 模块列表
      */
     public List<Module> getModules() {
-        return Collections.unmodifiableList(modules);
+        return registry.getModules();
     }
 
     /**
@@ -417,6 +462,33 @@ public class ModuleContext {
             " (tag " + attributes.getValue(ManifestAttributes.GIT_COMMIT_ID) + ")";
     }
 
+    /**
+     * 获取服务注册表。模块间共享属性也保存在服务注册表中
+     * 
+     * @return 服务注册表
+     */
+    public ServiceRegistry getServiceRegistry() {
+        return serviceRegistry;
+    }
+
+    /**
+     * 获取最近一次启动的时间线
+     * 
+     * @return 启动时间线
+     */
+    public StartupTimeline getStartupTimeline() {
+        return startupTimeline;
+    }
+
+    /**
+     * 获取最近一次停止的时间线
+     * 
+     * @return 停止时间线，只有 stop 阶段。尚未停止过时为 null
+     */
+    public StartupTimeline getShutdownTimeline() {
+        return shutdownTimeline;
+    }
+
     /**
      * 判断 MRC 是否已正常启动
      * 
@@ -450,6 +522,7 @@ public class ModuleContext {
         if (original != null) {
             logger.warning("重复注册资源，路径：" + path + ", " + original + " => " + url);
         }
+        if (classLoader != null) classLoader.resourcesChanged();
     }
     
     /**
@@ -497,13 +570,18 @@ public class ModuleContext {
 
         ClassLoader original = Thread.currentThread().getContextClassLoader();
 
+        final StartupTimeline timeline = startupTimeline = new StartupTimeline();
         try {
+            long t = timeline.begin();
             loadManifest();
+            timeline.end("manifest", t);
             
             logger.info("MRC 版本：" + getVersion());
             logger.info("MRC 启动开始，根目录：" + rootDirectory);
 
+            t = timeline.begin();
             loadProperties();
+            timeline.end("properties", t);
 
             if (modulesDirectory == null || modulesDirectory.isEmpty()) {
                 throw new IOException("MIP 模块安装目录不存在");
@@ -519,79 +597,176 @@ public class ModuleContext {
                 logger.info(builder.toString());
             }
 
+            t = timeline.begin();
             unzipModuleFiles();
+            timeline.end("unzip", t);
 
-            installModules();
-            
-            installTestModules();
+            // 类路径索引缓存，未发生变化的 jar 文件不需要重新扫描
+            ClassPathIndexCache indexCache = new ClassPathIndexCache(new File(rootDirectory, CLASSPATH_INDEX_FILE));
+            indexCache.load();
 
-            loadLicense();
+            // 按上次启动记录的类预加载配置，在安装模块、检查兼容性、读取许可证的同时预加载类
+            ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+            boolean moduleMode = PROPERTY_MRC_CLASSLOADER_MODE_MODULE.equalsIgnoreCase(getProperty(PROPERTY_MRC_CLASSLOADER_MODE));
+            boolean preload = !moduleMode && !(contextClassLoader instanceof ModuleContextClassLoader)
+                    && Boolean.parseBoolean(getProperty(PROPERTY_MRC_CLASSLOADER_PRELOAD, "true"));
+            ClassPreloadProfile preloadProfile = null;
+            ModuleContextClassLoader preloadClassLoader = null;
+            ClassPreloader preloader = null;
+            if (preload) {
+                preloadProfile = new ClassPreloadProfile(new File(rootDirectory, CLASS_PRELOAD_FILE));
+                if (preloadProfile.load() && preloadProfile.isUpToDate()) {
+                    preloadClassLoader = new ModuleContextClassLoader(contextClassLoader);
+                    preloadClassLoader.setModuleContext(this);
+                    preloadClassLoader.setIndexCache(indexCache);
+                    preloadClassLoader.addClassPathOwners(preloadProfile.getOwners());
+                    preloadClassLoader.addURLs(preloadProfile.getURLs());
+                    preloader = new ClassPreloader(preloadClassLoader, preloadProfile.getClasses());
+                    preloader.start();
+                }
+            }
 
-            disableModules();
+            // 配置和模块安装目录未发生变化时，从启动快照恢复上次解析完成的模块。配置了测试模块时不使用快照
+            String testModules = getProperty(PROPERTY_MODULES_TEST);
+            StartupSnapshot snapshot = null;
+            if (Boolean.parseBoolean(getProperty(PROPERTY_MRC_SNAPSHOT, "true")) && (testModules == null || testModules.length() == 0)) {
+                snapshot = new StartupSnapshot(new File(rootDirectory, STARTUP_SNAPSHOT_FILE));
+            }
+            t = timeline.begin();
+            boolean restored = snapshot != null && restoreModules(snapshot);
 
-            checkCompatibility();
+            if (!restored) {
+                installModules();
+                timeline.end("install", t);
 
-            // 设置模块的扩展模块
-            // TODO: 采用效率高的算法
-            visitModules(new ModuleVisitor() {
-                public void visit(Module module) throws Exception {
-                    module.setExtensions(getModuleExtensions(module.getId()));
-                }
-            }, Module.MASK_EXCLUDE_DISABLED);
+                t = timeline.begin();
+                installTestModules();
+                timeline.end("test-modules", t);
+            } else {
+                timeline.end("install", t);
+            }
 
-            logger.info("按启动顺序和模块ID排序模块");
-            Collections.sort(modules, new Comparator<Module>() {
-                public int compare(Module o1, Module o2) {
-                    int c = o1.getStartLevel() - o2.getStartLevel();
-                    if (c == 0) {
-                        c = o1.getId().compareTo(o2.getId());
+            // 许可证总是重新检查
+            t = timeline.begin();
+            loadLicense();
+            timeline.end("license", t);
+
+            String disabled = getDisabledModules();
+            if (restored && !snapshot.getDisabled().equals(disabled == null ? "" : disabled)) {
+                logger.info("停用模块配置已发生变化，重新检查模块");
+                beginRegistryBatch();
+                try {
+                    for (Module module : getModules()) {
+                        module.setEnabled(true);
                     }
-                    return c;
+                } finally {
+                    endRegistryBatch();
                 }
-            });
+                restored = false;
+            }
+
+            if (!restored) {
+                t = timeline.begin();
+                disableModules();
+                timeline.end("disable", t);
+
+                t = timeline.begin();
+                checkCompatibility();
+                timeline.end("compatibility", t);
+            }
+
+            // 设置模块的扩展模块。扩展链在模块注册表中一次算出，模块文件和类路径直接使用
+            t = timeline.begin();
+            setModuleExtensions();
+
+            logger.info("按启动顺序和模块ID排序模块");
+            synchronized (registryLock) {
+                publish(registry.sort(START_ORDER));
+                // 模块列表已确定，预先建立模块路径索引
+                registry.getPathIndex();
+            }
+            timeline.end("extensions", t);
+
+            if (snapshot != null && !restored && !Boolean.valueOf(getProperty(PROPERTY_MRC_READONLY))) {
+                snapshot.store(getSnapshotKey(), disabled == null ? "" : disabled, modulesDirectory, getModules());
+            }
+
+            String integrity = getProperty(PROPERTY_MRC_INTEGRITY);
+            if (PROPERTY_MRC_INTEGRITY_WARN.equalsIgnoreCase(integrity) || PROPERTY_MRC_INTEGRITY_ENFORCE.equalsIgnoreCase(integrity)) {
+                t = timeline.begin();
+                verifyIntegrity(PROPERTY_MRC_INTEGRITY_ENFORCE.equalsIgnoreCase(integrity));
+                timeline.end("integrity", t);
+            }
 
             checkStartLevel();
 
             logger.info("创建类装载器");
+            t = timeline.begin();
             final List<URL> urls = new ArrayList<URL>();
+            final Map<URL,String> classPathOwners = new HashMap<URL,String>();
+            final StringBuilder moduleVersions = new StringBuilder();
+            final Map<Module,List<URL>> moduleClassPaths = new LinkedHashMap<Module,List<URL>>();
             visitModules(new ModuleVisitor() {
                 public void visit(Module module) throws Exception {
                     if (module.getStartLevel() > startLevel) return;
 
-                    List<URL> moduleUrls = new ArrayList<URL>();
-
-                    // 如果存在扩展模块，则优先使用扩展模块的类路径，以达到覆盖的效果
+                    List<URL> moduleUrls = getModuleClassPath(module, classPathOwners);
                     if (module.getExtensions() != null) {
                         for (Module extension : module.getExtensions()) {
-                            for (String path : extension.getClassPath()) {
-                                moduleUrls.add(new File(path).toURI().toURL());
-                            }
+                            moduleVersions.append(extension.getId()).append(':').append(extension.getVersion()).append(';');
                         }
                     }
-
-                    for (String path : module.getClassPath()) {
-                        moduleUrls.add(new File(path).toURI().toURL());
-                    }
+                    moduleVersions.append(module.getId()).append(':').append(module.getVersion()).append(';');
+                    moduleClassPaths.put(module, moduleUrls);
 
                     // 启动顺序越高的模块的路径在越前面，这么做允许一个模块通过覆盖的方法修改其依赖模块的某些类，但不鼓励这种行为
                     // FIXME: 根据依赖关系而不是启动顺序决定类装载路径顺序
                     urls.addAll(0, moduleUrls);
                 }
             });
-            ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
             ModuleContextClassLoader mrcClassLoader;
             if (contextClassLoader instanceof ModuleContextClassLoader) {
                 mrcClassLoader = (ModuleContextClassLoader) contextClassLoader;
-                mrcClassLoader.addURLs(urls);
+            } else if (preloadClassLoader != null && preloadProfile.matches(urls, moduleVersions.toString())) {
+                logger.info("类路径与类预加载配置一致，使用预加载的类装载器");
+                mrcClassLoader = preloadClassLoader;
             } else {
-                mrcClassLoader = new ModuleContextClassLoader(urls.toArray(new URL[0]), contextClassLoader);
+                if (preloadClassLoader != null) {
+                    logger.info("类路径或模块版本已发生变化，丢弃预加载的类装载器");
+                    preloader.cancel();
+                    preloadClassLoader.closeClassPath();
+                    preloadClassLoader = null;
+                }
+                mrcClassLoader = new ModuleContextClassLoader(contextClassLoader);
                 mrcClassLoader.setModuleContext(this);
             }
+            if (mrcClassLoader != preloadClassLoader) {
+                mrcClassLoader.setIndexCache(indexCache);
+                mrcClassLoader.addClassPathOwners(classPathOwners);
+                mrcClassLoader.addURLs(urls);
+            }
+            if (moduleMode) {
+                logger.info("按模块创建类装载器");
+                createModuleClassLoaders(mrcClassLoader, moduleClassPaths, classPathOwners);
+            }
+            if (!Boolean.valueOf(getProperty(PROPERTY_MRC_READONLY))) {
+                indexCache.store();
+            }
+            if (Boolean.parseBoolean(getProperty(PROPERTY_MRC_CLASSLOADER_FILTER_CACHE, "false"))) {
+                mrcClassLoader.setTransformCache(new ClassTransformCache(new File(rootDirectory, CLASS_TRANSFORM_CACHE_DIRECTORY)));
+            }
             mrcClassLoader.setResourceURLs(resourceURLs);
             classLoader = mrcClassLoader;
+            timeline.end("classloader", t);
 
             Thread.currentThread().setContextClassLoader(classLoader);
 
+            // 预加载只与安装过程并行。模块在 prepare 阶段可能注册类过滤器，此后定义的类需要经过过滤器
+            if (preloadClassLoader != null) {
+                preloader.cancel();
+                logger.info("类预加载结束，载入类数：" + preloader.getLoaded());
+            }
+
             String phase = getProperty(PROPERTY_MRC_PHASE);
 
             if ("install".equalsIgnoreCase(phase)) {
@@ -599,6 +774,10 @@ public class ModuleContext {
                 return;
             }
 
+            if (preload) {
+                mrcClassLoader.startRecording();
+            }
+
             prepare();
 
             if ("prepare".equalsIgnoreCase(phase)) {
@@ -615,6 +794,18 @@ public class ModuleContext {
 
             start();
 
+            if (preload && !Boolean.valueOf(getProperty(PROPERTY_MRC_READONLY))) {
+                // 使用了预加载的类装载器时，预加载的类不会被再次定义，需要从原配置中保留
+                Set<String> preloadClasses = new LinkedHashSet<String>();
+                if (mrcClassLoader == preloadClassLoader) {
+                    for (String name : preloadProfile.getClasses()) {
+                        if (mrcClassLoader.isDefined(name)) preloadClasses.add(name);
+                    }
+                }
+                preloadClasses.addAll(mrcClassLoader.stopRecording());
+                preloadProfile.store(urls, classPathOwners, moduleVersions.toString(), preloadClasses);
+            }
+
             if (!License.enabled()) {
                 printDevelopVersion();
             }
@@ -622,6 +813,21 @@ public class ModuleContext {
             logger.info("MRC 启动完成");
             running = true;
 
+            if (Boolean.parseBoolean(getProperty(PROPERTY_MRC_HOTDEPLOY))) {
+                if (moduleMode) {
+                    watcher = new ModuleDirectoryWatcher(this, modulesDirectory, Long.parseLong(getProperty(PROPERTY_MRC_HOTDEPLOY_INTERVAL, "2000")),
+                            Long.parseLong(getProperty(PROPERTY_MRC_HOTDEPLOY_QUIET, "5000")));
+                    watcher.start();
+                } else {
+                    logger.warning("热部署需要按模块创建类装载器（" + PROPERTY_MRC_CLASSLOADER_MODE + "=" + PROPERTY_MRC_CLASSLOADER_MODE_MODULE + "），未启用热部署");
+                }
+            }
+
+            long integrityInterval = Long.parseLong(getProperty(PROPERTY_MRC_INTEGRITY_INTERVAL, "0"));
+            if (integrityVerifier != null && integrityInterval > 0) {
+                integrityVerifier.start(this, integrityInterval);
+            }
+
             storeProperties();
         } catch (Throwable e) {
             if (e instanceof LicenseException) {
@@ -635,7 +841,10 @@ public class ModuleContext {
             storeProperties();
             printFailMessage();
         } finally {
+            if (classLoader != null) classLoader.stopRecording();
             Thread.currentThread().setContextClassLoader(original);
+            timeline.finish();
+            storeTimeline(timeline, PROPERTY_MRC_STARTUP_TIMELINE, "启动时间线");
         }
 
         // 启动控制台服务
@@ -654,7 +863,7 @@ public class ModuleContext {
      * @param value 属性值
      */
     public void setAttribute(String key, Object value) {
-        attributes.put(key, value);
+        serviceRegistry.setAttribute(key, value);
     }
 
     /**
@@ -680,20 +889,52 @@ public class ModuleContext {
             logger.log(Level.INFO, "MRC 关闭", e);
         }
 
-        try {
-            visitModules(new ModuleVisitor() {
-                public void visit(Module module) throws Exception {
+        if (watcher != null) {
+            watcher.stop();
+            watcher = null;
+        }
+
+        if (integrityVerifier != null) {
+            integrityVerifier.stop();
+        }
+
+        // 按依赖关系的逆序停止模块，记录每个模块的耗时
+        final StartupTimeline timeline = shutdownTimeline = new StartupTimeline();
+        List<Module> modulesToStop = new ArrayList<Module>();
+        Map<Module,List<Module>> dependencies = new HashMap<Module,List<Module>>();
+        for (Module module : registry.getBaseModules()) {
+            modulesToStop.add(module);
+            dependencies.put(module, getDirectRequiredModules(module));
+        }
+        int threads = Boolean.parseBoolean(getProperty(PROPERTY_MRC_LIFECYCLE_PARALLEL)) ? getLifecycleThreads() : 1;
+        long moduleTimeout = Long.parseLong(getProperty(PROPERTY_MRC_SHUTDOWN_MODULE_TIMEOUT, "30000"));
+        long timeout = Long.parseLong(getProperty(PROPERTY_MRC_SHUTDOWN_TIMEOUT, "120000"));
+        long t = timeline.begin();
+        int stopped = new ModuleShutdownScheduler(threads, moduleTimeout, timeout).execute(modulesToStop, dependencies, new ModuleVisitor() {
+            public void visit(Module module) throws Exception {
+                long t = timeline.begin();
+                try {
                     logger.info("停止模块：" + module);
                     ModuleEventListener listener = module.getListener();
                     if (listener != null) {
                         ModuleEvent event = new ModuleEvent(ModuleEvent.STOP, module, ModuleContext.this);
-                        listener.listen(event);
+                        notifyListener(module, listener, event);
+                    }
+
+                    // 卸载模块类装载器
+                    if (module.getClassLoader() != null) {
+                        classLoader.removeModuleClassLoader(module.getClassLoader());
+                        module.setClassLoader(null);
                     }
+                } finally {
+                    timeline.end(ModuleEvent.STOP, module, t);
                 }
-            });
-        } catch (Exception e) {
-            logger.log(Level.SEVERE, "MRC 停止失败", e);
-        }
+            }
+        });
+        timeline.end(ModuleEvent.STOP, t);
+        timeline.finish();
+        logShutdownTimeline(timeline, stopped, modulesToStop.size());
+        storeTimeline(timeline, PROPERTY_MRC_SHUTDOWN_TIMELINE, "停止时间线");
         
         if (!Boolean.parseBoolean(this.getProperty(PROPERTY_MRC_CONSOLE_DISABLED, "false"))) {
             Console.stop();
@@ -733,11 +974,9 @@ public class ModuleContext {
      * @throws Exception
      */
     public void visitModuleFiles(String modulePath, ModuleFileVisitor visitor) throws Exception {
-        for (Module module : modules) {
-            if (module.isEnabled() && module.getExtend() == null) {
-                ModuleFile file = module.getModuleFile(modulePath);
-                if (file.exists()) visitor.visit(file);
-            }
+        for (Module module : registry.getBaseModules()) {
+            ModuleFile file = module.getModuleFile(modulePath);
+            if (file.exists()) visitor.visit(file);
         }
     }
 
@@ -759,16 +998,152 @@ public class ModuleContext {
      * @throws Exception
      */
     public void visitModules(ModuleVisitor visitor, int mask) throws Exception {
-        for (Module module : modules) {
+        // 遍历开始时的快照。访问者停用的模块在之后的遍历中被跳过
+        for (Module module : registry.getModules()) {
             if ((mask & Module.MASK_EXCLUDE_DISABLED) != 0 && !module.isEnabled()) continue;
             if ((mask & Module.MASK_EXCLUDE_EXTENSION) != 0 && module.getExtend() != null) continue;
             visitor.visit(module);
         }
     }
 
+    /**
+     * 为每个模块创建模块类装载器，并按模块依赖关系设置其依赖的模块类装载器
+     * 
+     * @param globalClassLoader 全局类装载器
+     * @param moduleClassPaths 模块的类路径
+     * @param classPathOwners 类路径项所属的模块
+     */
+    private void createModuleClassLoaders(ModuleContextClassLoader globalClassLoader, Map<Module,List<URL>> moduleClassPaths,
+            Map<URL,String> classPathOwners) {
+        Map<String,ModuleClassLoader> moduleClassLoaders = new HashMap<String,ModuleClassLoader>();
+        for (Map.Entry<Module,List<URL>> entry : moduleClassPaths.entrySet()) {
+            Module module = entry.getKey();
+            List<URL> moduleUrls = entry.getValue();
+            ModuleClassLoader moduleClassLoader = new ModuleClassLoader(module, moduleUrls.toArray(new URL[moduleUrls.size()]), globalClassLoader);
+            moduleClassLoader.addClassPathOwners(classPathOwners);
+            globalClassLoader.addModuleClassLoader(moduleClassLoader);
+            module.setClassLoader(moduleClassLoader);
+            moduleClassLoaders.put(module.getId(), moduleClassLoader);
+        }
+
+        for (ModuleClassLoader moduleClassLoader : moduleClassLoaders.values()) {
+            List<ModuleClassLoader> dependencies = new ArrayList<ModuleClassLoader>();
+            for (Module required : getRequiredModules(moduleClassLoader.getModule())) {
+                ModuleClassLoader dependency = moduleClassLoaders.get(required.getId());
+                if (dependency != null) dependencies.add(dependency);
+            }
+            moduleClassLoader.setDependencies(dependencies);
+        }
+    }
+
+    /**
+     * 获取模块的类路径
+     * 
+     * @param module 模块
+     * @param classPathOwners 用于保存类路径项所属的模块
+     * @return 类路径项的 URL 列表。扩展模块的类路径在前
+     * @throws MalformedURLException
+     */
+    private List<URL> getModuleClassPath(Module module, Map<URL,String> classPathOwners) throws MalformedURLException {
+        List<URL> moduleUrls = new ArrayList<URL>();
+
+        // 如果存在扩展模块，则优先使用扩展模块的类路径，以达到覆盖的效果
+        if (module.getExtensions() != null) {
+            for (Module extension : module.getExtensions()) {
+                for (String path : extension.getClassPath()) {
+                    URL url = ModuleArchive.toClassPathURL(path);
+                    moduleUrls.add(url);
+                    classPathOwners.put(url, extension.getId());
+                }
+            }
+        }
+
+        for (String path : module.getClassPath()) {
+            URL url = ModuleArchive.toClassPathURL(path);
+            moduleUrls.add(url);
+            classPathOwners.put(url, module.getId());
+        }
+        return moduleUrls;
+    }
+
+    /**
+     * 获取模块直接或间接依赖（包括可选依赖）的所有已启用的基本模块，按依赖关系由近及远排列。扩展模块的依赖视为被扩展模块的依赖
+     * 
+     * @param module 模块
+     * @return 模块列表，不包括模块自身
+     */
+    private List<Module> getRequiredModules(Module module) {
+        Set<Module> visited = new LinkedHashSet<Module>();
+        LinkedList<Module> queue = new LinkedList<Module>();
+        visited.add(module);
+        queue.add(module);
+        while (!queue.isEmpty()) {
+            for (Module required : getDirectRequiredModules(queue.removeFirst())) {
+                if (visited.add(required)) {
+                    queue.add(required);
+                }
+            }
+        }
+        visited.remove(module);
+        return new ArrayList<Module>(visited);
+    }
+
+    /**
+     * 获取模块直接依赖（包括可选依赖）的已安装的基本模块。扩展模块的依赖视为被扩展模块的依赖
+     * 
+     * @param module 模块
+     * @return 模块列表，按声明顺序排列
+     */
+    private List<Module> getDirectRequiredModules(Module module) {
+        List<Module> declaringModules = new ArrayList<Module>();
+        declaringModules.add(module);
+        if (module.getExtensions() != null) {
+            declaringModules.addAll(module.getExtensions());
+        }
+        Set<Module> result = new LinkedHashSet<Module>();
+        for (Module declaringModule : declaringModules) {
+            List<RequireEntry> entries = new ArrayList<RequireEntry>();
+            if (declaringModule.getRequire() != null) entries.addAll(declaringModule.getRequire());
+            if (declaringModule.getRequireOptional() != null) entries.addAll(declaringModule.getRequireOptional());
+            for (RequireEntry entry : entries) {
+                Module required = getModule(entry.getId());
+                // 依赖扩展模块等同于依赖被扩展模块
+                while (required != null && required.getExtend() != null) {
+                    required = getModule(required.getExtend());
+                }
+                if (required != null && required != module) {
+                    result.add(required);
+                }
+            }
+        }
+        return new ArrayList<Module>(result);
+    }
+
     private void checkCompatibility() throws ModuleException, UnsatisfiedDependencyException {
         logger.info("模块相容性检查");
-        new StrictCompatibilityChecker(this).execute();
+        beginRegistryBatch();
+        try {
+            new StrictCompatibilityChecker(this).execute();
+        } finally {
+            endRegistryBatch();
+        }
+    }
+
+    /**
+     * 以模块注册表中的扩展链设置已启用模块的扩展模块
+     * 
+     * @throws ModuleException 扩展关系存在循环时
+     */
+    private void setModuleExtensions() throws Exception {
+        final ModuleRegistry currentRegistry = registry;
+        if (currentRegistry.getExtensionCycle() != null) {
+            throw new ModuleException("模块扩展存在循环：" + currentRegistry.getExtensionCycle());
+        }
+        visitModules(new ModuleVisitor() {
+            public void visit(Module module) throws Exception {
+                module.setExtensions(currentRegistry.getExtensionChain(module.getId()));
+            }
+        }, Module.MASK_EXCLUDE_DISABLED);
     }
 
     private void checkStartLevel() {
@@ -830,21 +1205,27 @@ public class ModuleContext {
         return out.toByteArray();
     }
 
+
     /**
-     * 删除目录（递归删除目录下所有目录和文件）或文件
+     * 获取停用模块配置。启用许可证时，以许可证中的配置为准
      * 
-     * @param file 目录或文件
-     * @return 当且仅当删除成功时，返回 true
-     */
-    private boolean deleteDirectory(File file) {
-        if (file.isDirectory()) {
-            for (File f : file.listFiles()) {
-                if (!deleteDirectory(f)) {
-                    return false;
-                }
-            }
+     * @return 停用模块配置，未配置时返回 null
+     */
+    private String getDisabledModules() {
+        if (License.ENABLED) {
+            return (String) License.deserialize(License.get(ModuleContext.PROPERTY_MODULES_DISABLED));
+        } else {
+            return getProperty(ModuleContext.PROPERTY_MODULES_DISABLED);
         }
-        return file.delete();
+    }
+
+    /**
+     * 获取影响模块解析结果的配置，作为启动快照指纹的一部分
+     * 
+     * @return 配置标识
+     */
+    private String getSnapshotKey() {
+        return getVersion() + ';' + PROPERTY_MRC_MOUNT + '=' + Boolean.parseBoolean(getProperty(PROPERTY_MRC_MOUNT));
     }
 
     /**
@@ -853,13 +1234,17 @@ public class ModuleContext {
      * @throws ModuleException
      */
     private void disableModules() throws ModuleException {
-        String disableModules;
-        if (License.ENABLED) {
-            disableModules = (String) License.deserialize(License.get(ModuleContext.PROPERTY_MODULES_DISABLED));
-        } else {
-            disableModules = getProperty(ModuleContext.PROPERTY_MODULES_DISABLED);
-        }
+        String disableModules = getDisabledModules();
         if (disableModules == null || disableModules.length() == 0) return;
+        beginRegistryBatch();
+        try {
+            disableModules(disableModules);
+        } finally {
+            endRegistryBatch();
+        }
+    }
+
+    private void disableModules(String disableModules) throws ModuleException {
         for (String disableModule : disableModules.split(";\\s*")) {
             String[] parts = disableModule.split("/");
 
@@ -891,76 +1276,486 @@ public class ModuleContext {
         assert module.getState() == null;
         module.setModuleContext(this);
         module.setState(ModuleState.INSTALLED);
-        modules.add(module);
+        synchronized (registryLock) {
+            if (registryBuilder != null) {
+                registryBuilder.add(module);
+            } else {
+                publish(registry.with(module));
+            }
+        }
     }
 
     /**
-     * 安装 MIP 模块安装目录下的所有 MIP 模块
-     * 
-     * @param modulesDirectory MIP 模块安装目录
+     * 模块启用或停用后，重新建立索引并发布模块注册表。批量修改中只作记录
      */
-    private void installModules() {
-        final Set<String> directoriesToIgnore = new HashSet<String>(Arrays.asList("CVS", ".git", ".svn"));
-        
-        int level = 0; // 模块级别，模块属于越靠前的模块安装目录时，级别越低
-        for (File directory : modulesDirectory) {
-            for (File moduleFile : directory.listFiles()) {
-                if (moduleFile.isFile()) {
-                    if (moduleFile.getName().endsWith(ModuleContext.MODULE_LINK_SUFFIX)) {
-                        // 处理模块链接文件
-                        String link;
-                        try {
-                            // 读取模块链接文件的第一行，作为链接的路径
-                            BufferedReader in = new BufferedReader(new FileReader(moduleFile));
-                            link = in.readLine();
-                            in.close();
-                        } catch (FileNotFoundException ignore) {
-                            continue;
-                        } catch (IOException e) {
-                            logger.log(Level.SEVERE, "读取模块链接文件 " + moduleFile.getAbsolutePath() + " 时出错", e);
-                            continue;
-                        }
-
-                        if (link.matches("(/|\\\\\\\\|\\w:).*")) {
-                            // 链接路径为绝对路径
-                            moduleFile = new File(link);
-                        } else {
-                            // 链接路径为相对路径，相对于链接文件所在目录
-                            moduleFile = new File(directory, link);
-                        }
-
+    void refreshRegistry() {
+        synchronized (registryLock) {
+            if (registryBuilder != null) {
+                registryBuilder.refresh();
+            } else {
+                publish(registry.refresh());
+            }
+        }
+    }
+
+    /**
+     * 开始批量修改模块注册表。之后安装、启用或停用模块只记录在构造器中，由 endRegistryBatch() 一次发布。
+     * 批量修改期间读取到的仍是开始时的快照，但模块的启用状态是最新的
+     */
+    void beginRegistryBatch() {
+        synchronized (registryLock) {
+            assert registryBuilder == null;
+            registryBuilder = new ModuleRegistry.Builder(registry);
+        }
+    }
+
+    /**
+     * 结束批量修改模块注册表。有修改时发布一个新的快照
+     */
+    void endRegistryBatch() {
+        synchronized (registryLock) {
+            ModuleRegistry.Builder builder = registryBuilder;
+            registryBuilder = null;
+            if (builder != null && builder.isChanged()) publish(builder.build());
+        }
+    }
+
+    /**
+     * 发布新的模块注册表。调用时需持有 registryLock
+     * 
+     * @param newRegistry 新的模块注册表
+     */
+    private void publish(ModuleRegistry newRegistry) {
+        registry = newRegistry;
+    }
+
+    /**
+     * 热部署模块安装目录下新增或发生变化的一项。被取代的模块以及直接或间接依赖它的模块按启动顺序的逆序收到 stop 事件，
+     * 更换模块后重新创建它们的模块类装载器，再按启动顺序收到 prepare / resolve / start 事件。<br>
+     * 只检查与部署的模块有关的依赖，检查不通过时不部署。仅在按模块创建类装载器时可用，扩展模块以及被扩展的模块不支持热部署。<br>
+     * 模块安装包先解压到部署目录，检查通过并停止相关模块后才换入模块目录；检查不通过时原模块目录不受影响，
+     * 换入失败时原模块目录被恢复，停止的模块重新启动
+     * 
+     * @param directory 模块安装目录
+     * @param moduleFile 模块安装目录下新增或发生变化的文件或目录
+     * @throws Exception
+     */
+    synchronized void deploy(File directory, File moduleFile) throws Exception {
+        if (!running) return;
+        if (!PROPERTY_MRC_CLASSLOADER_MODE_MODULE.equalsIgnoreCase(getProperty(PROPERTY_MRC_CLASSLOADER_MODE))) {
+            throw new ModuleException("热部署需要按模块创建类装载器");
+        }
+
+        // 1. 将安装包解压到部署目录，载入模块
+        boolean mount = Boolean.parseBoolean(getProperty(PROPERTY_MRC_MOUNT));
+        String name = moduleFile.getName();
+        ModuleFileExtractor extractor = null;
+        File deployDirectory = null;
+        if (!mount && moduleFile.isFile() && name.endsWith(MODULE_FILE_SUFFIX)) {
+            File extracted = new File(directory, name.substring(0, name.length() - MODULE_FILE_SUFFIX.length()));
+            extractor = new ModuleFileExtractor(moduleFile, extracted);
+            deployDirectory = extractor.prepare();
+            moduleFile = extracted;
+        }
+        try {
+            deploy(directory, moduleFile, mount, deployDirectory != null ? extractor : null, deployDirectory);
+        } finally {
+            if (deployDirectory != null && deployDirectory.exists()) extractor.rollback();
+        }
+    }
+
+    /**
+     * 热部署一个模块
+     * 
+     * @param directory 模块安装目录
+     * @param moduleFile 模块安装目录下新增或发生变化的文件或目录。对于模块安装包，为解压后的模块目录
+     * @param mount 是否直接挂载模块安装包
+     * @param extractor 模块安装包解压器，不需要换入部署目录时为 null
+     * @param deployDirectory 部署目录，不需要换入时为 null
+     * @throws Exception
+     */
+    private void deploy(File directory, File moduleFile, boolean mount, ModuleFileExtractor extractor, File deployDirectory) throws Exception {
+        File moduleDirectory = getModuleDirectory(directory, moduleFile, DIRECTORIES_TO_IGNORE, mount);
+        if (moduleDirectory == null) return;
+        // 挂载的安装包重新映射，原有模块继续使用原来的映射区域，直到被换出后释放
+        if (moduleDirectory.isFile()) ModuleArchive.close(moduleDirectory);
+        Module module = Module.load(deployDirectory != null ? deployDirectory : moduleDirectory);
+        String rootDirectory = moduleDirectory.getAbsolutePath();
+        int level = modulesDirectory.indexOf(directory);
+        module.setLevel(level);
+        logger.info("热部署模块：" + module + " 模块目录：" + rootDirectory);
+
+        // 2. 确定被取代的模块：同一模块目录中原有的模块，以及 ID 相同的已启用模块
+        Module previous = null;
+        for (Module m : getModules()) {
+            if (m.getRootDirectory().equals(rootDirectory)) previous = m;
+        }
+        Module current = getModule(module.getId());
+        if (module.getExtend() != null || (current != null && current.getExtensions() != null)
+                || (previous != null && previous.getExtend() != null)) {
+            throw new ModuleException("扩展模块以及被扩展的模块不支持热部署，重启后生效：" + module);
+        }
+        if (previous != null && previous.isEnabled() && previous != current) {
+            throw new ModuleException("模块目录中的模块 ID 发生了变化，重启后生效：" + previous + " -> " + module);
+        }
+        if (current != null && current != previous) {
+            // 与相容性检查一致，停用级别低或版本低的模块
+            int c = module.getLevel() - current.getLevel();
+            if (c == 0) c = module.getVersion().compareTo(current.getVersion());
+            if (c == 0) throw new ModuleException("重复模块: " + module);
+            if (c < 0) {
+                // 模块目录中原有的模块未启用，可以直接换入
+                logger.info("模块 " + module + " 的级别或版本低于已启用的模块 " + current + "，安装后停用");
+                if (extractor != null) {
+                    extractor.commit();
+                    module = Module.create(moduleDirectory, null, module.getMetadata(), null);
+                    module.setLevel(level);
+                }
+                module.setEnabled(false);
+                replace(previous, module);
+                return;
+            }
+        }
+        checkDeployDependencies(module, current);
+
+        // 3. 按启动顺序的逆序停止被取代的模块以及依赖它的模块
+        List<Module> dependents = new ArrayList<Module>();
+        List<Module> stopped = new ArrayList<Module>();
+        if (current != null) {
+            for (Module m : registry.getBaseModules()) {
+                if (m != current && getRequiredModules(m).contains(current)) dependents.add(m);
+            }
+            List<Module> modulesToStop = new ArrayList<Module>(dependents);
+            modulesToStop.add(current);
+            Collections.sort(modulesToStop, Collections.reverseOrder(START_ORDER));
+            for (Module m : modulesToStop) {
+                if (m.getStartLevel() > startLevel) continue;
+                logger.info("停止模块：" + m);
+                notifyDeployed(m, ModuleEvent.STOP);
+                stopped.add(0, m);
+            }
+        }
+
+        // 4. 换入部署目录。失败时原模块目录已恢复，按启动顺序重新启动停止的模块
+        if (extractor != null) {
+            try {
+                extractor.commit();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "换入模块目录 " + rootDirectory + " 时出错，重新启动原有模块", e);
+                for (String event : new String[] { ModuleEvent.PREPARE, ModuleEvent.RESOLVE, ModuleEvent.START }) {
+                    for (Module m : stopped) {
+                        notifyDeployed(m, event);
+                    }
+                }
+                throw e;
+            }
+            // 类路径按换入后的模块目录重新解析
+            module = Module.create(moduleDirectory, null, module.getMetadata(), null);
+            module.setLevel(level);
+        }
+
+        // 5. 卸载停止的模块的模块类装载器，更换模块
+        List<URL> removedUrls = new ArrayList<URL>();
+        for (Module m : stopped) {
+            if (m.getClassLoader() != null) {
+                classLoader.removeModuleClassLoader(m.getClassLoader());
+                m.setClassLoader(null);
+            }
+        }
+        if (current != null) {
+            removedUrls.addAll(getModuleClassPath(current, new HashMap<URL,String>()));
+            if (current != previous) current.setEnabled(false);
+        }
+        module.setModuleContext(this);
+        module.setState(ModuleState.INSTALLED);
+        replace(previous, module);
+
+        // 6. 更新全局类装载器的类路径，重新创建模块类装载器
+        List<Module> modulesToStart = new ArrayList<Module>();
+        for (Module m : registry.getBaseModules()) {
+            if ((m == module || dependents.contains(m)) && m.getStartLevel() <= startLevel) modulesToStart.add(m);
+        }
+        Map<URL,String> classPathOwners = new HashMap<URL,String>();
+        List<URL> moduleUrls = getModuleClassPath(module, classPathOwners);
+        classLoader.addClassPathOwners(classPathOwners);
+        classLoader.updateURLs(removedUrls, moduleUrls);
+        for (Module m : modulesToStart) {
+            List<URL> urls = getModuleClassPath(m, classPathOwners);
+            ModuleClassLoader moduleClassLoader = new ModuleClassLoader(m, urls.toArray(new URL[urls.size()]), classLoader);
+            moduleClassLoader.addClassPathOwners(classPathOwners);
+            classLoader.addModuleClassLoader(moduleClassLoader);
+            m.setClassLoader(moduleClassLoader);
+        }
+        for (Module m : modulesToStart) {
+            List<ModuleClassLoader> dependencies = new ArrayList<ModuleClassLoader>();
+            for (Module required : getRequiredModules(m)) {
+                if (required.getClassLoader() != null) dependencies.add(required.getClassLoader());
+            }
+            m.getClassLoader().setDependencies(dependencies);
+        }
+
+        // 7. 按启动顺序通知部署的模块以及依赖它的模块
+        for (String event : new String[] { ModuleEvent.PREPARE, ModuleEvent.RESOLVE, ModuleEvent.START }) {
+            for (Module m : modulesToStart) {
+                if (m.getListener() == null) continue;
+                notifyListener(m, m.getListener(), new ModuleEvent(event, m, this));
+            }
+        }
+        logger.info("模块热部署完成：" + module + "，重新启动的依赖模块数：" + dependents.size());
+    }
+
+    /**
+     * 热部署时通知模块事件监听器，出错时记录日志后继续
+     * 
+     * @param module 模块
+     * @param event 事件类型
+     */
+    private void notifyDeployed(Module module, String event) {
+        if (module.getListener() == null) return;
+        try {
+            notifyListener(module, module.getListener(), new ModuleEvent(event, module, this));
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "通知模块 " + module + " 事件 " + event + " 时出错", e);
+        }
+    }
+
+    /**
+     * 检查热部署的模块与已启用模块之间的依赖。与启动时的依赖解析相同，可选依赖的模块可以不存在，但存在时版本必须在声明的范围内
+     * 
+     * @param module 热部署的模块
+     * @param replaced 被取代的模块，可以为 null
+     * @throws UnsatisfiedDependencyException
+     */
+    private void checkDeployDependencies(Module module, Module replaced) throws UnsatisfiedDependencyException {
+        checkDeployDependencies(module, module.getRequire(), false, replaced);
+        checkDeployDependencies(module, module.getRequireOptional(), true, replaced);
+        for (Module m : getModules()) {
+            if (!m.isEnabled() || m == replaced) continue;
+            checkDeployDependents(m, m.getRequire(), module);
+            checkDeployDependents(m, m.getRequireOptional(), module);
+        }
+    }
+
+    /**
+     * 检查热部署的模块声明的依赖
+     * 
+     * @param module 热部署的模块
+     * @param require 依赖，可以为 null
+     * @param optional 是否为可选依赖
+     * @param replaced 被取代的模块，可以为 null
+     * @throws UnsatisfiedDependencyException
+     */
+    private void checkDeployDependencies(Module module, List<RequireEntry> require, boolean optional, Module replaced)
+            throws UnsatisfiedDependencyException {
+        if (require == null) return;
+        for (RequireEntry requireEntry : require) {
+            Module requireModule = getModule(requireEntry.getId());
+            if (requireModule == replaced) requireModule = null;
+            if (requireModule == null) {
+                if (optional) continue;
+                throw new UnsatisfiedDependencyException(String.format("模块 %s 依赖的模块 %s 不存在或已被其他规则排除", module, requireEntry));
+            }
+            if (!requireEntry.getVersionRange().contains(requireModule.getVersion())) {
+                throw new UnsatisfiedDependencyException(String.format("模块 %s 声明的%s依赖模块 %s 的版本范围为: %s，但是现有模块 %s 的版本为: %s", module,
+                        optional ? "可选" : "", requireEntry.getId(), requireEntry.getVersionRange(), requireEntry.getId(), requireModule.getVersion()));
+            }
+        }
+    }
+
+    /**
+     * 检查已启用的模块对热部署的模块声明的依赖
+     * 
+     * @param m 已启用的模块
+     * @param require 模块的依赖，可以为 null
+     * @param module 热部署的模块
+     * @throws UnsatisfiedDependencyException
+     */
+    private void checkDeployDependents(Module m, List<RequireEntry> require, Module module) throws UnsatisfiedDependencyException {
+        if (require == null) return;
+        for (RequireEntry requireEntry : require) {
+            if (requireEntry.getId().equals(module.getId()) && !requireEntry.getVersionRange().contains(module.getVersion())) {
+                throw new UnsatisfiedDependencyException(String.format("模块 %s 声明的依赖模块 %s 的版本范围为: %s，但是热部署的模块版本为: %s", m,
+                        requireEntry.getId(), requireEntry.getVersionRange(), module.getVersion()));
+            }
+        }
+    }
+
+    /**
+     * 替换模块并按启动顺序重新排序，发布新的模块注册表
+     * 
+     * @param oldModule 被替换的模块，可以为 null
+     * @param newModule 新模块
+     */
+    private void replace(Module oldModule, Module newModule) {
+        if (newModule.getModuleContext() == null) {
+            newModule.setModuleContext(this);
+            newModule.setState(ModuleState.INSTALLED);
+        }
+        synchronized (registryLock) {
+            publish(registry.replace(oldModule, newModule).sort(START_ORDER));
+        }
+    }
+
+    /**
+     * 从启动快照恢复模块
+     * 
+     * @param snapshot 启动快照
+     * @return 快照有效且与配置和模块安装目录一致、模块已全部安装时，返回 true
+     */
+    private boolean restoreModules(StartupSnapshot snapshot) {
+        if (!snapshot.load()) return false;
+        if (!snapshot.isUpToDate(getSnapshotKey(), modulesDirectory)) {
+            logger.info("配置或模块安装目录已发生变化，不使用启动快照");
+            return false;
+        }
+        List<Module> modules;
+        try {
+            modules = snapshot.restore();
+        } catch (ModuleException e) {
+            logger.log(Level.WARNING, "从启动快照恢复模块时出错，不使用启动快照", e);
+            return false;
+        }
+        for (Module module : modules) {
+            module.setModuleContext(this);
+            module.setState(ModuleState.INSTALLED);
+        }
+        synchronized (registryLock) {
+            publish(ModuleRegistry.EMPTY.with(modules));
+        }
+        logger.info("已从启动快照恢复模块，模块数：" + modules.size());
+        return true;
+    }
+
+    /**
+     * 安装 MIP 模块安装目录下的所有 MIP 模块
+     * 
+     * @param modulesDirectory MIP 模块安装目录
+     */
+    private void installModules() {
+        final boolean mount = Boolean.parseBoolean(getProperty(PROPERTY_MRC_MOUNT));
+        
+        // 模块目录的解析和模块元数据的读取在线程池中并行进行，模块的安装仍按目录列表顺序进行，以保证安装顺序和模块级别不变
+        int threads = Math.min(MAX_INSTALL_THREADS, Math.max(2, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("mrc-install-"));
+        try {
+            List<List<Future<Module>>> results = new ArrayList<List<Future<Module>>>();
+            for (final File directory : modulesDirectory) {
+                List<Future<Module>> futures = new ArrayList<Future<Module>>();
+                for (final File moduleFile : directory.listFiles()) {
+                    futures.add(executor.submit(new Callable<Module>() {
+                        public Module call() throws Exception {
+                            File moduleDirectory = getModuleDirectory(directory, moduleFile, DIRECTORIES_TO_IGNORE, mount);
+                            if (moduleDirectory == null) return null;
+                            try {
+                                return Module.load(moduleDirectory);
+                            } catch (ModuleException e) {
+                                logger.log(Level.WARNING, "分析目录 " + moduleDirectory.getAbsolutePath() + " 时出错", e);
+                                return null;
+                            }
+                        }
+                    }));
+                }
+                results.add(futures);
+            }
+
+            // 所有模块安装完成后只发布一个快照
+            beginRegistryBatch();
+            try {
+                int level = 0; // 模块级别，模块属于越靠前的模块安装目录时，级别越低
+                for (List<Future<Module>> futures : results) {
+                    for (Future<Module> future : futures) {
+                        Module module = getResult(future);
+                        if (module == null) continue;
+                        module.setLevel(level);
                         try {
-                            moduleFile = moduleFile.getCanonicalFile();
-                        } catch (IOException e) {
-                            logger.log(Level.SEVERE, "访问目录 " + moduleFile.getAbsolutePath() + " 时出错", e);
+                            install(module);
+                        } catch (ModuleException e) {
+                            logger.log(Level.WARNING, "安装模块 " + module + " 时出错，模块目录：" + module.getRootDirectory(), e);
                             continue;
                         }
-                    } else {
-                        continue;
+                        logger.info("已安装模块：" + module + " 模块目录：" + module.getRootDirectory());
                     }
-                } else {
-                    if (directoriesToIgnore.contains(moduleFile.getName())) {
-                        continue;
-                    }
-                }
-                Module module = null;
-                try {
-                    module = Module.load(moduleFile);
-                } catch (ModuleException e) {
-                    logger.log(Level.WARNING, "分析目录 " + moduleFile.getAbsolutePath() + " 时出错", e);
-                    continue;
-                }
-                module.setLevel(level);
-                try {
-                    install(module);
-                } catch (ModuleException e) {
-                    logger.log(Level.WARNING, "安装模块 " + module + " 时出错，模块目录：" + moduleFile.getAbsolutePath(), e);
-                    continue;
+
+                    level++;
                 }
-                logger.info("已安装模块：" + module + " 模块目录：" + moduleFile.getAbsolutePath());
+            } finally {
+                endRegistryBatch();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 获取模块安装目录下的一项对应的模块目录
+     * 
+     * @param directory 模块安装目录
+     * @param moduleFile 模块安装目录下的文件或目录
+     * @param directoriesToIgnore 需要忽略的目录名
+     * @param mount 是否直接挂载模块安装包
+     * @return 模块目录。对于模块链接文件，返回链接的目录；直接挂载时，对于模块安装包，返回安装包文件；
+     *         不是模块目录、模块链接文件或模块安装包时，返回 null
+     */
+    private File getModuleDirectory(File directory, File moduleFile, Set<String> directoriesToIgnore, boolean mount) {
+        if (moduleFile.isFile()) {
+            if (mount && moduleFile.getName().endsWith(ModuleContext.MODULE_FILE_SUFFIX)) return moduleFile;
+            if (!moduleFile.getName().endsWith(ModuleContext.MODULE_LINK_SUFFIX)) return null;
+
+            // 处理模块链接文件
+            String link;
+            try {
+                // 读取模块链接文件的第一行，作为链接的路径
+                BufferedReader in = new BufferedReader(new FileReader(moduleFile));
+                link = in.readLine();
+                in.close();
+            } catch (FileNotFoundException ignore) {
+                return null;
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "读取模块链接文件 " + moduleFile.getAbsolutePath() + " 时出错", e);
+                return null;
             }
 
-            level++;
+            if (link.matches("(/|\\\\\\\\|\\w:).*")) {
+                // 链接路径为绝对路径
+                moduleFile = new File(link);
+            } else {
+                // 链接路径为相对路径，相对于链接文件所在目录
+                moduleFile = new File(directory, link);
+            }
+
+            try {
+                return moduleFile.getCanonicalFile();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "访问目录 " + moduleFile.getAbsolutePath() + " 时出错", e);
+                return null;
+            }
+        } else {
+            if (directoriesToIgnore.contains(moduleFile.getName())) return null;
+            // 解压或热部署过程中使用的临时目录
+            if (ModuleFileExtractor.isTemporaryDirectory(moduleFile.getName())) return null;
+            // 直接挂载时，以前解压的目录被安装包取代
+            if (mount && new File(directory, moduleFile.getName() + ModuleContext.MODULE_FILE_SUFFIX).isFile()) return null;
+            return moduleFile;
+        }
+    }
+
+    /**
+     * 获取异步任务的结果。任务抛出的运行时异常和错误原样抛出
+     * 
+     * @param future 异步任务
+     * @return 任务的结果
+     */
+    private static <T> T getResult(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待任务完成时被中断", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
         }
     }
 
@@ -972,6 +1767,15 @@ public class ModuleContext {
     private void installTestModules() throws ModuleException {
         String testModules = getProperty(ModuleContext.PROPERTY_MODULES_TEST);
         if (testModules == null || testModules.length() == 0) return;
+        beginRegistryBatch();
+        try {
+            installTestModules(testModules);
+        } finally {
+            endRegistryBatch();
+        }
+    }
+
+    private void installTestModules(String testModules) throws ModuleException {
         for (String testModule : testModules.split(";\\s*")) {
             String[] parts = testModule.split("/");
 
@@ -1091,7 +1895,14 @@ public class ModuleContext {
      */
     private byte[] loadLicense(File file, String attribute) throws LicenseException {
         try {
-            Manifest manifest = new Manifest(new FileInputStream(file));
+            // 模块文件可能位于挂载的安装包中
+            InputStream in = file instanceof ModuleFile ? ((ModuleFile) file).openStream() : new FileInputStream(file);
+            Manifest manifest;
+            try {
+                manifest = new Manifest(in);
+            } finally {
+                in.close();
+            }
             java.util.jar.Attributes attributes = manifest.getMainAttributes();
 
             // 读取 RSA 加密的许可证信息
@@ -1154,15 +1965,125 @@ public class ModuleContext {
         }
     }
 
-    private void prepare() throws Exception {
+    /**
+     * 通知模块事件监听器。按模块装载类时，通知期间线程上下文类装载器设为模块类装载器
+     * 
+     * @param module 模块
+     * @param listener 模块事件监听器
+     * @param event 模块事件
+     * @throws Exception
+     */
+    private void notifyListener(Module module, ModuleEventListener listener, ModuleEvent event) throws Exception {
+        ModuleClassLoader moduleClassLoader = module.getClassLoader();
+        if (moduleClassLoader == null) {
+            listener.listen(event);
+            return;
+        }
+
+        Thread thread = Thread.currentThread();
+        ClassLoader original = thread.getContextClassLoader();
+        thread.setContextClassLoader(moduleClassLoader);
+        try {
+            listener.listen(event);
+        } finally {
+            thread.setContextClassLoader(original);
+        }
+    }
+
+    /**
+     * 执行一个生命周期阶段，通知启动级别以内的所有已启用的基本模块。设置了 mrc.lifecycle.parallel 时，
+     * 按模块依赖关系和启动级别并行通知，否则按启动顺序逐个通知
+     * 
+     * @param phase 阶段名
+     * @param visitor 通知一个模块的访问者
+     * @throws Exception
+     */
+    private void executePhase(final String phase, final ModuleVisitor visitor) throws Exception {
+        // 记录阶段本身以及每个模块的耗时
+        final StartupTimeline timeline = startupTimeline;
+        ModuleVisitor timedVisitor = new ModuleVisitor() {
+            public void visit(Module module) throws Exception {
+                long t = timeline.begin();
+                try {
+                    visitor.visit(module);
+                } finally {
+                    timeline.end(phase, module, t);
+                }
+            }
+        };
+
+        final List<Module> phaseModules = new ArrayList<Module>();
         visitModules(new ModuleVisitor() {
             public void visit(Module module) throws Exception {
-                if (module.getStartLevel() > startLevel) return;
+                if (module.getStartLevel() <= startLevel) phaseModules.add(module);
+            }
+        });
+
+        long t = timeline.begin();
+        try {
+            if (!Boolean.parseBoolean(getProperty(PROPERTY_MRC_LIFECYCLE_PARALLEL))) {
+                for (Module module : phaseModules) {
+                    timedVisitor.visit(module);
+                }
+                return;
+            }
+
+            Map<Module,List<Module>> dependencies = new HashMap<Module,List<Module>>();
+            for (Module module : phaseModules) {
+                dependencies.put(module, getDirectRequiredModules(module));
+            }
+            new ModuleLifecycleScheduler(getLifecycleThreads()).execute(phase, phaseModules, dependencies, timedVisitor);
+        } finally {
+            timeline.end(phase, t);
+        }
+    }
+
+    /**
+     * 获取并行通知模块时的最大并行数
+     * 
+     * @return mrc.lifecycle.threads 的值，未设置时按处理器数确定
+     */
+    private int getLifecycleThreads() {
+        String value = getProperty(PROPERTY_MRC_LIFECYCLE_THREADS);
+        if (value != null && value.length() > 0) {
+            return Integer.parseInt(value.trim());
+        }
+        return Math.min(MAX_INSTALL_THREADS, Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * 记录停止过程的总耗时，以及每个模块的停止耗时，耗时长的在前
+     * 
+     * @param timeline 停止时间线
+     * @param stopped 在期限内停止的模块数
+     * @param total 需要停止的模块数
+     */
+    private void logShutdownTimeline(StartupTimeline timeline, int stopped, int total) {
+        List<StartupTimeline.Entry> entries = new ArrayList<StartupTimeline.Entry>();
+        for (StartupTimeline.Entry entry : timeline.getEntries()) {
+            if (entry.getModule() != null) entries.add(entry);
+        }
+        Collections.sort(entries, new Comparator<StartupTimeline.Entry>() {
+            public int compare(StartupTimeline.Entry o1, StartupTimeline.Entry o2) {
+                return o1.getDurationNanos() > o2.getDurationNanos() ? -1 : (o1.getDurationNanos() == o2.getDurationNanos() ? 0 : 1);
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("模块停止完成，总耗时：%d ms，在期限内停止的模块数：%d/%d", timeline.getTotalNanos() / 1000000, stopped, total));
+        for (StartupTimeline.Entry entry : entries) {
+            sb.append(String.format("%n  %-40s %8d ms  %s", entry.getModule(), entry.getDurationNanos() / 1000000, entry.getThread()));
+        }
+        logger.info(sb.toString());
+    }
+
+    private void prepare() throws Exception {
+        executePhase("prepare", new ModuleVisitor() {
+            public void visit(Module module) throws Exception {
                 logger.info("准备模块：" + module);
                 ModuleEventListener listener = module.getListener();
                 if (listener != null) {
                     ModuleEvent event = new ModuleEvent(ModuleEvent.PREPARE, module, ModuleContext.this);
-                    listener.listen(event);
+                    notifyListener(module, listener, event);
                 }
             }
         });
@@ -1187,99 +2108,189 @@ public class ModuleContext {
     }
 
     private void resolve() throws Exception {
-        visitModules(new ModuleVisitor() {
+        executePhase("resolve", new ModuleVisitor() {
             public void visit(Module module) throws Exception {
-                if (module.getStartLevel() > startLevel) return;
                 logger.info("解析模块：" + module);
                 ModuleEventListener listener = module.getListener();
                 if (listener != null) {
                     ModuleEvent event = new ModuleEvent(ModuleEvent.RESOLVE, module, ModuleContext.this);
-                    listener.listen(event);
+                    notifyListener(module, listener, event);
                 }
             }
         });
     }
 
     private void start() throws Exception {
-        visitModules(new ModuleVisitor() {
+        executePhase("start", new ModuleVisitor() {
             public void visit(Module module) throws Exception {
-                if (module.getStartLevel() > startLevel) return;
                 logger.info("启动模块：" + module);
                 ModuleEventListener listener = module.getListener();
                 if (listener != null) {
                     ModuleEvent event = new ModuleEvent(ModuleEvent.START, module, ModuleContext.this);
-                    listener.listen(event);
+                    notifyListener(module, listener, event);
                 }
             }
         });
     }
 
+
     /**
-     * 解压安装包文件
+     * 设置了指定的配置项时，以 JSON 格式保存时间线。相对路径相对于 MRC 根目录
      * 
-     * @param moduleFile 安装包文件
-     * @param moduleDirectory 目标目录
-     * @throws IOException
+     * @param timeline 启动或停止时间线
+     * @param property 保存路径的配置项，mrc.startup.timeline 或 mrc.shutdown.timeline
+     * @param name 时间线名称，用于日志
      */
-    private void unzip(File moduleFile, File moduleDirectory) throws IOException {
-        ZipInputStream in = new ZipInputStream(new FileInputStream(moduleFile));
+    private void storeTimeline(StartupTimeline timeline, String property, String name) {
+        String path = getProperty(property);
+        if (path == null || path.length() == 0) return;
+        File file = new File(path);
+        if (!file.isAbsolute()) file = new File(rootDirectory, path);
         try {
-            byte buf[] = new byte[8192];
-            ZipEntry zipEntry = null;
-            while ((zipEntry = in.getNextEntry()) != null) {
-                File file = new File(moduleDirectory, zipEntry.getName());
-                file.getParentFile().mkdirs();
-                if (!zipEntry.isDirectory()) {
-                    FileOutputStream out = new FileOutputStream(file);
-                    try {
-                        int i;
-                        while ((i = in.read(buf)) != -1) {
-                            out.write(buf, 0, i);
-                        }
-                    } finally {
-                        out.close();
-                    }
-                }
-                in.closeEntry();
+            Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                timeline.writeJson(out);
+            } finally {
+                out.close();
             }
-        } finally {
-            in.close();
+            logger.info(name + "已保存：" + file.getAbsolutePath());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "保存" + name + " " + file.getAbsolutePath() + " 时出错", e);
         }
     }
 
     /**
-     * 遍历 MIP 模块安装目录，解压所有的安装包文件
+     * 遍历 MIP 模块安装目录，解压所有的安装包文件。各安装包在线程池中并行解压，只重写内容发生变化的文件。
+     * 设置了直接挂载安装包（mrc.mount）时，不解压
      */
     private void unzipModuleFiles() {
+        if (Boolean.parseBoolean(getProperty(PROPERTY_MRC_MOUNT))) {
+            logger.info(PROPERTY_MRC_MOUNT + " 设置为 true，直接挂载模块安装包，不解压");
+            return;
+        }
+
+        List<File> moduleFiles = new ArrayList<File>();
         for (File directory : modulesDirectory) {
+            // 恢复上次启动时未完成解压的目录
+            ModuleFileExtractor.recover(directory);
+
             for (File moduleFile : directory.listFiles()) {
                 if (moduleFile.isFile() && moduleFile.getName().endsWith(ModuleContext.MODULE_FILE_SUFFIX)) {
-                    String moduleFileName = moduleFile.getName();
-
-                    // 获取安装包对应的安装目录
-                    File moduleDirectory = new File(directory, moduleFileName.substring(0, moduleFileName.length() - ModuleContext.MODULE_FILE_SUFFIX.length()));
+                    moduleFiles.add(moduleFile);
+                }
+            }
+        }
+        if (moduleFiles.isEmpty()) return;
 
-                    // 通过比较修改时间戳，若安装包已解压且没有更新，则不需要再次解压
-                    if (moduleDirectory.isDirectory() && moduleDirectory.lastModified() >= moduleFile.lastModified()) {
-                        continue;
+        int threads = Math.min(MAX_INSTALL_THREADS, Math.max(2, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, moduleFiles.size()), new DaemonThreadFactory("mrc-unzip-"));
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (final File moduleFile : moduleFiles) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        return new ModuleFileExtractor(moduleFile, getUnzipDirectory(moduleFile)).extract();
                     }
+                }));
+            }
 
-                    // 解压
-                    try {
-                        unzip(moduleFile, moduleDirectory);
-                        logger.info(String.format("解压文件 %s 至目录 %s", moduleFile.getAbsolutePath(), moduleDirectory.getAbsolutePath()));
-                    } catch (IOException e) {
-                        logger.log(Level.SEVERE, String.format("解压文件 %s 至目录 %s 时出错", moduleFile.getAbsolutePath(), moduleDirectory.getAbsolutePath()), e);
-                        // 删除目标目录
-                        if (!deleteDirectory(moduleDirectory)) {
-                            logger.log(Level.SEVERE, "删除目录 " + moduleDirectory.getAbsolutePath() + " 失败");
-                        }
+            for (int i = 0; i < moduleFiles.size(); i++) {
+                File moduleFile = moduleFiles.get(i);
+                File moduleDirectory = getUnzipDirectory(moduleFile);
+                try {
+                    int changes = futures.get(i).get();
+                    if (changes > 0) {
+                        logger.info(String.format("解压文件 %s 至目录 %s，更新文件数：%d", moduleFile.getAbsolutePath(), moduleDirectory.getAbsolutePath(), changes));
                     }
+                } catch (ExecutionException e) {
+                    // 解压失败时模块目录不存在，模块不会被安装，下次启动时再次解压
+                    logger.log(Level.SEVERE, String.format("解压文件 %s 至目录 %s 时出错", moduleFile.getAbsolutePath(), moduleDirectory.getAbsolutePath()), e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("等待解压完成时被中断", e);
                 }
             }
+        } finally {
+            executor.shutdownNow();
         }
     }
 
+    /**
+     * 获取模块安装包对应的模块目录
+     * 
+     * @param moduleFile 模块安装包
+     * @return 模块目录
+     */
+    private static File getUnzipDirectory(File moduleFile) {
+        String moduleFileName = moduleFile.getName();
+        return new File(moduleFile.getParentFile(), moduleFileName.substring(0, moduleFileName.length() - ModuleContext.MODULE_FILE_SUFFIX.length()));
+    }
+
+    /**
+     * 以模块的完整性清单校验已启用的模块，只重新计算大小或修改时间发生变化的文件的摘要，并以模块签名校验完整性清单的根摘要
+     * 
+     * @param enforce 校验失败时是否中止启动
+     * @throws ModuleException 校验失败且 enforce 为 true 时
+     */
+    private void verifyIntegrity(boolean enforce) throws ModuleException {
+        logger.info("校验模块完整性");
+        integrityVerifier = new ModuleIntegrityVerifier(new File(rootDirectory, INTEGRITY_STATE_FILE));
+        integrityVerifier.load();
+        List<Module> modules = new ArrayList<Module>();
+        for (Module module : getModules()) {
+            if (module.isEnabled()) modules.add(module);
+        }
+        List<String> failures = integrityVerifier.verify(modules, false);
+        if (!Boolean.parseBoolean(getProperty(PROPERTY_MRC_READONLY))) integrityVerifier.store();
+        for (Module module : modules) {
+            String failure = verifyIntegrityRoot(module);
+            if (failure != null) failures.add(failure);
+        }
+        for (String failure : failures) {
+            logger.severe("模块完整性校验失败：" + failure);
+        }
+        if (enforce && !failures.isEmpty()) {
+            throw new ModuleException("模块完整性校验失败：" + failures.get(0));
+        }
+    }
+
+    /**
+     * 校验模块完整性清单的根摘要与模块签名中的根摘要是否一致。完整性清单可以随模块文件一起被重新生成，只有签名中的根摘要无法伪造
+     * 
+     * @param module 模块
+     * @return 校验失败的原因。模块没有完整性清单或校验通过时，返回 null
+     */
+    private String verifyIntegrityRoot(Module module) {
+        ModuleIntegrityManifest manifest;
+        try {
+            manifest = ModuleIntegrityManifest.read(module);
+        } catch (IOException e) {
+            // 已由完整性校验器报告
+            return null;
+        }
+        if (manifest == null) return null;
+
+        String signedRoot;
+        try {
+            byte[] signatureData = loadLicense(module.getModuleFile(MODULE_MANIFEST_FILE), ManifestAttributes.SIGNATURE);
+            try {
+                signatureData = decryptLicenseData(signatureData);
+            } catch (Exception e) {
+                throw new LicenseException(Code.BAD_LICENSE_DATA);
+            }
+            signedRoot = ModuleSignature.getIntegrityRoot(signatureData);
+        } catch (LicenseException e) {
+            return String.format("模块 %s 的完整性清单没有有效的签名：%s", module, e.getMessage());
+        }
+        if (signedRoot == null) {
+            return String.format("模块 %s 的签名中没有完整性清单的根摘要", module);
+        }
+        if (!signedRoot.equals(manifest.getRootHash())) {
+            return String.format("模块 %s 的完整性清单的根摘要 %s 与签名中的根摘要 %s 不符", module, manifest.getRootHash(), signedRoot);
+        }
+        return null;
+    }
+
     private void validateLicenseModule(byte[] licenseData) throws LicenseException {
         Module module = getModule("mip.license"); // FIXME
         if (module == null) {
@@ -1294,6 +2305,7 @@ public class ModuleContext {
             throw new LicenseException("MRC 未授权：" + e.getMessage());
         }
         
+        // 不使用模块摘要缓存：缓存文件可写，且只以文件大小和修改时间判断变化，修改过的模块可以借此通过校验
         ModuleSignature signature = new ModuleSignature(module);
         signature.validate(signatureData);
         
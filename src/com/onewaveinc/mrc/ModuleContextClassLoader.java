@@ -2,20 +2,34 @@ package com.onewaveinc.mrc;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
 import java.net.JarURLConnection;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.jar.Manifest;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * MRC 全局类装载器
+ * MRC 全局类装载器。类装载按类名加锁，不同的类可以被多个线程并行装载
  * 
  * @author gmice
  * 
@@ -24,17 +38,128 @@ public class ModuleContextClassLoader extends URLClassLoader {
 
     private static final Logger logger = Logger.getLogger(ModuleContextClassLoader.class.getName());
 
+    static {
+        // JDK 7 及以上版本中注册为并行类装载器，否则虚拟机在隐式装载类时仍会对整个类装载器加锁
+        try {
+            Method method = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+            method.setAccessible(true);
+            method.invoke(null);
+        } catch (Throwable ignore) {}
+    }
+
+    /**
+     * 类装载锁的弱引用。装载结束、没有线程持有或等待锁后，锁对象可以被回收，登记的类名随之移除
+     */
+    private static class ClassLoadingLock extends WeakReference<Object> {
+
+        final String className;
+
+        ClassLoadingLock(String className, Object lock, ReferenceQueue<Object> queue) {
+            super(lock, queue);
+            this.className = className;
+        }
+
+    }
+
+    /**
+     * JRE 自带类的包前缀。这些类优先由 ext classloader 载入
+     */
+    private static final String[] JDK_PACKAGE_PREFIXES = {
+        "java.", "javax.", "sun.", "com.sun.", "jdk.", "org.ietf.jgss.", "org.omg.", "org.w3c.dom.", "org.xml.sax."
+    };
+
+    /**
+     * 不存在的类的缓存的最大容量
+     */
+    static final int MAX_MISSING_CLASSES = 8192;
+
     private ClassLoader appClassLoader;
 
+    /**
+     * 类装载锁，键为类名。只保留弱引用，已被回收的锁在之后获取锁时移除
+     */
+    private final ConcurrentHashMap<String,ClassLoadingLock> classLoadingLocks = new ConcurrentHashMap<String,ClassLoadingLock>();
+
+    /**
+     * 已被回收的类装载锁
+     */
+    private final ReferenceQueue<Object> classLoadingLockQueue = new ReferenceQueue<Object>();
+
+    /**
+     * 类路径项所属的模块，键为类路径项的 URL，值为模块ID
+     */
+    private final ConcurrentHashMap<URL,String> classPathOwners = new ConcurrentHashMap<URL,String>();
+
+    /**
+     * 记录中的已定义类，按定义顺序排列。未在记录时为 null
+     */
+    private volatile Queue<String> definedClasses;
+
     private ClassLoader extClassLoader;
 
+    /**
+     * 模块类装载器所属的全局类装载器。全局类装载器自身的此属性为 null
+     */
+    private final ModuleContextClassLoader globalClassLoader;
+
+    /**
+     * 类路径索引
+     */
+    private final ClassPathIndex index = new ClassPathIndex();
+
+    /**
+     * 类装载统计
+     */
+    private final ClassLoadingMetrics metrics;
+
     private ModuleContext moduleContext;
 
+    /**
+     * 启动 MRC 时使用的锁
+     */
+    private final Object moduleContextLock = new Object();
+
+    /**
+     * MRC 是否已启动或已由外部设置
+     */
+    private volatile boolean moduleContextStarted;
+
+    /**
+     * 不存在的类的缓存，按访问顺序排列，超过最大容量时淘汰最久未访问的类。类路径或注册的资源发生变化时清空。访问时需对其加锁
+     */
+    @SuppressWarnings("serial")
+    private final Map<String,Boolean> missingClasses = new LinkedHashMap<String,Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+            return size() > MAX_MISSING_CLASSES;
+        }
+    };
+
+    /**
+     * 按模块装载类时，各模块的类装载器，键为模块类路径项的 URL
+     */
+    private final ConcurrentHashMap<URL,ModuleClassLoader> moduleClassLoaders = new ConcurrentHashMap<URL,ModuleClassLoader>();
+
+    /**
+     * 类路径版本号，类路径或注册的资源每发生一次变化加 1
+     */
+    private volatile int classPathVersion;
+
     private Map<String,URL> resourceURLs;
     
     private ProtectionDomain protectionDomain;
     
-    private List<ModuleContextClassLoaderFilter> filters;
+    private final List<ModuleContextClassLoaderFilter> filters;
+
+    /**
+     * 过滤器链标识。过滤器链中有不可缓存的过滤器时为 null
+     */
+    private volatile String filterChainKey = "";
+
+    /**
+     * 过滤器处理结果的缓存，可以为 null
+     */
+    private volatile ClassTransformCache transformCache;
 
     public ModuleContextClassLoader(ClassLoader parent) {
         this(new URL[0], parent);
@@ -44,53 +169,246 @@ public class ModuleContextClassLoader extends URLClassLoader {
         super(urls, parent);
         this.appClassLoader = parent;
         this.extClassLoader = parent.getParent();
+        this.globalClassLoader = null;
         this.protectionDomain = this.getClass().getProtectionDomain();
+        this.filters = new CopyOnWriteArrayList<ModuleContextClassLoaderFilter>();
+        this.metrics = new ClassLoadingMetrics();
+        index.add(Arrays.asList(urls));
     }
 
+    /**
+     * 构建模块类装载器。模块类装载器与全局类装载器共用过滤器、过滤器缓存和类装载统计，已在全局类路径中的类路径项共用其索引
+     * 
+     * @param urls 模块的类路径
+     * @param globalClassLoader 全局类装载器
+     */
+    ModuleContextClassLoader(URL[] urls, ModuleContextClassLoader globalClassLoader) {
+        super(urls, globalClassLoader);
+        this.appClassLoader = globalClassLoader.appClassLoader;
+        this.extClassLoader = globalClassLoader.extClassLoader;
+        this.globalClassLoader = globalClassLoader;
+        this.protectionDomain = globalClassLoader.protectionDomain;
+        this.filters = globalClassLoader.filters;
+        this.metrics = globalClassLoader.metrics;
+        this.moduleContext = globalClassLoader.moduleContext;
+        this.moduleContextStarted = true;
+        index.add(Arrays.asList(urls), globalClassLoader.index);
+    }
+
+    /**
+     * 在类路径末尾添加类路径项，并更新类路径索引
+     * 
+     * @param urls 类路径项的 URL
+     */
     public void addURLs(List<URL> urls) {
         for (URL url : urls) {
             addURL(url);
         }
+        index.add(urls);
+        clearMissingClasses();
     }
     
-    public void addFilter(ModuleContextClassLoaderFilter filter) {
-        if (filters == null) {
-            filters = new ArrayList<ModuleContextClassLoaderFilter>();
+    /**
+     * 更新类路径，用于模块被热部署后。移除的类路径项不再被查找；添加的类路径项若已在类路径中则重新建立索引，否则添加到类路径末尾
+     * 
+     * @param removed 移除的类路径项的 URL
+     * @param added 添加或内容发生变化的类路径项的 URL
+     */
+    public void updateURLs(List<URL> removed, List<URL> added) {
+        Set<String> existing = new HashSet<String>();
+        for (URL url : getURLs()) {
+            existing.add(url.toExternalForm());
+        }
+        for (URL url : added) {
+            if (!existing.contains(url.toExternalForm())) addURL(url);
+        }
+        index.update(removed, added);
+        clearMissingClasses();
+    }
+
+    /**
+     * 通知类装载器注册的资源发生了变化。注册的资源可能提供之前不存在的类，因此清空不存在的类的缓存
+     */
+    public void resourcesChanged() {
+        clearMissingClasses();
+    }
+
+    private void clearMissingClasses() {
+        classPathVersion++;
+        synchronized (missingClasses) {
+            missingClasses.clear();
         }
+    }
+    
+    /**
+     * 登记类路径项所属的模块，用于类装载统计。应在 addURLs 之前调用
+     * 
+     * @param owners 键为类路径项的 URL，值为模块ID
+     */
+    public void addClassPathOwners(Map<URL,String> owners) {
+        classPathOwners.putAll(owners);
+    }
+
+    /**
+     * 登记模块类装载器。之后属于该模块的类由模块类装载器定义
+     * 
+     * @param moduleClassLoader 模块类装载器
+     */
+    void addModuleClassLoader(ModuleClassLoader moduleClassLoader) {
+        for (URL url : moduleClassLoader.getURLs()) {
+            moduleClassLoaders.put(url, moduleClassLoader);
+        }
+    }
+
+    /**
+     * 注销模块类装载器，并关闭其打开的 jar 文件。模块的类不再被引用后即可被卸载
+     * 
+     * @param moduleClassLoader 模块类装载器
+     */
+    void removeModuleClassLoader(ModuleClassLoader moduleClassLoader) {
+        moduleClassLoaders.values().removeAll(Collections.singleton(moduleClassLoader));
+        moduleClassLoader.closeClassPath();
+    }
+
+    /**
+     * 获取拥有指定类文件的模块类装载器
+     * 
+     * @param resourceName 类文件的资源名
+     * @return 模块类装载器。不按模块装载类或类文件不属于任何模块时，返回 null
+     */
+    ModuleClassLoader getModuleClassLoader(String resourceName) {
+        if (moduleClassLoaders.isEmpty()) return null;
+        ClassPathIndex.Entry entry = index.findEntry(resourceName);
+        return entry == null ? null : moduleClassLoaders.get(entry.getURL());
+    }
+
+    public synchronized void addFilter(ModuleContextClassLoaderFilter filter) {
         filters.add(filter);
+
+        // 更新过滤器链标识，过滤器链发生变化后旧的缓存不再命中
+        if (filterChainKey != null && filter instanceof CacheableModuleContextClassLoaderFilter) {
+            filterChainKey = filterChainKey + filter.getClass().getName() + '/' + ((CacheableModuleContextClassLoaderFilter) filter).getVersion() + ';';
+        } else {
+            filterChainKey = null;
+        }
+    }
+
+    /**
+     * 获取过滤器处理结果的缓存
+     * 
+     * @return 缓存。未启用缓存时，返回 null
+     */
+    public ClassTransformCache getTransformCache() {
+        return transformCache;
+    }
+
+    /**
+     * 获取类装载统计
+     * 
+     * @return 类装载统计
+     */
+    public ClassLoadingMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 关闭类路径索引打开的 jar 文件。类装载器被丢弃时调用
+     */
+    void closeClassPath() {
+        index.close();
+    }
+
+    /**
+     * 判断指定的类是否已由本类装载器定义
+     * 
+     * @param name 类名
+     * @return 当且仅当类已由本类装载器定义时，返回 true
+     */
+    boolean isDefined(String name) {
+        Class<?> clazz = findLoadedClass(name);
+        return clazz != null && clazz.getClassLoader() == this;
+    }
+
+    /**
+     * 开始记录定义的类。只记录定义时没有过滤器的类，这些类在预加载时同样不经过过滤器，定义结果一致
+     */
+    void startRecording() {
+        definedClasses = new ConcurrentLinkedQueue<String>();
+    }
+
+    /**
+     * 停止记录定义的类
+     * 
+     * @return 记录期间定义的类，按定义顺序排列
+     */
+    List<String> stopRecording() {
+        Queue<String> recorded = definedClasses;
+        definedClasses = null;
+        return recorded == null ? Collections.<String>emptyList() : new ArrayList<String>(recorded);
     }
 
     @Override
     public URL findResource(String name) {
         URL url = resourceURLs == null ? null : resourceURLs.get(name);
         if (url == null) {
+            url = index.findResource(name);
+        }
+        if (url == null && !index.isIndexed(name)) {
             url = super.findResource(name);
         }
         return url;
     }
 
+    @Override
+    public Enumeration<URL> findResources(String name) throws IOException {
+        if (!index.isIndexed(name)) {
+            return super.findResources(name);
+        }
+        return Collections.enumeration(index.findResources(name));
+    }
+
+    ClassPathIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * 设置类路径索引缓存。之后通过 addURLs 添加的 jar 文件，若未发生变化则不需要重新扫描
+     * 
+     * @param cache 类路径索引缓存
+     */
+    void setIndexCache(ClassPathIndexCache cache) {
+        index.setCache(cache);
+    }
+
+    /**
+     * 设置过滤器处理结果的缓存
+     * 
+     * @param transformCache 缓存，为 null 时不使用缓存
+     */
+    public void setTransformCache(ClassTransformCache transformCache) {
+        this.transformCache = transformCache;
+    }
+
     public void setModuleContext(ModuleContext moduleContext) {
         this.moduleContext = moduleContext;
+        this.moduleContextStarted = true;
     }
 
     public void setResourceURLs(Map<String,URL> resourceURLs) {
         this.resourceURLs = resourceURLs;
+        clearMissingClasses();
     }
 
     private Class<?> defineClass(String name, URL url) throws Exception {
+        long start = System.nanoTime();
         // 如果类从jar包中装载，则定义相应的package
         if ("jar".equals(url.getProtocol())) {
             int index = name.lastIndexOf('.');
             if (index != -1) {
                 String packageName = name.substring(0, index);
-                Package pkg = getPackage(packageName);
-                if (pkg == null) {
+                if (getPackage(packageName) == null) {
                     Manifest manifest = ((JarURLConnection) url.openConnection()).getManifest();
-                    if (manifest != null) {
-                        definePackage(packageName, manifest, url);
-                    } else {
-                        definePackage(packageName, null, null, null, null, null, null, null);
-                    }
+                    definePackageIfAbsent(packageName, manifest, url);
                 }
             }
         }
@@ -98,68 +416,251 @@ public class ModuleContextClassLoader extends URLClassLoader {
         // 读取类数据
         InputStream in = url.openStream();
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        byte[] buf = new byte[8192];
-        int c = 0;
-        while ((c = in.read(buf)) != -1) {
-            out.write(buf, 0, c);
+        try {
+            byte[] buf = new byte[8192];
+            int c = 0;
+            while ((c = in.read(buf)) != -1) {
+                out.write(buf, 0, c);
+            }
+        } finally {
+            in.close();
         }
         
-        // 通过过滤器进行可能的字节码修改
-        byte[] classData = out.toByteArray();
-        if (filters != null) {
-            for (ModuleContextClassLoaderFilter filter : filters) {
-                classData = filter.doFilter(name, classData);
+        return defineClass(name, out.toByteArray(), ClassLoadingMetrics.SOURCE_MRC, System.nanoTime() - start);
+    }
+
+    /**
+     * 从类路径项中定义类。jar 文件的句柄和 manifest 由类路径项缓存，类数据直接读入大小恰好的数组
+     * 
+     * @param name 类名
+     * @param entry 拥有该类的类路径项
+     * @param resourceName 类文件的资源名
+     * @return 类
+     * @throws Exception
+     */
+    Class<?> defineClass(String name, ClassPathIndex.Entry entry, String resourceName) throws Exception {
+        long start = System.nanoTime();
+        // 如果类从jar包中装载，则定义相应的package
+        if (entry.isJar()) {
+            int index = name.lastIndexOf('.');
+            if (index != -1) {
+                String packageName = name.substring(0, index);
+                if (getPackage(packageName) == null) {
+                    definePackageIfAbsent(packageName, entry.getManifest(), entry.getURL());
+                }
             }
         }
+
+        byte[] classData = entry.getBytes(resourceName);
+        if (classData == null) {
+            throw new ClassNotFoundException(name);
+        }
+        return defineClass(name, classData, getSource(entry), System.nanoTime() - start);
+    }
+
+    /**
+     * 定义类，并记录类装载统计
+     * 
+     * @param name 类名
+     * @param classData 类数据
+     * @param source 来源
+     * @param ioTime 读取类数据的耗时，单位纳秒
+     * @return 类
+     * @throws Exception
+     */
+    private Class<?> defineClass(String name, byte[] classData, String source, long ioTime) throws Exception {
+        int size = classData.length;
+        Queue<String> recording = globalClassLoader == null ? definedClasses : null;
+
+        // 通过过滤器进行可能的字节码修改
+        long filterTime = 0;
+        if (!filters.isEmpty()) {
+            recording = null;
+            long filterStart = System.nanoTime();
+            classData = filter(name, classData);
+            filterTime = System.nanoTime() - filterStart;
+        }
         
         // 定义类
+        long defineStart = System.nanoTime();
         Class<?> clazz = defineClass(name, classData, 0, classData.length, protectionDomain);
+        metrics.recordDefine(source, size, ioTime, filterTime, System.nanoTime() - defineStart);
+        if (recording != null) recording.add(name);
         if (logger.isLoggable(Level.FINEST)) {
             logger.log(Level.FINEST, "类装载 [mrc] " + name);
         }
         return clazz;
     }
 
+    /**
+     * 获取类路径项所属的来源。结果缓存在类路径项中
+     * 
+     * @param entry 类路径项
+     * @return 模块ID。不属于任何模块时，返回 [mrc]
+     */
+    private String getSource(ClassPathIndex.Entry entry) {
+        String source = entry.getSource();
+        if (source == null) {
+            source = classPathOwners.get(entry.getURL());
+            if (source == null) source = ClassLoadingMetrics.SOURCE_MRC;
+            entry.setSource(source);
+        }
+        return source;
+    }
+
+    private void definePackageIfAbsent(String packageName, Manifest manifest, URL url) {
+        try {
+            if (manifest != null) {
+                definePackage(packageName, manifest, url);
+            } else {
+                definePackage(packageName, null, null, null, null, null, null, null);
+            }
+        } catch (IllegalArgumentException ignore) {
+            // 其他线程已经定义了同一个 package
+        }
+    }
+
+    /**
+     * 执行过滤器链。过滤器链可缓存且启用了缓存时，优先使用缓存的处理结果
+     * 
+     * @param name 类名
+     * @param classData 类数据
+     * @return 过滤后的类数据
+     * @throws Exception
+     */
+    private byte[] filter(String name, byte[] classData) throws Exception {
+        ModuleContextClassLoader owner = globalClassLoader == null ? this : globalClassLoader;
+        ClassTransformCache cache = owner.transformCache;
+        String chainKey = owner.filterChainKey;
+        if (cache != null && chainKey != null) {
+            byte[] cachedData = cache.get(chainKey, classData);
+            if (cachedData != null) return cachedData;
+        }
+
+        byte[] transformedData = classData;
+        for (ModuleContextClassLoaderFilter filter : filters) {
+            transformedData = filter.doFilter(name, transformedData);
+        }
+
+        if (cache != null && chainKey != null && chainKey.equals(owner.filterChainKey)) {
+            cache.put(chainKey, classData, transformedData);
+        }
+        return transformedData;
+    }
+
+    /**
+     * 获取指定类名的类装载锁。有线程持有或等待锁期间，同一类名总是返回同一个锁对象；
+     * 锁不再被使用后可以被回收，之后返回新的锁对象。类路径中不存在的类名不会使锁无限增长
+     * 
+     * @param className 类名
+     * @return 锁对象
+     */
+    protected Object getClassLoadingLock(String className) {
+        ClassLoadingLock reference;
+        while ((reference = (ClassLoadingLock) classLoadingLockQueue.poll()) != null) {
+            classLoadingLocks.remove(reference.className, reference);
+        }
+
+        for (;;) {
+            reference = classLoadingLocks.get(className);
+            Object lock = reference == null ? null : reference.get();
+            if (lock != null) return lock;
+            // 锁对象由调用者在 synchronized 中引用，持有或等待锁期间不会被回收
+            Object newLock = new Object();
+            ClassLoadingLock newReference = new ClassLoadingLock(className, newLock, classLoadingLockQueue);
+            if (reference == null ? classLoadingLocks.putIfAbsent(className, newReference) == null
+                    : classLoadingLocks.replace(className, reference, newReference)) {
+                return newLock;
+            }
+        }
+    }
+
+    /**
+     * 获取登记的类装载锁的数量，包括已被回收但尚未移除的锁
+     * 
+     * @return 类装载锁的数量
+     */
+    int getClassLoadingLockCount() {
+        return classLoadingLocks.size();
+    }
+
     @Override
-    protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        synchronized (getClassLoadingLock(name)) {
+            return loadClassInternal(name, resolve);
+        }
+    }
+
+    private Class<?> loadClassInternal(String name, boolean resolve) throws ClassNotFoundException {
         // 1. 对已经载入的类，直接返回
         Class<?> clazz = findLoadedClass(name);
         if (clazz != null) return clazz;
 
+        // 已确认不存在的类，不再重复查找
+        boolean missing;
+        synchronized (missingClasses) {
+            missing = missingClasses.get(name) != null;
+        }
+        if (missing) {
+            metrics.recordMiss(ClassLoadingMetrics.SOURCE_MRC);
+            throw new ClassNotFoundException(name);
+        }
+
+        int version = classPathVersion;
+        String resourceName = name.replace('.', '/') + ".class";
+        boolean jdkClass = isJdkClass(name);
+        boolean mrcClass = name.startsWith("com.onewaveinc.mrc.");
+        // 类路径中有模块提供了这个包，则认为是模块的类，不经过 ext classloader
+        boolean moduleClass = !jdkClass && !mrcClass && index.hasPackage(ClassPathIndex.getPackage(resourceName));
+
         // 2. 能用 ext classloader 载入的类，就直接用 ext classloader 载入。这些类是 jre 自带的，在 mrc classloader 中载入
-        try {
-            clazz = extClassLoader.loadClass(name);
-            if (logger.isLoggable(Level.FINEST)) {
-                logger.log(Level.FINEST, "类装载 [ext] " + name);
+        if (!moduleClass) {
+            long start = System.nanoTime();
+            try {
+                clazz = extClassLoader.loadClass(name);
+                metrics.recordDelegate(ClassLoadingMetrics.SOURCE_EXT, System.nanoTime() - start);
+                if (logger.isLoggable(Level.FINEST)) {
+                    logger.log(Level.FINEST, "类装载 [ext] " + name);
+                }
+            } catch (ClassNotFoundException ignore) {
+                metrics.recordMiss(ClassLoadingMetrics.SOURCE_EXT);
             }
-        } catch (ClassNotFoundException ignore) {}
+        }
 
         // 3. MRC 核心部分的类由 app classloader 载入。除此之外，其他类由 mrc classloader 自己载入
-        if (clazz == null && name.startsWith("com.onewaveinc.mrc.")) {
+        if (clazz == null && mrcClass) {
+            long start = System.nanoTime();
             clazz = appClassLoader.loadClass(name);
+            metrics.recordDelegate(ClassLoadingMetrics.SOURCE_APP, System.nanoTime() - start);
             if (logger.isLoggable(Level.FINEST)) {
                 logger.log(Level.FINEST, "类装载 [app] " + name);
             }
         }
 
-        if (clazz == null) {
+        // java.* 的类只能由 JRE 定义
+        if (clazz == null && !name.startsWith("java.")) {
             // 4. MRC 尚未启动，说明自己是 system classloader，那么启动一个 MRC
-            if (moduleContext == null) {
-                File rootDirectory = new File(System.getProperty("user.dir"));
-                File mipDirectory = new File(rootDirectory, ".mip");
-                // 如果工作目录下存在 .mip 目录，则 MRC 根目录设为 .mip 目录，否则设为工作目录
-                moduleContext = new ModuleContext((mipDirectory.isDirectory() ? mipDirectory : rootDirectory).getAbsolutePath());
-                moduleContext.run();
+            if (!moduleContextStarted) {
+                startModuleContext();
             }
 
-            // 5. 载入类
-            URL url = getResource(name.replace('.', '/') + ".class");
-            if (url != null) {
-                try {
-                    clazz = defineClass(name, url);
-                } catch (Throwable e) { // 这里使用Throwable是因为类似于UnsupportedClassVersionError的Error也需要捕获
-                    throw new ClassNotFoundException(name, e);
+            // 5. 载入类。模块的类直接从类路径索引中拥有该类的类路径项读取
+            try {
+                ClassPathIndex.Entry entry = moduleClass ? index.findEntry(resourceName) : null;
+                ModuleClassLoader moduleClassLoader = entry == null || moduleClassLoaders.isEmpty() ? null : moduleClassLoaders.get(entry.getURL());
+                if (moduleClassLoader != null) {
+                    // 按模块装载类时，模块的类由模块类装载器定义
+                    clazz = moduleClassLoader.loadClass(name);
+                } else if (entry != null) {
+                    clazz = defineClass(name, entry, resourceName);
+                } else {
+                    URL url = getResource(resourceName);
+                    if (url != null) {
+                        clazz = defineClass(name, url);
+                    }
                 }
+            } catch (Throwable e) { // 这里使用Throwable是因为类似于UnsupportedClassVersionError的Error也需要捕获
+                throw new ClassNotFoundException(name, e);
             }
         }
 
@@ -169,7 +670,43 @@ public class ModuleContextClassLoader extends URLClassLoader {
             return clazz;
         }
 
+        metrics.recordMiss(ClassLoadingMetrics.SOURCE_MRC);
+        addMissingClass(name, version);
         throw new ClassNotFoundException(name);
     }
 
+    /**
+     * 记录不存在的类。若查找期间类路径发生了变化，则不记录
+     * 
+     * @param name 类名
+     * @param version 开始查找时的类路径版本号
+     */
+    private void addMissingClass(String name, int version) {
+        synchronized (missingClasses) {
+            if (version != classPathVersion) return;
+            missingClasses.put(name, Boolean.TRUE);
+        }
+    }
+
+    static boolean isJdkClass(String name) {
+        for (String prefix : JDK_PACKAGE_PREFIXES) {
+            if (name.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    private void startModuleContext() {
+        synchronized (moduleContextLock) {
+            if (moduleContext != null) return;
+            File rootDirectory = new File(System.getProperty("user.dir"));
+            File mipDirectory = new File(rootDirectory, ".mip");
+            // 如果工作目录下存在 .mip 目录，则 MRC 根目录设为 .mip 目录，否则设为工作目录
+            ModuleContext newModuleContext = new ModuleContext((mipDirectory.isDirectory() ? mipDirectory : rootDirectory).getAbsolutePath());
+            // MRC 启动过程中当前线程会再次进入此方法，此时直接返回；其他线程则等待 MRC 启动完成
+            moduleContext = newModuleContext;
+            newModuleContext.run();
+            moduleContextStarted = true;
+        }
+    }
+
 }
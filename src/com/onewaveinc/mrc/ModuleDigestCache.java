@@ -0,0 +1,166 @@
+package com.onewaveinc.mrc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 模块摘要缓存。以模块根目录为键保存模块的 MD5 和 SHA-1 摘要，以及计算摘要时参与摘要的文件清单的指纹
+ * （每个文件的模块路径、大小和修改时间）。清单未发生变化时，直接使用缓存的摘要，不需要读取文件内容。<br>
+ * 缓存文件没有任何保护，保留修改时间的改动也不会改变指纹，因此只用于签名工具，许可证和完整性校验不得使用
+ */
+class ModuleDigestCache {
+
+    private static class CachedEntry {
+
+        byte[] fingerprint;
+
+        byte[] md5;
+
+        byte[] sha1;
+
+    }
+
+    private static final int MAGIC = 0x4d524344; // "MRCD"
+
+    private static final int VERSION = 1;
+
+    private static final Logger logger = Logger.getLogger(ModuleDigestCache.class.getName());
+
+    private Map<String,CachedEntry> entries = new HashMap<String,CachedEntry>();
+
+    private final File file;
+
+    private boolean modified;
+
+    /**
+     * 用到的缓存项。保存时只保存这些缓存项，已删除的模块的缓存项由此被清除
+     */
+    private final Set<String> used = new HashSet<String>();
+
+    /**
+     * @param file 缓存文件
+     */
+    ModuleDigestCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 获取缓存的模块摘要
+     * 
+     * @param rootDirectory 模块根目录
+     * @param fingerprint 当前文件清单的指纹
+     * @return MD5 和 SHA-1 摘要。未缓存或文件清单已发生变化时，返回 null
+     */
+    synchronized byte[][] get(String rootDirectory, byte[] fingerprint) {
+        used.add(rootDirectory);
+        CachedEntry entry = entries.get(rootDirectory);
+        if (entry == null || !Arrays.equals(entry.fingerprint, fingerprint)) return null;
+        return new byte[][] { entry.md5.clone(), entry.sha1.clone() };
+    }
+
+    /**
+     * 缓存模块摘要
+     * 
+     * @param rootDirectory 模块根目录
+     * @param fingerprint 文件清单的指纹
+     * @param md5 MD5 摘要
+     * @param sha1 SHA-1 摘要
+     */
+    synchronized void put(String rootDirectory, byte[] fingerprint, byte[] md5, byte[] sha1) {
+        CachedEntry entry = new CachedEntry();
+        entry.fingerprint = fingerprint.clone();
+        entry.md5 = md5.clone();
+        entry.sha1 = sha1.clone();
+        entries.put(rootDirectory, entry);
+        used.add(rootDirectory);
+        modified = true;
+    }
+
+    /**
+     * 载入缓存文件。缓存文件不存在或损坏时，使用空缓存
+     */
+    synchronized void load() {
+        if (!file.isFile()) return;
+        Map<String,CachedEntry> loaded = new HashMap<String,CachedEntry>();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    logger.info("模块摘要缓存版本不符，忽略缓存文件：" + file.getAbsolutePath());
+                    return;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String rootDirectory = in.readUTF();
+                    CachedEntry entry = new CachedEntry();
+                    entry.fingerprint = new byte[16];
+                    in.readFully(entry.fingerprint);
+                    entry.md5 = new byte[16];
+                    in.readFully(entry.md5);
+                    entry.sha1 = new byte[20];
+                    in.readFully(entry.sha1);
+                    loaded.put(rootDirectory, entry);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "读取模块摘要缓存文件 " + file.getAbsolutePath() + " 时出错，忽略缓存", e);
+            return;
+        }
+        entries = loaded;
+    }
+
+    /**
+     * 保存缓存文件。缓存未发生变化时不保存
+     */
+    synchronized void store() {
+        if (!modified && used.containsAll(entries.keySet())) return;
+        File tempFile = null;
+        try {
+            // 同时运行的签名进程只会看到完整的缓存文件
+            tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                Map<String,CachedEntry> entriesToStore = new HashMap<String,CachedEntry>();
+                for (String rootDirectory : used) {
+                    CachedEntry entry = entries.get(rootDirectory);
+                    if (entry != null) entriesToStore.put(rootDirectory, entry);
+                }
+                out.writeInt(entriesToStore.size());
+                for (Map.Entry<String,CachedEntry> e : entriesToStore.entrySet()) {
+                    CachedEntry entry = e.getValue();
+                    out.writeUTF(e.getKey());
+                    out.write(entry.fingerprint);
+                    out.write(entry.md5);
+                    out.write(entry.sha1);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+                throw new IOException("无法将临时文件 " + tempFile.getName() + " 改名");
+            }
+            modified = false;
+        } catch (IOException e) {
+            if (tempFile != null) tempFile.delete();
+            logger.log(Level.WARNING, "保存模块摘要缓存文件 " + file.getAbsolutePath() + " 时出错", e);
+        }
+    }
+
+}
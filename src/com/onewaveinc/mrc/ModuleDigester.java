@@ -0,0 +1,260 @@
+package com.onewaveinc.mrc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 模块摘要计算器。按模块签名规定的顺序（/bin、/lib、/META-INF 目录，目录内按文件名排序，深度优先），
+ * 把每个文件的模块路径和内容依次送入同一个 MD5 和 SHA-1 摘要。<br>
+ * MD5 和 SHA-1 只能顺序计算，因此并行的是读取：后台线程按顺序预读后面的文件，大文件以内存映射方式读取并预先载入，
+ * 小文件直接读入内存，摘要线程只需消费已读好的内容。<br>
+ * 设置了摘要缓存时，先以文件清单（模块路径、大小和修改时间）计算指纹，指纹与缓存一致则直接使用缓存的摘要。
+ * 校验模块时不得设置摘要缓存，参见 {@link ModuleDigestCache}
+ */
+class ModuleDigester {
+
+    /**
+     * 参与摘要的目录，按摘要顺序排列
+     */
+    private static final String[] DIRECTORIES = { "/bin", "/lib", "/META-INF" };
+
+    /**
+     * 不小于此大小的文件以内存映射方式读取
+     */
+    private static final int MAP_THRESHOLD = 256 * 1024;
+
+    /**
+     * 每个预读线程最多领先摘要线程的文件数
+     */
+    private static final int READ_AHEAD_FILES_PER_THREAD = 4;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_THREADS = 8;
+
+    private final ModuleDigestCache cache;
+
+    private final int threads;
+
+    /**
+     * @param threads 预读线程数。不大于 1 时在摘要线程中读取
+     * @param cache 摘要缓存，可以为 null
+     */
+    ModuleDigester(int threads, ModuleDigestCache cache) {
+        this.threads = threads;
+        this.cache = cache;
+    }
+
+    /**
+     * 获取默认的预读线程数
+     * 
+     * @return 处理器数，不超过 8
+     */
+    static int getDefaultThreads() {
+        return Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 计算模块的摘要
+     * 
+     * @param module 模块
+     * @return MD5 和 SHA-1 摘要
+     * @throws IOException 读取文件时出错
+     */
+    byte[][] digest(Module module) throws IOException {
+        List<ModuleFile> files = listFiles(module);
+        byte[] fingerprint = null;
+        if (cache != null) {
+            fingerprint = fingerprint(module, files);
+            byte[][] cached = cache.get(module.getRootDirectory(), fingerprint);
+            if (cached != null) return cached;
+        }
+
+        MessageDigest md5 = getMessageDigest("MD5");
+        MessageDigest sha1 = getMessageDigest("SHA-1");
+        if (threads <= 1 || files.size() <= 1) {
+            for (ModuleFile file : files) {
+                update(md5, sha1, file, read(file));
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("mrc-digest-"));
+            try {
+                LinkedList<Future<ByteBuffer>> window = new LinkedList<Future<ByteBuffer>>();
+                int next = 0;
+                for (ModuleFile file : files) {
+                    while (next < files.size() && window.size() < threads * READ_AHEAD_FILES_PER_THREAD) {
+                        window.add(executor.submit(newReadTask(files.get(next++))));
+                    }
+                    update(md5, sha1, file, get(window.removeFirst()));
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        byte[] md5Digest = md5.digest();
+        byte[] sha1Digest = sha1.digest();
+        if (cache != null) cache.put(module.getRootDirectory(), fingerprint, md5Digest, sha1Digest);
+        return new byte[][] { md5Digest, sha1Digest };
+    }
+
+    /**
+     * 列出参与摘要的文件
+     * 
+     * @param module 模块
+     * @return 文件列表，按摘要顺序排列
+     */
+    static List<ModuleFile> listFiles(Module module) {
+        List<ModuleFile> result = new ArrayList<ModuleFile>();
+        for (String path : DIRECTORIES) {
+            ModuleFile directory = module.getModuleFile(path);
+            if (directory.isDirectory()) listFiles(directory, result);
+        }
+        return result;
+    }
+
+    /**
+     * 计算文件清单的指纹
+     */
+    private static byte[] fingerprint(Module module, List<ModuleFile> files) throws IOException {
+        MessageDigest md5 = getMessageDigest("MD5");
+        DataOutputStream out = new DataOutputStream(new DigestOutputStream(new ByteArrayOutputStream(), md5));
+        if (module.isArchive()) {
+            File archive = new File(module.getRootDirectory());
+            out.writeLong(archive.length());
+            out.writeLong(archive.lastModified());
+        }
+        out.writeInt(files.size());
+        for (ModuleFile file : files) {
+            out.writeUTF(file.getModulePath());
+            out.writeLong(file.length());
+            out.writeLong(file.lastModified());
+        }
+        out.close();
+        return md5.digest();
+    }
+
+    private static ByteBuffer get(Future<ByteBuffer> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("等待读取文件时被中断");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(String.valueOf(cause));
+        }
+    }
+
+    private static MessageDigest getMessageDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " 摘要算法不可用", e);
+        }
+    }
+
+    private static void listFiles(ModuleFile directory, List<ModuleFile> result) {
+        ModuleFile[] files = directory.listFiles();
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File o1, File o2) {
+                return o1.getName().compareTo(o2.getName());
+            }
+        });
+
+        for (ModuleFile file : files) {
+            String modulePath = file.getModulePath();
+
+            // 过滤一些文件
+            if (modulePath.endsWith("-sources.jar")) continue; // TODO: 应该去掉此句
+            if (modulePath.startsWith("/META-INF/maven/")) continue;
+            if (modulePath.equals("/META-INF/MANIFEST.MF")) continue;
+            if (modulePath.equals(ModuleIntegrityManifest.MANIFEST_FILE)) continue;
+
+            if (file.isDirectory()) {
+                listFiles(file, result);
+            } else {
+                result.add(file);
+            }
+        }
+    }
+
+    private static Callable<ByteBuffer> newReadTask(final ModuleFile file) {
+        return new Callable<ByteBuffer>() {
+            public ByteBuffer call() throws IOException {
+                return read(file);
+            }
+        };
+    }
+
+    /**
+     * 读取文件内容
+     * 
+     * @return 文件内容。文件位于挂载的安装包中或超过 2G 时返回 null，由摘要线程以流方式读取
+     */
+    private static ByteBuffer read(ModuleFile file) throws IOException {
+        if (file.isInArchive()) return null;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) return null;
+            if (size >= MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size).load();
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+                // 读满为止
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void update(MessageDigest md5, MessageDigest sha1, ModuleFile file, ByteBuffer content) throws IOException {
+        byte[] path = file.getModulePath().getBytes("UTF-8");
+        md5.update(path);
+        sha1.update(path);
+        if (content != null) {
+            md5.update(content.duplicate());
+            sha1.update(content);
+            return;
+        }
+
+        InputStream in = file.openStream();
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                md5.update(buf, 0, len);
+                sha1.update(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+package com.onewaveinc.mrc;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 模块安装目录监视器。定期扫描模块安装目录，发现新增或发生变化的模块安装包、模块链接文件和模块目录后，
+ * 等待其在静默期内不再变化（安装包可能仍在复制中），再交给 MRC 热部署。<br>
+ * 模块目录以目录本身、模块元数据文件和 lib 目录的修改时间判断是否发生变化；模块链接文件只判断链接文件本身。
+ * 从模块安装目录中删除的模块不会被卸载，重启后生效。<br>
+ * 直接挂载安装包（mrc.mount）时，映射的是安装包的私有副本，安装包可以被原地覆盖，参见 ModuleArchive
+ */
+class ModuleDirectoryWatcher implements Runnable {
+
+    /**
+     * 模块安装目录中一项的状态
+     */
+    private static class State {
+
+        long lastModified;
+
+        long length;
+
+        State(long length, long lastModified) {
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof State)) return false;
+            State another = (State) obj;
+            return length == another.length && lastModified == another.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (length ^ lastModified);
+        }
+
+    }
+
+    /**
+     * 尚未部署的变化
+     */
+    private static class PendingChange {
+
+        /**
+         * 最近一次观察到变化的时间
+         */
+        long since;
+
+        State state;
+
+        PendingChange(State state, long since) {
+            this.state = state;
+            this.since = since;
+        }
+
+    }
+
+    private static final Logger logger = Logger.getLogger(ModuleDirectoryWatcher.class.getName());
+
+    private final List<File> directories;
+
+    private final long interval;
+
+    private final ModuleContext moduleContext;
+
+    /**
+     * 尚未部署的变化，键为模块安装目录，值的键为文件名
+     */
+    private final Map<File,Map<String,PendingChange>> pendingChanges = new HashMap<File,Map<String,PendingChange>>();
+
+    private final long quietPeriod;
+
+    /**
+     * 已知的状态，键为模块安装目录，值的键为文件名
+     */
+    private final Map<File,Map<String,State>> states = new HashMap<File,Map<String,State>>();
+
+    private volatile Thread thread;
+
+    /**
+     * @param moduleContext MRC
+     * @param directories 模块安装目录列表
+     * @param interval 扫描间隔，单位毫秒
+     * @param quietPeriod 静默期，单位毫秒。一项在静默期内不再变化后才部署
+     */
+    ModuleDirectoryWatcher(ModuleContext moduleContext, List<File> directories, long interval, long quietPeriod) {
+        this.moduleContext = moduleContext;
+        this.directories = directories;
+        this.interval = interval;
+        this.quietPeriod = quietPeriod;
+        for (File directory : directories) {
+            states.put(directory, scan(directory));
+            pendingChanges.put(directory, new HashMap<String,PendingChange>());
+        }
+    }
+
+    public void run() {
+        while (thread == Thread.currentThread()) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                poll(System.currentTimeMillis());
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "扫描模块安装目录时出错", e);
+            }
+        }
+    }
+
+    /**
+     * 启动监视线程
+     */
+    synchronized void start() {
+        if (thread != null) return;
+        thread = new Thread(this, "mrc-hotdeploy");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info(String.format("模块热部署已启动，扫描间隔：%d ms，静默期：%d ms", interval, quietPeriod));
+    }
+
+    /**
+     * 停止监视线程。不等待正在进行的部署，MRC 停止后部署不再进行
+     */
+    synchronized void stop() {
+        if (thread == null) return;
+        thread.interrupt();
+        thread = null;
+    }
+
+    /**
+     * 扫描一次模块安装目录，部署静默期已过的变化
+     * 
+     * @param now 当前时间
+     */
+    void poll(long now) {
+        for (File directory : directories) {
+            Map<String,State> known = states.get(directory);
+            Map<String,PendingChange> pending = pendingChanges.get(directory);
+            Map<String,State> current = scan(directory);
+
+            for (Map.Entry<String,State> entry : current.entrySet()) {
+                String name = entry.getKey();
+                State state = entry.getValue();
+                if (state.equals(known.get(name))) {
+                    pending.remove(name);
+                    continue;
+                }
+                PendingChange change = pending.get(name);
+                if (change == null || !change.state.equals(state)) {
+                    pending.put(name, new PendingChange(state, now));
+                }
+            }
+            for (Iterator<String> it = known.keySet().iterator(); it.hasNext();) {
+                String name = it.next();
+                if (!current.containsKey(name)) {
+                    logger.info("模块已从模块安装目录中删除，重启后生效：" + new File(directory, name).getAbsolutePath());
+                    it.remove();
+                    pending.remove(name);
+                }
+            }
+
+            for (Iterator<Map.Entry<String,PendingChange>> it = pending.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String,PendingChange> entry = it.next();
+                if (now - entry.getValue().since < quietPeriod) continue;
+                it.remove();
+                String name = entry.getKey();
+                try {
+                    moduleContext.deploy(directory, new File(directory, name));
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE, "热部署 " + new File(directory, name).getAbsolutePath() + " 时出错", e);
+                }
+
+                // 部署过程中解压安装包会改变同名的模块目录，以部署后的状态为准
+                Map<String,State> deployed = scan(directory);
+                for (String key : new String[] { name, getSiblingName(name) }) {
+                    State state = deployed.get(key);
+                    if (state != null) {
+                        known.put(key, state);
+                    } else {
+                        known.remove(key);
+                    }
+                    pending.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * 获取与模块安装包同名的模块目录名，或与模块目录同名的模块安装包名
+     */
+    private static String getSiblingName(String name) {
+        if (name.endsWith(ModuleContext.MODULE_FILE_SUFFIX)) {
+            return name.substring(0, name.length() - ModuleContext.MODULE_FILE_SUFFIX.length());
+        }
+        return name + ModuleContext.MODULE_FILE_SUFFIX;
+    }
+
+    /**
+     * 扫描模块安装目录
+     * 
+     * @return 键为文件名，值为状态。只包括模块安装包、模块链接文件和模块目录
+     */
+    private static Map<String,State> scan(File directory) {
+        Map<String,State> result = new HashMap<String,State>();
+        File[] files = directory.listFiles();
+        if (files == null) return result;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(".") || ModuleFileExtractor.isTemporaryDirectory(name)) continue;
+            if (file.isDirectory()) {
+                File metadataFile = new File(file.getAbsolutePath() + Module.METADATA_FILE);
+                if (!metadataFile.isFile()) continue;
+                long lastModified = Math.max(file.lastModified(), Math.max(metadataFile.lastModified(), new File(file, "lib").lastModified()));
+                result.put(name, new State(metadataFile.length(), lastModified));
+            } else if (name.endsWith(ModuleContext.MODULE_FILE_SUFFIX) || name.endsWith(ModuleContext.MODULE_LINK_SUFFIX)) {
+                result.put(name, new State(file.length(), file.lastModified()));
+            }
+        }
+        return result;
+    }
+
+}
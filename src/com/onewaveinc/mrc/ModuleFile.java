@@ -1,6 +1,9 @@
 package com.onewaveinc.mrc;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -9,7 +12,8 @@ import java.util.Map;
 import java.util.TreeMap;
 
 /**
- * 模块文件。继承自 java.io.File，增加了文件所属的模块以及文件相对于模块根目录的路径信息
+ * 模块文件。继承自 java.io.File，增加了文件所属的模块以及文件相对于模块根目录的路径信息。<br>
+ * 模块直接从安装包挂载时，模块文件的存在性、类型、大小和目录列表从安装包中读取，文件内容需要通过 {@link #openStream()} 读取
  * 
  * @author gmice
  */
@@ -23,6 +27,11 @@ public class ModuleFile extends File {
     
     private static final long serialVersionUID = 1L;
 
+    /**
+     * 文件所在的模块安装包。模块未从安装包挂载时为 null
+     */
+    private transient ModuleArchive archive;
+
     private Module module;
 
     private List<Module> moduleExtensions;
@@ -49,13 +58,15 @@ public class ModuleFile extends File {
         this.module = module;
         this.modulePath = modulePath;
         this.moduleExtensions = module.getExtensions();
+        this.archive = module.getArchive();
     }
 
-    ModuleFile(Module module, String modulePath, String pathname) {
+    ModuleFile(Module module, String modulePath, String pathname, ModuleArchive archive) {
         super(pathname);
         this.module = module;
         this.modulePath = modulePath;
         this.moduleExtensions = module.getExtensions();
+        this.archive = archive;
     }
     
     /**
@@ -69,11 +80,12 @@ public class ModuleFile extends File {
         this.module = parent.module;
         this.modulePath = ("/".equals(parent.modulePath) ? "" : parent.modulePath) + (child.startsWith("/") ? child : "/" + child);
         this.moduleExtensions = parent.moduleExtensions;
+        this.archive = parent.archive;
     }
     
     @Override
     public boolean exists() {
-        if (super.exists()) return true;
+        if (archive != null ? isFileInternal() || isDirectoryInternal() : super.exists()) return true;
         if (moduleExtensions != null) {
             for (Module extension : moduleExtensions) {
                 if (new ModuleFile(extension, modulePath).exists()) return true;
@@ -93,7 +105,7 @@ public class ModuleFile extends File {
     
     @Override
     public boolean isDirectory() {
-        if (super.isDirectory()) return true;
+        if (isDirectoryInternal()) return true;
         if (moduleExtensions != null) {
             for (Module extension : moduleExtensions) {
                 if (new ModuleFile(extension, modulePath).isDirectory()) return true;
@@ -104,7 +116,7 @@ public class ModuleFile extends File {
     
     @Override
     public boolean isFile() {
-        if (super.isFile()) return true;
+        if (isFileInternal()) return true;
         if (moduleExtensions != null) {
             for (Module extension : moduleExtensions) {
                 if (new ModuleFile(extension, modulePath).isFile()) return true;
@@ -113,6 +125,16 @@ public class ModuleFile extends File {
         return false;
     }
     
+    @Override
+    public long lastModified() {
+        return archive != null ? archive.getTime(getArchiveName()) : super.lastModified();
+    }
+
+    @Override
+    public long length() {
+        return archive != null ? archive.getSize(getArchiveName()) : super.length();
+    }
+
     @Override
     public ModuleFile[] listFiles() {
         if (moduleExtensions != null) {
@@ -145,6 +167,19 @@ public class ModuleFile extends File {
         }
     }
     
+    /**
+     * 打开模块文件。模块直接从安装包挂载时，从安装包中读取
+     * 
+     * @return 输入流
+     * @throws IOException
+     */
+    public InputStream openStream() throws IOException {
+        if (archive != null) {
+            return archive.openStream(getArchiveName());
+        }
+        return new FileInputStream(this);
+    }
+
     /**
      * 列举该实例对应的目录及其子目录下的所有模块文件（不包含目录）<br>
      * 返回的模块文件数组已根据文件路径进行了排序
@@ -166,7 +201,38 @@ public class ModuleFile extends File {
         return sorted(listFilesRecursivelyInternal(includeDirectory));
     }
     
+    /**
+     * 判断模块文件是否位于挂载的模块安装包中。位于安装包中时，文件内容只能通过 {@link #openStream()} 读取
+     * 
+     * @return 位于安装包中时，返回 true
+     */
+    boolean isInArchive() {
+        return archive != null;
+    }
+
+    private String getArchiveName() {
+        return modulePath.startsWith("/") ? modulePath.substring(1) : modulePath;
+    }
+
+    private boolean isDirectoryInternal() {
+        return archive != null ? archive.isDirectory(getArchiveName()) : super.isDirectory();
+    }
+
+    private boolean isFileInternal() {
+        return archive != null ? archive.isFile(getArchiveName()) : super.isFile();
+    }
+
     private ModuleFile[] listFilesInternal() {
+        if (archive != null) {
+            List<String> names = archive.list(getArchiveName());
+            if (names == null) return null;
+            ModuleFile[] moduleFiles = new ModuleFile[names.size()];
+            for (int i = 0; i < moduleFiles.length; i++) {
+                moduleFiles[i] = new ModuleFile(this, "/" + names.get(i));
+            }
+            return moduleFiles;
+        }
+
         File[] files = super.listFiles();
         if (files == null) return null;
         
@@ -200,7 +266,7 @@ public class ModuleFile extends File {
         if (module == this.module) {
             return this;
         } else {
-            return new ModuleFile(module, this.modulePath, getAbsolutePath());
+            return new ModuleFile(module, this.modulePath, getAbsolutePath(), archive);
         }
     }
 
@@ -0,0 +1,479 @@
+package com.onewaveinc.mrc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * 模块安装包解压器。解压结果记录在模块目录旁的标记文件中（每个文件的 CRC 和大小），
+ * 安装包发生变化时只重写内容发生变化的文件，并删除安装包中已不存在的文件。<br>
+ * 解压过程中模块目录被改名为临时目录，解压完成后再改回。解压失败或被中断时，模块目录不存在，
+ * 该模块不会以不完整的状态被安装；下次启动时临时目录被恢复，再次增量解压。<br>
+ * 热部署时模块目录正在被运行中的模块使用，不能就地解压：先以 {@link #prepare()} 在部署目录中解压，
+ * 检查通过并停止相关模块后再以 {@link #commit()} 换入，检查不通过时以 {@link #rollback()} 删除部署目录，模块目录不受影响
+ */
+class ModuleFileExtractor {
+
+    private static class ExtractedEntry {
+
+        long crc;
+
+        long size;
+
+    }
+
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * 热部署时换入部署目录前，原模块目录的备份目录后缀
+     */
+    static final String BACKUP_SUFFIX = ".backup";
+
+    /**
+     * 热部署的部署目录后缀
+     */
+    static final String DEPLOY_SUFFIX = ".deploy";
+
+    private static final int MAGIC = 0x4d524358; // "MRCX"
+
+    /**
+     * 标记文件后缀。标记文件位于模块目录旁，不在模块目录中，不影响模块签名
+     */
+    static final String MARKER_SUFFIX = ".extracted";
+
+    /**
+     * 临时目录后缀
+     */
+    static final String STAGING_SUFFIX = ".staging";
+
+    private static final int VERSION = 1;
+
+    private static final Logger logger = Logger.getLogger(ModuleFileExtractor.class.getName());
+
+    private final File backupDirectory;
+
+    private final File deployDirectory;
+
+    private final File marker;
+
+    private final File moduleDirectory;
+
+    private final File moduleFile;
+
+    private final File stagingDirectory;
+
+    /**
+     * prepare() 解压的文件记录，commit() 时写入标记文件
+     */
+    private Map<String,ExtractedEntry> prepared;
+
+    /**
+     * @param moduleFile 模块安装包
+     * @param moduleDirectory 模块目录
+     */
+    ModuleFileExtractor(File moduleFile, File moduleDirectory) {
+        this.moduleFile = moduleFile;
+        this.moduleDirectory = moduleDirectory;
+        this.marker = new File(moduleDirectory.getParentFile(), moduleDirectory.getName() + MARKER_SUFFIX);
+        this.stagingDirectory = new File(moduleDirectory.getParentFile(), moduleDirectory.getName() + STAGING_SUFFIX);
+        this.deployDirectory = new File(moduleDirectory.getParentFile(), moduleDirectory.getName() + DEPLOY_SUFFIX);
+        this.backupDirectory = new File(moduleDirectory.getParentFile(), moduleDirectory.getName() + BACKUP_SUFFIX);
+    }
+
+    /**
+     * 解压安装包。安装包与标记文件记录的大小和修改时间一致时，直接返回
+     * 
+     * @return 解压过程中写入或删除的文件数。不需要解压时，返回 0
+     * @throws IOException
+     */
+    int extract() throws IOException {
+        Map<String,ExtractedEntry> extracted = new HashMap<String,ExtractedEntry>();
+        if (moduleDirectory.isDirectory() && readMarker(extracted)) {
+            return 0;
+        }
+
+        ZipFile zipFile = new ZipFile(moduleFile);
+        try {
+            // 1. 删除标记文件，将模块目录改名为临时目录
+            if (marker.exists() && !marker.delete()) {
+                throw new IOException("删除文件 " + marker.getAbsolutePath() + " 失败");
+            }
+            if (moduleDirectory.isDirectory()) {
+                if (!moduleDirectory.renameTo(stagingDirectory)) {
+                    throw new IOException("将目录 " + moduleDirectory.getAbsolutePath() + " 改名为 " + stagingDirectory.getName() + " 失败");
+                }
+            } else if (!stagingDirectory.mkdirs()) {
+                throw new IOException("创建目录 " + stagingDirectory.getAbsolutePath() + " 失败");
+            }
+
+            // 2. 在临时目录中增量解压
+            Map<String,ExtractedEntry> entries = new HashMap<String,ExtractedEntry>();
+            int changes = extract(zipFile, stagingDirectory, extracted, entries);
+
+            // 3. 将临时目录改回模块目录，并写入标记文件
+            if (!stagingDirectory.renameTo(moduleDirectory)) {
+                throw new IOException("将目录 " + stagingDirectory.getAbsolutePath() + " 改名为 " + moduleDirectory.getName() + " 失败");
+            }
+            writeMarker(entries);
+            return changes;
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * 为热部署解压安装包。先将模块目录复制为部署目录（保留模块运行时自己创建的文件），再在部署目录中增量解压，
+     * 模块目录和标记文件不受影响。之后必须调用 {@link #commit()} 或 {@link #rollback()}
+     * 
+     * @return 部署目录。安装包与标记文件记录的大小和修改时间一致、不需要解压时，返回 null
+     * @throws IOException 解压失败时，部署目录已被删除
+     */
+    File prepare() throws IOException {
+        Map<String,ExtractedEntry> extracted = new HashMap<String,ExtractedEntry>();
+        if (moduleDirectory.isDirectory() && readMarker(extracted)) {
+            return null;
+        }
+
+        ZipFile zipFile = new ZipFile(moduleFile);
+        boolean success = false;
+        try {
+            if (deployDirectory.exists()) delete(deployDirectory);
+            if (moduleDirectory.isDirectory()) {
+                copy(moduleDirectory, deployDirectory, new byte[BUFFER_SIZE]);
+            } else if (!deployDirectory.mkdirs()) {
+                throw new IOException("创建目录 " + deployDirectory.getAbsolutePath() + " 失败");
+            }
+            Map<String,ExtractedEntry> entries = new HashMap<String,ExtractedEntry>();
+            extract(zipFile, deployDirectory, extracted, entries);
+            prepared = entries;
+            success = true;
+            return deployDirectory;
+        } finally {
+            zipFile.close();
+            if (!success) delete(deployDirectory);
+        }
+    }
+
+    /**
+     * 以 {@link #prepare()} 解压的部署目录取代模块目录，并写入标记文件。原模块目录先改名为备份目录，
+     * 部署目录改名为模块目录后再删除备份目录；改名失败时恢复原模块目录并删除部署目录
+     * 
+     * @throws IOException 换入失败时，模块目录和标记文件保持原状
+     */
+    void commit() throws IOException {
+        if (prepared == null) throw new IllegalStateException("未准备部署目录");
+        try {
+            if (backupDirectory.exists()) delete(backupDirectory);
+            if (moduleDirectory.exists() && !moduleDirectory.renameTo(backupDirectory)) {
+                throw new IOException("将目录 " + moduleDirectory.getAbsolutePath() + " 改名为 " + backupDirectory.getName() + " 失败");
+            }
+            if (!deployDirectory.renameTo(moduleDirectory)) {
+                if (backupDirectory.exists() && !backupDirectory.renameTo(moduleDirectory)) {
+                    logger.severe("将目录 " + backupDirectory.getAbsolutePath() + " 改回 " + moduleDirectory.getName() + " 失败");
+                }
+                throw new IOException("将目录 " + deployDirectory.getAbsolutePath() + " 改名为 " + moduleDirectory.getName() + " 失败");
+            }
+        } catch (IOException e) {
+            rollback();
+            throw e;
+        }
+        Map<String,ExtractedEntry> entries = prepared;
+        prepared = null;
+        try {
+            writeMarker(entries);
+        } catch (IOException e) {
+            // 没有标记文件时，下次启动比较已解压文件的 CRC，结果仍然正确
+            marker.delete();
+            logger.log(Level.WARNING, "写入解压标记文件 " + marker.getAbsolutePath() + " 时出错", e);
+        }
+        delete(backupDirectory);
+    }
+
+    /**
+     * 删除 {@link #prepare()} 解压的部署目录，模块目录和标记文件不受影响
+     */
+    void rollback() {
+        prepared = null;
+        delete(deployDirectory);
+    }
+
+    /**
+     * 判断模块安装目录下的目录是否是解压或热部署过程中使用的临时目录（临时目录、部署目录或备份目录）
+     * 
+     * @param name 目录名
+     */
+    static boolean isTemporaryDirectory(String name) {
+        return name.endsWith(STAGING_SUFFIX) || name.endsWith(DEPLOY_SUFFIX) || name.endsWith(BACKUP_SUFFIX);
+    }
+
+    /**
+     * 恢复上次启动时未完成解压或热部署而遗留的临时目录。模块目录不存在时，将临时目录或备份目录改回模块目录（随后会被再次增量解压），
+     * 否则删除它们；部署目录总是被删除
+     * 
+     * @param directory 模块安装目录
+     */
+    static void recover(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String name = file.getName();
+            if (!file.isDirectory() || !isTemporaryDirectory(name)) continue;
+            if (name.endsWith(DEPLOY_SUFFIX)) {
+                logger.warning("删除未完成热部署的目录：" + file.getAbsolutePath());
+                delete(file);
+                continue;
+            }
+            String suffix = name.endsWith(STAGING_SUFFIX) ? STAGING_SUFFIX : BACKUP_SUFFIX;
+            File moduleDirectory = new File(directory, name.substring(0, name.length() - suffix.length()));
+            if (!moduleDirectory.exists()) {
+                logger.warning("恢复未完成解压的目录：" + file.getAbsolutePath());
+                if (!file.renameTo(moduleDirectory)) {
+                    logger.severe("将目录 " + file.getAbsolutePath() + " 改名为 " + moduleDirectory.getName() + " 失败");
+                }
+            } else {
+                logger.warning("删除未完成解压的目录：" + file.getAbsolutePath());
+                delete(file);
+            }
+        }
+    }
+
+    /**
+     * 检查安装包中的文件名，拒绝指向模块目录以外的文件
+     */
+    private static void checkEntryName(String name) throws IOException {
+        String normalized = name.replace('\\', '/');
+        if (normalized.startsWith("/") || normalized.equals("..") || normalized.startsWith("../") || normalized.contains("/../")
+                || normalized.endsWith("/..")) {
+            throw new IOException("安装包中的文件路径非法：" + name);
+        }
+    }
+
+    /**
+     * 复制目录，保留文件的修改时间
+     */
+    private static void copy(File from, File to, byte[] buf) throws IOException {
+        if (!to.mkdirs()) {
+            throw new IOException("创建目录 " + to.getAbsolutePath() + " 失败");
+        }
+        File[] files = from.listFiles();
+        if (files == null) {
+            throw new IOException("读取目录 " + from.getAbsolutePath() + " 失败");
+        }
+        for (File file : files) {
+            File target = new File(to, file.getName());
+            if (file.isDirectory()) {
+                copy(file, target, buf);
+                continue;
+            }
+            InputStream in = new FileInputStream(file);
+            try {
+                OutputStream out = new FileOutputStream(target);
+                try {
+                    int c;
+                    while ((c = in.read(buf)) != -1) {
+                        out.write(buf, 0, c);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            target.setLastModified(file.lastModified());
+        }
+    }
+
+    private static long crc(File file, byte[] buf) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(file);
+        try {
+            int c;
+            while ((c = in.read(buf)) != -1) {
+                crc.update(buf, 0, c);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * 在目录中增量解压安装包：重写发生变化的文件，删除上次从安装包解压、但安装包中已不存在的文件。模块运行时自己创建的文件不受影响
+     * 
+     * @param zipFile 安装包
+     * @param directory 目标目录
+     * @param extracted 上次解压的文件记录
+     * @param entries 用于保存本次解压的文件记录
+     * @return 写入或删除的文件数
+     */
+    private static int extract(ZipFile zipFile, File directory, Map<String,ExtractedEntry> extracted, Map<String,ExtractedEntry> entries)
+            throws IOException {
+        int changes = 0;
+        byte[] buf = new byte[BUFFER_SIZE];
+        for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements();) {
+            ZipEntry zipEntry = e.nextElement();
+            String name = zipEntry.getName();
+            checkEntryName(name);
+            File file = new File(directory, name);
+            if (zipEntry.isDirectory()) {
+                file.mkdirs();
+                continue;
+            }
+
+            ExtractedEntry entry = new ExtractedEntry();
+            entry.crc = zipEntry.getCrc();
+            entry.size = zipEntry.getSize();
+            if (entry.crc == -1 || !isUnchanged(file, entry, extracted.get(name), buf)) {
+                writeEntry(zipFile, zipEntry, file, buf);
+                if (entry.crc == -1) entry.crc = crc(file, buf);
+                entry.size = file.length();
+                changes++;
+            }
+            entries.put(name, entry);
+        }
+
+        for (String name : extracted.keySet()) {
+            if (!entries.containsKey(name)) {
+                File file = new File(directory, name);
+                if (file.isFile() && file.delete()) changes++;
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * 判断已解压的文件与安装包中的文件是否一致。有上次解压的记录时比较记录的 CRC，否则计算已解压文件的 CRC
+     */
+    private static boolean isUnchanged(File file, ExtractedEntry entry, ExtractedEntry previous, byte[] buf) throws IOException {
+        if (!file.isFile() || file.length() != entry.size) return false;
+        if (previous != null) {
+            return previous.crc == entry.crc && previous.size == entry.size;
+        }
+        return crc(file, buf) == entry.crc;
+    }
+
+    /**
+     * 读取标记文件
+     * 
+     * @param extracted 用于保存上次解压的文件记录
+     * @return 当且仅当安装包的大小和修改时间与标记文件记录的一致时，返回 true
+     */
+    private boolean readMarker(Map<String,ExtractedEntry> extracted) {
+        if (!marker.isFile()) return false;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(marker)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) return false;
+                long length = in.readLong();
+                long lastModified = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String name = in.readUTF();
+                    ExtractedEntry entry = new ExtractedEntry();
+                    entry.crc = in.readLong();
+                    entry.size = in.readLong();
+                    extracted.put(name, entry);
+                }
+                return length == moduleFile.length() && lastModified == moduleFile.lastModified();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "读取解压标记文件 " + marker.getAbsolutePath() + " 时出错", e);
+            extracted.clear();
+            return false;
+        }
+    }
+
+    /**
+     * 写入安装包中的一个文件。先写入同目录下的临时文件再改名，文件不会处于写了一半的状态
+     */
+    private static void writeEntry(ZipFile zipFile, ZipEntry zipEntry, File file, byte[] buf) throws IOException {
+        File parent = file.getParentFile();
+        parent.mkdirs();
+        File tempFile = new File(parent, file.getName() + ".tmp");
+        InputStream in = zipFile.getInputStream(zipEntry);
+        try {
+            OutputStream out = new FileOutputStream(tempFile);
+            try {
+                int c;
+                while ((c = in.read(buf)) != -1) {
+                    out.write(buf, 0, c);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        if (zipEntry.getTime() != -1) {
+            tempFile.setLastModified(zipEntry.getTime());
+        }
+        if (file.exists() && !file.delete()) {
+            tempFile.delete();
+            throw new IOException("删除文件 " + file.getAbsolutePath() + " 失败");
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("将文件 " + tempFile.getAbsolutePath() + " 改名为 " + file.getName() + " 失败");
+        }
+    }
+
+    /**
+     * 写入标记文件。先写入临时文件再改名，标记文件要么不存在，要么是完整的
+     */
+    private void writeMarker(Map<String,ExtractedEntry> entries) throws IOException {
+        File tempFile = new File(marker.getParentFile(), marker.getName() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(moduleFile.length());
+                out.writeLong(moduleFile.lastModified());
+                out.writeInt(entries.size());
+                for (Map.Entry<String,ExtractedEntry> e : entries.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeLong(e.getValue().crc);
+                    out.writeLong(e.getValue().size);
+                }
+            } finally {
+                out.close();
+            }
+            if (marker.exists() && !marker.delete()) {
+                throw new IOException("删除文件 " + marker.getAbsolutePath() + " 失败");
+            }
+            if (!tempFile.renameTo(marker)) {
+                throw new IOException("将文件 " + tempFile.getAbsolutePath() + " 改名为 " + marker.getName() + " 失败");
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,325 @@
+package com.onewaveinc.mrc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * 模块完整性清单。以 Merkle 树记录模块 /bin、/lib 和 /META-INF 目录下每个文件的 SHA-256 摘要和大小，
+ * 以及每个目录的摘要（目录下按名称排列的文件和子目录的名称、类型和摘要的 SHA-256 摘要），根目录的摘要代表整个模块。<br>
+ * 清单保存在模块的 /META-INF/module.integrity 中，由 {@link ModuleSignature} 在打包时生成，本身不参与模块签名的摘要，
+ * 根摘要写入签名清单，由模块签名保护。存放模块签名的 /META-INF/MANIFEST.MF 不在清单中
+ */
+class ModuleIntegrityManifest {
+
+    /**
+     * 清单中的文件
+     */
+    static class FileEntry {
+
+        final String hash;
+
+        final long size;
+
+        FileEntry(String hash, long size) {
+            this.hash = hash;
+            this.size = size;
+        }
+
+    }
+
+    static final String MANIFEST_FILE = "/META-INF/module.integrity";
+
+    /**
+     * 存放模块签名的文件，签名在生成清单之后写入
+     */
+    private static final String SIGNATURE_FILE = "/META-INF/MANIFEST.MF";
+
+    /**
+     * 清单覆盖的目录
+     */
+    private static final String[] DIRECTORIES = { "/bin", "/lib", "/META-INF" };
+
+    private static final String ALGORITHM = "SHA-256";
+
+    private static final String HEADER = "MRC-Integrity-Version: 1";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SortedMap<String,String> directories;
+
+    private final SortedMap<String,FileEntry> files;
+
+    private ModuleIntegrityManifest(SortedMap<String,FileEntry> files, SortedMap<String,String> directories) {
+        this.files = files;
+        this.directories = directories;
+    }
+
+    /**
+     * 读取模块文件计算完整性清单
+     * 
+     * @param module 模块
+     * @return 完整性清单
+     * @throws IOException
+     */
+    static ModuleIntegrityManifest create(Module module) throws IOException {
+        SortedMap<String,FileEntry> files = new TreeMap<String,FileEntry>();
+        for (Map.Entry<String,long[]> e : listFiles(module).entrySet()) {
+            files.put(e.getKey(), new FileEntry(hash(module, e.getKey()), e.getValue()[0]));
+        }
+        return new ModuleIntegrityManifest(files, computeDirectories(files));
+    }
+
+    /**
+     * 计算模块文件的摘要
+     * 
+     * @param module 模块
+     * @param path 模块路径
+     * @return 十六进制的 SHA-256 摘要
+     * @throws IOException
+     */
+    static String hash(Module module, String path) throws IOException {
+        MessageDigest digest = getMessageDigest();
+        InputStream in = openStream(module, path);
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                digest.update(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * 列出模块自身（不包括扩展模块）在清单覆盖的目录下的文件，不包括清单本身和存放模块签名的 MANIFEST.MF
+     * 
+     * @param module 模块
+     * @return 键为模块路径，值为文件大小和修改时间
+     */
+    static SortedMap<String,long[]> listFiles(Module module) {
+        SortedMap<String,long[]> result = new TreeMap<String,long[]>();
+        ModuleArchive archive = module.getArchive();
+        for (String directory : DIRECTORIES) {
+            if (archive != null) {
+                String prefix = directory.substring(1) + "/";
+                for (String name : archive.getNames()) {
+                    if (name.startsWith(prefix)) result.put("/" + name, new long[] { archive.getSize(name), archive.getTime(name) });
+                }
+            } else {
+                listFiles(new File(module.getRootDirectory() + directory), directory, result);
+            }
+        }
+        result.remove(MANIFEST_FILE);
+        result.remove(SIGNATURE_FILE);
+        return result;
+    }
+
+    /**
+     * 读取模块的完整性清单
+     * 
+     * @param module 模块
+     * @return 完整性清单。模块没有完整性清单时，返回 null
+     * @throws IOException 清单格式错误时
+     */
+    static ModuleIntegrityManifest read(Module module) throws IOException {
+        ModuleArchive archive = module.getArchive();
+        String name = MANIFEST_FILE.substring(1);
+        if (archive != null ? !archive.isFile(name) : !new File(module.getRootDirectory() + MANIFEST_FILE).isFile()) return null;
+
+        SortedMap<String,FileEntry> files = new TreeMap<String,FileEntry>();
+        SortedMap<String,String> directories = new TreeMap<String,String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(openStream(module, MANIFEST_FILE), "UTF-8"));
+        try {
+            if (!HEADER.equals(reader.readLine())) throw new IOException("不支持的完整性清单版本");
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0 || line.startsWith("#")) continue;
+                String[] fields = line.split(" ", line.startsWith("F ") ? 4 : 3);
+                if ("F".equals(fields[0]) && fields.length == 4) {
+                    files.put(fields[3], new FileEntry(fields[1], Long.parseLong(fields[2])));
+                } else if ("D".equals(fields[0]) && fields.length == 3) {
+                    directories.put(fields[2], fields[1]);
+                } else {
+                    throw new IOException("完整性清单格式错误：" + line);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("完整性清单格式错误：" + e.getMessage());
+        } finally {
+            reader.close();
+        }
+        return new ModuleIntegrityManifest(files, directories);
+    }
+
+    SortedMap<String,FileEntry> getFiles() {
+        return files;
+    }
+
+    /**
+     * 获取根目录的摘要
+     * 
+     * @return 十六进制的 SHA-256 摘要。没有任何文件时为 null
+     */
+    String getRootHash() {
+        return directories.get("/");
+    }
+
+    /**
+     * 以文件的摘要重新计算目录的摘要，检查清单本身是否一致
+     * 
+     * @return 摘要不一致的最深的目录，即被修改的记录所在的目录。清单一致时，返回 null
+     */
+    String verifyTree() {
+        SortedMap<String,String> computed = computeDirectories(files);
+        String result = null;
+        for (String path : directories.keySet()) {
+            if (!computed.containsKey(path) && (result == null || depth(path) > depth(result))) result = path;
+        }
+        for (Map.Entry<String,String> e : computed.entrySet()) {
+            if (!e.getValue().equals(directories.get(e.getKey())) && (result == null || depth(e.getKey()) > depth(result))) result = e.getKey();
+        }
+        return result;
+    }
+
+    /**
+     * 输出清单
+     * 
+     * @param out 输出流，不会被关闭
+     * @throws IOException
+     */
+    void write(OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        writer.write(HEADER + "\n");
+        writer.write("# Root: " + getRootHash() + "\n");
+        for (Map.Entry<String,String> e : directories.entrySet()) {
+            writer.write("D " + e.getValue() + " " + e.getKey() + "\n");
+        }
+        for (Map.Entry<String,FileEntry> e : files.entrySet()) {
+            writer.write("F " + e.getValue().hash + " " + e.getValue().size + " " + e.getKey() + "\n");
+        }
+        writer.flush();
+    }
+
+    /**
+     * 由文件的摘要自底向上计算每个目录的摘要
+     */
+    private static SortedMap<String,String> computeDirectories(SortedMap<String,FileEntry> files) {
+        // 目录下的文件和子目录，值为类型和摘要
+        Map<String,SortedMap<String,String>> children = new HashMap<String,SortedMap<String,String>>();
+        for (Map.Entry<String,FileEntry> e : files.entrySet()) {
+            addChild(children, e.getKey(), "F" + e.getValue().hash);
+            for (String path = getParent(e.getKey()); !"/".equals(path); path = getParent(path)) {
+                addChild(children, path, null);
+            }
+        }
+
+        // 先计算深的目录
+        List<String> paths = new ArrayList<String>(children.keySet());
+        Collections.sort(paths, new Comparator<String>() {
+            public int compare(String o1, String o2) {
+                return depth(o2) - depth(o1);
+            }
+        });
+        SortedMap<String,String> result = new TreeMap<String,String>();
+        for (String path : paths) {
+            MessageDigest digest = getMessageDigest();
+            try {
+                for (Map.Entry<String,String> child : children.get(path).entrySet()) {
+                    digest.update(child.getKey().getBytes("UTF-8"));
+                    digest.update((byte) 0);
+                    digest.update(child.getValue().getBytes("UTF-8"));
+                    digest.update((byte) '\n');
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            String hash = toHex(digest.digest());
+            result.put(path, hash);
+            if (!"/".equals(path)) addChild(children, path, "D" + hash);
+        }
+        return result;
+    }
+
+    /**
+     * 在父目录下登记文件或子目录
+     * 
+     * @param value 类型和摘要。为 null 时只确保父目录存在
+     */
+    private static void addChild(Map<String,SortedMap<String,String>> children, String path, String value) {
+        String parent = getParent(path);
+        SortedMap<String,String> siblings = children.get(parent);
+        if (siblings == null) {
+            siblings = new TreeMap<String,String>();
+            children.put(parent, siblings);
+        }
+        if (value != null) siblings.put(path.substring(path.lastIndexOf('/') + 1), value);
+    }
+
+    private static int depth(String path) {
+        int depth = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') depth++;
+        }
+        return "/".equals(path) ? 0 : depth;
+    }
+
+    private static MessageDigest getMessageDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " 摘要算法不可用", e);
+        }
+    }
+
+    private static String getParent(String path) {
+        int index = path.lastIndexOf('/');
+        return index <= 0 ? "/" : path.substring(0, index);
+    }
+
+    private static void listFiles(File directory, String modulePath, SortedMap<String,long[]> result) {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            String path = modulePath + "/" + file.getName();
+            if (file.isDirectory()) {
+                listFiles(file, path, result);
+            } else {
+                result.put(path, new long[] { file.length(), file.lastModified() });
+            }
+        }
+    }
+
+    private static InputStream openStream(Module module, String path) throws IOException {
+        ModuleArchive archive = module.getArchive();
+        if (archive != null) return archive.openStream(path.substring(1));
+        return new FileInputStream(module.getRootDirectory() + path);
+    }
+
+    private static String toHex(byte[] data) {
+        StringBuilder sb = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,301 @@
+package com.onewaveinc.mrc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 模块完整性校验器。以模块的完整性清单校验模块文件，没有完整性清单的模块不校验。<br>
+ * 增量校验时，只重新计算大小或修改时间与上次校验通过时不同的文件的摘要，上次校验通过的文件状态保存在 MRC 根目录下；
+ * 完整校验时，重新计算所有文件的摘要。<br>
+ * 可以启动一个最低优先级的后台线程，在系统运行期间定期完整校验
+ */
+class ModuleIntegrityVerifier implements Runnable {
+
+    /**
+     * 上次校验通过的文件状态
+     */
+    private static class VerifiedFile {
+
+        String hash;
+
+        long lastModified;
+
+        long length;
+
+    }
+
+    private static final int MAGIC = 0x4d524956; // "MRIV"
+
+    private static final int VERSION = 1;
+
+    private static final Logger logger = Logger.getLogger(ModuleIntegrityVerifier.class.getName());
+
+    /**
+     * 键为模块根目录，值的键为模块路径
+     */
+    private Map<String,Map<String,VerifiedFile>> entries = new HashMap<String,Map<String,VerifiedFile>>();
+
+    private final File file;
+
+    private long interval;
+
+    private boolean modified;
+
+    private ModuleContext moduleContext;
+
+    private volatile Thread thread;
+
+    /**
+     * 校验过的模块。保存时只保存这些模块，已删除的模块由此被清除
+     */
+    private final Set<String> used = new HashSet<String>();
+
+    /**
+     * @param file 保存上次校验通过的文件状态的文件
+     */
+    ModuleIntegrityVerifier(File file) {
+        this.file = file;
+    }
+
+    public void run() {
+        while (thread == Thread.currentThread()) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                break;
+            }
+            List<Module> modules = new ArrayList<Module>();
+            for (Module module : moduleContext.getModules()) {
+                if (module.isEnabled()) modules.add(module);
+            }
+            long t = System.currentTimeMillis();
+            List<String> failures = verify(modules, true);
+            for (String failure : failures) {
+                logger.severe("模块完整性校验失败：" + failure);
+            }
+            logger.fine(String.format("后台完整性校验完成，模块数：%d，耗时：%d ms，失败数：%d", modules.size(), System.currentTimeMillis() - t,
+                    failures.size()));
+        }
+    }
+
+    /**
+     * 载入上次校验通过的文件状态。文件不存在或损坏时忽略
+     */
+    synchronized void load() {
+        if (!file.isFile()) return;
+        Map<String,Map<String,VerifiedFile>> loaded = new HashMap<String,Map<String,VerifiedFile>>();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    logger.info("完整性校验状态版本不符，忽略文件：" + file.getAbsolutePath());
+                    return;
+                }
+                int moduleCount = in.readInt();
+                for (int i = 0; i < moduleCount; i++) {
+                    String rootDirectory = in.readUTF();
+                    int fileCount = in.readInt();
+                    Map<String,VerifiedFile> files = new HashMap<String,VerifiedFile>(fileCount * 2);
+                    for (int j = 0; j < fileCount; j++) {
+                        String path = in.readUTF();
+                        VerifiedFile verified = new VerifiedFile();
+                        verified.length = in.readLong();
+                        verified.lastModified = in.readLong();
+                        verified.hash = in.readUTF();
+                        files.put(path, verified);
+                    }
+                    loaded.put(rootDirectory, files);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "读取完整性校验状态文件 " + file.getAbsolutePath() + " 时出错，全部重新校验", e);
+            return;
+        }
+        entries = loaded;
+    }
+
+    /**
+     * 启动后台完整校验线程
+     * 
+     * @param moduleContext MRC，每次校验已启用的模块
+     * @param interval 校验间隔，单位毫秒
+     */
+    synchronized void start(ModuleContext moduleContext, long interval) {
+        if (thread != null) return;
+        this.moduleContext = moduleContext;
+        this.interval = interval;
+        thread = new Thread(this, "mrc-integrity");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        logger.info("后台完整性校验已启动，校验间隔：" + interval + " ms");
+    }
+
+    /**
+     * 停止后台完整校验线程
+     */
+    synchronized void stop() {
+        if (thread == null) return;
+        thread.interrupt();
+        thread = null;
+    }
+
+    /**
+     * 保存校验通过的文件状态。未发生变化时不保存
+     */
+    synchronized void store() {
+        if (!modified && used.containsAll(entries.keySet())) return;
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                Map<String,Map<String,VerifiedFile>> entriesToStore = new HashMap<String,Map<String,VerifiedFile>>();
+                for (String rootDirectory : used) {
+                    Map<String,VerifiedFile> files = entries.get(rootDirectory);
+                    if (files != null) entriesToStore.put(rootDirectory, files);
+                }
+                out.writeInt(entriesToStore.size());
+                for (Map.Entry<String,Map<String,VerifiedFile>> e : entriesToStore.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeInt(e.getValue().size());
+                    for (Map.Entry<String,VerifiedFile> f : e.getValue().entrySet()) {
+                        VerifiedFile verified = f.getValue();
+                        out.writeUTF(f.getKey());
+                        out.writeLong(verified.length);
+                        out.writeLong(verified.lastModified);
+                        out.writeUTF(verified.hash);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            // 写完后再替换状态文件，中途退出时上次的状态仍然完整
+            if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+                throw new IOException("无法将临时文件 " + tempFile.getName() + " 改名");
+            }
+            modified = false;
+        } catch (IOException e) {
+            if (tempFile != null) tempFile.delete();
+            logger.log(Level.WARNING, "保存完整性校验状态文件 " + file.getAbsolutePath() + " 时出错", e);
+        }
+    }
+
+    /**
+     * 校验模块
+     * 
+     * @param modules 模块
+     * @param full 是否完整校验。为 false 时，大小和修改时间与上次校验通过时相同的文件不重新计算摘要
+     * @return 校验失败的原因，指明模块和文件。全部通过时，返回空列表
+     */
+    List<String> verify(List<Module> modules, boolean full) {
+        List<String> failures = new ArrayList<String>();
+        for (Module module : modules) {
+            // 后台线程停止时放弃剩余的模块
+            if (Thread.currentThread().isInterrupted()) break;
+            verify(module, full, failures);
+        }
+        return failures;
+    }
+
+    private void verify(Module module, boolean full, List<String> failures) {
+        ModuleIntegrityManifest manifest;
+        try {
+            manifest = ModuleIntegrityManifest.read(module);
+        } catch (IOException e) {
+            failures.add(String.format("模块 %s 的完整性清单 %s 无法读取：%s", module, ModuleIntegrityManifest.MANIFEST_FILE, e.getMessage()));
+            return;
+        }
+        if (manifest == null) return;
+        String directory = manifest.verifyTree();
+        if (directory != null) {
+            failures.add(String.format("模块 %s 的完整性清单中目录 %s 的摘要与其内容不符，清单已被修改", module, directory));
+            return;
+        }
+
+        String rootDirectory = module.getRootDirectory();
+        Map<String,VerifiedFile> verifiedFiles;
+        synchronized (this) {
+            used.add(rootDirectory);
+            verifiedFiles = entries.get(rootDirectory);
+        }
+        Map<String,VerifiedFile> result = new HashMap<String,VerifiedFile>();
+        boolean passed = true;
+        boolean rehashed = false;
+        SortedMap<String,long[]> files = ModuleIntegrityManifest.listFiles(module);
+        for (Map.Entry<String,ModuleIntegrityManifest.FileEntry> e : manifest.getFiles().entrySet()) {
+            String path = e.getKey();
+            ModuleIntegrityManifest.FileEntry expected = e.getValue();
+            long[] state = files.get(path);
+            if (state == null) {
+                failures.add(String.format("模块 %s 的文件 %s 缺失", module, path));
+                passed = false;
+                continue;
+            }
+            if (state[0] != expected.size) {
+                failures.add(String.format("模块 %s 的文件 %s 的大小为 %d，完整性清单记录的大小为 %d", module, path, state[0], expected.size));
+                passed = false;
+                continue;
+            }
+
+            VerifiedFile verified = verifiedFiles == null ? null : verifiedFiles.get(path);
+            if (full || verified == null || verified.length != state[0] || verified.lastModified != state[1] || !verified.hash.equals(expected.hash)) {
+                String hash;
+                try {
+                    hash = ModuleIntegrityManifest.hash(module, path);
+                } catch (IOException ex) {
+                    failures.add(String.format("模块 %s 的文件 %s 无法读取：%s", module, path, ex.getMessage()));
+                    passed = false;
+                    continue;
+                }
+                if (!hash.equals(expected.hash)) {
+                    failures.add(String.format("模块 %s 的文件 %s 的内容与完整性清单不符", module, path));
+                    passed = false;
+                    continue;
+                }
+                rehashed = true;
+                verified = new VerifiedFile();
+                verified.length = state[0];
+                verified.lastModified = state[1];
+                verified.hash = hash;
+            }
+            result.put(path, verified);
+        }
+        for (String path : files.keySet()) {
+            if (!manifest.getFiles().containsKey(path)) {
+                failures.add(String.format("模块 %s 的文件 %s 未登记在完整性清单中", module, path));
+                passed = false;
+            }
+        }
+
+        // 只记录全部通过的模块，有失败的模块下次重新校验所有文件
+        synchronized (this) {
+            if (passed) {
+                modified |= rehashed || verifiedFiles == null || verifiedFiles.size() != result.size();
+                entries.put(rootDirectory, result);
+            } else {
+                modified |= entries.remove(rootDirectory) != null;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+package com.onewaveinc.mrc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * 模块生命周期调度器。在 prepare / resolve / start 阶段并行通知相互之间没有依赖关系的模块。<br>
+ * 启动级别不同的模块之间有屏障：低启动级别的模块全部完成后，才开始通知高启动级别的模块。
+ * 同一启动级别中，模块在其依赖（包括可选依赖）的模块完成后才开始；只考虑按顺序执行时排在前面的依赖，
+ * 因此依赖关系不会成环，执行顺序与按顺序执行时一致。<br>
+ * 一个模块失败后，不再开始新的模块，等待正在执行的模块完成后抛出第一个失败
+ */
+class ModuleLifecycleScheduler {
+
+    private static final Logger logger = Logger.getLogger(ModuleLifecycleScheduler.class.getName());
+
+    private final int threads;
+
+    /**
+     * @param threads 最大并行数
+     */
+    ModuleLifecycleScheduler(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * 执行一个阶段
+     * 
+     * @param phase 阶段名，用于线程名和日志
+     * @param modules 需要通知的模块，按启动顺序排列
+     * @param dependencies 模块直接依赖的模块
+     * @param visitor 通知一个模块的访问者
+     * @throws Exception 第一个失败的模块抛出的异常
+     */
+    void execute(String phase, List<Module> modules, Map<Module,List<Module>> dependencies, ModuleVisitor visitor) throws Exception {
+        if (modules.isEmpty()) return;
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, modules.size()), new DaemonThreadFactory("mrc-" + phase + "-"));
+        try {
+            int from = 0;
+            while (from < modules.size()) {
+                int startLevel = modules.get(from).getStartLevel();
+                int to = from;
+                while (to < modules.size() && modules.get(to).getStartLevel() == startLevel) {
+                    to++;
+                }
+                executeLevel(executor, phase, modules.subList(from, to), dependencies, visitor);
+                from = to;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 执行同一启动级别的模块
+     */
+    private void executeLevel(ExecutorService executor, String phase, List<Module> modules, Map<Module,List<Module>> dependencies,
+            final ModuleVisitor visitor) throws Exception {
+        // 1. 建立同一启动级别中的依赖关系，只保留排在前面的依赖
+        Map<Module,Integer> positions = new HashMap<Module,Integer>();
+        for (int i = 0; i < modules.size(); i++) {
+            positions.put(modules.get(i), i);
+        }
+        int[] pending = new int[modules.size()];
+        List<List<Module>> dependents = new ArrayList<List<Module>>();
+        for (int i = 0; i < modules.size(); i++) {
+            dependents.add(new ArrayList<Module>());
+        }
+        for (int i = 0; i < modules.size(); i++) {
+            List<Module> required = dependencies.get(modules.get(i));
+            if (required == null) continue;
+            for (Module dependency : required) {
+                Integer position = positions.get(dependency);
+                if (position != null && position < i) {
+                    pending[i]++;
+                    dependents.get(position).add(modules.get(i));
+                }
+            }
+        }
+
+        // 2. 提交没有未完成依赖的模块，每完成一个模块，提交依赖已全部完成的模块
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        CompletionService<Module> completionService = new ExecutorCompletionService<Module>(executor);
+        int running = 0;
+        int completed = 0;
+        int failed = 0;
+        for (int i = 0; i < modules.size(); i++) {
+            if (pending[i] == 0) {
+                submit(completionService, modules.get(i), visitor, contextClassLoader);
+                running++;
+            }
+        }
+
+        Throwable failure = null;
+        while (running > 0) {
+            Module module;
+            try {
+                module = completionService.take().get();
+            } catch (ExecutionException e) {
+                if (failure == null) failure = e.getCause();
+                running--;
+                failed++;
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待模块完成时被中断", e);
+            }
+            running--;
+            completed++;
+            if (failure != null) continue;
+
+            for (Module dependent : dependents.get(positions.get(module))) {
+                int position = positions.get(dependent);
+                if (--pending[position] == 0) {
+                    submit(completionService, dependent, visitor, contextClassLoader);
+                    running++;
+                }
+            }
+        }
+
+        // 3. 抛出第一个失败
+        if (failure != null) {
+            logger.warning(String.format("%s 阶段失败，已完成模块数：%d，取消模块数：%d", phase, completed, modules.size() - completed - failed));
+            if (failure instanceof Exception) throw (Exception) failure;
+            if (failure instanceof Error) throw (Error) failure;
+            throw new ModuleException(failure.getMessage(), failure);
+        }
+    }
+
+    private static void submit(CompletionService<Module> completionService, final Module module, final ModuleVisitor visitor,
+            final ClassLoader contextClassLoader) {
+        completionService.submit(new Callable<Module>() {
+            public Module call() throws Exception {
+                // 工作线程的上下文类装载器与调用线程一致
+                Thread thread = Thread.currentThread();
+                ClassLoader original = thread.getContextClassLoader();
+                thread.setContextClassLoader(contextClassLoader);
+                try {
+                    visitor.visit(module);
+                } finally {
+                    thread.setContextClassLoader(original);
+                }
+                return module;
+            }
+        });
+    }
+
+}
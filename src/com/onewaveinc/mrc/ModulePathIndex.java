@@ -0,0 +1,192 @@
+package com.onewaveinc.mrc;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 模块路径索引。以路径前缀树记录模块根目录、扩展模块根目录以及类路径项到模块的映射，
+ * 查找资源所在的模块时只需按路径逐段匹配最长前缀，不需要打开 URL 连接或进行文件和 URI 的转换
+ */
+class ModulePathIndex {
+
+    /**
+     * 前缀树节点。子节点按路径段名排序
+     */
+    private static class Node {
+
+        Node[] children = NO_CHILDREN;
+
+        Module module;
+
+        String[] names = NO_NAMES;
+
+        /**
+         * 查找子节点
+         * 
+         * @return 子节点的位置。不存在时，返回 -(插入位置 + 1)
+         */
+        int find(String path, int start, int end) {
+            int low = 0;
+            int high = names.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int c = compare(names[mid], path, start, end);
+                if (c < 0) {
+                    low = mid + 1;
+                } else if (c > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+
+        Node getOrCreate(String path, int start, int end) {
+            int index = find(path, start, end);
+            if (index >= 0) return children[index];
+
+            index = -(index + 1);
+            String[] newNames = new String[names.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(names, 0, newNames, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(names, index, newNames, index + 1, names.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+            Node child = new Node();
+            newNames[index] = path.substring(start, end);
+            newChildren[index] = child;
+            names = newNames;
+            children = newChildren;
+            return child;
+        }
+
+    }
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private static final String[] NO_NAMES = new String[0];
+
+    private static final Logger logger = Logger.getLogger(ModulePathIndex.class.getName());
+
+    private final Node root = new Node();
+
+    /**
+     * 根据模块注册表建立索引。索引包含已启用的基本模块，扩展模块的根目录和类路径项映射到被扩展的基本模块
+     * 
+     * @param registry 模块注册表
+     */
+    ModulePathIndex(ModuleRegistry registry) {
+        for (Module module : registry.getBaseModules()) {
+            add(module, module);
+            List<Module> extensions = registry.getExtensionChain(module.getId());
+            if (extensions != null) {
+                for (Module extension : extensions) {
+                    add(extension, module);
+                }
+            }
+        }
+    }
+
+    /**
+     * 查找 URL 对应的资源所在的模块
+     * 
+     * @param url 资源的 URL，支持 file、jar 以及 mod 协议
+     * @return 模块。不属于任何模块时，返回 null
+     */
+    Module find(URL url) {
+        String protocol = url.getProtocol();
+        String path = url.getPath();
+        int start = 0;
+        int end = path.length();
+        if ("jar".equals(protocol) || ModuleArchive.PROTOCOL.equals(protocol)) {
+            // jar:file:/path/to/a.jar!/entry、mod:file:/path/to/x.mod!/entry，只取最外层文件的路径
+            if (!path.startsWith("file:")) return null;
+            start = 5;
+            int index = path.indexOf(ModuleArchive.SEPARATOR, start);
+            if (index != -1) end = index;
+        } else if (!"file".equals(protocol)) {
+            return null;
+        }
+
+        Node node = root;
+        Module module = null;
+        while (start < end) {
+            int next = path.indexOf('/', start);
+            if (next == -1 || next > end) next = end;
+            if (next > start) {
+                int index = node.find(path, start, next);
+                if (index < 0) break;
+                node = node.children[index];
+                if (node.module != null) module = node.module;
+            }
+            start = next + 1;
+        }
+        return module;
+    }
+
+    private void add(Module module, Module owner) {
+        insert(new File(module.getRootDirectory()), owner);
+        if (module.getClassPath() == null) return;
+        for (String path : module.getClassPath()) {
+            try {
+                insert(ModuleArchive.toClassPathURL(path), owner);
+            } catch (MalformedURLException e) {
+                logger.log(Level.FINE, "类路径项无法建立索引：" + path, e);
+            }
+        }
+    }
+
+    private void insert(File file, Module owner) {
+        try {
+            insert(file.toURI().toURL(), owner);
+        } catch (MalformedURLException e) {
+            logger.log(Level.FINE, "模块目录无法建立索引：" + file, e);
+        }
+    }
+
+    private void insert(URL url, Module owner) {
+        String path = url.getPath();
+        int start = 0;
+        int end = path.length();
+        if (ModuleArchive.PROTOCOL.equals(url.getProtocol())) {
+            if (!path.startsWith("file:")) return;
+            start = 5;
+            int index = path.indexOf(ModuleArchive.SEPARATOR, start);
+            // 挂载的安装包中的目录和 jar 文件都属于安装包
+            if (index != -1) end = index;
+        } else if (!"file".equals(url.getProtocol())) {
+            return;
+        }
+
+        Node node = root;
+        while (start < end) {
+            int next = path.indexOf('/', start);
+            if (next == -1 || next > end) next = end;
+            if (next > start) {
+                node = node.getOrCreate(path, start, next);
+            }
+            start = next + 1;
+        }
+        // 同一路径属于多个模块时，以先登记的为准
+        if (node != root && node.module == null) node.module = owner;
+    }
+
+    /**
+     * 比较路径段名与路径中的一段，不产生新的字符串
+     */
+    private static int compare(String name, String path, int start, int end) {
+        int length = end - start;
+        int n = Math.min(name.length(), length);
+        for (int i = 0; i < n; i++) {
+            int c = name.charAt(i) - path.charAt(start + i);
+            if (c != 0) return c;
+        }
+        return name.length() - length;
+    }
+
+}
@@ -0,0 +1,335 @@
+package com.onewaveinc.mrc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 模块注册表。注册表是不可变的快照，模块的安装、排序、启用或停用都生成一个新的快照，
+ * 由 MRC 通过 volatile 引用发布，读取时不需要加锁。<br>
+ * 快照中建立了按模块 ID、按模块 ID 和版本、按被扩展模块 ID 的索引，查找结果与按安装顺序逐个查找一致。
+ * 所有模块的扩展链也在建立快照时一次算出
+ */
+class ModuleRegistry {
+
+    /**
+     * 注册表构造器。批量安装、启用或停用模块时，修改先记录在构造器中，结束时只建立一次新的快照
+     */
+    static class Builder {
+
+        private boolean changed;
+
+        private final List<Module> modules;
+
+        /**
+         * @param registry 作为起点的注册表
+         */
+        Builder(ModuleRegistry registry) {
+            this.modules = new ArrayList<Module>(registry.modules);
+        }
+
+        /**
+         * 在模块列表末尾添加模块
+         * 
+         * @param module 模块
+         */
+        void add(Module module) {
+            modules.add(module);
+            changed = true;
+        }
+
+        /**
+         * 记录有模块启用或停用，建立快照时重新建立索引
+         */
+        void refresh() {
+            changed = true;
+        }
+
+        /**
+         * @return 是否有需要发布的修改
+         */
+        boolean isChanged() {
+            return changed;
+        }
+
+        /**
+         * 建立新的注册表
+         * 
+         * @return 新的注册表
+         */
+        ModuleRegistry build() {
+            return new ModuleRegistry(modules);
+        }
+
+    }
+
+    /**
+     * 空的注册表
+     */
+    static final ModuleRegistry EMPTY = new ModuleRegistry(Collections.<Module>emptyList());
+
+    /**
+     * 已启用的基本模块，按模块顺序排列
+     */
+    private final List<Module> baseModules;
+
+    /**
+     * 构成循环的扩展链，如 a -> b -> a。没有循环时为 null
+     */
+    private String extensionCycle;
+
+    /**
+     * 扩展链，键为模块 ID，值为扩展该模块的模块，最远的扩展模块在前、直接扩展模块在后。没有扩展模块的模块不在其中
+     */
+    private final Map<String,List<Module>> extensionChains = new HashMap<String,List<Module>>();
+
+    /**
+     * 已启用的模块，键为模块 ID。同一 ID 有多个已启用的模块时，为排在最前面的一个
+     */
+    private final Map<String,Module> enabledModules;
+
+    /**
+     * 已启用的扩展模块，键为被扩展模块 ID。同一模块有多个已启用的扩展模块时，为排在最前面的一个
+     */
+    private final Map<String,Module> extensionModules;
+
+    private final List<Module> modules;
+
+    /**
+     * 模块路径索引，第一次使用时建立，随快照一起被替换
+     */
+    private volatile ModulePathIndex pathIndex;
+
+    /**
+     * 所有模块，键为模块 ID 和版本
+     */
+    private final Map<String,Module> versionedModules;
+
+    /**
+     * @param modules 模块列表，按模块顺序排列
+     */
+    private ModuleRegistry(List<Module> modules) {
+        this.modules = Collections.unmodifiableList(new ArrayList<Module>(modules));
+        List<Module> baseModules = new ArrayList<Module>();
+        Map<String,Module> enabledModules = new HashMap<String,Module>();
+        Map<String,Module> extensionModules = new HashMap<String,Module>();
+        Map<String,Module> versionedModules = new HashMap<String,Module>();
+        for (Module module : modules) {
+            String key = module.getId() + '/' + module.getVersion();
+            if (!versionedModules.containsKey(key)) versionedModules.put(key, module);
+            if (!module.isEnabled()) continue;
+            if (!enabledModules.containsKey(module.getId())) enabledModules.put(module.getId(), module);
+            if (module.getExtend() == null) {
+                baseModules.add(module);
+            } else if (!extensionModules.containsKey(module.getExtend())) {
+                extensionModules.put(module.getExtend(), module);
+            }
+        }
+        this.baseModules = Collections.unmodifiableList(baseModules);
+        this.enabledModules = enabledModules;
+        this.extensionModules = extensionModules;
+        this.versionedModules = versionedModules;
+
+        Set<String> resolved = new HashSet<String>();
+        for (String id : enabledModules.keySet()) {
+            resolveExtensionChain(id, resolved);
+        }
+    }
+
+    /**
+     * 获取扩展链中的循环
+     * 
+     * @return 循环的描述，如 a -> b -> a。没有循环时，返回 null
+     */
+    String getExtensionCycle() {
+        return extensionCycle;
+    }
+
+    /**
+     * 获取扩展指定模块的所有已启用的扩展模块
+     * 
+     * @param id 被扩展模块 ID
+     * @return 不可修改的扩展模块列表，最远的扩展模块在前、直接扩展模块在后。没有扩展模块或扩展链存在循环时，返回 null
+     */
+    List<Module> getExtensionChain(String id) {
+        return extensionChains.get(id);
+    }
+
+    /**
+     * 获取已启用的基本模块
+     * 
+     * @return 模块列表，按模块顺序排列
+     */
+    List<Module> getBaseModules() {
+        return baseModules;
+    }
+
+    /**
+     * 获取模块路径索引
+     * 
+     * @return 模块路径索引
+     */
+    ModulePathIndex getPathIndex() {
+        ModulePathIndex index = pathIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = pathIndex;
+                if (index == null) pathIndex = index = new ModulePathIndex(this);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * 根据模块 ID 获取一个已启用的模块
+     * 
+     * @param id 模块 ID
+     * @return 模块。不存在时，返回 null
+     */
+    Module getModule(String id) {
+        return enabledModules.get(id);
+    }
+
+    /**
+     * 根据模块 ID 和版本获取一个模块，不论是否启用
+     * 
+     * @param id 模块 ID
+     * @param version 模块版本
+     * @return 模块。不存在时，返回 null
+     */
+    Module getModule(String id, Version version) {
+        return versionedModules.get(id + '/' + version);
+    }
+
+    /**
+     * 获取所有模块
+     * 
+     * @return 不可修改的模块列表，按模块顺序排列
+     */
+    List<Module> getModules() {
+        return modules;
+    }
+
+    /**
+     * 重新建立索引。模块启用或停用后调用
+     * 
+     * @return 新的注册表
+     */
+    ModuleRegistry refresh() {
+        return new ModuleRegistry(modules);
+    }
+
+    /**
+     * 替换模块。被替换的模块不存在时，在模块列表末尾添加模块
+     * 
+     * @param oldModule 被替换的模块，可以为 null
+     * @param newModule 新模块
+     * @return 新的注册表
+     */
+    ModuleRegistry replace(Module oldModule, Module newModule) {
+        List<Module> newModules = new ArrayList<Module>(modules);
+        int index = -1;
+        for (int i = 0; i < newModules.size(); i++) {
+            // 模块的 equals 只比较 ID 和版本，这里按实例查找
+            if (newModules.get(i) == oldModule) index = i;
+        }
+        if (index == -1) {
+            newModules.add(newModule);
+        } else {
+            newModules.set(index, newModule);
+        }
+        return new ModuleRegistry(newModules);
+    }
+
+    /**
+     * 排序模块
+     * 
+     * @param comparator 比较器
+     * @return 新的注册表
+     */
+    ModuleRegistry sort(Comparator<Module> comparator) {
+        List<Module> sorted = new ArrayList<Module>(modules);
+        Collections.sort(sorted, comparator);
+        return new ModuleRegistry(sorted);
+    }
+
+    /**
+     * 在模块列表末尾添加模块
+     * 
+     * @param module 模块
+     * @return 新的注册表
+     */
+    ModuleRegistry with(Module module) {
+        List<Module> newModules = new ArrayList<Module>(modules);
+        newModules.add(module);
+        return new ModuleRegistry(newModules);
+    }
+
+    /**
+     * 在模块列表末尾添加多个模块
+     * 
+     * @param modules 模块，按模块顺序排列
+     * @return 新的注册表
+     */
+    ModuleRegistry with(List<Module> modules) {
+        List<Module> newModules = new ArrayList<Module>(this.modules);
+        newModules.addAll(modules);
+        return new ModuleRegistry(newModules);
+    }
+
+    /**
+     * 计算一个模块的扩展链。沿扩展关系走到已计算过的模块或没有扩展模块的模块，再反向逐个生成扩展链，
+     * 每个模块只计算一次，所有模块的扩展链总计算量与模块数成正比
+     * 
+     * @param id 模块 ID
+     * @param resolved 已计算过的模块 ID
+     */
+    private void resolveExtensionChain(String id, Set<String> resolved) {
+        LinkedHashSet<String> path = new LinkedHashSet<String>();
+        String current = id;
+        while (!resolved.contains(current)) {
+            Module extension = extensionModules.get(current);
+            if (extension == null) break;
+            if (!path.add(current)) {
+                // 扩展关系回到了路径上的模块，路径上的模块都不生成扩展链
+                if (extensionCycle == null) {
+                    StringBuilder builder = new StringBuilder();
+                    boolean inCycle = false;
+                    for (String p : path) {
+                        if (p.equals(current)) inCycle = true;
+                        if (inCycle) builder.append(p).append(" -> ");
+                    }
+                    extensionCycle = builder.append(current).toString();
+                }
+                resolved.addAll(path);
+                return;
+            }
+            current = extension.getId();
+        }
+
+        List<String> ids = new ArrayList<String>(path);
+        for (int i = ids.size() - 1; i >= 0; i--) {
+            Module extension = extensionModules.get(ids.get(i));
+            List<Module> chain = new ArrayList<Module>();
+            List<Module> extensionChain = extensionChains.get(extension.getId());
+            if (extensionChain != null) {
+                chain.addAll(extensionChain);
+            } else if (resolved.contains(extension.getId()) && extensionModules.containsKey(extension.getId())) {
+                // 扩展模块处于循环中
+                resolved.addAll(ids.subList(0, i + 1));
+                return;
+            }
+            chain.add(extension);
+            extensionChains.put(ids.get(i), Collections.unmodifiableList(chain));
+            resolved.add(ids.get(i));
+        }
+        resolved.add(id);
+    }
+
+}
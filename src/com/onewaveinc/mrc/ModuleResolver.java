@@ -0,0 +1,529 @@
+package com.onewaveinc.mrc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 模块版本解析器。从所有已安装的候选模块中，为每个模块 ID 选择一个模块，使选中模块的 module.require 和
+ * module.require.optional 声明的版本范围都得到满足（可选依赖的模块不存在时不作要求）。<br>
+ * 每个模块 ID 的候选模块按级别从高到低、版本从高到低排列，总是优先选择靠前的候选模块，所有首选模块相容时结果与逐个选择首选模块相同。<br>
+ * 求解为带约束传播的回溯搜索：选定一个模块后立即以其依赖的版本范围缩小被依赖模块的候选集合，候选集合为空时回溯；
+ * 互不依赖的模块 ID 分组分别搜索；每次优先为候选最少的模块 ID 作选择，已证明无解的候选状态被记住（以增量维护的状态散列查找），不再重复搜索。
+ * 版本范围匹配的候选集合由候选目录按模块 ID 和版本范围建立索引并缓存。<br>
+ * 无解时，以搜索到最深处的冲突说明原因：哪个模块 ID 的候选版本被哪些模块的哪些版本范围全部排除
+ */
+class ModuleResolver {
+
+    /**
+     * 候选目录。按模块 ID 索引候选模块，并按模块 ID 缓存每个版本范围匹配的候选集合
+     */
+    private static class Catalog {
+
+        private final Map<String,List<Module>> candidates;
+
+        /**
+         * 键为模块 ID，值为版本范围和匹配的候选集合。同一模块 ID 上不同的版本范围通常很少，顺序比较即可
+         */
+        private final Map<String,List<Object[]>> matches = new HashMap<String,List<Object[]>>();
+
+        Catalog(Map<String,List<Module>> candidates) {
+            this.candidates = candidates;
+        }
+
+        /**
+         * 获取模块 ID 的候选模块中版本在范围内的模块
+         * 
+         * @return 候选模块的序号集合，不可修改。模块 ID 不存在时，返回 null
+         */
+        BitSet match(String id, VersionRange range) {
+            List<Module> modules = candidates.get(id);
+            if (modules == null) return null;
+            List<Object[]> ranges = matches.get(id);
+            if (ranges == null) {
+                ranges = new ArrayList<Object[]>(1);
+                matches.put(id, ranges);
+            }
+            for (Object[] match : ranges) {
+                if (equals((VersionRange) match[0], range)) return (BitSet) match[1];
+            }
+            BitSet result = new BitSet(modules.size());
+            for (int i = 0; i < modules.size(); i++) {
+                if (range.contains(modules.get(i).getVersion())) result.set(i);
+            }
+            ranges.add(new Object[] { range, result });
+            return result;
+        }
+
+        private static boolean equals(Version v1, Version v2) {
+            return v1 == null ? v2 == null : v1.equals(v2);
+        }
+
+        private static boolean equals(VersionRange r1, VersionRange r2) {
+            return r1 == r2 || (r1.isMinExclusive() == r2.isMinExclusive() && r1.isMaxExclusive() == r2.isMaxExclusive()
+                    && equals(r1.getMin(), r2.getMin()) && equals(r1.getMax(), r2.getMax()));
+        }
+
+    }
+
+    /**
+     * 候选模块对被依赖模块 ID 的约束
+     */
+    private static class Constraint {
+
+        final BitSet allowed;
+
+        final RequireEntry entry;
+
+        final Module source;
+
+        final int target;
+
+        Constraint(Module source, RequireEntry entry, int target, BitSet allowed) {
+            this.source = source;
+            this.entry = entry;
+            this.target = target;
+            this.allowed = allowed;
+        }
+
+    }
+
+    /**
+     * 默认的搜索步数上限
+     */
+    private static final int MAX_STEPS = 100000;
+
+    /**
+     * 候选模块按级别从高到低、版本从高到低排列
+     */
+    static final Comparator<Module> PREFERENCE_ORDER = new Comparator<Module>() {
+        public int compare(Module o1, Module o2) {
+            int c = o2.getLevel() - o1.getLevel();
+            return c != 0 ? c : o2.getVersion().compareTo(o1.getVersion());
+        }
+    };
+
+    /**
+     * 每个模块 ID 的选择，-1 表示尚未选择
+     */
+    private final int[] assigned;
+
+    /**
+     * 每个模块 ID 的候选模块
+     */
+    private final List<List<Module>> candidates;
+
+    /**
+     * 每个候选模块的约束，下标为模块 ID 序号和候选模块序号
+     */
+    private final Constraint[][][] constraints;
+
+    /**
+     * 每个模块 ID 当前的候选集合
+     */
+    private final BitSet[] domains;
+
+    /**
+     * 已证明无解的候选状态，键为状态散列
+     */
+    private final Map<Long,List<List<BitSet>>> failed = new HashMap<Long,List<List<BitSet>>>();
+
+    /**
+     * 当前候选状态的散列，随候选集合和选择的修改增量更新
+     */
+    private long hash;
+
+    private final String[] ids;
+
+    /**
+     * 指向每个模块 ID 的约束，用于说明冲突
+     */
+    private final List<List<Constraint>> incoming;
+
+    /**
+     * 当前搜索的一组有多个候选模块的模块 ID
+     */
+    private int[] open;
+
+    /**
+     * 需要搜索且尚未选定的模块 ID，按候选数和序号排列。值为候选数左移 32 位加模块 ID 序号
+     */
+    private final TreeSet<Long> queue = new TreeSet<Long>();
+
+    /**
+     * 搜索步数上限，超过时放弃求解
+     */
+    private final int maxSteps;
+
+    private final boolean[] searchable;
+
+    private int steps;
+
+    /**
+     * 候选集合的修改记录，回溯时恢复
+     */
+    private final List<Object[]> trail = new ArrayList<Object[]>();
+
+    private String conflict;
+
+    private int conflictDepth = -1;
+
+    /**
+     * @param candidates 键为模块 ID，值为该 ID 的所有候选模块
+     */
+    ModuleResolver(Map<String,List<Module>> candidates) {
+        this(candidates, MAX_STEPS);
+    }
+
+    /**
+     * @param candidates 键为模块 ID，值为该 ID 的所有候选模块
+     * @param maxSteps 搜索步数上限
+     */
+    ModuleResolver(Map<String,List<Module>> candidates, int maxSteps) {
+        this.maxSteps = maxSteps;
+        int n = candidates.size();
+        ids = candidates.keySet().toArray(new String[n]);
+        Arrays.sort(ids);
+        this.candidates = new ArrayList<List<Module>>(n);
+        Map<String,List<Module>> sorted = new HashMap<String,List<Module>>();
+        Map<String,Integer> index = new HashMap<String,Integer>();
+        for (int i = 0; i < n; i++) {
+            List<Module> modules = new ArrayList<Module>(candidates.get(ids[i]));
+            Collections.sort(modules, PREFERENCE_ORDER);
+            this.candidates.add(modules);
+            sorted.put(ids[i], modules);
+            index.put(ids[i], i);
+        }
+
+        Catalog catalog = new Catalog(sorted);
+        assigned = new int[n];
+        Arrays.fill(assigned, -1);
+        constraints = new Constraint[n][][];
+        domains = new BitSet[n];
+        incoming = new ArrayList<List<Constraint>>(n);
+        searchable = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            incoming.add(new ArrayList<Constraint>());
+        }
+        for (int i = 0; i < n; i++) {
+            List<Module> modules = this.candidates.get(i);
+            constraints[i] = new Constraint[modules.size()][];
+            domains[i] = new BitSet(modules.size());
+            for (int j = 0; j < modules.size(); j++) {
+                Module module = modules.get(j);
+                List<Constraint> list = new ArrayList<Constraint>();
+                boolean satisfiable = addConstraints(catalog, index, module, module.getRequire(), false, list);
+                // 可选依赖的模块不存在时不作要求
+                satisfiable &= addConstraints(catalog, index, module, module.getRequireOptional(), true, list);
+                constraints[i][j] = list.toArray(new Constraint[list.size()]);
+                if (satisfiable) domains[i].set(j);
+                for (Constraint constraint : list) {
+                    incoming.get(constraint.target).add(constraint);
+                }
+            }
+            hash ^= mix(i, domains[i].hashCode());
+        }
+    }
+
+    /**
+     * 求解
+     * 
+     * @return 键为模块 ID，值为选中的模块
+     * @throws UnsatisfiedDependencyException 无解时，说明冲突的原因
+     */
+    Map<String,Module> resolve() throws UnsatisfiedDependencyException {
+        // 只有一个可选候选模块的模块 ID 直接选定，其余的参与搜索
+        List<Integer> toSearch = new ArrayList<Integer>();
+        for (int i = 0; i < ids.length; i++) {
+            if (domains[i].isEmpty()) throw new UnsatisfiedDependencyException(explainUnsatisfiable(i));
+            if (domains[i].cardinality() > 1) toSearch.add(i);
+        }
+        for (int i = 0; i < ids.length; i++) {
+            if (assigned[i] == -1 && domains[i].cardinality() == 1 && !assign(i, domains[i].nextSetBit(0), 0)) {
+                throw new UnsatisfiedDependencyException(conflict);
+            }
+        }
+        for (int[] component : getComponents(toSearch)) {
+            open = component;
+            failed.clear();
+            for (int id : open) {
+                searchable[id] = true;
+                if (assigned[id] == -1) queue.add(getQueueKey(id));
+            }
+            if (!search(1)) {
+                if (steps > maxSteps) {
+                    throw new UnsatisfiedDependencyException("模块版本解析超过 " + maxSteps + " 步，放弃求解。最近的冲突：" + conflict);
+                }
+                throw new UnsatisfiedDependencyException(conflict);
+            }
+        }
+
+        Map<String,Module> result = new LinkedHashMap<String,Module>();
+        for (int i = 0; i < ids.length; i++) {
+            result.put(ids[i], candidates.get(i).get(assigned[i]));
+        }
+        return result;
+    }
+
+    private boolean addConstraints(Catalog catalog, Map<String,Integer> index, Module module, List<RequireEntry> require, boolean optional,
+            List<Constraint> result) {
+        if (require == null) return true;
+        boolean satisfiable = true;
+        for (RequireEntry entry : require) {
+            BitSet allowed = catalog.match(entry.getId(), entry.getVersionRange());
+            if (allowed == null) {
+                if (!optional) satisfiable = false;
+                continue;
+            }
+            if (allowed.isEmpty()) satisfiable = false;
+            result.add(new Constraint(module, entry, index.get(entry.getId()), allowed));
+        }
+        return satisfiable;
+    }
+
+    /**
+     * 选定候选模块，并以其约束缩小被依赖模块 ID 的候选集合
+     * 
+     * @return 是否没有冲突
+     */
+    private boolean assign(int id, int candidate, int depth) {
+        setAssigned(id, candidate);
+        BitSet selected = new BitSet();
+        selected.set(candidate);
+        narrow(id, selected);
+        for (Constraint constraint : constraints[id][candidate]) {
+            if (!narrow(constraint.target, constraint.allowed)) {
+                if (depth > conflictDepth) {
+                    conflictDepth = depth;
+                    conflict = explainConflict(constraint.target);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String describeCandidates(int id) {
+        StringBuilder builder = new StringBuilder();
+        for (Module module : candidates.get(id)) {
+            if (builder.length() > 0) builder.append("、");
+            builder.append(module.getVersion()).append("（级别 ").append(module.getLevel()).append("）");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 说明模块 ID 的候选集合为何被全部排除：列出已选定模块对它的约束
+     */
+    private String explainConflict(int id) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("无法为模块 %s 选择满足所有依赖的版本，候选版本：%s；", ids[id], describeCandidates(id)));
+        if (assigned[id] != -1) {
+            builder.append(String.format("已选择 %s；", candidates.get(id).get(assigned[id])));
+        }
+        builder.append("依赖要求：");
+        boolean first = true;
+        for (Constraint constraint : incoming.get(id)) {
+            int source = indexOf(constraint.source);
+            if (assigned[source] == -1 || candidates.get(source).get(assigned[source]) != constraint.source) continue;
+            if (!first) builder.append("，");
+            builder.append(String.format("模块 %s 要求版本范围 %s", constraint.source, constraint.entry.getVersionRange()));
+            first = false;
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 说明模块 ID 为何没有任何可选的候选模块：每个候选模块都依赖不存在的模块或不存在的版本
+     */
+    private String explainUnsatisfiable(int id) {
+        StringBuilder builder = new StringBuilder();
+        for (Module module : candidates.get(id)) {
+            if (builder.length() > 0) builder.append("；");
+            builder.append(explainUnsatisfiable(module));
+        }
+        return builder.toString();
+    }
+
+    private String explainUnsatisfiable(Module module) {
+        List<RequireEntry> entries = new ArrayList<RequireEntry>();
+        if (module.getRequire() != null) entries.addAll(module.getRequire());
+        int required = entries.size();
+        if (module.getRequireOptional() != null) entries.addAll(module.getRequireOptional());
+        for (int i = 0; i < entries.size(); i++) {
+            RequireEntry entry = entries.get(i);
+            int target = Arrays.binarySearch(ids, entry.getId());
+            if (target < 0) {
+                if (i >= required) continue;
+                return String.format("模块 %s 依赖的模块 %s 不存在或已被其他规则排除", module, entry);
+            }
+            boolean matched = false;
+            for (Module candidate : candidates.get(target)) {
+                matched |= entry.getVersionRange().contains(candidate.getVersion());
+            }
+            if (!matched) {
+                return String.format("模块 %s 声明的依赖模块 %s 的版本范围为: %s，但是现有模块 %s 的版本为: %s", module, entry.getId(), entry.getVersionRange(),
+                        entry.getId(), describeCandidates(target));
+            }
+        }
+        return String.format("模块 %s 的依赖无法满足", module);
+    }
+
+    /**
+     * 按相互间的依赖把需要搜索的模块 ID 分组。不同组的选择互不影响，可以分别搜索
+     */
+    private List<int[]> getComponents(List<Integer> toSearch) {
+        int[] parent = new int[ids.length];
+        for (int i = 0; i < parent.length; i++) {
+            parent[i] = i;
+        }
+        Set<Integer> searching = new HashSet<Integer>(toSearch);
+        for (int id : toSearch) {
+            for (Constraint[] candidateConstraints : constraints[id]) {
+                for (Constraint constraint : candidateConstraints) {
+                    if (searching.contains(constraint.target)) parent[find(parent, id)] = find(parent, constraint.target);
+                }
+            }
+        }
+        Map<Integer,List<Integer>> groups = new LinkedHashMap<Integer,List<Integer>>();
+        for (int id : toSearch) {
+            int root = find(parent, id);
+            List<Integer> group = groups.get(root);
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                groups.put(root, group);
+            }
+            group.add(id);
+        }
+        List<int[]> result = new ArrayList<int[]>(groups.size());
+        for (List<Integer> group : groups.values()) {
+            int[] component = new int[group.size()];
+            for (int i = 0; i < component.length; i++) {
+                component[i] = group.get(i);
+            }
+            result.add(component);
+        }
+        return result;
+    }
+
+    private static int find(int[] parent, int id) {
+        while (parent[id] != id) {
+            parent[id] = parent[parent[id]];
+            id = parent[id];
+        }
+        return id;
+    }
+
+    private long getQueueKey(int id) {
+        return ((long) domains[id].cardinality() << 32) | id;
+    }
+
+    /**
+     * 获取当前候选状态：需要搜索的模块 ID 的候选集合，以及其中哪些已选定
+     */
+    private List<BitSet> getState() {
+        List<BitSet> state = new ArrayList<BitSet>(open.length + 1);
+        BitSet assignedState = new BitSet(open.length);
+        for (int i = 0; i < open.length; i++) {
+            state.add((BitSet) domains[open[i]].clone());
+            if (assigned[open[i]] != -1) assignedState.set(i);
+        }
+        state.add(assignedState);
+        return state;
+    }
+
+    private int indexOf(Module module) {
+        return Arrays.binarySearch(ids, module.getId());
+    }
+
+    private static long mix(int id, int value) {
+        long h = ((long) id << 32) ^ (value & 0xffffffffL);
+        h *= 0x9e3779b97f4a7c15L;
+        h ^= h >>> 29;
+        h *= 0xbf58476d1ce4e5b9L;
+        return h ^ (h >>> 32);
+    }
+
+    /**
+     * 缩小模块 ID 的候选集合，修改记录在 trail 中
+     * 
+     * @return 候选集合是否不为空
+     */
+    private boolean narrow(int id, BitSet allowed) {
+        BitSet domain = domains[id];
+        BitSet narrowed = (BitSet) domain.clone();
+        narrowed.and(allowed);
+        if (narrowed.equals(domain)) return true;
+        trail.add(new Object[] { id, domain });
+        setDomain(id, narrowed);
+        return !narrowed.isEmpty();
+    }
+
+    private boolean search(int depth) {
+        if (++steps > maxSteps) return false;
+
+        // 选择候选最少的未选定模块 ID
+        if (queue.isEmpty()) return true;
+        int id = (int) (queue.first().longValue() & 0xffffffffL);
+
+        List<BitSet> state = null;
+        long stateHash = hash;
+        List<List<BitSet>> failures = failed.get(stateHash);
+        if (failures != null && failures.contains(state = getState())) return false;
+
+        for (int candidate = domains[id].nextSetBit(0); candidate >= 0; candidate = domains[id].nextSetBit(candidate + 1)) {
+            int mark = trail.size();
+            if (assign(id, candidate, depth) && search(depth + 1)) return true;
+            undo(mark);
+            setAssigned(id, -1);
+            if (steps > maxSteps) return false;
+        }
+
+        if (failures == null) {
+            failures = new ArrayList<List<BitSet>>(1);
+            failed.put(stateHash, failures);
+        }
+        failures.add(state != null ? state : getState());
+        return false;
+    }
+
+    /**
+     * 设置模块 ID 的选择，同时更新搜索队列和状态散列
+     * 
+     * @param candidate 候选模块序号，-1 表示取消选择
+     */
+    private void setAssigned(int id, int candidate) {
+        if (searchable[id] && assigned[id] == -1) queue.remove(getQueueKey(id));
+        if ((assigned[id] == -1) != (candidate == -1)) hash ^= mix(-1 - id, 0);
+        assigned[id] = candidate;
+        if (searchable[id] && candidate == -1) queue.add(getQueueKey(id));
+    }
+
+    /**
+     * 设置模块 ID 的候选集合，同时更新搜索队列和状态散列
+     */
+    private void setDomain(int id, BitSet domain) {
+        boolean queued = searchable[id] && assigned[id] == -1;
+        if (queued) queue.remove(getQueueKey(id));
+        hash ^= mix(id, domains[id].hashCode()) ^ mix(id, domain.hashCode());
+        domains[id] = domain;
+        if (queued) queue.add(getQueueKey(id));
+    }
+
+    private void undo(int mark) {
+        while (trail.size() > mark) {
+            Object[] change = trail.remove(trail.size() - 1);
+            setDomain((Integer) change[0], (BitSet) change[1]);
+        }
+    }
+
+}
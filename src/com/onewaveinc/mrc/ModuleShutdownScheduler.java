@@ -0,0 +1,260 @@
+package com.onewaveinc.mrc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 模块停止调度器。按依赖关系的逆序停止模块：依赖某个模块的模块全部停止后，才停止该模块；
+ * 高启动级别的模块全部停止后，才开始停止低启动级别的模块。相互之间没有依赖关系的模块并行停止。<br>
+ * 每个模块有各自的期限，超过期限的模块记录其线程的调用栈后继续等待：它依赖的模块直到它停止后才停止，
+ * 它也仍然占用并行数，停止模块的线程数不超过最大并行数；与它没有依赖关系的模块不受影响。
+ * 整个停止过程也有期限，超过后记录所有未停止的模块，放弃等待。
+ * 未设置整个停止过程的期限时，超过期限的模块视为已停止，不再阻塞它依赖的模块，这些模块可能在它完成之前被停止。
+ * 停止模块的线程都是守护线程，不阻止进程退出。<br>
+ * 一个模块停止失败时只记录日志，继续停止其他模块
+ */
+class ModuleShutdownScheduler {
+
+    /**
+     * 正在停止的模块
+     */
+    private static class Task implements Runnable {
+
+        /**
+         * 开始停止的时间，单位纳秒
+         */
+        final long begin = System.nanoTime();
+
+        Throwable failure;
+
+        final Module module;
+
+        /**
+         * 是否已超过模块的期限
+         */
+        boolean overrun;
+
+        final BlockingQueue<Task> completed;
+
+        volatile Thread thread;
+
+        final ModuleVisitor visitor;
+
+        Task(Module module, ModuleVisitor visitor, BlockingQueue<Task> completed) {
+            this.module = module;
+            this.visitor = visitor;
+            this.completed = completed;
+        }
+
+        public void run() {
+            thread = Thread.currentThread();
+            try {
+                visitor.visit(module);
+            } catch (Throwable e) {
+                failure = e;
+            } finally {
+                thread = null;
+                completed.add(this);
+            }
+        }
+
+    }
+
+    private static final Logger logger = Logger.getLogger(ModuleShutdownScheduler.class.getName());
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final long moduleTimeout;
+
+    private final int threads;
+
+    private final long timeout;
+
+    /**
+     * @param threads 最大并行数。超过期限但仍未完成的模块同样占用并行数
+     * @param moduleTimeout 每个模块的期限，单位毫秒，0 表示不限
+     * @param timeout 整个停止过程的期限，单位毫秒，0 表示不限
+     */
+    ModuleShutdownScheduler(int threads, long moduleTimeout, long timeout) {
+        this.threads = Math.max(1, threads);
+        this.moduleTimeout = moduleTimeout;
+        this.timeout = timeout;
+    }
+
+    /**
+     * 停止模块
+     * 
+     * @param modules 需要停止的模块，按启动顺序排列
+     * @param dependencies 模块直接依赖的模块
+     * @param visitor 停止一个模块的访问者
+     * @return 在模块的期限内停止的模块数
+     */
+    int execute(List<Module> modules, Map<Module,List<Module>> dependencies, ModuleVisitor visitor) {
+        if (modules.isEmpty()) return 0;
+
+        long deadline = System.nanoTime() + timeout * NANOS_PER_MILLI;
+        ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory("mrc-stop-"));
+        int stopped = 0;
+        try {
+            int to = modules.size();
+            while (to > 0) {
+                int startLevel = modules.get(to - 1).getStartLevel();
+                int from = to;
+                while (from > 0 && modules.get(from - 1).getStartLevel() == startLevel) {
+                    from--;
+                }
+                int result = executeLevel(executor, modules.subList(from, to), dependencies, visitor, deadline);
+                if (result < 0) {
+                    // 超过整个停止过程的期限，放弃停止剩余的模块
+                    for (Module module : modules.subList(0, from)) {
+                        logger.warning("超过停止期限，未停止模块：" + module);
+                    }
+                    return stopped + (-result - 1);
+                }
+                stopped += result;
+                to = from;
+            }
+            return stopped;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 停止同一启动级别的模块
+     * 
+     * @return 在模块的期限内停止的模块数。超过整个停止过程的期限时，返回 -(在模块的期限内停止的模块数 + 1)
+     */
+    private int executeLevel(ExecutorService executor, List<Module> modules, Map<Module,List<Module>> dependencies, ModuleVisitor visitor,
+            long deadline) {
+        // 1. 建立同一启动级别中的逆依赖关系：模块在排在它后面且依赖它的模块全部停止后才停止
+        Map<Module,Integer> positions = new HashMap<Module,Integer>();
+        for (int i = 0; i < modules.size(); i++) {
+            positions.put(modules.get(i), i);
+        }
+        int[] pending = new int[modules.size()];
+        List<List<Integer>> required = new ArrayList<List<Integer>>();
+        for (int i = 0; i < modules.size(); i++) {
+            List<Integer> positionsOfRequired = new ArrayList<Integer>();
+            List<Module> direct = dependencies.get(modules.get(i));
+            if (direct != null) {
+                for (Module dependency : direct) {
+                    Integer position = positions.get(dependency);
+                    if (position != null && position < i) {
+                        positionsOfRequired.add(position);
+                        pending[position]++;
+                    }
+                }
+            }
+            required.add(positionsOfRequired);
+        }
+
+        // 2. 按启动顺序的逆序提交没有未停止的依赖者的模块
+        LinkedList<Integer> ready = new LinkedList<Integer>();
+        for (int i = modules.size() - 1; i >= 0; i--) {
+            if (pending[i] == 0) ready.add(i);
+        }
+        BlockingQueue<Task> completed = new LinkedBlockingQueue<Task>();
+        List<Task> running = new ArrayList<Task>();
+        boolean[] started = new boolean[modules.size()];
+        int stopped = 0;
+        int finished = 0;
+        while (finished < modules.size()) {
+            while (!ready.isEmpty() && running.size() < threads) {
+                int position = ready.removeFirst();
+                started[position] = true;
+                Task task = new Task(modules.get(position), visitor, completed);
+                running.add(task);
+                executor.execute(task);
+            }
+
+            // 等待最早到期的模块或整个停止过程的期限。已超过期限的模块只等待其完成
+            long now = System.nanoTime();
+            long wait = timeout > 0 ? deadline - now : Long.MAX_VALUE;
+            Task earliest = null;
+            if (moduleTimeout > 0) {
+                for (Task task : running) {
+                    if (!task.overrun && (earliest == null || task.begin < earliest.begin)) earliest = task;
+                }
+                if (earliest != null) wait = Math.min(wait, earliest.begin + moduleTimeout * NANOS_PER_MILLI - now);
+            }
+            Task task;
+            try {
+                task = wait > 0 ? completed.poll(wait, TimeUnit.NANOSECONDS) : completed.poll();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warning("等待模块停止时被中断，放弃等待");
+                logOverrun(running, "停止过程被中断");
+                return -(stopped + 1);
+            }
+
+            if (task != null) {
+                boolean waiting = running.remove(task);
+                if (task.overrun) {
+                    logger.info(String.format("超过期限的模块 %s 已停止，耗时 %d ms", task.module, (System.nanoTime() - task.begin) / NANOS_PER_MILLI));
+                } else {
+                    stopped++;
+                }
+                if (task.failure != null) {
+                    logger.log(Level.WARNING, "停止模块 " + task.module + " 时出错", task.failure);
+                }
+                // 已视为停止的模块之后才完成
+                if (!waiting) continue;
+            } else if (timeout > 0 && System.nanoTime() - deadline >= 0) {
+                logOverrun(running, "超过停止期限");
+                for (int i = modules.size() - 1; i >= 0; i--) {
+                    if (!started[i]) logger.warning("超过停止期限，未停止模块：" + modules.get(i));
+                }
+                return -(stopped + 1);
+            } else if (earliest != null && System.nanoTime() - earliest.begin >= moduleTimeout * NANOS_PER_MILLI) {
+                task = earliest;
+                task.overrun = true;
+                logOverrun(task, "超过模块停止期限 " + moduleTimeout + " ms");
+                // 有整个停止过程的期限时，继续等待它完成，它依赖的模块不提前停止
+                if (timeout > 0) continue;
+                running.remove(task);
+                logger.warning("未设置停止过程的期限，不再等待模块 " + task.module + "，它依赖的模块可能在它完成之前被停止");
+            } else {
+                continue;
+            }
+
+            finished++;
+            for (int position : required.get(positions.get(task.module))) {
+                if (--pending[position] == 0) ready.add(position);
+            }
+        }
+        return stopped;
+    }
+
+    private static void logOverrun(List<Task> tasks, String reason) {
+        for (Task task : tasks) {
+            logOverrun(task, reason);
+        }
+    }
+
+    /**
+     * 记录超过期限的模块及其线程的调用栈
+     */
+    private static void logOverrun(Task task, String reason) {
+        String message = String.format("%s，模块 %s 已停止 %d ms 仍未完成", reason, task.module, (System.nanoTime() - task.begin) / NANOS_PER_MILLI);
+        Thread thread = task.thread;
+        if (thread == null) {
+            logger.warning(message);
+            return;
+        }
+        ModuleException stack = new ModuleException("线程 " + thread.getName() + " 的调用栈");
+        stack.setStackTrace(thread.getStackTrace());
+        logger.log(Level.WARNING, message, stack);
+    }
+
+}
@@ -4,13 +4,10 @@ import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.MessageDigest;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 import java.util.logging.Level;
@@ -21,7 +18,9 @@ import sun.misc.BASE64Encoder;
 import com.onewaveinc.mrc.LicenseException.Code;
 
 /**
- * 模块签名
+ * 模块签名。<br>
+ * 签名正文依次为模块 ID、模块版本、MD5 摘要和 SHA-1 摘要，之后可以有模块完整性清单的根摘要（签名清单中的 Module-Integrity-Root），
+ * 以此保护不参与摘要的完整性清单
  * @author gmice
  */
 public class ModuleSignature {
@@ -30,19 +29,41 @@ public class ModuleSignature {
 
     private static ModuleContext moduleContext;
 
-    private MessageDigest md5 = null;
+    /**
+     * 命令行签名时使用的模块摘要缓存文件，位于当前目录
+     */
+    static final String DIGEST_CACHE_FILE = "mrc-digest.cache";
+
+    /**
+     * 签名清单中完整性清单根摘要的属性名
+     */
+    static final String INTEGRITY_ROOT_ATTRIBUTE = "Module-Integrity-Root";
 
     private byte[] md5Digest;
 
     private Module module;
 
-    private MessageDigest sha1 = null;
-
     private byte[] sha1Digest;
 
     public ModuleSignature(Module module) {
+        this(module, new ModuleDigester(ModuleDigester.getDefaultThreads(), null));
+    }
+
+    /**
+     * 使用指定的模块摘要计算器计算模块签名
+     * 
+     * @param module 模块
+     * @param digester 模块摘要计算器
+     */
+    ModuleSignature(Module module, ModuleDigester digester) {
         this.module = module;
-        digest();
+        try {
+            byte[][] digests = digester.digest(module);
+            md5Digest = digests[0];
+            sha1Digest = digests[1];
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, e.getLocalizedMessage(), e);
+        }
     }
 
     public byte[] getMD5Digest() {
@@ -66,17 +87,8 @@ public class ModuleSignature {
     }
 
     public void validate(byte[] signatureData) throws LicenseException {
-        InputStream in = new ByteArrayInputStream(signatureData);
-
         try {
-            // 读取开始两个字节（签名正文长度）
-            int b0 = in.read();
-            int b1 = in.read();
-            if (b0 == -1 || b1 == -1) {
-                throw new LicenseException(Code.BAD_LICENSE_DATA_LENGTH);
-            }
-
-            DataInputStream headerIn = new DataInputStream(new ByteArrayInputStream(signatureData, 2, b0 + (b1 << 8)));
+            DataInputStream headerIn = openHeader(signatureData);
 
             String moduleId = headerIn.readUTF();
             if (!moduleId.equals(module.getId())) {
@@ -106,78 +118,51 @@ public class ModuleSignature {
         }
     }
 
-    private void digest() {
+    /**
+     * 读取签名的完整性清单根摘要
+     * 
+     * @param signatureData 解密后的签名数据
+     * @return 十六进制的根摘要。签名中没有根摘要时，返回 null
+     * @throws LicenseException 签名数据格式错误时
+     */
+    static String getIntegrityRoot(byte[] signatureData) throws LicenseException {
         try {
-            md5 = MessageDigest.getInstance("MD5");
-            sha1 = MessageDigest.getInstance("SHA-1");
-
-            ModuleFile binDirectory = module.getModuleFile("/bin");
-            if (binDirectory.isDirectory()) {
-                digest(binDirectory);
-            }
-
-            ModuleFile libDirectory = module.getModuleFile("/lib");
-            if (libDirectory.isDirectory()) {
-                digest(libDirectory);
-            }
-
-            ModuleFile metainfDirectory = module.getModuleFile("/META-INF");
-            if (metainfDirectory.isDirectory()) {
-                digest(metainfDirectory);
-            }
-
-            md5Digest = md5.digest();
-            sha1Digest = sha1.digest();
-        } catch (Exception e) {
-            logger.log(Level.SEVERE, e.getLocalizedMessage(), e);
+            DataInputStream headerIn = openHeader(signatureData);
+            headerIn.readUTF();
+            headerIn.readUTF();
+            headerIn.readFully(new byte[16 + 20]);
+            return headerIn.available() > 0 ? headerIn.readUTF() : null;
+        } catch (EOFException e) {
+            throw new LicenseException(Code.BAD_LICENSE_DATA_LENGTH);
+        } catch (IOException e) {
+            throw new LicenseException("未知错误：" + e.getMessage());
         }
     }
 
-    private void digest(byte[] input) {
-        md5.update(input);
-        sha1.update(input);
-    }
-
-    private void digest(byte[] input, int offset, int len) {
-        md5.update(input, offset, len);
-        sha1.update(input, offset, len);
-    }
+    private static DataInputStream openHeader(byte[] signatureData) throws LicenseException {
+        ByteArrayInputStream in = new ByteArrayInputStream(signatureData);
 
-    private void digest(ModuleFile directory) throws Exception {
-        ModuleFile[] files = directory.listFiles();
-
-        Arrays.sort(files, new Comparator<File>() {
-            public int compare(File o1, File o2) {
-                return o1.getName().compareTo(o2.getName());
-            }
-        });
-
-        final byte[] buf = new byte[8192];
-        for (ModuleFile file : files) {
-            String modulePath = file.getModulePath();
-            
-            // 过滤一些文件
-            if (modulePath.endsWith("-sources.jar")) continue; // TODO: 应该去掉此句
-            if (modulePath.startsWith("/META-INF/maven/")) continue;
-            if (modulePath.equals("/META-INF/MANIFEST.MF")) continue;
-            
-            if (file.isDirectory()) {
-                digest(file);
-            } else {
-                digest(modulePath.getBytes("UTF-8"));
-                
-                FileInputStream in = new FileInputStream(file);
-                int len;
-                while ((len = in.read(buf)) != -1) {
-                    digest(buf, 0, len);
-                }
-                in.close();
-            }
+        // 读取开始两个字节（签名正文长度）
+        int b0 = in.read();
+        int b1 = in.read();
+        if (b0 == -1 || b1 == -1) {
+            throw new LicenseException(Code.BAD_LICENSE_DATA_LENGTH);
         }
+
+        return new DataInputStream(new ByteArrayInputStream(signatureData, 2, b0 + (b1 << 8)));
     }
 
+    /**
+     * 命令行签名。<br>
+     * 单个模块：&lt;模块 ID 或模块目录&gt; [-integrity]，签名清单写入当前目录下的 signature.mf，完整性清单写入当前目录下的 module.integrity；<br>
+     * 批量签名：-batch [模块安装目录，多个以 ; 分隔] [-out 输出目录] [-threads 线程数] [-integrity]，参见 {@link ModuleBatchSigner}
+     */
     public static void main(String[] args) throws Exception {
         if (args == null || args.length < 1) return;
+        if (ModuleBatchSigner.OPTION_BATCH.equals(args[0])) {
+            if (!ModuleBatchSigner.main(args, moduleContext)) System.exit(1);
+            return;
+        }
 
         String moduleId = args[0];
         Module module = null;
@@ -193,24 +178,65 @@ public class ModuleSignature {
             }
         }
 
-        ModuleSignature signature = new ModuleSignature(module);
+        ModuleDigestCache cache = new ModuleDigestCache(new File(DIGEST_CACHE_FILE));
+        cache.load();
+        ModuleSignature signature = new ModuleSignature(module, new ModuleDigester(ModuleDigester.getDefaultThreads(), cache));
+        cache.store();
 
         logger.info("模块 ID: " + signature.getModuleId());
         logger.info("模块版本: " + signature.getModuleVersion());
         logger.info("MD5: " + encode(signature.getMD5Digest()));
         logger.info("SHA-1: " + encode(signature.getSHA1Digest()));
 
+        // 先生成完整性清单，其根摘要写入签名清单
+        ModuleIntegrityManifest integrity = null;
+        if (args.length > 1 && ModuleBatchSigner.OPTION_INTEGRITY.equals(args[1])) {
+            integrity = writeIntegrityManifest(module, new File("module.integrity"));
+            logger.info("完整性清单文件数: " + integrity.getFiles().size() + "，根摘要: " + integrity.getRootHash());
+        }
+        writeManifest(signature, integrity, new File("signature.mf"));
+    }
+
+    /**
+     * 生成模块的完整性清单并写入指定的文件，不修改模块本身。打包时再将其放入模块的 /META-INF/module.integrity
+     * 
+     * @param module 模块
+     * @param file 完整性清单文件
+     * @return 完整性清单
+     */
+    static ModuleIntegrityManifest writeIntegrityManifest(Module module, File file) throws IOException {
+        ModuleIntegrityManifest integrity = ModuleIntegrityManifest.create(module);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            integrity.write(out);
+        } finally {
+            out.close();
+        }
+        return integrity;
+    }
+
+    /**
+     * 输出签名清单
+     * 
+     * @param signature 模块签名
+     * @param integrity 模块的完整性清单，可以为 null
+     * @param file 签名清单文件
+     */
+    static void writeManifest(ModuleSignature signature, ModuleIntegrityManifest integrity, File file) throws IOException {
         Manifest manifest = new Manifest();
         Attributes attributes = manifest.getMainAttributes();
         attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
-        attributes.putValue("Module-ID", module.getId());
-        attributes.putValue("Module-Version", module.getVersion().toString());
+        attributes.putValue("Module-ID", signature.getModuleId());
+        attributes.putValue("Module-Version", signature.getModuleVersion().toString());
         attributes.putValue("Module-MD5", encode(signature.getMD5Digest()));
         attributes.putValue("Module-SHA1", encode(signature.getSHA1Digest()));
+        if (integrity != null && integrity.getRootHash() != null) {
+            attributes.putValue(INTEGRITY_ROOT_ATTRIBUTE, integrity.getRootHash());
+        }
 
         FileOutputStream out = null;
         try {
-            out = new FileOutputStream("signature.mf");
+            out = new FileOutputStream(file);
             manifest.write(out);
         } finally {
             if (out != null) out.close();
@@ -221,7 +247,7 @@ public class ModuleSignature {
         ModuleSignature.moduleContext = moduleContext;
     }
 
-    private static String encode(byte[] data) {
+    static String encode(byte[] data) {
         return new BASE64Encoder().encode(data).replaceAll("\r\n?", "");
     }
 
@@ -0,0 +1,48 @@
+package com.onewaveinc.mrc;
+
+/**
+ * 服务事件。服务注册或注销后发送给该服务键的监听器
+ */
+public class ServiceEvent {
+
+    public final static String REGISTERED = "registered";
+
+    public final static String UNREGISTERED = "unregistered";
+
+    private String event;
+
+    private ServiceKey<?> key;
+
+    private int ranking;
+
+    private Object service;
+
+    public ServiceEvent(String event, ServiceKey<?> key, Object service, int ranking) {
+        this.event = event;
+        this.key = key;
+        this.service = service;
+        this.ranking = ranking;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public ServiceKey<?> getKey() {
+        return key;
+    }
+
+    public int getRanking() {
+        return ranking;
+    }
+
+    /**
+     * 获取注册或注销的服务
+     * 
+     * @return 服务
+     */
+    public Object getService() {
+        return service;
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.onewaveinc.mrc;
+
+/**
+ * 服务键。以名称标识服务，并声明服务的类型。名称相同的服务键视为同一个键，与类型无关，
+ * 因此以字符串属性名读写的模块间共享属性与以服务键注册的服务可以互通
+ * 
+ * @param <T> 服务类型
+ */
+public final class ServiceKey<T> {
+
+    private final String name;
+
+    private final Class<T> type;
+
+    private ServiceKey(String name, Class<T> type) {
+        if (name == null || type == null) throw new IllegalArgumentException("服务键的名称和类型不能为空");
+        this.name = name;
+        this.type = type;
+    }
+
+    /**
+     * 创建服务键
+     * 
+     * @param name 服务名称
+     * @param type 服务类型
+     * @return 服务键
+     */
+    public static <T> ServiceKey<T> of(String name, Class<T> type) {
+        return new ServiceKey<T>(name, type);
+    }
+
+    /**
+     * 把服务转换为服务键声明的类型
+     * 
+     * @param service 服务，可以为 null
+     * @return 服务
+     * @throws ClassCastException 服务不是服务键声明的类型时
+     */
+    T cast(Object service) {
+        return type.cast(service);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof ServiceKey<?> && name.equals(((ServiceKey<?>) obj).name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    @Override
+    public int hashCode() {
+        return name.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return name + "(" + type.getName() + ")";
+    }
+
+}
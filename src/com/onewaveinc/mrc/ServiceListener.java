@@ -0,0 +1,15 @@
+package com.onewaveinc.mrc;
+
+/**
+ * 服务监听器接口。监听一个服务键下服务的注册和注销
+ */
+public interface ServiceListener {
+
+    /**
+     * 服务注册或注销后回调。在注册或注销服务的线程中调用，此时服务引用已经更新
+     * 
+     * @param event 服务事件
+     */
+    void serviceChanged(ServiceEvent event);
+
+}
@@ -0,0 +1,44 @@
+package com.onewaveinc.mrc;
+
+/**
+ * 服务引用。始终指向一个服务键下服务键声明的类型的服务中排名最高的一个，服务注册或注销时由服务注册表自动更新。
+ * 调用者可以长期持有服务引用，每次获取服务只读取一个 volatile 字段
+ * 
+ * @param <T> 服务类型
+ */
+public final class ServiceReference<T> {
+
+    private final ServiceKey<T> key;
+
+    private volatile T service;
+
+    ServiceReference(ServiceKey<T> key) {
+        this.key = key;
+    }
+
+    /**
+     * 获取服务键声明的类型的服务中排名最高的一个
+     * 
+     * @return 服务。没有该类型的服务时，返回 null
+     */
+    public T get() {
+        return service;
+    }
+
+    public ServiceKey<T> getKey() {
+        return key;
+    }
+
+    /**
+     * 更新服务。服务不是服务键声明的类型时，视为没有服务
+     */
+    void set(Object service) {
+        this.service = key.getType().isInstance(service) ? key.cast(service) : null;
+    }
+
+    @Override
+    public String toString() {
+        return key + " -> " + service;
+    }
+
+}
@@ -0,0 +1,305 @@
+package com.onewaveinc.mrc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 服务注册表。模块以服务键注册服务，同一服务键下可以有多个服务，按排名由高到低排列，排名相同时先注册的在前。<br>
+ * 读取服务不加锁：每个服务键下的服务以不可变数组发布，服务引用只需读取一个 volatile 字段。
+ * 注册和注销在服务键上同步，完成后通知该服务键的监听器。<br>
+ * 模块间共享属性（{@link ModuleContext#setAttribute(String, Object)}）是排名为 0 的特殊服务，
+ * 同一属性名只保留最后设置的值
+ */
+public class ServiceRegistry {
+
+    /**
+     * 服务注册。用于注销服务
+     */
+    public final class Registration {
+
+        private final Entry entry;
+
+        private final int ranking;
+
+        private final Object service;
+
+        Registration(Entry entry, Object service, int ranking) {
+            this.entry = entry;
+            this.service = service;
+            this.ranking = ranking;
+        }
+
+        public int getRanking() {
+            return ranking;
+        }
+
+        public Object getService() {
+            return service;
+        }
+
+        /**
+         * 注销服务。重复注销无效果
+         */
+        public void unregister() {
+            ServiceRegistry.this.unregister(this);
+        }
+
+    }
+
+    /**
+     * 一个服务键下的服务、服务引用和监听器
+     */
+    private static class Entry {
+
+        final ServiceKey<?> key;
+
+        final List<ServiceListener> listeners = new CopyOnWriteArrayList<ServiceListener>();
+
+        final List<ServiceReference<?>> references = new CopyOnWriteArrayList<ServiceReference<?>>();
+
+        /**
+         * 按排名由高到低排列的服务注册，整体替换
+         */
+        volatile Registration[] registrations = NO_REGISTRATIONS;
+
+        /**
+         * 以属性方式设置的服务注册
+         */
+        Registration attribute;
+
+        Entry(ServiceKey<?> key) {
+            this.key = key;
+        }
+
+        Object getService() {
+            Registration[] current = registrations;
+            return current.length == 0 ? null : current[0].service;
+        }
+
+        /**
+         * 获取指定类型的服务中排名最高的一个
+         * 
+         * @param type 服务类型
+         * @return 服务。没有该类型的服务时，返回 null
+         */
+        Object getService(Class<?> type) {
+            for (Registration registration : registrations) {
+                if (type.isInstance(registration.service)) return registration.service;
+            }
+            return null;
+        }
+
+    }
+
+    private static final Registration[] NO_REGISTRATIONS = new Registration[0];
+
+    private static final Logger logger = Logger.getLogger(ServiceRegistry.class.getName());
+
+    private final ConcurrentMap<String,Entry> entries = new ConcurrentHashMap<String,Entry>();
+
+    /**
+     * 添加服务监听器
+     * 
+     * @param key 服务键
+     * @param listener 服务监听器
+     */
+    public void addServiceListener(ServiceKey<?> key, ServiceListener listener) {
+        getEntry(key).listeners.add(listener);
+    }
+
+    /**
+     * 获取模块间共享属性值，即该属性名下排名最高的服务
+     * 
+     * @param name 属性名
+     * @return 属性值。不存在时，返回 null
+     */
+    public Object getAttribute(String name) {
+        Entry entry = entries.get(name);
+        return entry == null ? null : entry.getService();
+    }
+
+    /**
+     * 获取服务引用。同一服务键（名称和类型都相同）返回同一个服务引用
+     * 
+     * @param key 服务键
+     * @return 服务引用，指向服务键声明的类型的服务中排名最高的一个
+     */
+    @SuppressWarnings("unchecked")
+    public <T> ServiceReference<T> getReference(ServiceKey<T> key) {
+        Entry entry = getEntry(key);
+        for (ServiceReference<?> reference : entry.references) {
+            if (reference.getKey().getType() == key.getType()) return (ServiceReference<T>) reference;
+        }
+        synchronized (entry) {
+            for (ServiceReference<?> reference : entry.references) {
+                if (reference.getKey().getType() == key.getType()) return (ServiceReference<T>) reference;
+            }
+            ServiceReference<T> reference = new ServiceReference<T>(key);
+            reference.set(entry.getService(key.getType()));
+            entry.references.add(reference);
+            return reference;
+        }
+    }
+
+    /**
+     * 获取服务键声明的类型的服务中排名最高的一个。与 getServices 一致，不是该类型的服务被忽略
+     * 
+     * @param key 服务键
+     * @return 服务。没有该类型的服务时，返回 null
+     */
+    public <T> T getService(ServiceKey<T> key) {
+        Entry entry = entries.get(key.getName());
+        return entry == null ? null : key.cast(entry.getService(key.getType()));
+    }
+
+    /**
+     * 获取一个服务键下的所有服务
+     * 
+     * @param key 服务键
+     * @return 按排名由高到低排列的服务列表。不是服务键声明的类型的服务被忽略
+     */
+    public <T> List<T> getServices(ServiceKey<T> key) {
+        Entry entry = entries.get(key.getName());
+        if (entry == null) return Collections.emptyList();
+        List<T> result = new ArrayList<T>();
+        for (Registration registration : entry.registrations) {
+            if (key.getType().isInstance(registration.service)) result.add(key.cast(registration.service));
+        }
+        return result;
+    }
+
+    /**
+     * 注册服务
+     * 
+     * @param key 服务键
+     * @param service 服务
+     * @param ranking 排名，越大越优先
+     * @return 服务注册，用于注销服务
+     */
+    public <T> Registration register(ServiceKey<T> key, T service, int ranking) {
+        if (!key.getType().isInstance(service)) {
+            throw new IllegalArgumentException("服务 " + service + " 不是服务键 " + key + " 声明的类型");
+        }
+        Entry entry = getEntry(key);
+        Registration registration;
+        synchronized (entry) {
+            registration = add(entry, service, ranking);
+        }
+        fireServiceEvent(entry, new ServiceEvent(ServiceEvent.REGISTERED, entry.key, service, ranking));
+        return registration;
+    }
+
+    /**
+     * 移除服务监听器
+     * 
+     * @param key 服务键
+     * @param listener 服务监听器
+     */
+    public void removeServiceListener(ServiceKey<?> key, ServiceListener listener) {
+        Entry entry = entries.get(key.getName());
+        if (entry != null) entry.listeners.remove(listener);
+    }
+
+    /**
+     * 设置模块间共享属性值，替换以属性方式设置的原值，不影响以服务键注册的服务
+     * 
+     * @param name 属性名
+     * @param value 属性值。为 null 时移除属性
+     */
+    public void setAttribute(String name, Object value) {
+        Entry entry = getEntry(ServiceKey.of(name, Object.class));
+        Registration removed;
+        synchronized (entry) {
+            removed = entry.attribute;
+            if (removed != null) remove(entry, removed);
+            entry.attribute = value == null ? null : add(entry, value, 0);
+        }
+        if (removed != null) fireServiceEvent(entry, new ServiceEvent(ServiceEvent.UNREGISTERED, entry.key, removed.service, 0));
+        if (value != null) fireServiceEvent(entry, new ServiceEvent(ServiceEvent.REGISTERED, entry.key, value, 0));
+    }
+
+    /**
+     * 在服务键上同步调用
+     */
+    private Registration add(Entry entry, Object service, int ranking) {
+        Registration registration = new Registration(entry, service, ranking);
+        Registration[] current = entry.registrations;
+        int index = 0;
+        while (index < current.length && current[index].ranking >= ranking) {
+            index++;
+        }
+        Registration[] updated = new Registration[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        updated[index] = registration;
+        System.arraycopy(current, index, updated, index + 1, current.length - index);
+        publish(entry, updated);
+        return registration;
+    }
+
+    private void fireServiceEvent(Entry entry, ServiceEvent event) {
+        for (ServiceListener listener : entry.listeners) {
+            try {
+                listener.serviceChanged(event);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "服务监听器 " + listener + " 处理 " + entry.key.getName() + " 的 " + event.getEvent() + " 事件时出错", e);
+            }
+        }
+    }
+
+    private Entry getEntry(ServiceKey<?> key) {
+        Entry entry = entries.get(key.getName());
+        if (entry == null) {
+            Entry created = new Entry(key);
+            entry = entries.putIfAbsent(key.getName(), created);
+            if (entry == null) entry = created;
+        }
+        return entry;
+    }
+
+    /**
+     * 发布服务注册数组并更新服务引用。在服务键上同步调用
+     */
+    private void publish(Entry entry, Registration[] updated) {
+        entry.registrations = updated;
+        for (ServiceReference<?> reference : entry.references) {
+            reference.set(entry.getService(reference.getKey().getType()));
+        }
+    }
+
+    /**
+     * 在服务键上同步调用
+     * 
+     * @return 服务注册存在时，返回 true
+     */
+    private boolean remove(Entry entry, Registration registration) {
+        Registration[] current = entry.registrations;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] != registration) continue;
+            Registration[] updated = new Registration[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, i);
+            System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+            publish(entry, updated);
+            return true;
+        }
+        return false;
+    }
+
+    private void unregister(Registration registration) {
+        Entry entry = registration.entry;
+        boolean removed;
+        synchronized (entry) {
+            removed = remove(entry, registration);
+            if (entry.attribute == registration) entry.attribute = null;
+        }
+        if (removed) {
+            fireServiceEvent(entry, new ServiceEvent(ServiceEvent.UNREGISTERED, entry.key, registration.service, registration.ranking));
+        }
+    }
+
+}
@@ -0,0 +1,313 @@
+package com.onewaveinc.mrc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 启动快照。记录上次启动时解析完成的模块：按启动顺序排列的所有模块，及其级别、是否启用、类路径和元数据。
+ * 扩展链、类路径顺序和模块事件监听器都由这些信息直接确定。<br>
+ * 快照同时记录指纹：影响解析结果的配置、模块安装目录的内容，以及模块元数据文件、lib 目录和类路径项的大小和修改时间。
+ * 指纹一致时，MRC 直接从快照恢复模块，跳过模块目录的扫描、元数据的解析和相容性检查
+ */
+class StartupSnapshot {
+
+    /**
+     * 模块安装目录及其内容
+     */
+    private static class DirectoryEntry {
+
+        String[] names;
+
+        String path;
+
+    }
+
+    /**
+     * 快照中的模块
+     */
+    private static class ModuleEntry {
+
+        List<String> classPath = new ArrayList<String>();
+
+        boolean enabled;
+
+        int level;
+
+        Properties metadata = new Properties();
+
+        String rootDirectory;
+
+    }
+
+    private static final int MAGIC = 0x4d524353; // "MRCS"
+
+    private static final int VERSION = 1;
+
+    private static final Logger logger = Logger.getLogger(StartupSnapshot.class.getName());
+
+    private List<DirectoryEntry> directories = new ArrayList<DirectoryEntry>();
+
+    /**
+     * 停用模块配置
+     */
+    private String disabled;
+
+    private final File file;
+
+    /**
+     * 影响解析结果的配置
+     */
+    private String key;
+
+    private long[] lastModified;
+
+    private long[] length;
+
+    private List<ModuleEntry> modules = new ArrayList<ModuleEntry>();
+
+    private List<String> paths = new ArrayList<String>();
+
+    /**
+     * @param file 快照文件
+     */
+    StartupSnapshot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 获取快照记录的停用模块配置
+     * 
+     * @return 停用模块配置，未配置时为空字符串
+     */
+    String getDisabled() {
+        return disabled;
+    }
+
+    /**
+     * 判断快照是否与当前的配置和模块安装目录一致
+     * 
+     * @param key 影响解析结果的配置
+     * @param modulesDirectory 模块安装目录列表
+     * @return 当且仅当配置、模块安装目录的内容和快照记录的文件都未发生变化时，返回 true
+     */
+    boolean isUpToDate(String key, List<File> modulesDirectory) {
+        if (!key.equals(this.key) || modulesDirectory.size() != directories.size()) return false;
+        for (int i = 0; i < directories.size(); i++) {
+            DirectoryEntry entry = directories.get(i);
+            File directory = modulesDirectory.get(i);
+            if (!directory.getAbsolutePath().equals(entry.path) || !Arrays.equals(list(directory), entry.names)) return false;
+        }
+        for (int i = 0; i < paths.size(); i++) {
+            File f = new File(paths.get(i));
+            if (f.length() != length[i] || f.lastModified() != lastModified[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 载入快照文件
+     * 
+     * @return 快照文件存在且有效时，返回 true
+     */
+    boolean load() {
+        if (!file.isFile()) return false;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    logger.info("启动快照版本不符，忽略快照文件：" + file.getAbsolutePath());
+                    return false;
+                }
+                key = in.readUTF();
+                disabled = in.readUTF();
+                int directoryCount = in.readInt();
+                for (int i = 0; i < directoryCount; i++) {
+                    DirectoryEntry entry = new DirectoryEntry();
+                    entry.path = in.readUTF();
+                    entry.names = new String[in.readInt()];
+                    for (int j = 0; j < entry.names.length; j++) {
+                        entry.names[j] = in.readUTF();
+                    }
+                    directories.add(entry);
+                }
+                int pathCount = in.readInt();
+                length = new long[pathCount];
+                lastModified = new long[pathCount];
+                for (int i = 0; i < pathCount; i++) {
+                    paths.add(in.readUTF());
+                    length[i] = in.readLong();
+                    lastModified[i] = in.readLong();
+                }
+                int moduleCount = in.readInt();
+                for (int i = 0; i < moduleCount; i++) {
+                    ModuleEntry entry = new ModuleEntry();
+                    entry.rootDirectory = in.readUTF();
+                    entry.level = in.readInt();
+                    entry.enabled = in.readBoolean();
+                    int classPathCount = in.readInt();
+                    for (int j = 0; j < classPathCount; j++) {
+                        entry.classPath.add(in.readUTF());
+                    }
+                    int metadataCount = in.readInt();
+                    for (int j = 0; j < metadataCount; j++) {
+                        entry.metadata.setProperty(in.readUTF(), in.readUTF());
+                    }
+                    modules.add(entry);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "读取启动快照文件 " + file.getAbsolutePath() + " 时出错，忽略快照", e);
+            directories.clear();
+            paths.clear();
+            modules.clear();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 从快照恢复模块
+     * 
+     * @return 模块列表，按启动顺序排列，已设置级别和是否启用
+     * @throws ModuleException 模块元数据无效或模块安装包无法打开时
+     */
+    List<Module> restore() throws ModuleException {
+        List<Module> result = new ArrayList<Module>();
+        for (ModuleEntry entry : modules) {
+            File root = new File(entry.rootDirectory);
+            ModuleArchive archive = null;
+            if (root.isFile()) {
+                try {
+                    archive = ModuleArchive.open(root);
+                } catch (IOException e) {
+                    throw new ModuleException("打开模块安装包 " + root.getAbsolutePath() + " 时出错", e);
+                }
+            }
+            Module module = Module.create(root, archive, entry.metadata, entry.classPath);
+            module.setLevel(entry.level);
+            module.setEnabled(entry.enabled);
+            result.add(module);
+        }
+        return result;
+    }
+
+    /**
+     * 保存快照文件
+     * 
+     * @param key 影响解析结果的配置
+     * @param disabled 停用模块配置
+     * @param modulesDirectory 模块安装目录列表
+     * @param modules 所有模块，按启动顺序排列
+     */
+    void store(String key, String disabled, List<File> modulesDirectory, List<Module> modules) {
+        // 模块安装目录中的每一项（包括模块链接文件和模块安装包），以及每个模块的元数据文件、lib 目录和类路径项
+        Set<String> files = new LinkedHashSet<String>();
+        for (File directory : modulesDirectory) {
+            for (String name : list(directory)) {
+                files.add(new File(directory, name).getAbsolutePath());
+            }
+        }
+        for (Module module : modules) {
+            if (module.isArchive()) {
+                files.add(module.getRootDirectory());
+            } else {
+                files.add(module.getRootDirectory() + Module.METADATA_FILE);
+                files.add(new File(module.getRootDirectory(), "lib").getAbsolutePath());
+            }
+            for (String path : module.getClassPath()) {
+                if (!path.startsWith(ModuleArchive.PROTOCOL + ":")) files.add(path);
+            }
+        }
+
+        // 在创建临时文件之前列出模块安装目录，临时文件可能位于其中
+        List<String[]> listings = new ArrayList<String[]>();
+        for (File directory : modulesDirectory) {
+            listings.add(list(directory));
+        }
+
+        File tempFile = null;
+        try {
+            // 写入临时文件后改名，保存中途退出时不会留下不完整的快照
+            tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                out.writeUTF(disabled);
+                out.writeInt(modulesDirectory.size());
+                for (int i = 0; i < modulesDirectory.size(); i++) {
+                    File directory = modulesDirectory.get(i);
+                    String[] names = listings.get(i);
+                    out.writeUTF(directory.getAbsolutePath());
+                    out.writeInt(names.length);
+                    for (String name : names) {
+                        out.writeUTF(name);
+                    }
+                }
+                out.writeInt(files.size());
+                for (String path : files) {
+                    File f = new File(path);
+                    out.writeUTF(path);
+                    out.writeLong(f.length());
+                    out.writeLong(f.lastModified());
+                }
+                out.writeInt(modules.size());
+                for (Module module : modules) {
+                    out.writeUTF(module.getRootDirectory());
+                    out.writeInt(module.getLevel());
+                    out.writeBoolean(module.isEnabled());
+                    out.writeInt(module.getClassPath().size());
+                    for (String path : module.getClassPath()) {
+                        out.writeUTF(path);
+                    }
+                    Properties metadata = module.getMetadata();
+                    out.writeInt(metadata.size());
+                    for (Map.Entry<Object,Object> e : metadata.entrySet()) {
+                        out.writeUTF((String) e.getKey());
+                        out.writeUTF((String) e.getValue());
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+                throw new IOException("无法将临时文件 " + tempFile.getName() + " 改名");
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "保存启动快照文件 " + file.getAbsolutePath() + " 时出错", e);
+            if (tempFile != null) tempFile.delete();
+            file.delete();
+        }
+    }
+
+    /**
+     * 列出目录的内容
+     * 
+     * @return 排序后的文件名。目录不存在时，返回空数组
+     */
+    private static String[] list(File directory) {
+        String[] names = directory.list();
+        if (names == null) return new String[0];
+        Arrays.sort(names);
+        return names;
+    }
+
+}
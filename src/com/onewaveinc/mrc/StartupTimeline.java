@@ -0,0 +1,222 @@
+package com.onewaveinc.mrc;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * MRC 启动时间线。记录启动过程中每个阶段的耗时，以及每个模块在 prepare / resolve / start 阶段的耗时。
+ * 并行通知模块时，可能被多个线程同时记录。MRC 停止时，同样以时间线记录每个模块在 stop 阶段的耗时
+ */
+public class StartupTimeline {
+
+    /**
+     * 时间线中的一项
+     */
+    public static class Entry {
+
+        private final long durationNanos;
+
+        private final String module;
+
+        private final String phase;
+
+        private final long startNanos;
+
+        private final String thread;
+
+        Entry(String phase, String module, long startNanos, long durationNanos, String thread) {
+            this.phase = phase;
+            this.module = module;
+            this.startNanos = startNanos;
+            this.durationNanos = durationNanos;
+            this.thread = thread;
+        }
+
+        /**
+         * 获取耗时
+         * 
+         * @return 耗时，单位纳秒
+         */
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        /**
+         * 获取模块
+         * 
+         * @return 模块 ID 和版本。阶段本身的耗时为 null
+         */
+        public String getModule() {
+            return module;
+        }
+
+        public String getPhase() {
+            return phase;
+        }
+
+        /**
+         * 获取开始时间
+         * 
+         * @return 相对于 MRC 启动开始的时间，单位纳秒
+         */
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        public String getThread() {
+            return thread;
+        }
+
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    private volatile long endNanos = -1;
+
+    private final long startNanos = System.nanoTime();
+
+    private final long startTime = System.currentTimeMillis();
+
+    /**
+     * 开始计时
+     * 
+     * @return 开始时间，作为 {@link #end(String, Module, long)} 的参数
+     */
+    long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * 记录一个阶段的耗时
+     * 
+     * @param phase 阶段名
+     * @param begin {@link #begin()} 返回的开始时间
+     */
+    void end(String phase, long begin) {
+        end(phase, null, begin);
+    }
+
+    /**
+     * 记录一个模块在一个阶段中的耗时
+     * 
+     * @param phase 阶段名
+     * @param module 模块。为 null 时记录阶段本身的耗时
+     * @param begin {@link #begin()} 返回的开始时间
+     */
+    void end(String phase, Module module, long begin) {
+        Entry entry = new Entry(phase, module == null ? null : module.getId() + '/' + module.getVersion(), begin - startNanos,
+                System.nanoTime() - begin, Thread.currentThread().getName());
+        synchronized (entries) {
+            entries.add(entry);
+        }
+    }
+
+    /**
+     * 结束时间线
+     */
+    void finish() {
+        if (endNanos == -1) endNanos = System.nanoTime();
+    }
+
+    /**
+     * 获取时间线中的所有项
+     * 
+     * @return 按开始时间排列的列表
+     */
+    public List<Entry> getEntries() {
+        List<Entry> result;
+        synchronized (entries) {
+            result = new ArrayList<Entry>(entries);
+        }
+        Collections.sort(result, new Comparator<Entry>() {
+            public int compare(Entry o1, Entry o2) {
+                return o1.startNanos < o2.startNanos ? -1 : (o1.startNanos == o2.startNanos ? 0 : 1);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 获取 MRC 启动开始的时间
+     * 
+     * @return 自 1970-01-01 00:00:00 GMT 以来的毫秒数
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * 获取启动总耗时
+     * 
+     * @return 总耗时，单位纳秒。启动尚未结束时，返回到目前为止的耗时
+     */
+    public long getTotalNanos() {
+        long end = endNanos;
+        return (end == -1 ? System.nanoTime() : end) - startNanos;
+    }
+
+    /**
+     * 判断启动是否已结束
+     * 
+     * @return 启动已结束（不论成功或失败）时，返回 true
+     */
+    public boolean isFinished() {
+        return endNanos != -1;
+    }
+
+    /**
+     * 以 JSON 格式输出时间线。时间的单位均为毫秒
+     * 
+     * @param out 输出
+     * @throws IOException
+     */
+    public void writeJson(Writer out) throws IOException {
+        out.write("{\"startTime\":" + startTime);
+        out.write(",\"totalMillis\":" + toMillis(getTotalNanos()));
+        out.write(",\"finished\":" + isFinished());
+        out.write(",\"entries\":[");
+        boolean first = true;
+        for (Entry entry : getEntries()) {
+            if (!first) out.write(',');
+            first = false;
+            out.write("{\"phase\":");
+            writeString(entry.phase, out);
+            if (entry.module != null) {
+                out.write(",\"module\":");
+                writeString(entry.module, out);
+            }
+            out.write(",\"startMillis\":" + toMillis(entry.startNanos));
+            out.write(",\"durationMillis\":" + toMillis(entry.durationNanos));
+            out.write(",\"thread\":");
+            writeString(entry.thread, out);
+            out.write('}');
+        }
+        out.write("]}");
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1000000.0);
+    }
+
+    private static void writeString(String s, Writer out) throws IOException {
+        out.write('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+
+}
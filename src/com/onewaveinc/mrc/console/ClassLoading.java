@@ -0,0 +1,156 @@
+package com.onewaveinc.mrc.console;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+
+import com.onewaveinc.mrc.ClassLoadingMetrics;
+import com.onewaveinc.mrc.ModuleContext;
+import com.onewaveinc.mrc.ModuleContextClassLoader;
+
+/**
+ * 类装载统计 MBean，注册为 com.onewaveinc.mrc.console:type=ClassLoading
+ */
+public class ClassLoading implements ClassLoadingMBean {
+
+    private static final String LF = "\n";
+
+    private static final int NANOS_PER_MILLI = 1000000;
+
+    private ModuleContext moduleContext;
+
+    public ClassLoading(ModuleContext moduleContext) {
+        this.moduleContext = moduleContext;
+    }
+
+    public long getBytesRead() {
+        long result = 0;
+        for (ClassLoadingMetrics.Counters c : getAllCounters()) {
+            result += c.getBytes();
+        }
+        return result;
+    }
+
+    public long getClassesLoaded() {
+        long result = 0;
+        for (ClassLoadingMetrics.Counters c : getAllCounters()) {
+            result += c.getClasses();
+        }
+        return result;
+    }
+
+    public long getDefineTimeMillis() {
+        long result = 0;
+        for (ClassLoadingMetrics.Counters c : getAllCounters()) {
+            result += c.getDefineTime().getTotalNanos();
+        }
+        return result / NANOS_PER_MILLI;
+    }
+
+    public long getFilterTimeMillis() {
+        long result = 0;
+        for (ClassLoadingMetrics.Counters c : getAllCounters()) {
+            result += c.getFilterTime().getTotalNanos();
+        }
+        return result / NANOS_PER_MILLI;
+    }
+
+    public long getIoTimeMillis() {
+        long result = 0;
+        for (ClassLoadingMetrics.Counters c : getAllCounters()) {
+            result += c.getIoTime().getTotalNanos();
+        }
+        return result / NANOS_PER_MILLI;
+    }
+
+    public long getLookupMisses() {
+        long result = 0;
+        for (ClassLoadingMetrics.Counters c : getAllCounters()) {
+            result += c.getMisses();
+        }
+        return result;
+    }
+
+    public String getReport() {
+        StringWriter out = new StringWriter();
+        try {
+            writeReport(getMetrics(), out);
+        } catch (IOException ignore) {}
+        return out.toString();
+    }
+
+    public String[] getSources() {
+        List<ClassLoadingMetrics.Counters> counters = getAllCounters();
+        String[] sources = new String[counters.size()];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = counters.get(i).getSource();
+        }
+        return sources;
+    }
+
+    public String histogram(String source) {
+        StringWriter out = new StringWriter();
+        try {
+            writeHistogram(getMetrics(), source, out);
+        } catch (IOException ignore) {}
+        return out.toString();
+    }
+
+    public void reset() {
+        ClassLoadingMetrics metrics = getMetrics();
+        if (metrics != null) metrics.reset();
+    }
+
+    private List<ClassLoadingMetrics.Counters> getAllCounters() {
+        ClassLoadingMetrics metrics = getMetrics();
+        return metrics == null ? Collections.<ClassLoadingMetrics.Counters>emptyList() : metrics.getAllCounters();
+    }
+
+    private ClassLoadingMetrics getMetrics() {
+        ModuleContextClassLoader classLoader = moduleContext.getClassLoader();
+        return classLoader == null ? null : classLoader.getMetrics();
+    }
+
+    /**
+     * 输出各来源的统计汇总，按总耗时从高到低排列
+     */
+    static void writeReport(ClassLoadingMetrics metrics, Writer out) throws IOException {
+        if (metrics == null) {
+            out.write("类装载器尚未创建" + LF);
+            return;
+        }
+        out.write(String.format("%-30s %8s %12s %10s %10s %10s %8s" + LF, "来源", "类数", "字节数", "读取(ms)", "过滤(ms)", "定义(ms)", "未命中"));
+        for (ClassLoadingMetrics.Counters c : metrics.getAllCounters()) {
+            out.write(String.format("%-30s %8d %12d %10.1f %10.1f %10.1f %8d" + LF, c.getSource(), c.getClasses(), c.getBytes(),
+                    toMillis(c.getIoTime()), toMillis(c.getFilterTime()), toMillis(c.getDefineTime()), c.getMisses()));
+        }
+    }
+
+    /**
+     * 输出指定来源的耗时直方图
+     */
+    static void writeHistogram(ClassLoadingMetrics metrics, String source, Writer out) throws IOException {
+        ClassLoadingMetrics.Counters c = metrics == null ? null : metrics.getCounters(source);
+        if (c == null) {
+            out.write("没有来源 " + source + " 的统计数据" + LF);
+            return;
+        }
+        out.write(String.format("%-12s %10s %10s %10s" + LF, "耗时(us)", "读取", "过滤", "定义"));
+        for (int i = 0; i < ClassLoadingMetrics.Histogram.BUCKETS; i++) {
+            long io = c.getIoTime().getCount(i);
+            long filter = c.getFilterTime().getCount(i);
+            long define = c.getDefineTime().getCount(i);
+            if (io == 0 && filter == 0 && define == 0) continue;
+            out.write(String.format("%-12s %10d %10d %10d" + LF, "< " + (1L << i), io, filter, define));
+        }
+        out.write(String.format("%-12s %10d %10d %10d" + LF, "p99", c.getIoTime().getPercentileMicros(99),
+                c.getFilterTime().getPercentileMicros(99), c.getDefineTime().getPercentileMicros(99)));
+    }
+
+    private static double toMillis(ClassLoadingMetrics.Histogram histogram) {
+        return histogram.getTotalNanos() / (double) NANOS_PER_MILLI;
+    }
+
+}
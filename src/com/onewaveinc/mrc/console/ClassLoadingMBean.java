@@ -0,0 +1,25 @@
+package com.onewaveinc.mrc.console;
+
+public interface ClassLoadingMBean {
+
+    long getClassesLoaded();
+
+    long getBytesRead();
+
+    long getIoTimeMillis();
+
+    long getFilterTimeMillis();
+
+    long getDefineTimeMillis();
+
+    long getLookupMisses();
+
+    String[] getSources();
+
+    String getReport();
+
+    String histogram(String source);
+
+    void reset();
+
+}
@@ -130,6 +130,14 @@ public class Console implements ConsoleMBean {
     
     private static boolean mbeanRegistered;
     
+    private static final String CLASS_LOADING_MBEAN_NAME = "com.onewaveinc.mrc.console:type=ClassLoading";
+    
+    private static boolean classLoadingMBeanRegistered;
+    
+    private static final String STARTUP_MBEAN_NAME = "com.onewaveinc.mrc.console:type=Startup";
+    
+    private static boolean startupMBeanRegistered;
+    
     /**
      * 启动控制台服务
      */
@@ -153,6 +161,20 @@ public class Console implements ConsoleMBean {
         } catch (JMException e) {
             logger.log(Level.SEVERE, "控制台服务注册为MBean时出错", e);
         }
+        
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new ClassLoading(moduleContext), new ObjectName(CLASS_LOADING_MBEAN_NAME));
+            classLoadingMBeanRegistered = true;
+        } catch (JMException e) {
+            logger.log(Level.SEVERE, "类装载统计注册为MBean时出错", e);
+        }
+        
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Startup(moduleContext), new ObjectName(STARTUP_MBEAN_NAME));
+            startupMBeanRegistered = true;
+        } catch (JMException e) {
+            logger.log(Level.SEVERE, "启动时间线注册为MBean时出错", e);
+        }
     }
     
     /**
@@ -175,6 +197,24 @@ public class Console implements ConsoleMBean {
                 logger.log(Level.SEVERE, "控制台服务MBean注销时出错", e);
             }
         }
+        
+        if (classLoadingMBeanRegistered) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(CLASS_LOADING_MBEAN_NAME));
+                classLoadingMBeanRegistered = false;
+            } catch (JMException e) {
+                logger.log(Level.SEVERE, "类装载统计MBean注销时出错", e);
+            }
+        }
+        
+        if (startupMBeanRegistered) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(STARTUP_MBEAN_NAME));
+                startupMBeanRegistered = false;
+            } catch (JMException e) {
+                logger.log(Level.SEVERE, "启动时间线MBean注销时出错", e);
+            }
+        }
     }
     
 }
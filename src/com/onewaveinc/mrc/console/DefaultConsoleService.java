@@ -3,6 +3,8 @@ package com.onewaveinc.mrc.console;
 import java.io.IOException;
 import java.io.Writer;
 
+import com.onewaveinc.mrc.ClassLoadingMetrics;
+import com.onewaveinc.mrc.ClassTransformCache;
 import com.onewaveinc.mrc.Module;
 import com.onewaveinc.mrc.ModuleContext;
 
@@ -30,6 +32,36 @@ public class DefaultConsoleService implements ConsoleService {
                 out.write(String.format("%-30s %-12s %s" + LF, module.getId(), module.getVersion(), module.getRootDirectory()));
             }
             return true;
+        } else if ("filtercache".equals(command)) {
+            ClassTransformCache cache = moduleContext.getClassLoader() == null ? null : moduleContext.getClassLoader().getTransformCache();
+            if (cache == null) {
+                out.write("类过滤器缓存未启用" + LF);
+            } else if (parts.length > 1 && "purge".equals(parts[1])) {
+                out.write(String.format("已清空类过滤器缓存，删除文件数：%d" + LF, cache.purge()));
+            } else {
+                out.write(String.format("缓存目录：%s" + LF, cache.getDirectory().getAbsolutePath()));
+                out.write(String.format("命中：%d 未命中：%d" + LF, cache.getHits(), cache.getMisses()));
+            }
+            return true;
+        } else if ("classes".equals(command)) {
+            ClassLoadingMetrics metrics = moduleContext.getClassLoader() == null ? null : moduleContext.getClassLoader().getMetrics();
+            if (parts.length > 1 && "reset".equals(parts[1])) {
+                if (metrics != null) metrics.reset();
+                out.write("已清空类装载统计" + LF);
+            } else if (parts.length > 1) {
+                ClassLoading.writeHistogram(metrics, parts[1], out);
+            } else {
+                ClassLoading.writeReport(metrics, out);
+            }
+            return true;
+        } else if ("startup".equals(command)) {
+            if (parts.length > 1 && "json".equals(parts[1])) {
+                moduleContext.getStartupTimeline().writeJson(out);
+                out.write(LF);
+            } else {
+                Startup.writeReport(moduleContext.getStartupTimeline(), parts.length > 1 ? parts[1] : null, out);
+            }
+            return true;
         }
         
         return false;
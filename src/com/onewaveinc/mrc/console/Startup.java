@@ -0,0 +1,134 @@
+package com.onewaveinc.mrc.console;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.onewaveinc.mrc.ModuleContext;
+import com.onewaveinc.mrc.StartupTimeline;
+
+/**
+ * 启动时间线 MBean，注册为 com.onewaveinc.mrc.console:type=Startup
+ */
+public class Startup implements StartupMBean {
+
+    private static final String LF = "\n";
+
+    private static final int NANOS_PER_MILLI = 1000000;
+
+    /**
+     * 报告中每个阶段列出的最慢模块数
+     */
+    private static final int SLOWEST_MODULES = 10;
+
+    private ModuleContext moduleContext;
+
+    public Startup(ModuleContext moduleContext) {
+        this.moduleContext = moduleContext;
+    }
+
+    public String getJson() {
+        StringWriter out = new StringWriter();
+        try {
+            moduleContext.getStartupTimeline().writeJson(out);
+        } catch (IOException ignore) {}
+        return out.toString();
+    }
+
+    public String[] getPhases() {
+        List<String> result = new ArrayList<String>();
+        for (StartupTimeline.Entry entry : moduleContext.getStartupTimeline().getEntries()) {
+            if (entry.getModule() != null) continue;
+            result.add(String.format("%s: %.1f ms", entry.getPhase(), toMillis(entry.getDurationNanos())));
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    public String getReport() {
+        StringWriter out = new StringWriter();
+        try {
+            writeReport(moduleContext.getStartupTimeline(), null, out);
+        } catch (IOException ignore) {}
+        return out.toString();
+    }
+
+    public long getStartTime() {
+        return moduleContext.getStartupTimeline().getStartTime();
+    }
+
+    public long getTotalTimeMillis() {
+        return moduleContext.getStartupTimeline().getTotalNanos() / NANOS_PER_MILLI;
+    }
+
+    /**
+     * 输出启动时间线。未指定阶段时，输出各阶段耗时以及每个阶段中最慢的模块；指定阶段时，输出该阶段中所有模块的耗时
+     * 
+     * @param timeline 启动时间线
+     * @param phase 阶段名，可以为 null
+     * @param out 输出
+     * @throws IOException
+     */
+    static void writeReport(StartupTimeline timeline, String phase, Writer out) throws IOException {
+        List<StartupTimeline.Entry> phases = new ArrayList<StartupTimeline.Entry>();
+        Map<String,List<StartupTimeline.Entry>> modules = new LinkedHashMap<String,List<StartupTimeline.Entry>>();
+        for (StartupTimeline.Entry entry : timeline.getEntries()) {
+            if (entry.getModule() == null) {
+                phases.add(entry);
+            } else {
+                List<StartupTimeline.Entry> entries = modules.get(entry.getPhase());
+                if (entries == null) {
+                    entries = new ArrayList<StartupTimeline.Entry>();
+                    modules.put(entry.getPhase(), entries);
+                }
+                entries.add(entry);
+            }
+        }
+        for (List<StartupTimeline.Entry> entries : modules.values()) {
+            Collections.sort(entries, new Comparator<StartupTimeline.Entry>() {
+                public int compare(StartupTimeline.Entry o1, StartupTimeline.Entry o2) {
+                    return o1.getDurationNanos() > o2.getDurationNanos() ? -1 : (o1.getDurationNanos() == o2.getDurationNanos() ? 0 : 1);
+                }
+            });
+        }
+
+        if (phase != null) {
+            List<StartupTimeline.Entry> entries = modules.get(phase);
+            if (entries == null) {
+                out.write("没有阶段 " + phase + " 的模块耗时" + LF);
+                return;
+            }
+            writeModules(entries, entries.size(), out);
+            return;
+        }
+
+        out.write(String.format("启动%s，总耗时：%.1f ms" + LF, timeline.isFinished() ? "已结束" : "进行中", toMillis(timeline.getTotalNanos())));
+        out.write(String.format("%-16s %10s %10s" + LF, "阶段", "开始(ms)", "耗时(ms)"));
+        for (StartupTimeline.Entry entry : phases) {
+            out.write(String.format("%-16s %10.1f %10.1f" + LF, entry.getPhase(), toMillis(entry.getStartNanos()), toMillis(entry.getDurationNanos())));
+        }
+        for (Map.Entry<String,List<StartupTimeline.Entry>> e : modules.entrySet()) {
+            out.write(LF + e.getKey() + " 阶段最慢的模块：" + LF);
+            writeModules(e.getValue(), SLOWEST_MODULES, out);
+        }
+    }
+
+    private static void writeModules(List<StartupTimeline.Entry> entries, int limit, Writer out) throws IOException {
+        out.write(String.format("%-40s %10s %10s %s" + LF, "模块", "开始(ms)", "耗时(ms)", "线程"));
+        for (int i = 0; i < entries.size() && i < limit; i++) {
+            StartupTimeline.Entry entry = entries.get(i);
+            out.write(String.format("%-40s %10.1f %10.1f %s" + LF, entry.getModule(), toMillis(entry.getStartNanos()),
+                    toMillis(entry.getDurationNanos()), entry.getThread()));
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) NANOS_PER_MILLI;
+    }
+
+}
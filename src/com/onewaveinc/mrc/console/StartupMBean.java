@@ -0,0 +1,15 @@
+package com.onewaveinc.mrc.console;
+
+public interface StartupMBean {
+
+    long getStartTime();
+
+    long getTotalTimeMillis();
+
+    String[] getPhases();
+
+    String getReport();
+
+    String getJson();
+
+}
@@ -16,6 +16,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import com.onewaveinc.mrc.ModuleContext;
+import com.onewaveinc.mrc.ServiceReference;
 
 /**
  * 桥接过滤器，用于把 HTTP 请求转换成对注册的 HTTPService 的实现类的调用
@@ -24,15 +25,40 @@ import com.onewaveinc.mrc.ModuleContext;
  */
 public class ModuleBridgeFilter implements Filter {
 
+    /**
+     * MRC 及其 HTTP 服务的服务引用
+     */
+    private static class Services {
+
+        final ServiceReference<HttpService> httpService;
+
+        final ServiceReference<String> httpStaticContent;
+
+        final ModuleContext moduleContext;
+
+        Services(ModuleContext moduleContext) {
+            this.moduleContext = moduleContext;
+            this.httpService = moduleContext.getServiceRegistry().getReference(WebServices.HTTP_SERVICE);
+            this.httpStaticContent = moduleContext.getServiceRegistry().getReference(WebServices.HTTP_STATIC_CONTENT);
+        }
+
+    }
+
     public static final String ATTRIBUTE_ORIGINAL_CLASSLOADER = "com.onewaveinc.mrc.web.ModuleBridgeFilter.original_classloader";
 
     private String dispatcher;
 
     private ServletContext servletContext;
 
+    /**
+     * 缓存的服务引用，MRC 实例变化时重新获取
+     */
+    private volatile Services services;
+
     public void destroy() {
         dispatcher = null;
         servletContext = null;
+        services = null;
     }
 
     public void doFilter(ServletRequest _request, ServletResponse _response, FilterChain chain) throws IOException, ServletException {
@@ -53,8 +79,13 @@ public class ModuleBridgeFilter implements Filter {
                 return;
             }
 
-            // 从 MRC 属性中获取注册的 HTTPService 实例
-            HttpService service = (HttpService) moduleContext.getAttribute(ModuleContext.Attributes.HTTP_SERVICE);
+            // 从服务引用中获取注册的 HTTPService 实例
+            Services services = this.services;
+            if (services == null || services.moduleContext != moduleContext) {
+                services = new Services(moduleContext);
+                this.services = services;
+            }
+            HttpService service = services.httpService.get();
             if (service != null) {
                 Thread thread = Thread.currentThread();
                 ClassLoader original = thread.getContextClassLoader();
@@ -68,7 +99,7 @@ public class ModuleBridgeFilter implements Filter {
                 }
             } else {
                 // 缺少注册的 HTTPService，无法处理 HTTP 请求
-                String staticContent = (String) moduleContext.getAttribute(ModuleContext.Attributes.HTTP_STATIC_CONTENT);
+                String staticContent = services.httpStaticContent.get();
                 if (staticContent != null) {
                     // 有模块提供了静态页面内容来说明原因，输出此内容
                     render(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE, new ByteArrayInputStream(staticContent.getBytes("UTF-8")));
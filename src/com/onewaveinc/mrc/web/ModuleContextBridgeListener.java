@@ -14,6 +14,8 @@ import javax.servlet.http.HttpSessionEvent;
 import javax.servlet.http.HttpSessionListener;
 
 import com.onewaveinc.mrc.ModuleContext;
+import com.onewaveinc.mrc.ServiceReference;
+import com.onewaveinc.mrc.ServiceRegistry;
 
 /**
  * 桥接 Listener，用于将外部 Web 容器的事件转发到在 MRC 内注册的监听器
@@ -22,67 +24,76 @@ import com.onewaveinc.mrc.ModuleContext;
  */
 public class ModuleContextBridgeListener implements ServletContextListener, ServletContextAttributeListener, ServletRequestAttributeListener, ServletRequestListener, HttpSessionListener, HttpSessionAttributeListener {
     
-    private ServletContextAttributeListener servletContextAttributeListener;
+    private volatile ServiceReference<ServletContextAttributeListener> servletContextAttributeListener;
     
-    private ServletRequestAttributeListener servletRequestAttributeListener;
+    private volatile ServiceReference<ServletRequestAttributeListener> servletRequestAttributeListener;
     
-    private ServletRequestListener servletRequestListener;
+    private volatile ServiceReference<ServletRequestListener> servletRequestListener;
 
-    private HttpSessionAttributeListener sessionAttributeListener;
+    private volatile ServiceReference<HttpSessionAttributeListener> sessionAttributeListener;
     
-    private HttpSessionListener sessionListener;
+    private volatile ServiceReference<HttpSessionListener> sessionListener;
     
     public void attributeAdded(HttpSessionBindingEvent e) {
-        if (sessionAttributeListener != null) {
-            sessionAttributeListener.attributeAdded(e);
+        HttpSessionAttributeListener listener = get(sessionAttributeListener);
+        if (listener != null) {
+            listener.attributeAdded(e);
         }
     }
 
     public void attributeAdded(ServletContextAttributeEvent e) {
-        if (servletContextAttributeListener != null) {
-            servletContextAttributeListener.attributeAdded(e);
+        ServletContextAttributeListener listener = get(servletContextAttributeListener);
+        if (listener != null) {
+            listener.attributeAdded(e);
         }
     }
 
     public void attributeAdded(ServletRequestAttributeEvent e) {
-        if (servletRequestAttributeListener != null) {
-            servletRequestAttributeListener.attributeAdded(e);
+        ServletRequestAttributeListener listener = get(servletRequestAttributeListener);
+        if (listener != null) {
+            listener.attributeAdded(e);
         }
     }
 
     public void attributeRemoved(HttpSessionBindingEvent e) {
-        if (sessionAttributeListener != null) {
-            sessionAttributeListener.attributeRemoved(e);
+        HttpSessionAttributeListener listener = get(sessionAttributeListener);
+        if (listener != null) {
+            listener.attributeRemoved(e);
         }
     }
     
     public void attributeRemoved(ServletContextAttributeEvent e) {
-        if (servletContextAttributeListener != null) {
-            servletContextAttributeListener.attributeRemoved(e);
+        ServletContextAttributeListener listener = get(servletContextAttributeListener);
+        if (listener != null) {
+            listener.attributeRemoved(e);
         }
     }
     
     public void attributeRemoved(ServletRequestAttributeEvent e) {
-        if (servletRequestAttributeListener != null) {
-            servletRequestAttributeListener.attributeRemoved(e);
+        ServletRequestAttributeListener listener = get(servletRequestAttributeListener);
+        if (listener != null) {
+            listener.attributeRemoved(e);
         }
     }
 
     public void attributeReplaced(HttpSessionBindingEvent e) {
-        if (sessionAttributeListener != null) {
-            sessionAttributeListener.attributeReplaced(e);
+        HttpSessionAttributeListener listener = get(sessionAttributeListener);
+        if (listener != null) {
+            listener.attributeReplaced(e);
         }
     }
 
     public void attributeReplaced(ServletContextAttributeEvent e) {
-        if (servletContextAttributeListener != null) {
-            servletContextAttributeListener.attributeReplaced(e);
+        ServletContextAttributeListener listener = get(servletContextAttributeListener);
+        if (listener != null) {
+            listener.attributeReplaced(e);
         }
     }
     
     public void attributeReplaced(ServletRequestAttributeEvent e) {
-        if (servletRequestAttributeListener != null) {
-            servletRequestAttributeListener.attributeReplaced(e);
+        ServletRequestAttributeListener listener = get(servletRequestAttributeListener);
+        if (listener != null) {
+            listener.attributeReplaced(e);
         }
     }
     
@@ -95,35 +106,45 @@ public class ModuleContextBridgeListener implements ServletContextListener, Serv
     }
 
     public void contextInitialized(ServletContextEvent e) {
+        // 持有服务引用，模块在此之后注册或更换的监听器同样生效
         ModuleContext moduleContext = (ModuleContext) e.getServletContext().getAttribute(ModuleContext.SERVLET_CONTEXT_ATTRIBUTE);
-        servletContextAttributeListener = (ServletContextAttributeListener) moduleContext.getAttribute(ModuleContext.Attributes.SERVLET_CONTEXT_ATTRIBUTE_LISTENER);
-        servletRequestAttributeListener = (ServletRequestAttributeListener) moduleContext.getAttribute(ModuleContext.Attributes.SERVLET_REQUEST_ATTRIBUTE_LISTENER);
-        servletRequestListener = (ServletRequestListener) moduleContext.getAttribute(ModuleContext.Attributes.SERVLET_REQUEST_LISTENER);
-        sessionAttributeListener = (HttpSessionAttributeListener) moduleContext.getAttribute(ModuleContext.Attributes.HTTP_SESSION_ATTRIBUTE_LISTENER);
-        sessionListener = (HttpSessionListener) moduleContext.getAttribute(ModuleContext.Attributes.HTTP_SESSION_LISTENER);
+        ServiceRegistry serviceRegistry = moduleContext.getServiceRegistry();
+        servletContextAttributeListener = serviceRegistry.getReference(WebServices.SERVLET_CONTEXT_ATTRIBUTE_LISTENER);
+        servletRequestAttributeListener = serviceRegistry.getReference(WebServices.SERVLET_REQUEST_ATTRIBUTE_LISTENER);
+        servletRequestListener = serviceRegistry.getReference(WebServices.SERVLET_REQUEST_LISTENER);
+        sessionAttributeListener = serviceRegistry.getReference(WebServices.HTTP_SESSION_ATTRIBUTE_LISTENER);
+        sessionListener = serviceRegistry.getReference(WebServices.HTTP_SESSION_LISTENER);
+    }
+
+    private static <T> T get(ServiceReference<T> reference) {
+        return reference == null ? null : reference.get();
     }
 
     public void requestDestroyed(ServletRequestEvent e) {
-        if (servletRequestListener != null) {
-            servletRequestListener.requestDestroyed(e);
+        ServletRequestListener listener = get(servletRequestListener);
+        if (listener != null) {
+            listener.requestDestroyed(e);
         }
     }
     
     public void requestInitialized(ServletRequestEvent e) {
-        if (servletRequestListener != null) {
-            servletRequestListener.requestInitialized(e);
+        ServletRequestListener listener = get(servletRequestListener);
+        if (listener != null) {
+            listener.requestInitialized(e);
         }
     }
 
     public void sessionCreated(HttpSessionEvent e) {
-        if (sessionListener != null) {
-            sessionListener.sessionCreated(e);
+        HttpSessionListener listener = get(sessionListener);
+        if (listener != null) {
+            listener.sessionCreated(e);
         }
     }
 
     public void sessionDestroyed(HttpSessionEvent e) {
-        if (sessionListener != null) {
-            sessionListener.sessionDestroyed(e);
+        HttpSessionListener listener = get(sessionListener);
+        if (listener != null) {
+            listener.sessionDestroyed(e);
         }
     }
 
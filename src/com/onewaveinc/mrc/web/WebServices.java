@@ -0,0 +1,38 @@
+package com.onewaveinc.mrc.web;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextAttributeListener;
+import javax.servlet.ServletRequestAttributeListener;
+import javax.servlet.ServletRequestListener;
+import javax.servlet.http.HttpSessionAttributeListener;
+import javax.servlet.http.HttpSessionListener;
+
+import com.onewaveinc.mrc.ModuleContext;
+import com.onewaveinc.mrc.ServiceKey;
+
+/**
+ * WEB 环境下的服务键。名称与 {@link ModuleContext.Attributes} 中的属性名相同，以属性方式设置的值同样可以通过服务键获取
+ */
+public interface WebServices {
+
+    ServiceKey<HttpService> HTTP_SERVICE = ServiceKey.of(ModuleContext.Attributes.HTTP_SERVICE, HttpService.class);
+
+    ServiceKey<HttpSessionAttributeListener> HTTP_SESSION_ATTRIBUTE_LISTENER = ServiceKey.of(
+            ModuleContext.Attributes.HTTP_SESSION_ATTRIBUTE_LISTENER, HttpSessionAttributeListener.class);
+
+    ServiceKey<HttpSessionListener> HTTP_SESSION_LISTENER = ServiceKey.of(ModuleContext.Attributes.HTTP_SESSION_LISTENER, HttpSessionListener.class);
+
+    ServiceKey<String> HTTP_STATIC_CONTENT = ServiceKey.of(ModuleContext.Attributes.HTTP_STATIC_CONTENT, String.class);
+
+    ServiceKey<ServletContext> SERVLET_CONTEXT = ServiceKey.of(ModuleContext.Attributes.SERVLET_CONTEXT, ServletContext.class);
+
+    ServiceKey<ServletContextAttributeListener> SERVLET_CONTEXT_ATTRIBUTE_LISTENER = ServiceKey.of(
+            ModuleContext.Attributes.SERVLET_CONTEXT_ATTRIBUTE_LISTENER, ServletContextAttributeListener.class);
+
+    ServiceKey<ServletRequestAttributeListener> SERVLET_REQUEST_ATTRIBUTE_LISTENER = ServiceKey.of(
+            ModuleContext.Attributes.SERVLET_REQUEST_ATTRIBUTE_LISTENER, ServletRequestAttributeListener.class);
+
+    ServiceKey<ServletRequestListener> SERVLET_REQUEST_LISTENER = ServiceKey.of(ModuleContext.Attributes.SERVLET_REQUEST_LISTENER,
+            ServletRequestListener.class);
+
+}
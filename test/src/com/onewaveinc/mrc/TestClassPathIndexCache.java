@@ -0,0 +1,126 @@
+package com.onewaveinc.mrc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestClassPathIndexCache {
+
+	private File directory;
+
+	private File cacheFile;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("mrc-index-cache", "");
+		directory.delete();
+		directory.mkdirs();
+		cacheFile = new File(directory, "mrc-classpath.idx");
+	}
+
+	@After
+	public void tearDown() {
+		TestModuleContextClassLoader.delete(directory);
+	}
+
+	@Test
+	public void testReuseAfterRestart() throws Exception {
+		File jar = new File(directory, "a.jar");
+		writeJar(jar, "a/A.class", "a/b/B.class");
+
+		ClassPathIndexCache cache = new ClassPathIndexCache(cacheFile);
+		cache.load();
+		Assert.assertTrue(newIndex(cache, jar).hasPackage("a/b/"));
+		cache.store();
+		Assert.assertTrue(cacheFile.isFile());
+
+		// 重启后直接使用缓存的包，不再打开 jar 文件
+		cache = new ClassPathIndexCache(cacheFile);
+		cache.load();
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("a/", "a/b/")), cache.get(jar));
+
+		// 以伪造的缓存项验证索引确实来自缓存
+		cache.put(jar, Collections.singleton("cached/"));
+		ClassPathIndex index = newIndex(cache, jar);
+		Assert.assertTrue(index.hasPackage("cached/"));
+		Assert.assertFalse(index.hasPackage("a/"));
+	}
+
+	@Test
+	public void testChangedJarIsRescanned() throws Exception {
+		File jar = new File(directory, "a.jar");
+		writeJar(jar, "a/A.class");
+		ClassPathIndexCache cache = new ClassPathIndexCache(cacheFile);
+		newIndex(cache, jar);
+		cache.put(jar, Collections.singleton("cached/"));
+		cache.store();
+
+		// 大小和修改时间发生变化的 jar 文件重新扫描
+		long lastModified = jar.lastModified();
+		writeJar(jar, "a/A.class", "c/C.class");
+		jar.setLastModified(lastModified + 2000);
+		cache = new ClassPathIndexCache(cacheFile);
+		cache.load();
+		Assert.assertNull(cache.get(jar));
+		ClassPathIndex index = newIndex(cache, jar);
+		Assert.assertFalse(index.hasPackage("cached/"));
+		Assert.assertTrue(index.hasPackage("c/"));
+		cache.store();
+
+		cache = new ClassPathIndexCache(cacheFile);
+		cache.load();
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("a/", "c/")), cache.get(jar));
+		// 缓存文件被替换，不留下临时文件
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("a.jar", "mrc-classpath.idx")), new HashSet<String>(Arrays.asList(directory.list())));
+	}
+
+	@Test
+	public void testDirectoriesAreNotCached() throws Exception {
+		File bin = new File(directory, "bin");
+		TestModuleContextClassLoader.writeClass(bin, "a/A");
+		ClassPathIndexCache cache = new ClassPathIndexCache(cacheFile);
+		cache.put(bin, Collections.singleton("cached/"));
+		Assert.assertNull(cache.get(bin));
+		Assert.assertTrue(newIndex(cache, bin).hasPackage("a/"));
+		cache.store();
+
+		// 目录中增加的包在重启后被找到，即使目录本身的修改时间未变
+		long lastModified = bin.lastModified();
+		TestModuleContextClassLoader.writeClass(new File(bin, "a"), "b/B");
+		bin.setLastModified(lastModified);
+		cache = new ClassPathIndexCache(cacheFile);
+		cache.load();
+		Assert.assertNull(cache.get(bin));
+		Assert.assertTrue(newIndex(cache, bin).hasPackage("a/b/"));
+	}
+
+	private static ClassPathIndex newIndex(ClassPathIndexCache cache, File file) throws IOException {
+		ClassPathIndex index = new ClassPathIndex();
+		index.setCache(cache);
+		index.add(Collections.singletonList(file.toURI().toURL()));
+		return index;
+	}
+
+	private static void writeJar(File jar, String... names) throws IOException {
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+		try {
+			for (String name : names) {
+				out.putNextEntry(new JarEntry(name));
+				out.write(TestModuleContextClassLoader.classData(name.substring(0, name.length() - ".class".length())));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+}
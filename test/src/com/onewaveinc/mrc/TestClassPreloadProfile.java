@@ -0,0 +1,122 @@
+package com.onewaveinc.mrc;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestClassPreloadProfile {
+
+	private static final String MODULES = "a/1.0.0;b/1.0.0;";
+
+	private File a;
+
+	private File b;
+
+	private File directory;
+
+	private File file;
+
+	private List<URL> urls;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("mrc-preload", "");
+		directory.delete();
+		a = new File(directory, "a");
+		b = new File(directory, "b");
+		TestModuleContextClassLoader.writeClass(a, "pre/a/A");
+		TestModuleContextClassLoader.writeClass(b, "pre/b/B");
+		file = new File(directory, "mrc-preload.profile");
+		urls = Arrays.asList(a.toURI().toURL(), b.toURI().toURL());
+		Map<URL,String> owners = Collections.singletonMap(urls.get(0), "a");
+		new ClassPreloadProfile(file).store(urls, owners, MODULES, Arrays.asList("pre.a.A", "pre.b.B"));
+	}
+
+	@After
+	public void tearDown() {
+		TestModuleContextClassLoader.delete(directory);
+	}
+
+	@Test
+	public void testLoadMatchingProfile() {
+		ClassPreloadProfile profile = load();
+		Assert.assertEquals(urls, profile.getURLs());
+		Assert.assertEquals("a", profile.getOwners().get(urls.get(0)));
+		Assert.assertNull(profile.getOwners().get(urls.get(1)));
+		Assert.assertEquals(Arrays.asList("pre.a.A", "pre.b.B"), profile.getClasses());
+		Assert.assertTrue(profile.isUpToDate());
+		Assert.assertTrue(profile.matches(urls, MODULES));
+	}
+
+	@Test
+	public void testModuleSetChanged() throws Exception {
+		ClassPreloadProfile profile = load();
+		// 模块版本发生变化
+		Assert.assertFalse(profile.matches(urls, "a/1.0.0;b/1.1.0;"));
+		// 增加或移除了模块
+		Assert.assertFalse(profile.matches(urls, MODULES + "c/1.0.0;"));
+		List<URL> added = new ArrayList<URL>(urls);
+		added.add(new File(directory, "c").toURI().toURL());
+		Assert.assertFalse(profile.matches(added, MODULES + "c/1.0.0;"));
+		Assert.assertFalse(profile.matches(urls.subList(0, 1), "a/1.0.0;"));
+		// 类路径顺序发生变化
+		Assert.assertFalse(profile.matches(Arrays.asList(urls.get(1), urls.get(0)), MODULES));
+	}
+
+	@Test
+	public void testClassPathFileChanged() throws Exception {
+		// 目录类路径项以目录本身的修改时间判断
+		Assert.assertTrue(b.setLastModified(b.lastModified() - 10000));
+		ClassPreloadProfile profile = load();
+		Assert.assertFalse(profile.isUpToDate());
+		Assert.assertFalse(profile.matches(urls, MODULES));
+	}
+
+	@Test
+	public void testInvalidProfile() throws Exception {
+		TestModuleContextClassLoader.writeFile(file, "invalid");
+		Assert.assertFalse(new ClassPreloadProfile(file).load());
+		Assert.assertFalse(new ClassPreloadProfile(new File(directory, "missing")).load());
+
+		// 保存时替换损坏的配置文件，不留下临时文件
+		new ClassPreloadProfile(file).store(urls, Collections.<URL,String>emptyMap(), MODULES, Arrays.asList("pre.a.A"));
+		Assert.assertEquals(Arrays.asList("pre.a.A"), load().getClasses());
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("a", "b", "mrc-preload.profile")), new HashSet<String>(Arrays.asList(directory.list())));
+	}
+
+	@Test
+	public void testPreloader() throws Exception {
+		ClassPreloadProfile profile = load();
+		ModuleContextClassLoader classLoader = TestModuleContextClassLoader.newClassLoader(directory);
+		classLoader.addURLs(profile.getURLs());
+		List<String> classes = new ArrayList<String>(profile.getClasses());
+		classes.add("pre.Missing");
+		ClassPreloader preloader = new ClassPreloader(classLoader, classes);
+		preloader.start();
+		// 不存在的类被忽略。取消会使尚未开始的线程直接退出，因此先等待类载入
+		for (int i = 0; i < 200 && preloader.getLoaded() < 2; i++) {
+			Thread.sleep(50);
+		}
+		preloader.cancel();
+		Assert.assertEquals(2, preloader.getLoaded());
+		Assert.assertSame(classLoader, classLoader.loadClass("pre.b.B").getClassLoader());
+	}
+
+	private ClassPreloadProfile load() {
+		ClassPreloadProfile profile = new ClassPreloadProfile(file);
+		Assert.assertTrue(profile.load());
+		return profile;
+	}
+
+}
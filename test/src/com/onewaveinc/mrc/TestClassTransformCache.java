@@ -0,0 +1,147 @@
+package com.onewaveinc.mrc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestClassTransformCache {
+
+	/**
+	 * 过滤器的执行次数
+	 */
+	private final AtomicInteger filtered = new AtomicInteger();
+
+	private File cacheDirectory;
+
+	private File directory;
+
+	private File jar;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("mrc-transform", "");
+		directory.delete();
+		directory.mkdirs();
+		cacheDirectory = new File(directory, "cache");
+		jar = new File(directory, "a.jar");
+		writeJar(0);
+	}
+
+	@After
+	public void tearDown() {
+		TestModuleContextClassLoader.delete(directory);
+	}
+
+	@Test
+	public void testHitAfterRestart() throws Exception {
+		ClassTransformCache cache = new ClassTransformCache(cacheDirectory);
+		load(cache, "1");
+		Assert.assertEquals(0, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+		Assert.assertEquals(1, filtered.get());
+
+		// 新的类装载器使用同一缓存目录，不再执行过滤器
+		cache = new ClassTransformCache(cacheDirectory);
+		load(cache, "1");
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(0, cache.getMisses());
+		Assert.assertEquals(1, filtered.get());
+	}
+
+	@Test
+	public void testChangedJarMissesAndPurge() throws Exception {
+		ClassTransformCache cache = new ClassTransformCache(cacheDirectory);
+		load(cache, "1");
+
+		// jar 中的类发生变化后不命中旧的缓存
+		writeJar(1);
+		load(cache, "1");
+		Assert.assertEquals(0, cache.getHits());
+		Assert.assertEquals(2, cache.getMisses());
+		Assert.assertEquals(2, filtered.get());
+
+		// 清空后两个版本的缓存文件都被删除，计数归零
+		Assert.assertEquals(2, cache.purge());
+		Assert.assertEquals(0, cache.getMisses());
+		load(cache, "1");
+		Assert.assertEquals(1, cache.getMisses());
+		Assert.assertEquals(3, filtered.get());
+	}
+
+	@Test
+	public void testFilterVersionChangeMisses() throws Exception {
+		ClassTransformCache cache = new ClassTransformCache(cacheDirectory);
+		load(cache, "1");
+		load(cache, "2");
+		Assert.assertEquals(0, cache.getHits());
+		Assert.assertEquals(2, cache.getMisses());
+		load(cache, "1");
+		Assert.assertEquals(1, cache.getHits());
+	}
+
+	@Test
+	public void testUncacheableFilterBypassesCache() throws Exception {
+		ClassTransformCache cache = new ClassTransformCache(cacheDirectory);
+		ModuleContextClassLoader classLoader = newClassLoader(cache, "1");
+		classLoader.addFilter(new ModuleContextClassLoaderFilter() {
+			public byte[] doFilter(String name, byte[] classData) {
+				return classData;
+			}
+		});
+		classLoader.loadClass("tc.A");
+		Assert.assertEquals(1, filtered.get());
+		Assert.assertEquals(0, cache.getHits() + cache.getMisses());
+		Assert.assertFalse(cacheDirectory.exists());
+	}
+
+	private void load(ClassTransformCache cache, String version) throws Exception {
+		ModuleContextClassLoader classLoader = newClassLoader(cache, version);
+		try {
+			Assert.assertSame(classLoader, classLoader.loadClass("tc.A").getClassLoader());
+		} finally {
+			// 关闭打开的 jar 文件，之后 jar 文件可以被原地改写
+			classLoader.closeClassPath();
+			classLoader.close();
+		}
+	}
+
+	private ModuleContextClassLoader newClassLoader(ClassTransformCache cache, final String version) throws IOException {
+		ModuleContextClassLoader classLoader = new ModuleContextClassLoader(new URL[] { jar.toURI().toURL() }, getClass().getClassLoader());
+		classLoader.setModuleContext(new ModuleContext(directory.getAbsolutePath()));
+		classLoader.setTransformCache(cache);
+		classLoader.addFilter(new CacheableModuleContextClassLoaderFilter() {
+			public byte[] doFilter(String name, byte[] classData) {
+				filtered.incrementAndGet();
+				return classData;
+			}
+
+			public String getVersion() {
+				return version;
+			}
+		});
+		return classLoader;
+	}
+
+	/**
+	 * 写入包含 tc/A 的 jar 文件，以类文件的次版本号区分内容
+	 */
+	private void writeJar(int minorVersion) throws IOException {
+		byte[] data = TestModuleContextClassLoader.classData("tc/A");
+		data[5] = (byte) minorVersion;
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+		try {
+			TestModuleContextClassLoader.putEntry(out, "tc/A.class", data, false);
+		} finally {
+			out.close();
+		}
+	}
+
+}
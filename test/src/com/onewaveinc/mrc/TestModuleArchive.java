@@ -0,0 +1,130 @@
+package com.onewaveinc.mrc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestModuleArchive {
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("mrc-archive", "");
+		directory.delete();
+		directory.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		TestModuleContextClassLoader.delete(directory);
+	}
+
+	@Test
+	public void testURLFromString() throws Exception {
+		File file = new File(directory, "a.mod");
+		writeArchive(file, "v1");
+		ModuleArchive archive = ModuleArchive.open(file);
+
+		// 以 parseURL 从字符串还原的 URL 同样可以访问，相对 URL 沿用安装包的 URL 处理器
+		URL url = archive.getURL("data.txt");
+		Assert.assertEquals("v1", read(ModuleArchive.parseURL(url.toExternalForm())));
+		Assert.assertEquals("v1", read(ModuleArchive.parseURL(url.toExternalForm().replace("data.txt", "stored.txt"))));
+		URL nested = archive.getArchive("lib/a.jar").getURL("a.txt");
+		Assert.assertEquals("a", read(ModuleArchive.parseURL(nested.toExternalForm())));
+		Assert.assertEquals("a", read(new URL(ModuleArchive.parseURL(nested.toExternalForm()), "a.txt")));
+		Assert.assertEquals("a", read(ModuleArchive.toClassPathURL(nested.toExternalForm())));
+
+		// 不向 JVM 注册 mod 协议
+		try {
+			new URL(url.toExternalForm());
+			Assert.fail();
+		} catch (MalformedURLException e) {
+			// 未知协议
+		}
+	}
+
+	@Test
+	public void testReopenAfterClose() throws Exception {
+		File file = new File(directory, "a.mod");
+		writeArchive(file, "v1");
+		ModuleArchive archive = ModuleArchive.open(file);
+		Assert.assertSame(archive, ModuleArchive.open(file));
+
+		// 以重命名方式替换，大小和修改时间都与原文件相同
+		File temporary = new File(directory, "a.mod.tmp");
+		writeArchive(temporary, "v2");
+		Assert.assertEquals(file.length(), temporary.length());
+		temporary.setLastModified(file.lastModified());
+		Assert.assertTrue(temporary.renameTo(file));
+		Assert.assertSame(archive, ModuleArchive.open(file));
+
+		ModuleArchive.close(file);
+		ModuleArchive reopened = ModuleArchive.open(file);
+		Assert.assertNotSame(archive, reopened);
+		Assert.assertEquals("v2", new String(reopened.getBytes("data.txt"), "UTF-8"));
+		// 原来的安装包仍使用原来的映射区域
+		Assert.assertEquals("v1", new String(archive.getBytes("data.txt"), "UTF-8"));
+	}
+
+	@Test
+	public void testOverwriteInPlace() throws Exception {
+		File file = new File(directory, "a.mod");
+		writeArchive(file, "v1");
+		ModuleArchive archive = ModuleArchive.open(file);
+
+		// 原地截断并覆盖安装包，已打开的安装包映射的是私有副本，不受影响
+		FileOutputStream out = new FileOutputStream(file);
+		out.close();
+		Assert.assertEquals("v1", new String(archive.getBytes("data.txt"), "UTF-8"));
+		writeArchive(file, "v2");
+		Assert.assertEquals("v1", new String(archive.getBytes("stored.txt"), "UTF-8"));
+		Assert.assertEquals("a", new String(archive.getArchive("lib/a.jar").getBytes("a.txt"), "UTF-8"));
+
+		// 大小或修改时间发生变化后重新映射
+		file.setLastModified(file.lastModified() + 2000);
+		Assert.assertEquals("v2", new String(ModuleArchive.open(file).getBytes("data.txt"), "UTF-8"));
+	}
+
+	private static String read(URL url) throws IOException {
+		InputStream in = url.openStream();
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[256];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			return new String(out.toByteArray(), "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeArchive(File file, String data) throws IOException {
+		ByteArrayOutputStream jar = new ByteArrayOutputStream();
+		ZipOutputStream jarOut = new ZipOutputStream(jar);
+		TestModuleContextClassLoader.putEntry(jarOut, "a.txt", "a".getBytes("UTF-8"), true);
+		jarOut.close();
+
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+		try {
+			TestModuleContextClassLoader.putEntry(out, "data.txt", data.getBytes("UTF-8"), false);
+			TestModuleContextClassLoader.putEntry(out, "stored.txt", data.getBytes("UTF-8"), true);
+			TestModuleContextClassLoader.putEntry(out, "lib/a.jar", jar.toByteArray(), true);
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,151 @@
+package com.onewaveinc.mrc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.Manifest;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestModuleBatchSigner {
+
+	private File directory;
+
+	private File outputDirectory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("mrc-sign", "");
+		directory.delete();
+		for (String id : new String[] { "c", "a", "b" }) {
+			writeModule(new File(directory, "modules/" + id), id);
+		}
+		// 没有模块元数据的目录和不是模块安装包的文件被忽略
+		new File(directory, "modules/empty").mkdirs();
+		TestModuleContextClassLoader.writeFile(new File(directory, "modules/readme.txt"), "readme");
+		outputDirectory = new File(directory, "signatures");
+	}
+
+	@After
+	public void tearDown() {
+		TestModuleContextClassLoader.delete(directory);
+	}
+
+	@Test
+	public void testSignDirectory() throws Exception {
+		String modulesDirectory = new File(directory, "modules").getAbsolutePath();
+		List<Module> modules = ModuleBatchSigner.listModules(modulesDirectory + ";" + new File(directory, "missing").getAbsolutePath());
+		Assert.assertEquals(3, modules.size());
+		Assert.assertEquals("a", modules.get(0).getId());
+
+		Assert.assertTrue(new ModuleBatchSigner(outputDirectory, 2, null, true).sign(modules));
+		for (Module module : modules) {
+			// 签名清单与单独签名的结果一致
+			ModuleSignature signature = new ModuleSignature(module, new ModuleDigester(1, null));
+			Manifest manifest = readManifest(new File(outputDirectory, module.getId() + "-1.0.0.mf"));
+			Assert.assertEquals(module.getId(), manifest.getMainAttributes().getValue("Module-ID"));
+			Assert.assertEquals("1.0.0", manifest.getMainAttributes().getValue("Module-Version"));
+			Assert.assertEquals(ModuleSignature.encode(signature.getMD5Digest()), manifest.getMainAttributes().getValue("Module-MD5"));
+			Assert.assertEquals(ModuleSignature.encode(signature.getSHA1Digest()), manifest.getMainAttributes().getValue("Module-SHA1"));
+			// 完整性清单写入输出目录，不修改模块目录
+			String rootHash = ModuleIntegrityManifest.create(module).getRootHash();
+			Assert.assertTrue(readLines(new File(outputDirectory, module.getId() + "-1.0.0.integrity")).toString().contains(rootHash));
+			Assert.assertFalse(new File(module.getRootDirectory() + ModuleIntegrityManifest.MANIFEST_FILE).exists());
+			// 完整性清单的根摘要写入签名清单
+			Assert.assertEquals(rootHash, manifest.getMainAttributes().getValue(ModuleSignature.INTEGRITY_ROOT_ATTRIBUTE));
+		}
+
+		List<String> report = readReport();
+		Assert.assertEquals(5, report.size());
+		Assert.assertTrue(report.get(0), report.get(0).startsWith("# 模块数: 3，失败数: 0，线程数: 2，"));
+		for (int i = 0; i < 3; i++) {
+			String[] fields = report.get(i + 2).split("\t");
+			Assert.assertEquals(8, fields.length);
+			Assert.assertEquals(modules.get(i).getId(), fields[0]);
+			Assert.assertEquals("1.0.0", fields[1]);
+			Assert.assertEquals("OK", fields[3]);
+			Assert.assertEquals(ModuleIntegrityManifest.create(modules.get(i)).getRootHash(), fields[6]);
+			Assert.assertEquals(modules.get(i).getRootDirectory(), fields[7]);
+		}
+	}
+
+	@Test
+	public void testReportWithOneBadModule() throws Exception {
+		// b 的签名清单无法写入，其他模块不受影响
+		Assert.assertTrue(new File(outputDirectory, "b-1.0.0.mf").mkdirs());
+		List<Module> modules = ModuleBatchSigner.listModules(new File(directory, "modules").getAbsolutePath());
+		// 重复的模块只签名一次
+		modules.add(modules.get(0));
+		Assert.assertFalse(new ModuleBatchSigner(outputDirectory, 3, null, false).sign(modules));
+
+		List<String> report = readReport();
+		Assert.assertEquals(5, report.size());
+		Assert.assertTrue(report.get(0), report.get(0).startsWith("# 模块数: 3，失败数: 1，线程数: 3，"));
+		String[] a = report.get(2).split("\t");
+		String[] b = report.get(3).split("\t");
+		String[] c = report.get(4).split("\t");
+		Assert.assertEquals("a", a[0]);
+		Assert.assertEquals("OK", a[3]);
+		Assert.assertEquals("-", a[6]);
+		Assert.assertEquals("b", b[0]);
+		Assert.assertTrue(b[3], b[3].startsWith("FAILED: "));
+		Assert.assertEquals("-", b[4]);
+		Assert.assertEquals("-", b[5]);
+		Assert.assertEquals("c", c[0]);
+		Assert.assertEquals("OK", c[3]);
+		Assert.assertTrue(new File(outputDirectory, "c-1.0.0.mf").isFile());
+		Assert.assertNull(readManifest(new File(outputDirectory, "c-1.0.0.mf")).getMainAttributes().getValue(ModuleSignature.INTEGRITY_ROOT_ATTRIBUTE));
+		Assert.assertFalse(new File(directory, "modules/a" + ModuleIntegrityManifest.MANIFEST_FILE).exists());
+	}
+
+	@Test
+	public void testInvalidThreads() throws Exception {
+		String modulesDirectory = new File(directory, "modules").getAbsolutePath();
+		for (String threads : new String[] { "x", "0", "-2" }) {
+			Assert.assertFalse(ModuleBatchSigner.main(new String[] { ModuleBatchSigner.OPTION_BATCH, modulesDirectory, "-out", outputDirectory.getPath(), "-threads", threads }, null));
+		}
+		Assert.assertFalse(ModuleBatchSigner.main(new String[] { ModuleBatchSigner.OPTION_BATCH, modulesDirectory, "-threads" }, null));
+		Assert.assertFalse(outputDirectory.exists());
+	}
+
+	private List<String> readReport() throws IOException {
+		return readLines(new File(outputDirectory, "signature-report.txt"));
+	}
+
+	private static List<String> readLines(File file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+	private static Manifest readManifest(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return new Manifest(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeModule(File moduleDirectory, String id) throws IOException {
+		TestModuleContextClassLoader.writeFile(new File(moduleDirectory.getAbsolutePath() + Module.METADATA_FILE), "module.id=" + id + "\nmodule.version=1.0.0\n");
+		TestModuleContextClassLoader.writeFile(new File(moduleDirectory, "lib/" + id + ".jar"), id + ".jar");
+		TestModuleContextClassLoader.writeFile(new File(moduleDirectory, "bin/" + id + "/A.class"), id + "/A.class");
+	}
+
+}
@@ -0,0 +1,531 @@
+package com.onewaveinc.mrc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestModuleContextClassLoader {
+
+	private static final int CLASSES = 3000;
+
+	private static final int THREADS = 32;
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("mrc-classloader", "");
+		directory.delete();
+		directory.mkdirs();
+		for (int i = 0; i < CLASSES; i++) {
+			writeClass(directory, "gen/p" + (i % 10) + "/C" + i);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		delete(directory);
+	}
+
+	@Test
+	public void testConcurrentLoading() throws Exception {
+		final ModuleContextClassLoader classLoader = newClassLoader(directory);
+		final ConcurrentHashMap<String,Class<?>> loaded = new ConcurrentHashMap<String,Class<?>>();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(THREADS);
+
+		for (int t = 0; t < THREADS; t++) {
+			final List<String> names = new ArrayList<String>();
+			for (int i = 0; i < CLASSES; i++) {
+				names.add("gen.p" + (i % 10) + ".C" + i);
+			}
+			Collections.shuffle(names);
+
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						for (String name : names) {
+							Class<?> clazz = classLoader.loadClass(name);
+							Class<?> existing = loaded.putIfAbsent(name, clazz);
+							if (existing != null && existing != clazz) {
+								throw new AssertionError("类被重复定义: " + name);
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		start.countDown();
+		done.await();
+
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		Assert.assertEquals(CLASSES, loaded.size());
+		for (Class<?> clazz : loaded.values()) {
+			Assert.assertSame(classLoader, clazz.getClassLoader());
+		}
+	}
+
+	@Test
+	public void testMissingClass() throws Exception {
+		ModuleContextClassLoader classLoader = newClassLoader(directory);
+		try {
+			classLoader.loadClass("gen.Missing");
+			Assert.fail();
+		} catch (ClassNotFoundException expected) {}
+
+		// 类路径变化后，之前不存在的类可以被载入
+		File late = new File(directory, "late");
+		writeClass(late, "gen/Missing");
+		classLoader.addURLs(Arrays.asList(late.toURI().toURL()));
+		Assert.assertSame(classLoader, classLoader.loadClass("gen.Missing").getClassLoader());
+	}
+
+	@Test
+	public void testMissingClassRegisteredAsResource() throws Exception {
+		ModuleContextClassLoader classLoader = newClassLoader(directory);
+		Map<String,URL> resourceURLs = new HashMap<String,URL>();
+		classLoader.setResourceURLs(resourceURLs);
+		assertMissing(classLoader, "gen.Registered");
+
+		// 注册的资源发生变化后，之前不存在的类可以从注册的资源中载入
+		File registered = new File(directory, "registered");
+		writeClass(registered, "gen/Registered");
+		resourceURLs.put("gen/Registered.class", new File(registered, "gen/Registered.class").toURI().toURL());
+		classLoader.resourcesChanged();
+		Assert.assertSame(classLoader, classLoader.loadClass("gen.Registered").getClassLoader());
+	}
+
+	@Test
+	public void testMissingClassesAreEvictedLeastRecentlyUsed() throws Exception {
+		ModuleContextClassLoader classLoader = newClassLoader(directory);
+		ClassLoadingMetrics metrics = classLoader.getMetrics();
+		for (int i = 0; i < ModuleContextClassLoader.MAX_MISSING_CLASSES; i++) {
+			assertMissing(classLoader, "gen.missing.C" + i);
+		}
+		long misses = metrics.getCounters(ClassLoadingMetrics.SOURCE_EXT).getMisses();
+		Assert.assertEquals(ModuleContextClassLoader.MAX_MISSING_CLASSES, misses);
+
+		// 缓存中的类不再查找 ext classloader
+		assertMissing(classLoader, "gen.missing.C0");
+		Assert.assertEquals(misses, metrics.getCounters(ClassLoadingMetrics.SOURCE_EXT).getMisses());
+
+		// 超过容量时只淘汰最久未访问的 C1，其余的仍在缓存中
+		assertMissing(classLoader, "gen.missing.New");
+		Assert.assertEquals(++misses, metrics.getCounters(ClassLoadingMetrics.SOURCE_EXT).getMisses());
+		assertMissing(classLoader, "gen.missing.C0");
+		assertMissing(classLoader, "gen.missing.C2");
+		Assert.assertEquals(misses, metrics.getCounters(ClassLoadingMetrics.SOURCE_EXT).getMisses());
+		assertMissing(classLoader, "gen.missing.C1");
+		Assert.assertEquals(++misses, metrics.getCounters(ClassLoadingMetrics.SOURCE_EXT).getMisses());
+	}
+
+	@Test
+	public void testClassLoadingLocksArePruned() throws Exception {
+		ModuleContextClassLoader classLoader = newClassLoader(directory);
+		Object lock = classLoader.getClassLoadingLock("gen.p0.C0");
+		Assert.assertSame(lock, classLoader.getClassLoadingLock("gen.p0.C0"));
+
+		for (int i = 0; i < CLASSES; i++) {
+			try {
+				classLoader.loadClass("gen.missing.C" + i);
+				Assert.fail();
+			} catch (ClassNotFoundException expected) {}
+		}
+		// 不再使用的锁被回收后移除，仍被引用的锁保持不变
+		for (int i = 0; i < 20 && classLoader.getClassLoadingLockCount() > CLASSES / 2; i++) {
+			System.gc();
+			Thread.sleep(50);
+			classLoader.getClassLoadingLock("gen.p0.C0");
+		}
+		Assert.assertTrue(classLoader.getClassLoadingLockCount() <= CLASSES / 2);
+		Assert.assertSame(lock, classLoader.getClassLoadingLock("gen.p0.C0"));
+	}
+
+	@Test
+	public void testIndexedLookup() throws Exception {
+		File first = new File(directory, "first");
+		File second = new File(directory, "second");
+		writeFile(new File(first, "res/a.txt"), "first");
+		writeFile(new File(second, "res/a.txt"), "second");
+		writeFile(new File(second, "res/b.txt"), "second");
+		File jar = new File(directory, "third.jar");
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_VERSION, "3.0");
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest);
+		out.putNextEntry(new JarEntry("res/c.txt"));
+		out.write("third".getBytes("UTF-8"));
+		out.putNextEntry(new JarEntry("res/C.class"));
+		out.write(classData("res/C"));
+		out.close();
+
+		ModuleContextClassLoader classLoader = new ModuleContextClassLoader(new URL[] { first.toURI().toURL() }, TestModuleContextClassLoader.class.getClassLoader());
+		classLoader.setModuleContext(new ModuleContext(directory.getAbsolutePath()));
+		classLoader.addURLs(Arrays.asList(second.toURI().toURL(), jar.toURI().toURL()));
+
+		// 先出现在类路径中的类路径项优先
+		Assert.assertEquals(new File(first, "res/a.txt").toURI().toURL(), classLoader.getResource("res/a.txt"));
+		Assert.assertEquals(new File(second, "res/b.txt").toURI().toURL(), classLoader.getResource("res/b.txt"));
+		Assert.assertEquals("jar:" + jar.toURI().toURL() + "!/res/c.txt", classLoader.getResource("res/c.txt").toString());
+		Assert.assertEquals(2, Collections.list(classLoader.getResources("res/a.txt")).size());
+		Assert.assertNull(classLoader.getResource("res/d.txt"));
+		Assert.assertNull(classLoader.getResource("other/a.txt"));
+
+		// jar 中的类使用 jar 的 manifest 定义 package
+		Class<?> clazz = classLoader.loadClass("res.C");
+		Assert.assertSame(classLoader, clazz.getClassLoader());
+		Assert.assertEquals("3.0", clazz.getPackage().getImplementationVersion());
+	}
+
+	@Test
+	public void testDirectoryChangesAfterIndexing() throws Exception {
+		File module = new File(directory, "module");
+		writeClass(module, "mod/A");
+		File jar = new File(directory, "lib.jar");
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+		out.putNextEntry(new JarEntry("shared/J.class"));
+		out.write(classData("shared/J"));
+		out.close();
+		ModuleContextClassLoader classLoader = newClassLoader(directory);
+		classLoader.addURLs(Arrays.asList(module.toURI().toURL(), jar.toURI().toURL()));
+		ModuleClassLoader moduleClassLoader = new ModuleClassLoader(newModule("module"), new URL[] { module.toURI().toURL() }, classLoader);
+
+		// 建立索引后在目录中增加的包、以及其他类路径项拥有的包中的类和资源仍可找到
+		writeClass(module, "late/B");
+		writeClass(module, "shared/S");
+		writeFile(new File(module, "late/b.txt"), "b");
+		Assert.assertSame(classLoader, classLoader.loadClass("late.B").getClassLoader());
+		Assert.assertSame(classLoader, classLoader.loadClass("shared.S").getClassLoader());
+		Assert.assertSame(classLoader, classLoader.loadClass("shared.J").getClassLoader());
+		Assert.assertEquals(new File(module, "late/b.txt").toURI().toURL(), classLoader.getResource("late/b.txt"));
+		Assert.assertEquals(1, Collections.list(classLoader.getResources("late/b.txt")).size());
+
+		writeClass(module, "late/C");
+		Assert.assertSame(moduleClassLoader, moduleClassLoader.loadClass("late.C").getClassLoader());
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		ModuleContextClassLoader classLoader = newClassLoader(directory);
+		File module = new File(directory, "module");
+		writeClass(module, "mod/A");
+		URL moduleURL = module.toURI().toURL();
+		classLoader.addClassPathOwners(Collections.singletonMap(moduleURL, "test.module"));
+		classLoader.addURLs(Arrays.asList(moduleURL));
+
+		classLoader.loadClass("mod.A");
+		classLoader.loadClass("gen.p0.C0");
+		try {
+			classLoader.loadClass("gen.Missing");
+			Assert.fail();
+		} catch (ClassNotFoundException expected) {}
+
+		ClassLoadingMetrics metrics = classLoader.getMetrics();
+		Assert.assertEquals(1, metrics.getCounters("test.module").getClasses());
+		Assert.assertEquals(classData("mod/A").length, metrics.getCounters("test.module").getBytes());
+		Assert.assertEquals(1, metrics.getCounters(ClassLoadingMetrics.SOURCE_MRC).getClasses());
+		Assert.assertEquals(1, metrics.getCounters(ClassLoadingMetrics.SOURCE_MRC).getMisses());
+
+		metrics.reset();
+		Assert.assertTrue(metrics.getAllCounters().isEmpty());
+	}
+
+	@Test
+	public void testModuleClassLoaders() throws Exception {
+		File a = new File(directory, "a");
+		File b = new File(directory, "b");
+		writeClass(a, "mod/a/A");
+		writeClass(b, "mod/b/B");
+		ModuleContextClassLoader classLoader = newClassLoader(directory);
+		classLoader.addURLs(Arrays.asList(a.toURI().toURL(), b.toURI().toURL()));
+
+		ModuleClassLoader loaderA = new ModuleClassLoader(newModule("a"), new URL[] { a.toURI().toURL() }, classLoader);
+		ModuleClassLoader loaderB = new ModuleClassLoader(newModule("b"), new URL[] { b.toURI().toURL() }, classLoader);
+		classLoader.addModuleClassLoader(loaderA);
+		classLoader.addModuleClassLoader(loaderB);
+		loaderA.setDependencies(Arrays.asList(loaderB));
+
+		// 依赖模块的类由依赖模块的类装载器定义
+		Assert.assertSame(loaderB, loaderA.loadClass("mod.b.B").getClassLoader());
+		// 不在依赖中的模块的类不可见
+		try {
+			loaderB.loadClass("mod.a.A");
+			Assert.fail();
+		} catch (ClassNotFoundException expected) {}
+		// 全局类装载器将模块的类交给模块类装载器
+		Assert.assertSame(loaderA, classLoader.loadClass("mod.a.A").getClassLoader());
+		// 不属于任何模块的类仍由全局类装载器定义
+		Assert.assertSame(classLoader, loaderA.loadClass("gen.p0.C0").getClassLoader());
+
+		classLoader.removeModuleClassLoader(loaderA);
+		Assert.assertNull(classLoader.getModuleClassLoader("mod/a/A.class"));
+	}
+
+	@Test
+	public void testModuleClassLoaderSharesIndexEntries() throws Exception {
+		File jar = new File(directory, "a.jar");
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+		out.putNextEntry(new JarEntry("mod/a/A.class"));
+		out.write(classData("mod/a/A"));
+		out.close();
+		File late = new File(directory, "late");
+		writeClass(late, "mod/l/L");
+		ModuleContextClassLoader classLoader = newClassLoader(directory);
+		classLoader.addURLs(Arrays.asList(jar.toURI().toURL()));
+
+		// 已在全局类路径中的 jar 文件不重新扫描，不在全局类路径中的类路径项单独建立索引
+		ModuleClassLoader loaderA = new ModuleClassLoader(newModule("a"), new URL[] { jar.toURI().toURL(), late.toURI().toURL() }, classLoader);
+		ClassPathIndex.Entry entry = classLoader.getIndex().findEntry("mod/a/A.class");
+		Assert.assertNotNull(entry);
+		Assert.assertSame(entry, loaderA.getIndex().findEntry("mod/a/A.class"));
+		Assert.assertNotNull(loaderA.getIndex().findEntry("mod/l/L.class"));
+		Assert.assertNull(classLoader.getIndex().findEntry("mod/l/L.class"));
+
+		// 卸载模块类装载器不关闭全局类装载器打开的 jar 文件
+		classLoader.addModuleClassLoader(loaderA);
+		Assert.assertSame(loaderA, classLoader.loadClass("mod.a.A").getClassLoader());
+		JarFile jarFile = entry.getJarFile();
+		classLoader.removeModuleClassLoader(loaderA);
+		Assert.assertSame(jarFile, entry.getJarFile());
+	}
+
+	@Test
+	public void testMutualDependenciesDoNotDeadlock() throws Exception {
+		File a = new File(directory, "a");
+		File b = new File(directory, "b");
+		writeClass(a, "mod/a/A");
+		writeClass(b, "mod/b/B");
+		ModuleContextClassLoader classLoader = newClassLoader(directory);
+		classLoader.addURLs(Arrays.asList(a.toURI().toURL(), b.toURI().toURL()));
+
+		final ModuleClassLoader loaderA = new ModuleClassLoader(newModule("a"), new URL[] { a.toURI().toURL() }, classLoader);
+		final ModuleClassLoader loaderB = new ModuleClassLoader(newModule("b"), new URL[] { b.toURI().toURL() }, classLoader);
+		classLoader.addModuleClassLoader(loaderA);
+		classLoader.addModuleClassLoader(loaderB);
+		loaderA.setDependencies(Arrays.asList(loaderB));
+		loaderB.setDependencies(Arrays.asList(loaderA));
+
+		// 类路径为目录时每个类名都会在模块类装载器中加锁查找。两个方向同时装载两个模块都没有的类，
+		// 持有本模块的锁再获取依赖模块的锁时会互相等待
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < THREADS; i++) {
+			final ModuleClassLoader loader = i % 2 == 0 ? loaderA : loaderB;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < 500; j++) {
+							try {
+								loader.loadClass("mod.none.C" + j);
+								failure.compareAndSet(null, new AssertionError("mod.none.C" + j));
+							} catch (ClassNotFoundException expected) {}
+						}
+						if (loader.loadClass("mod.a.A").getClassLoader() != loaderA || loader.loadClass("mod.b.B").getClassLoader() != loaderB) {
+							failure.compareAndSet(null, new AssertionError("类由错误的类装载器定义"));
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join(60000);
+			Assert.assertFalse("模块类装载器死锁", thread.isAlive());
+		}
+		Assert.assertNull(failure.get());
+	}
+
+	@Test
+	public void testArchive() throws Exception {
+		// 未压缩和压缩的 jar 文件都可以直接从安装包中挂载
+		ByteArrayOutputStream storedJar = new ByteArrayOutputStream();
+		ZipOutputStream jarOut = new ZipOutputStream(storedJar);
+		putEntry(jarOut, "mod/x/B.class", classData("mod/x/B"), false);
+		putEntry(jarOut, "res/b.txt", "b".getBytes("UTF-8"), true);
+		jarOut.close();
+		ByteArrayOutputStream deflatedJar = new ByteArrayOutputStream();
+		jarOut = new ZipOutputStream(deflatedJar);
+		putEntry(jarOut, "mod/x/C.class", classData("mod/x/C"), false);
+		jarOut.close();
+
+		File moduleFile = new File(directory, "archive.mod");
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(moduleFile));
+		putEntry(out, "META-INF/module.properties", "module.id=test.archive\nmodule.version=1.0.0\n".getBytes("UTF-8"), false);
+		putEntry(out, "bin/mod/x/A.class", classData("mod/x/A"), false);
+		putEntry(out, "lib/b.jar", storedJar.toByteArray(), true);
+		putEntry(out, "lib/c.jar", deflatedJar.toByteArray(), false);
+		out.close();
+
+		Module module = Module.load(moduleFile);
+		Assert.assertTrue(module.isArchive());
+		Assert.assertEquals("test.archive", module.getId());
+		Assert.assertEquals(3, module.getClassPath().size());
+
+		// 模块文件从安装包中读取
+		Assert.assertTrue(module.getModuleFile("/lib").isDirectory());
+		Assert.assertTrue(module.getModuleFile("/lib/b.jar").isFile());
+		Assert.assertEquals(storedJar.size(), module.getModuleFile("/lib/b.jar").length());
+		Assert.assertFalse(module.getModuleFile("/lib/d.jar").exists());
+		Assert.assertEquals(4, module.getModuleFile("/").listFilesRecursively().length);
+		InputStream in = module.getModuleFile(Module.METADATA_FILE).openStream();
+		Assert.assertEquals('m', in.read());
+		in.close();
+
+		ModuleContextClassLoader classLoader = newClassLoader(directory);
+		List<URL> urls = new ArrayList<URL>();
+		for (String path : module.getClassPath()) {
+			urls.add(ModuleArchive.toClassPathURL(path));
+		}
+		classLoader.addURLs(urls);
+		Assert.assertSame(classLoader, classLoader.loadClass("mod.x.A").getClassLoader());
+		Assert.assertSame(classLoader, classLoader.loadClass("mod.x.B").getClassLoader());
+		Assert.assertSame(classLoader, classLoader.loadClass("mod.x.C").getClassLoader());
+
+		URL resource = classLoader.getResource("res/b.txt");
+		Assert.assertEquals(ModuleArchive.PROTOCOL, resource.getProtocol());
+		in = resource.openStream();
+		Assert.assertEquals('b', in.read());
+		Assert.assertEquals(-1, in.read());
+		in.close();
+		Assert.assertEquals(resource, ModuleArchive.parseURL(resource.toExternalForm()));
+	}
+
+	private static void assertMissing(ClassLoader classLoader, String name) {
+		try {
+			classLoader.loadClass(name);
+			Assert.fail(name);
+		} catch (ClassNotFoundException expected) {}
+	}
+
+	static void putEntry(ZipOutputStream out, String name, byte[] data, boolean stored) throws IOException {
+		ZipEntry entry = new ZipEntry(name);
+		if (stored) {
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(data.length);
+			entry.setCompressedSize(data.length);
+			entry.setCrc(crc.getValue());
+		}
+		out.putNextEntry(entry);
+		out.write(data);
+		out.closeEntry();
+	}
+
+	static Module newModule(String id) {
+		Module module = new Module(id);
+		module.setId(id);
+		module.setVersion(Version.parse("1.0.0"));
+		return module;
+	}
+
+	static ModuleContextClassLoader newClassLoader(File directory) throws IOException {
+		ModuleContextClassLoader classLoader = new ModuleContextClassLoader(new URL[] { directory.toURI().toURL() }, TestModuleContextClassLoader.class.getClassLoader());
+		classLoader.setModuleContext(new ModuleContext(directory.getAbsolutePath()));
+		return classLoader;
+	}
+
+	/**
+	 * 生成一个最简单的类文件（无字段无方法，父类为 java.lang.Object）
+	 */
+	static void writeClass(File directory, String internalName) throws IOException {
+		File file = new File(directory, internalName + ".class");
+		file.getParentFile().mkdirs();
+		FileOutputStream fileOut = new FileOutputStream(file);
+		try {
+			fileOut.write(classData(internalName));
+		} finally {
+			fileOut.close();
+		}
+	}
+
+	static byte[] classData(String internalName) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(49);
+		out.writeShort(5);
+		out.writeByte(7);
+		out.writeShort(2);
+		out.writeByte(1);
+		out.writeUTF(internalName);
+		out.writeByte(7);
+		out.writeShort(4);
+		out.writeByte(1);
+		out.writeUTF("java/lang/Object");
+		out.writeShort(0x21);
+		out.writeShort(1);
+		out.writeShort(3);
+		out.writeShort(0);
+		out.writeShort(0);
+		out.writeShort(0);
+		out.writeShort(0);
+		out.close();
+		return buf.toByteArray();
+	}
+
+	static void writeFile(File file, String content) throws IOException {
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				delete(f);
+			}
+		}
+		file.delete();
+	}
+
+}
@@ -0,0 +1,206 @@
+package com.onewaveinc.mrc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Properties;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestModuleDeploy {
+
+	private File directory;
+
+	private File modulesDirectory;
+
+	private ModuleContext moduleContext;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("mrc-deploy", "");
+		directory.delete();
+		modulesDirectory = new File(directory, "modules");
+		modulesDirectory.mkdirs();
+		writeModuleFile(new File(modulesDirectory, "a.mod"), "1.0.0", null, null, "v1");
+		moduleContext = newModuleContext();
+		Assert.assertEquals("1.0.0", moduleContext.getModule("a").getVersion().toString());
+	}
+
+	@After
+	public void tearDown() {
+		TestModuleContextClassLoader.delete(directory);
+	}
+
+	@Test
+	public void testRejectedDeployLeavesModuleDirectoryUntouched() throws Exception {
+		File extracted = new File(modulesDirectory, "a");
+		File data = new File(extracted, "data.txt");
+		long lastModified = data.lastModified();
+
+		// 新版本依赖不存在的模块，检查不通过
+		File moduleFile = new File(modulesDirectory, "a.mod");
+		writeModuleFile(moduleFile, "2.0.0", "missing/1.0.0+", null, "v2");
+		try {
+			moduleContext.deploy(modulesDirectory.getCanonicalFile(), moduleFile);
+			Assert.fail("依赖检查应当失败");
+		} catch (UnsatisfiedDependencyException expected) {
+		}
+
+		Assert.assertEquals("v1", read(data));
+		Assert.assertEquals(lastModified, data.lastModified());
+		Assert.assertEquals("1.0.0", load(extracted).getProperty("module.version"));
+		Assert.assertEquals("1.0.0", moduleContext.getModule("a").getVersion().toString());
+		Assert.assertFalse(new File(modulesDirectory, "a" + ModuleFileExtractor.DEPLOY_SUFFIX).exists());
+		Assert.assertFalse(new File(modulesDirectory, "a" + ModuleFileExtractor.BACKUP_SUFFIX).exists());
+		Assert.assertFalse(new File(modulesDirectory, "a" + ModuleFileExtractor.STAGING_SUFFIX).exists());
+	}
+
+	@Test
+	public void testDeploySwapsModuleDirectory() throws Exception {
+		File extracted = new File(modulesDirectory, "a");
+		// 模块运行时自己创建的文件在换入后保留
+		TestModuleContextClassLoader.writeFile(new File(extracted, "work/state.txt"), "runtime");
+
+		File moduleFile = new File(modulesDirectory, "a.mod");
+		writeModuleFile(moduleFile, "2.0.0", null, null, "v2");
+		moduleContext.deploy(modulesDirectory.getCanonicalFile(), moduleFile);
+
+		Module module = moduleContext.getModule("a");
+		Assert.assertEquals("2.0.0", module.getVersion().toString());
+		Assert.assertEquals(extracted.getCanonicalPath(), new File(module.getRootDirectory()).getCanonicalPath());
+		Assert.assertEquals("v2", read(new File(extracted, "data.txt")));
+		Assert.assertEquals("runtime", read(new File(extracted, "work/state.txt")));
+		Assert.assertFalse(new File(modulesDirectory, "a" + ModuleFileExtractor.DEPLOY_SUFFIX).exists());
+		Assert.assertFalse(new File(modulesDirectory, "a" + ModuleFileExtractor.BACKUP_SUFFIX).exists());
+	}
+
+	@Test
+	public void testOptionalDependencyRanges() throws Exception {
+		// 可选依赖的模块不存在，检查通过
+		File moduleFile = new File(modulesDirectory, "a.mod");
+		writeModuleFile(moduleFile, "2.0.0", null, "missing/1.0.0+", "v2");
+		moduleContext.deploy(modulesDirectory.getCanonicalFile(), moduleFile);
+		Assert.assertEquals("2.0.0", moduleContext.getModule("a").getVersion().toString());
+
+		TestModuleContextClassLoader.writeFile(new File(modulesDirectory, "b" + Module.METADATA_FILE),
+				"module.id=b\nmodule.version=1.0.0\nmodule.require.optional=a/[2.0.0,3.0.0)\n");
+		moduleContext = newModuleContext();
+
+		// 已启用的模块可选依赖热部署的模块，热部署的版本必须在其范围内
+		writeModuleFile(moduleFile, "3.0.0", null, null, "v3");
+		try {
+			moduleContext.deploy(modulesDirectory.getCanonicalFile(), moduleFile);
+			Assert.fail("依赖检查应当失败");
+		} catch (UnsatisfiedDependencyException expected) {
+		}
+
+		// 热部署的模块可选依赖的模块存在，其版本必须在声明的范围内
+		writeModuleFile(moduleFile, "2.1.0", null, "b/2.0.0+", "v3");
+		try {
+			moduleContext.deploy(modulesDirectory.getCanonicalFile(), moduleFile);
+			Assert.fail("依赖检查应当失败");
+		} catch (UnsatisfiedDependencyException expected) {
+		}
+		Assert.assertEquals("2.0.0", moduleContext.getModule("a").getVersion().toString());
+
+		writeModuleFile(moduleFile, "2.1.0", null, "b/1.0.0+", "v3");
+		moduleContext.deploy(modulesDirectory.getCanonicalFile(), moduleFile);
+		Assert.assertEquals("2.1.0", moduleContext.getModule("a").getVersion().toString());
+	}
+
+	@Test
+	public void testRecoverBackupDirectory() throws Exception {
+		File extracted = new File(modulesDirectory, "a");
+		File backup = new File(modulesDirectory, "a" + ModuleFileExtractor.BACKUP_SUFFIX);
+		File deploy = new File(modulesDirectory, "a" + ModuleFileExtractor.DEPLOY_SUFFIX);
+
+		// 模拟换入过程中进程退出：原模块目录已改名为备份目录，部署目录尚未换入
+		Assert.assertTrue(extracted.renameTo(backup));
+		TestModuleContextClassLoader.writeFile(new File(deploy, "data.txt"), "v2");
+		ModuleFileExtractor.recover(modulesDirectory);
+
+		Assert.assertEquals("v1", read(new File(extracted, "data.txt")));
+		Assert.assertFalse(backup.exists());
+		Assert.assertFalse(deploy.exists());
+	}
+
+	private ModuleContext newModuleContext() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(ModuleContext.PROPERTY_MODULES_DIR, "modules");
+		properties.setProperty(ModuleContext.PROPERTY_MRC_CLASSLOADER_MODE, ModuleContext.PROPERTY_MRC_CLASSLOADER_MODE_MODULE);
+		ModuleContext moduleContext = new ModuleContext(directory.getAbsolutePath(), properties);
+
+		// run() 需要从签名的 mrc.jar 载入，这里只执行热部署用到的安装步骤
+		invoke(moduleContext, "loadProperties");
+		invoke(moduleContext, "unzipModuleFiles");
+		invoke(moduleContext, "installModules");
+		set(moduleContext, "classLoader", new ModuleContextClassLoader(getClass().getClassLoader()));
+		set(moduleContext, "running", Boolean.TRUE);
+		return moduleContext;
+	}
+
+	private static void invoke(Object target, String name) throws Exception {
+		Method method = target.getClass().getDeclaredMethod(name);
+		method.setAccessible(true);
+		method.invoke(target);
+	}
+
+	private static void set(Object target, String name, Object value) throws Exception {
+		Field field = target.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(target, value);
+	}
+
+	private static Properties load(File moduleDirectory) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(new File(moduleDirectory.getAbsolutePath() + Module.METADATA_FILE));
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		return properties;
+	}
+
+	private static String read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] data = new byte[(int) file.length()];
+			int n = 0;
+			while (n < data.length) {
+				n += in.read(data, n, data.length - n);
+			}
+			return new String(data, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeModuleFile(File file, String version, String require, String optional, String data) throws IOException {
+		long lastModified = file.lastModified();
+		StringBuilder metadata = new StringBuilder();
+		metadata.append("module.id=a\n");
+		metadata.append("module.version=").append(version).append('\n');
+		if (require != null) metadata.append("module.require=").append(require).append('\n');
+		if (optional != null) metadata.append("module.require.optional=").append(optional).append('\n');
+
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+		try {
+			TestModuleContextClassLoader.putEntry(out, Module.METADATA_FILE.substring(1), metadata.toString().getBytes("UTF-8"), false);
+			TestModuleContextClassLoader.putEntry(out, "data.txt", data.getBytes("UTF-8"), false);
+		} finally {
+			out.close();
+		}
+		// 安装包的大小可能与上次相同，修改时间必须不同，否则会被当作未变化
+		file.setLastModified(Math.max(System.currentTimeMillis(), lastModified + 2000));
+	}
+
+}
@@ -0,0 +1,191 @@
+package com.onewaveinc.mrc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestModuleDigester {
+
+	private File directory;
+
+	private File moduleDirectory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("mrc-digester", "");
+		directory.delete();
+		moduleDirectory = new File(directory, "m");
+		Random random = new Random(42);
+		TestModuleContextClassLoader.writeFile(new File(moduleDirectory, "META-INF/module.properties"), "module.id=m\nmodule.version=1.0.0\n");
+		TestModuleContextClassLoader.writeFile(new File(moduleDirectory, "META-INF/MANIFEST.MF"), "Manifest-Version: 1.0\n");
+		TestModuleContextClassLoader.writeFile(new File(moduleDirectory, "META-INF/maven/pom.xml"), "<project/>");
+		for (int i = 0; i < 200; i++) {
+			write(new File(moduleDirectory, "bin/p" + (i % 7) + "/C" + i + ".class"), random, random.nextInt(4096));
+		}
+		write(new File(moduleDirectory, "bin/empty.txt"), random, 0);
+		// 超过内存映射阈值的文件
+		write(new File(moduleDirectory, "lib/large.jar"), random, 3 * 1024 * 1024 + 17);
+		write(new File(moduleDirectory, "lib/small.jar"), random, 1000);
+		write(new File(moduleDirectory, "lib/small-sources.jar"), random, 1000);
+		write(new File(moduleDirectory, "conf/ignored.xml"), random, 100);
+	}
+
+	@After
+	public void tearDown() {
+		TestModuleContextClassLoader.delete(directory);
+	}
+
+	@Test
+	public void testDigestMatchesSequentialImplementation() throws Exception {
+		Module module = Module.load(moduleDirectory);
+		byte[][] expected = referenceDigest(module);
+		for (int threads : new int[] { 1, 2, 4, 8 }) {
+			byte[][] digests = new ModuleDigester(threads, null).digest(module);
+			Assert.assertTrue("MD5, threads=" + threads, Arrays.equals(expected[0], digests[0]));
+			Assert.assertTrue("SHA-1, threads=" + threads, Arrays.equals(expected[1], digests[1]));
+		}
+
+		ModuleSignature signature = new ModuleSignature(module);
+		Assert.assertTrue(Arrays.equals(expected[0], signature.getMD5Digest()));
+		Assert.assertTrue(Arrays.equals(expected[1], signature.getSHA1Digest()));
+	}
+
+	@Test
+	public void testDigestCache() throws Exception {
+		File cacheFile = new File(directory, ModuleSignature.DIGEST_CACHE_FILE);
+		Module module = Module.load(moduleDirectory);
+		ModuleDigestCache cache = new ModuleDigestCache(cacheFile);
+		new ModuleDigester(1, cache).digest(module);
+		cache.store();
+
+		// 文件发生变化后重新计算摘要，缓存文件被替换
+		Random random = new Random(7);
+		write(new File(moduleDirectory, "lib/small.jar"), random, 1001);
+		byte[][] expected = referenceDigest(module);
+		cache = new ModuleDigestCache(cacheFile);
+		cache.load();
+		byte[][] digests = new ModuleDigester(1, cache).digest(module);
+		Assert.assertTrue(Arrays.equals(expected[0], digests[0]));
+		cache.store();
+
+		cache = new ModuleDigestCache(cacheFile);
+		cache.load();
+		digests = new ModuleDigester(1, cache).digest(module);
+		Assert.assertTrue(Arrays.equals(expected[0], digests[0]));
+		Assert.assertTrue(Arrays.equals(expected[1], digests[1]));
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("m", ModuleSignature.DIGEST_CACHE_FILE)), new HashSet<String>(Arrays.asList(directory.list())));
+	}
+
+	@Test
+	public void testArchiveDigestMatchesDirectory() throws Exception {
+		File moduleFile = new File(directory, "m.mod");
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(moduleFile));
+		try {
+			zip(out, moduleDirectory, "");
+		} finally {
+			out.close();
+		}
+
+		byte[][] expected = referenceDigest(Module.load(moduleDirectory));
+		Module module = Module.load(moduleFile);
+		Assert.assertTrue(module.isArchive());
+		byte[][] digests = new ModuleDigester(4, null).digest(module);
+		Assert.assertTrue(Arrays.equals(expected[0], digests[0]));
+		Assert.assertTrue(Arrays.equals(expected[1], digests[1]));
+		Assert.assertTrue(Arrays.equals(expected[0], referenceDigest(module)[0]));
+	}
+
+	/**
+	 * 原有的顺序实现：按 /bin、/lib、/META-INF 的顺序，目录内按文件名排序，依次送入模块路径和文件内容
+	 */
+	private static byte[][] referenceDigest(Module module) throws Exception {
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+		for (String path : new String[] { "/bin", "/lib", "/META-INF" }) {
+			ModuleFile directory = module.getModuleFile(path);
+			if (directory.isDirectory()) referenceDigest(directory, md5, sha1);
+		}
+		return new byte[][] { md5.digest(), sha1.digest() };
+	}
+
+	private static void referenceDigest(ModuleFile directory, MessageDigest md5, MessageDigest sha1) throws Exception {
+		ModuleFile[] files = directory.listFiles();
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File o1, File o2) {
+				return o1.getName().compareTo(o2.getName());
+			}
+		});
+		byte[] buf = new byte[8192];
+		for (ModuleFile file : files) {
+			String modulePath = file.getModulePath();
+			if (modulePath.endsWith("-sources.jar")) continue;
+			if (modulePath.startsWith("/META-INF/maven/")) continue;
+			if (modulePath.equals("/META-INF/MANIFEST.MF")) continue;
+			if (file.isDirectory()) {
+				referenceDigest(file, md5, sha1);
+				continue;
+			}
+			byte[] path = modulePath.getBytes("UTF-8");
+			md5.update(path);
+			sha1.update(path);
+			InputStream in = file.openStream();
+			try {
+				int len;
+				while ((len = in.read(buf)) != -1) {
+					md5.update(buf, 0, len);
+					sha1.update(buf, 0, len);
+				}
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	private static void write(File file, Random random, int size) throws IOException {
+		byte[] data = new byte[size];
+		random.nextBytes(data);
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void zip(ZipOutputStream out, File file, String name) throws IOException {
+		if (file.isDirectory()) {
+			File[] files = file.listFiles();
+			Arrays.sort(files);
+			for (File f : files) {
+				zip(out, f, name.length() == 0 ? f.getName() : name + "/" + f.getName());
+			}
+			return;
+		}
+		byte[] data = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int n = 0;
+			while (n < data.length) {
+				n += in.read(data, n, data.length - n);
+			}
+		} finally {
+			in.close();
+		}
+		TestModuleContextClassLoader.putEntry(out, name, data, false);
+	}
+
+}
@@ -0,0 +1,151 @@
+package com.onewaveinc.mrc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestModuleFileExtractor {
+
+	private File directory;
+
+	private File moduleDirectory;
+
+	private File moduleFile;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("mrc-extract", "");
+		directory.delete();
+		directory.mkdirs();
+		moduleFile = new File(directory, "a" + ModuleContext.MODULE_FILE_SUFFIX);
+		moduleDirectory = new File(directory, "a");
+		writeModuleFile(0, "a", "b", "lib/c");
+	}
+
+	@After
+	public void tearDown() {
+		TestModuleContextClassLoader.delete(directory);
+	}
+
+	@Test
+	public void testIncrementalExtraction() throws Exception {
+		Assert.assertEquals(3, extract());
+		Assert.assertEquals("a0", read(new File(moduleDirectory, "a")));
+		Assert.assertEquals("lib/c0", read(new File(moduleDirectory, "lib/c")));
+		// 安装包未变化时不解压
+		Assert.assertEquals(0, extract());
+
+		// 模块运行时自己创建的文件不受影响
+		File runtimeFile = new File(moduleDirectory, "lib/runtime");
+		TestModuleContextClassLoader.writeFile(runtimeFile, "runtime");
+		File b = new File(moduleDirectory, "b");
+		Assert.assertTrue(b.setLastModified(1000000000000L));
+
+		// a 发生变化，b 不变，lib/c 被移除，d 是新增的
+		writeModuleFile(new String[] { "a1", "b0", "d1" }, "a", "b", "d");
+		Assert.assertEquals(3, extract());
+		Assert.assertEquals("a1", read(new File(moduleDirectory, "a")));
+		Assert.assertEquals("d1", read(new File(moduleDirectory, "d")));
+		Assert.assertFalse(new File(moduleDirectory, "lib/c").exists());
+		// 未变化的文件不被重写
+		Assert.assertEquals(1000000000000L, b.lastModified());
+		Assert.assertEquals("runtime", read(runtimeFile));
+		Assert.assertEquals(0, extract());
+		// 标记文件被替换，不留下临时文件
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("a", "a" + ModuleContext.MODULE_FILE_SUFFIX, "a" + ModuleFileExtractor.MARKER_SUFFIX)),
+				new HashSet<String>(Arrays.asList(directory.list())));
+	}
+
+	@Test
+	public void testRecoverStagingDirectory() throws Exception {
+		Assert.assertEquals(3, extract());
+		File marker = new File(directory, "a" + ModuleFileExtractor.MARKER_SUFFIX);
+		File staging = new File(directory, "a" + ModuleFileExtractor.STAGING_SUFFIX);
+		Assert.assertTrue(marker.isFile());
+
+		// 模拟解压过程中被中断：标记文件已删除，模块目录已改名为临时目录，其中一个文件写了一半
+		Assert.assertTrue(marker.delete());
+		Assert.assertTrue(moduleDirectory.renameTo(staging));
+		TestModuleContextClassLoader.writeFile(new File(staging, "b"), "b");
+		Assert.assertTrue(ModuleFileExtractor.isTemporaryDirectory(staging.getName()));
+
+		ModuleFileExtractor.recover(directory);
+		Assert.assertFalse(staging.exists());
+		Assert.assertTrue(moduleDirectory.isDirectory());
+		// 没有标记文件时比较已解压文件的 CRC，只重写不完整的文件
+		Assert.assertEquals(1, extract());
+		Assert.assertEquals("b0", read(new File(moduleDirectory, "b")));
+		Assert.assertTrue(marker.isFile());
+	}
+
+	@Test
+	public void testRecoverStagingDirectoryBesideModuleDirectory() throws Exception {
+		Assert.assertEquals(3, extract());
+		// 模块目录存在时，遗留的临时目录和部署目录被删除
+		File staging = new File(directory, "a" + ModuleFileExtractor.STAGING_SUFFIX);
+		File deploy = new File(directory, "a" + ModuleFileExtractor.DEPLOY_SUFFIX);
+		TestModuleContextClassLoader.writeFile(new File(staging, "a"), "staging");
+		TestModuleContextClassLoader.writeFile(new File(deploy, "a"), "deploy");
+
+		ModuleFileExtractor.recover(directory);
+		Assert.assertFalse(staging.exists());
+		Assert.assertFalse(deploy.exists());
+		Assert.assertEquals("a0", read(new File(moduleDirectory, "a")));
+		Assert.assertEquals(0, extract());
+	}
+
+	private int extract() throws IOException {
+		return new ModuleFileExtractor(moduleFile, moduleDirectory).extract();
+	}
+
+	/**
+	 * 写入模块安装包，每个文件的内容为文件名加版本号
+	 */
+	private void writeModuleFile(int version, String... names) throws IOException {
+		String[] contents = new String[names.length];
+		for (int i = 0; i < names.length; i++) {
+			contents[i] = names[i] + version;
+		}
+		writeModuleFile(contents, names);
+	}
+
+	private void writeModuleFile(String[] contents, String... names) throws IOException {
+		long lastModified = moduleFile.lastModified();
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(moduleFile));
+		try {
+			for (int i = 0; i < names.length; i++) {
+				TestModuleContextClassLoader.putEntry(out, names[i], contents[i].getBytes("UTF-8"), i % 2 == 0);
+			}
+		} finally {
+			out.close();
+		}
+		// 安装包以大小和修改时间判断是否变化
+		if (lastModified != 0) moduleFile.setLastModified(lastModified + 2000);
+	}
+
+	private static String read(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] data = new byte[(int) file.length()];
+			int n = 0;
+			while (n < data.length) {
+				int c = in.read(data, n, data.length - n);
+				if (c == -1) break;
+				n += c;
+			}
+			return new String(data, 0, n, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+}
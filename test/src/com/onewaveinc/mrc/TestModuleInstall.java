@@ -0,0 +1,96 @@
+package com.onewaveinc.mrc;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestModuleInstall {
+
+	private static final int MODULES = 40;
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("mrc-install", "");
+		directory.delete();
+		for (int i = 0; i < MODULES; i++) {
+			// 同一模块 ID 在两个模块安装目录中各有一个，级别不同
+			writeModule(new File(directory, "m" + (i % 2) + "/module" + i), "module" + (i / 2));
+		}
+		// 不是模块目录的目录被忽略
+		new File(directory, "m0/empty").mkdirs();
+		TestModuleContextClassLoader.writeFile(new File(directory, "m1/invalid" + Module.METADATA_FILE), "module.version=x");
+	}
+
+	@After
+	public void tearDown() {
+		TestModuleContextClassLoader.delete(directory);
+	}
+
+	@Test
+	public void testInstallOrderFollowsDirectoryListing() throws Exception {
+		// 期望的顺序与按目录列表顺序逐个安装相同
+		List<String> expected = new ArrayList<String>();
+		for (String name : new String[] { "m0", "m1" }) {
+			for (File file : new File(directory, name).listFiles()) {
+				if (new File(file.getAbsolutePath() + Module.METADATA_FILE).isFile() && !file.getName().equals("invalid")) {
+					expected.add(file.getCanonicalPath() + " " + name.substring(1));
+				}
+			}
+		}
+		Assert.assertEquals(MODULES, expected.size());
+
+		for (int i = 0; i < 3; i++) {
+			List<String> installed = new ArrayList<String>();
+			for (Module module : install()) {
+				installed.add(new File(module.getRootDirectory()).getCanonicalPath() + " " + module.getLevel());
+				Assert.assertEquals(ModuleState.INSTALLED, module.getState());
+			}
+			Assert.assertEquals(expected, installed);
+		}
+	}
+
+	@Test
+	public void testLowerLevelModuleIsPreferred() throws Exception {
+		ModuleContext moduleContext = newModuleContext();
+		invoke(moduleContext, "loadProperties");
+		invoke(moduleContext, "installModules");
+		// 同一模块 ID 先安装的是级别低的模块目录中的模块
+		Assert.assertEquals(0, moduleContext.getModule("module0").getLevel());
+		Assert.assertEquals(MODULES, moduleContext.getModules().size());
+	}
+
+	private List<Module> install() throws Exception {
+		ModuleContext moduleContext = newModuleContext();
+		invoke(moduleContext, "loadProperties");
+		invoke(moduleContext, "installModules");
+		return moduleContext.getModules();
+	}
+
+	private ModuleContext newModuleContext() {
+		Properties properties = new Properties();
+		properties.setProperty(ModuleContext.PROPERTY_MODULES_DIR, "m0;m1");
+		return new ModuleContext(directory.getAbsolutePath(), properties);
+	}
+
+	private static void invoke(Object target, String name) throws Exception {
+		Method method = target.getClass().getDeclaredMethod(name);
+		method.setAccessible(true);
+		method.invoke(target);
+	}
+
+	private static void writeModule(File moduleDirectory, String id) throws IOException {
+		TestModuleContextClassLoader.writeFile(new File(moduleDirectory.getAbsolutePath() + Module.METADATA_FILE), "module.id=" + id + "\nmodule.version=1.0.0\n");
+		new File(moduleDirectory, "lib").mkdirs();
+	}
+
+}
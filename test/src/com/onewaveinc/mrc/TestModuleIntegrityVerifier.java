@@ -0,0 +1,253 @@
+package com.onewaveinc.mrc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import javax.crypto.Cipher;
+
+import sun.misc.BASE64Encoder;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestModuleIntegrityVerifier {
+
+	private File directory;
+
+	private Module module;
+
+	private File state;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("mrc-integrity", "");
+		directory.delete();
+		File root = new File(directory, "a");
+		TestModuleContextClassLoader.writeFile(new File(root, "META-INF/module.properties"), "module.id=a\nmodule.version=1.0.0\n");
+		TestModuleContextClassLoader.writeFile(new File(root, "lib/a.jar"), "a.jar");
+		TestModuleContextClassLoader.writeFile(new File(root, "lib/sub/b.txt"), "b.txt");
+		TestModuleContextClassLoader.writeFile(new File(root, "bin/c/C.class"), "C.class");
+		// 不在清单覆盖的目录中的文件不校验
+		TestModuleContextClassLoader.writeFile(new File(root, "conf/d.xml"), "d.xml");
+		module = new Module(root.getAbsolutePath());
+		module.setId("a");
+		module.setVersion(Version.parse("1.0.0"));
+		writeManifest(ModuleIntegrityManifest.create(module));
+		state = new File(directory, "mrc-integrity.state");
+	}
+
+	@After
+	public void tearDown() {
+		TestModuleContextClassLoader.delete(directory);
+	}
+
+	@Test
+	public void testUnmodifiedModulePasses() throws Exception {
+		Assert.assertEquals(0, verify(false).size());
+		Assert.assertEquals(0, verify(true).size());
+		TestModuleContextClassLoader.writeFile(file("conf/d.xml"), "changed");
+		Assert.assertEquals(0, verify(true).size());
+	}
+
+	@Test
+	public void testTamperedFileIsNamed() throws Exception {
+		// 大小不变、内容被修改的文件
+		File b = file("lib/sub/b.txt");
+		long lastModified = b.lastModified();
+		TestModuleContextClassLoader.writeFile(b, "B.txt");
+		b.setLastModified(lastModified + 2000);
+		assertFailure(verify(false), "/lib/sub/b.txt", "内容");
+
+		TestModuleContextClassLoader.writeFile(file("lib/sub/b.txt"), "b.txt.modified");
+		assertFailure(verify(false), "/lib/sub/b.txt", "大小");
+
+		TestModuleContextClassLoader.writeFile(file("lib/sub/b.txt"), "b.txt");
+		Assert.assertTrue(file("bin/c/C.class").delete());
+		assertFailure(verify(false), "/bin/c/C.class", "缺失");
+
+		TestModuleContextClassLoader.writeFile(file("bin/c/C.class"), "C.class");
+		TestModuleContextClassLoader.writeFile(file("lib/e.jar"), "e.jar");
+		assertFailure(verify(false), "/lib/e.jar", "未登记");
+	}
+
+	@Test
+	public void testTamperedManifestNamesDirectory() throws Exception {
+		// 修改清单中文件的摘要，目录的摘要不再一致，指出被修改的记录所在的目录
+		String hash = ModuleIntegrityManifest.read(module).getFiles().get("/lib/sub/b.txt").hash;
+		File manifestFile = file("META-INF/module.integrity");
+		String content = read(manifestFile).replace(hash, ModuleIntegrityManifest.hash(module, "/lib/a.jar"));
+		TestModuleContextClassLoader.writeFile(manifestFile, content);
+		Assert.assertEquals("/lib/sub", ModuleIntegrityManifest.read(module).verifyTree());
+		assertFailure(verify(false), "/lib/sub", "清单已被修改");
+	}
+
+	@Test
+	public void testIncrementalVerificationSkipsUnchangedFiles() throws Exception {
+		ModuleIntegrityVerifier verifier = new ModuleIntegrityVerifier(state);
+		Assert.assertEquals(0, verifier.verify(Arrays.asList(module), false).size());
+		verifier.store();
+		Assert.assertTrue(state.isFile());
+
+		// 大小和修改时间不变的文件不重新计算摘要：增量校验通过，完整校验发现修改
+		File a = file("lib/a.jar");
+		long lastModified = a.lastModified();
+		TestModuleContextClassLoader.writeFile(a, "A.jar");
+		Assert.assertTrue(a.setLastModified(lastModified));
+		verifier = new ModuleIntegrityVerifier(state);
+		verifier.load();
+		Assert.assertEquals(0, verifier.verify(Arrays.asList(module), false).size());
+		assertFailure(verifier.verify(Arrays.asList(module), true), "/lib/a.jar", "内容");
+
+		// 失败的模块不再记录，下次增量校验重新计算所有文件的摘要
+		assertFailure(verifier.verify(Arrays.asList(module), false), "/lib/a.jar", "内容");
+		verifier.store();
+		verifier = new ModuleIntegrityVerifier(state);
+		verifier.load();
+		assertFailure(verifier.verify(Arrays.asList(module), false), "/lib/a.jar", "内容");
+		// 状态文件被替换，不留下临时文件
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("a", "mrc-integrity.state")), new HashSet<String>(Arrays.asList(directory.list())));
+	}
+
+	@Test
+	public void testRootHashAnchoredBySignature() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024);
+		KeyPair keyPair = generator.generateKeyPair();
+		Properties properties = new Properties();
+		properties.setProperty(ModuleContext.PROPERTY_MODULES_DIR, ".");
+		ModuleContext moduleContext = new ModuleContext(directory.getAbsolutePath(), properties);
+		for (String name : new String[] { "loadProperties", "installModules" }) {
+			Method method = ModuleContext.class.getDeclaredMethod(name);
+			method.setAccessible(true);
+			method.invoke(moduleContext);
+		}
+		Field publicKey = ModuleContext.class.getDeclaredField("publicKey");
+		publicKey.setAccessible(true);
+		publicKey.set(moduleContext, keyPair.getPublic());
+
+		// 签名中的根摘要与完整性清单一致
+		String rootHash = ModuleIntegrityManifest.read(module).getRootHash();
+		writeSignature(keyPair, rootHash);
+		Assert.assertNull(verifyIntegrity(moduleContext, true));
+
+		// 修改文件后重新生成的完整性清单与签名不符
+		TestModuleContextClassLoader.writeFile(file("lib/a.jar"), "changed");
+		writeManifest(ModuleIntegrityManifest.create(module));
+		Assert.assertTrue(verifyIntegrity(moduleContext, true).contains(rootHash));
+		Assert.assertNull(verifyIntegrity(moduleContext, false));
+
+		// 签名中没有根摘要
+		writeSignature(keyPair, null);
+		Assert.assertTrue(verifyIntegrity(moduleContext, true).contains("签名中没有完整性清单的根摘要"));
+	}
+
+	@Test
+	public void testModuleWithoutManifest() throws Exception {
+		Assert.assertTrue(file("META-INF/module.integrity").delete());
+		TestModuleContextClassLoader.writeFile(file("lib/a.jar"), "changed");
+		Assert.assertEquals(0, verify(true).size());
+	}
+
+	/**
+	 * 以完整性校验模式校验 MRC 中的模块
+	 * 
+	 * @return 中止启动的原因。没有中止启动时，返回 null
+	 */
+	private static String verifyIntegrity(ModuleContext moduleContext, boolean enforce) throws Exception {
+		Method method = ModuleContext.class.getDeclaredMethod("verifyIntegrity", boolean.class);
+		method.setAccessible(true);
+		try {
+			method.invoke(moduleContext, enforce);
+			return null;
+		} catch (InvocationTargetException e) {
+			Assert.assertTrue(e.getCause() instanceof ModuleException);
+			return e.getCause().getMessage();
+		}
+	}
+
+	/**
+	 * 以私钥加密签名正文，写入模块的 MANIFEST.MF
+	 */
+	private void writeSignature(KeyPair keyPair, String rootHash) throws Exception {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(header);
+		out.writeUTF("a");
+		out.writeUTF("1.0.0");
+		out.write(new byte[16 + 20]);
+		if (rootHash != null) out.writeUTF(rootHash);
+		out.close();
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		data.write(header.size() & 0xff);
+		data.write(header.size() >> 8);
+		header.writeTo(data);
+
+		Cipher cipher = Cipher.getInstance("RSA");
+		cipher.init(Cipher.ENCRYPT_MODE, keyPair.getPrivate());
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().putValue("Signature", new BASE64Encoder().encode(cipher.doFinal(data.toByteArray())).replaceAll("\\s", ""));
+		FileOutputStream manifestOut = new FileOutputStream(file("META-INF/MANIFEST.MF"));
+		try {
+			manifest.write(manifestOut);
+		} finally {
+			manifestOut.close();
+		}
+	}
+
+	private void assertFailure(List<String> failures, String path, String reason) {
+		Assert.assertEquals(failures.toString(), 1, failures.size());
+		Assert.assertTrue(failures.get(0), failures.get(0).contains(" " + path + " "));
+		Assert.assertTrue(failures.get(0), failures.get(0).contains(reason));
+	}
+
+	private File file(String path) {
+		return new File(module.getRootDirectory(), path);
+	}
+
+	private List<String> verify(boolean full) {
+		return new ModuleIntegrityVerifier(state).verify(Arrays.asList(module), full);
+	}
+
+	private void writeManifest(ModuleIntegrityManifest manifest) throws IOException {
+		FileOutputStream out = new FileOutputStream(file("META-INF/module.integrity"));
+		try {
+			manifest.write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String read(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] data = new byte[(int) file.length()];
+			int n = 0;
+			while (n < data.length) {
+				int c = in.read(data, n, data.length - n);
+				if (c == -1) break;
+				n += c;
+			}
+			return new String(data, 0, n, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,163 @@
+package com.onewaveinc.mrc;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class TestModuleLifecycleScheduler {
+
+	private final Map<Module,List<Module>> dependencies = new HashMap<Module,List<Module>>();
+
+	/**
+	 * 开始和完成的记录，如 start:a、done:a
+	 */
+	private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+	@Test
+	public void testDependenciesCompleteFirst() throws Exception {
+		// c 依赖 b，b 依赖 a，d 与之无关，与 a 并行执行
+		Module a = newModule("a", 1);
+		Module b = newModule("b", 1, a);
+		Module c = newModule("c", 1, b);
+		Module d = newModule("d", 1);
+		Recorder recorder = new Recorder(100, null);
+
+		new ModuleLifecycleScheduler(4).execute("start", Arrays.asList(a, b, c, d), dependencies, recorder);
+		Assert.assertEquals(8, events.size());
+		Assert.assertTrue(events.indexOf("done:a") < events.indexOf("start:b"));
+		Assert.assertTrue(events.indexOf("done:b") < events.indexOf("start:c"));
+		Assert.assertTrue(events.indexOf("start:d") < events.indexOf("done:a"));
+		Assert.assertEquals(2, recorder.maxConcurrency.get());
+	}
+
+	@Test
+	public void testStartLevelBarrier() throws Exception {
+		// y 与 x 没有依赖关系，但启动级别更高，x 完成后才开始
+		Module x = newModule("x", 1);
+		Module y = newModule("y", 2);
+		new ModuleLifecycleScheduler(4).execute("start", Arrays.asList(x, y), dependencies, new Recorder(100, null));
+		Assert.assertEquals(Arrays.asList("start:x", "done:x", "start:y", "done:y"), events);
+	}
+
+	@Test
+	public void testLaterDependencyIsIgnored() throws Exception {
+		// a 与 b 相互依赖，只考虑排在前面的依赖，不会互相等待
+		Module a = newModule("a", 1);
+		Module b = newModule("b", 1, a);
+		dependencies.put(a, Arrays.asList(b));
+		new ModuleLifecycleScheduler(4).execute("resolve", Arrays.asList(a, b), dependencies, new Recorder(0, null));
+		Assert.assertEquals(Arrays.asList("start:a", "done:a", "start:b", "done:b"), events);
+	}
+
+	@Test
+	public void testParallelismLimit() throws Exception {
+		List<Module> modules = new ArrayList<Module>();
+		for (int i = 0; i < 12; i++) {
+			modules.add(newModule("m" + i, 1));
+		}
+		Recorder recorder = new Recorder(30, null);
+		new ModuleLifecycleScheduler(3).execute("prepare", modules, dependencies, recorder);
+		Assert.assertEquals(24, events.size());
+		Assert.assertEquals(3, recorder.maxConcurrency.get());
+	}
+
+	@Test
+	public void testFailureCancelsRest() throws Exception {
+		// a 失败：依赖 a 的 b 和更高启动级别的 e 不被通知，正在执行的 c 完成后才抛出异常
+		Module a = newModule("a", 1);
+		Module b = newModule("b", 1, a);
+		Module c = newModule("c", 1);
+		Module e = newModule("e", 2);
+		Recorder recorder = new Recorder(0, "a");
+		recorder.delays.put("c", 200L);
+
+		try {
+			new ModuleLifecycleScheduler(4).execute("start", Arrays.asList(a, b, c, e), dependencies, recorder);
+			Assert.fail();
+		} catch (ModuleException ex) {
+			Assert.assertEquals("a", ex.getMessage());
+		}
+		Assert.assertTrue(events.contains("done:c"));
+		Assert.assertFalse(events.contains("start:b"));
+		Assert.assertFalse(events.contains("start:e"));
+	}
+
+	@Test
+	public void testContextClassLoader() throws Exception {
+		final ClassLoader classLoader = new URLClassLoader(new URL[0]);
+		final List<ClassLoader> classLoaders = Collections.synchronizedList(new ArrayList<ClassLoader>());
+		Thread thread = Thread.currentThread();
+		ClassLoader original = thread.getContextClassLoader();
+		thread.setContextClassLoader(classLoader);
+		try {
+			new ModuleLifecycleScheduler(2).execute("start", Arrays.asList(newModule("a", 1), newModule("b", 1)), dependencies,
+					new ModuleVisitor() {
+						public void visit(Module module) {
+							classLoaders.add(Thread.currentThread().getContextClassLoader());
+						}
+					});
+		} finally {
+			thread.setContextClassLoader(original);
+		}
+		Assert.assertEquals(Arrays.asList(classLoader, classLoader), classLoaders);
+	}
+
+	private Module newModule(String id, int startLevel, Module... required) {
+		Module module = TestModuleContextClassLoader.newModule(id);
+		module.setStartLevel(startLevel);
+		dependencies.put(module, Arrays.asList(required));
+		return module;
+	}
+
+	/**
+	 * 记录执行顺序和同时执行的模块数
+	 */
+	private class Recorder implements ModuleVisitor {
+
+		private final AtomicInteger concurrency = new AtomicInteger();
+
+		final Map<String,Long> delays = new ConcurrentHashMap<String,Long>();
+
+		private final long delay;
+
+		private final String failingModule;
+
+		final AtomicInteger maxConcurrency = new AtomicInteger();
+
+		Recorder(long delay, String failingModule) {
+			this.delay = delay;
+			this.failingModule = failingModule;
+		}
+
+		public void visit(Module module) throws Exception {
+			int current = concurrency.incrementAndGet();
+			for (;;) {
+				int max = maxConcurrency.get();
+				if (current <= max || maxConcurrency.compareAndSet(max, current)) break;
+			}
+			events.add("start:" + module.getId());
+			try {
+				if (module.getId().equals(failingModule)) {
+					throw new ModuleException(module.getId());
+				}
+				Long moduleDelay = delays.get(module.getId());
+				Thread.sleep(moduleDelay != null ? moduleDelay : delay);
+				events.add("done:" + module.getId());
+			} finally {
+				concurrency.decrementAndGet();
+			}
+		}
+
+	}
+
+}
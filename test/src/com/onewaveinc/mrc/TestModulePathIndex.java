@@ -0,0 +1,112 @@
+package com.onewaveinc.mrc;
+
+import java.io.File;
+import java.net.URL;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestModulePathIndex {
+
+	private Module a;
+
+	private Module b;
+
+	private Module c;
+
+	private File directory;
+
+	private ModuleRegistry registry;
+
+	@Before
+	public void setUp() {
+		directory = new File(System.getProperty("java.io.tmpdir"), "mrc-index").getAbsoluteFile();
+		a = newModule("a", new File(directory, "modules/a"));
+		a.setClassPath(Arrays.asList(new File(directory, "lib/shared.jar").getPath(), new File(directory, "modules/a/lib/a.jar").getPath()));
+		// 目录名以 a 开头，不能与 a 混淆
+		b = newModule("b", new File(directory, "modules/ab"));
+		// 挂载的安装包
+		c = newModule("c", new File(directory, "modules/c.mod"));
+		c.setClassPath(Arrays.asList(ModuleArchive.PROTOCOL + ":" + new File(directory, "modules/c.mod").toURI() + "!/lib/c.jar"));
+		Module extension = newModule("ext", new File(directory, "modules/ext"));
+		extension.setExtend("a");
+		extension.setClassPath(Arrays.asList(new File(directory, "lib/ext.jar").getPath()));
+		Module disabled = newModule("d", new File(directory, "modules/d"));
+		disabled.setEnabled(false);
+
+		registry = ModuleRegistry.EMPTY;
+		for (Module module : Arrays.asList(a, b, c, extension, disabled)) {
+			registry = registry.with(module);
+		}
+	}
+
+	@Test
+	public void testFileURL() throws Exception {
+		ModulePathIndex index = registry.getPathIndex();
+		Assert.assertSame(a, index.find(fileURL("modules/a/conf/a.xml")));
+		Assert.assertSame(a, index.find(fileURL("modules/a")));
+		Assert.assertSame(b, index.find(fileURL("modules/ab/conf/b.xml")));
+		Assert.assertNull(index.find(fileURL("modules/abc/conf/a.xml")));
+		Assert.assertNull(index.find(fileURL("modules")));
+		Assert.assertNull(index.find(fileURL("modules/d/conf/d.xml")));
+		Assert.assertSame(a, index.find(fileURL("lib/shared.jar")));
+		// 扩展模块的目录和类路径项属于被扩展的模块
+		Assert.assertSame(a, index.find(fileURL("modules/ext/conf/ext.xml")));
+		Assert.assertSame(a, index.find(fileURL("lib/ext.jar")));
+		Assert.assertNull(index.find(new URL("http://localhost" + fileURL("modules/a/conf/a.xml").getPath())));
+	}
+
+	@Test
+	public void testJarURL() throws Exception {
+		ModulePathIndex index = registry.getPathIndex();
+		Assert.assertSame(a, index.find(jarURL("lib/shared.jar", "com/onewaveinc/A.class")));
+		Assert.assertSame(a, index.find(jarURL("modules/a/lib/a.jar", "META-INF/MANIFEST.MF")));
+		Assert.assertSame(a, index.find(jarURL("lib/ext.jar", "com/onewaveinc/Ext.class")));
+		Assert.assertNull(index.find(jarURL("lib/other.jar", "com/onewaveinc/A.class")));
+		Assert.assertNull(index.find(new URL("jar:http://localhost/lib/shared.jar!/A.class")));
+	}
+
+	@Test
+	public void testModURL() throws Exception {
+		ModulePathIndex index = registry.getPathIndex();
+		String prefix = ModuleArchive.PROTOCOL + ":" + new File(directory, "modules/c.mod").toURI();
+		Assert.assertSame(c, index.find(ModuleArchive.toClassPathURL(prefix + "!/conf/c.xml")));
+		Assert.assertSame(c, index.find(ModuleArchive.toClassPathURL(prefix + "!/lib/c.jar!/com/onewaveinc/C.class")));
+		Assert.assertSame(c, index.find(fileURL("modules/c.mod")));
+		Assert.assertNull(index.find(ModuleArchive.toClassPathURL(ModuleArchive.PROTOCOL + ":" + new File(directory, "modules/x.mod").toURI() + "!/conf/c.xml")));
+	}
+
+	@Test
+	public void testIndexFollowsSnapshot() {
+		// 同一快照的索引只建立一次，新的快照使用新的索引
+		ModulePathIndex index = registry.getPathIndex();
+		Assert.assertSame(index, registry.getPathIndex());
+		Module e = newModule("e", new File(directory, "modules/e"));
+		ModuleRegistry updated = registry.with(e);
+		Assert.assertNotSame(index, updated.getPathIndex());
+		Assert.assertSame(e, updated.getPathIndex().find(fileURL("modules/e/conf/e.xml")));
+		Assert.assertNull(index.find(fileURL("modules/e/conf/e.xml")));
+	}
+
+	private URL fileURL(String path) {
+		try {
+			return new File(directory, path).toURI().toURL();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private URL jarURL(String path, String entry) throws Exception {
+		return new URL("jar:" + fileURL(path) + "!/" + entry);
+	}
+
+	private static Module newModule(String id, File rootDirectory) {
+		Module module = new Module(rootDirectory.getPath());
+		module.setId(id);
+		module.setVersion(Version.parse("1.0.0"));
+		return module;
+	}
+
+}
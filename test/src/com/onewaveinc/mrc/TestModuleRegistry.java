@@ -0,0 +1,191 @@
+package com.onewaveinc.mrc;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestModuleRegistry {
+
+	private static final int MODULES = 500;
+
+	private ModuleContext moduleContext;
+
+	@Before
+	public void setUp() {
+		moduleContext = new ModuleContext(System.getProperty("java.io.tmpdir"), new Properties());
+	}
+
+	@Test
+	public void testInstallPublishesOneSnapshot() throws Exception {
+		List<Module> modules = newModules();
+		moduleContext.beginRegistryBatch();
+		try {
+			for (Module module : modules) {
+				install(module);
+			}
+			// 批量修改期间仍是原来的快照
+			Assert.assertEquals(0, moduleContext.getModules().size());
+			Assert.assertNull(moduleContext.getModule("m0"));
+		} finally {
+			moduleContext.endRegistryBatch();
+		}
+
+		Assert.assertEquals(modules, moduleContext.getModules());
+		Assert.assertSame(modules.get(0), moduleContext.getModule("m0"));
+		Assert.assertEquals(modules.get(MODULES - 1).getId(), moduleContext.getModules().get(MODULES - 1).getId());
+	}
+
+	@Test
+	public void testDisablePublishesOneSnapshot() throws Exception {
+		List<Module> modules = newModules();
+		for (Module module : modules.subList(0, 10)) {
+			// 不在批量修改中时，每次安装立即发布
+			install(module);
+			Assert.assertSame(module, moduleContext.getModule(module.getId()));
+		}
+		moduleContext.beginRegistryBatch();
+		for (Module module : modules.subList(10, MODULES)) {
+			install(module);
+		}
+		moduleContext.endRegistryBatch();
+
+		ModuleRegistry registry = getRegistry();
+		moduleContext.beginRegistryBatch();
+		try {
+			for (int i = 0; i < MODULES; i += 2) {
+				modules.get(i).setEnabled(false);
+			}
+			Assert.assertSame(registry, getRegistry());
+		} finally {
+			moduleContext.endRegistryBatch();
+		}
+
+		Assert.assertNotSame(registry, getRegistry());
+		Assert.assertNull(moduleContext.getModule("m0"));
+		Assert.assertSame(modules.get(1), moduleContext.getModule("m1"));
+		Assert.assertEquals(MODULES, moduleContext.getModules().size());
+
+		// 没有修改时不发布新的快照
+		registry = getRegistry();
+		moduleContext.beginRegistryBatch();
+		modules.get(0).setEnabled(false);
+		moduleContext.endRegistryBatch();
+		Assert.assertSame(registry, getRegistry());
+
+		// 不在批量修改中时，启用立即发布
+		modules.get(0).setEnabled(true);
+		Assert.assertSame(modules.get(0), moduleContext.getModule("m0"));
+	}
+
+	@Test
+	public void testBuilderMatchesSequentialMutations() {
+		List<Module> modules = newModules();
+		for (int i = 1; i < MODULES; i += 10) {
+			// m1 扩展 m0，m11 扩展 m10，以此类推
+			modules.get(i).setExtend(modules.get(i - 1).getId());
+		}
+		modules.get(20).setEnabled(false);
+
+		ModuleRegistry sequential = ModuleRegistry.EMPTY;
+		ModuleRegistry.Builder builder = new ModuleRegistry.Builder(ModuleRegistry.EMPTY);
+		for (Module module : modules) {
+			sequential = sequential.with(module);
+			builder.add(module);
+		}
+		Assert.assertTrue(builder.isChanged());
+		ModuleRegistry batched = builder.build();
+
+		Assert.assertEquals(sequential.getModules(), batched.getModules());
+		Assert.assertEquals(sequential.getBaseModules(), batched.getBaseModules());
+		Assert.assertNull(batched.getModule("m20"));
+		for (Module module : modules) {
+			Assert.assertSame(sequential.getModule(module.getId()), batched.getModule(module.getId()));
+			Assert.assertEquals(sequential.getExtensionChain(module.getId()), batched.getExtensionChain(module.getId()));
+		}
+		Assert.assertEquals(1, batched.getExtensionChain("m0").size());
+		Assert.assertNull(batched.getExtensionCycle());
+		Assert.assertFalse(new ModuleRegistry.Builder(batched).isChanged());
+	}
+
+	@Test
+	public void testExtensionChains() throws Exception {
+		// e2 扩展 e1，e1 扩展 base
+		List<Module> modules = newModules(3);
+		modules.get(1).setExtend("m0");
+		modules.get(2).setExtend("m1");
+		for (Module module : modules) {
+			install(module);
+		}
+		invoke("setModuleExtensions");
+		Assert.assertEquals(Arrays.asList(modules.get(2), modules.get(1)), modules.get(0).getExtensions());
+		Assert.assertEquals(Arrays.asList(modules.get(2)), moduleContext.getModuleExtensions("m1"));
+		Assert.assertNull(moduleContext.getModuleExtensions("m2"));
+	}
+
+	@Test
+	public void testExtensionCycle() throws Exception {
+		// m1 扩展 m2，m2 扩展 m3，m3 扩展 m1；m0 不在循环中
+		List<Module> modules = newModules(4);
+		modules.get(1).setExtend("m2");
+		modules.get(2).setExtend("m3");
+		modules.get(3).setExtend("m1");
+		for (Module module : modules) {
+			install(module);
+		}
+		Assert.assertNotNull(getRegistry().getExtensionCycle());
+		Assert.assertNull(moduleContext.getModuleExtensions("m1"));
+		try {
+			invoke("setModuleExtensions");
+			Assert.fail();
+		} catch (InvocationTargetException e) {
+			Assert.assertTrue(e.getCause() instanceof ModuleException);
+			String message = e.getCause().getMessage();
+			for (String id : new String[] { "m1", "m2", "m3" }) {
+				Assert.assertTrue(message, message.contains(id));
+			}
+			Assert.assertFalse(message, message.contains("m0"));
+		}
+	}
+
+	private ModuleRegistry getRegistry() throws Exception {
+		Field field = ModuleContext.class.getDeclaredField("registry");
+		field.setAccessible(true);
+		return (ModuleRegistry) field.get(moduleContext);
+	}
+
+	private void install(Module module) throws Exception {
+		Method method = ModuleContext.class.getDeclaredMethod("install", Module.class);
+		method.setAccessible(true);
+		method.invoke(moduleContext, module);
+	}
+
+	private void invoke(String name) throws Exception {
+		Method method = ModuleContext.class.getDeclaredMethod(name);
+		method.setAccessible(true);
+		method.invoke(moduleContext);
+	}
+
+	private static List<Module> newModules() {
+		return newModules(MODULES);
+	}
+
+	private static List<Module> newModules(int count) {
+		List<Module> modules = new ArrayList<Module>();
+		for (int i = 0; i < count; i++) {
+			Module module = new Module("m" + i);
+			module.setId("m" + i);
+			module.setVersion(Version.parse("1.0.0"));
+			modules.add(module);
+		}
+		return modules;
+	}
+
+}
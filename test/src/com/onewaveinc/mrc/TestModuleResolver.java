@@ -0,0 +1,199 @@
+package com.onewaveinc.mrc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestModuleResolver {
+
+	private Map<String,List<Module>> candidates;
+
+	@Before
+	public void setUp() {
+		candidates = new HashMap<String,List<Module>>();
+	}
+
+	@Test
+	public void testPreferredModules() throws Exception {
+		add("a", "1.0.0", 0, "b/0.1.0+", null);
+		add("b", "1.0.0", 0, null, null);
+		add("b", "2.0.0", 0, null, null);
+		add("b", "0.5.0", 1, null, null);
+
+		// 级别优先于版本
+		Map<String,Module> result = resolve();
+		Assert.assertEquals("b/0.5.0", result.get("b").toString());
+	}
+
+	@Test
+	public void testBacktracksToOlderVersion() throws Exception {
+		// x 2.0.0 要求 y 2.x，y 2.0.0 要求 z 2.x，但 w 把 z 限定为 1.x，只能整条链退回 1.0.0
+		add("x", "2.0.0", 0, "y/[2.0.0,3.0.0)", null);
+		add("x", "1.0.0", 0, "y/[1.0.0,2.0.0)", null);
+		add("y", "2.0.0", 0, "z/[2.0.0,3.0.0)", null);
+		add("y", "1.0.0", 0, "z/[1.0.0,2.0.0)", null);
+		add("z", "2.0.0", 0, null, null);
+		add("z", "1.0.0", 0, null, null);
+		add("w", "1.0.0", 0, "z/[1.0.0,2.0.0)", null);
+
+		Map<String,Module> result = resolve();
+		Assert.assertEquals("x/1.0.0", result.get("x").toString());
+		Assert.assertEquals("y/1.0.0", result.get("y").toString());
+		Assert.assertEquals("z/1.0.0", result.get("z").toString());
+	}
+
+	@Test
+	public void testBacktracksSibling() throws Exception {
+		// a 2.0.0 把 c 限定为 2.x 后，b 2.0.0 与之冲突，只退回 b
+		add("a", "2.0.0", 0, "c/[2.0.0,3.0.0)", null);
+		add("a", "1.0.0", 0, "c/[1.0.0,2.0.0)", null);
+		add("b", "2.0.0", 0, "c/[1.0.0,2.0.0)", null);
+		add("b", "1.0.0", 0, null, null);
+		add("c", "2.0.0", 0, null, null);
+		add("c", "1.0.0", 0, null, null);
+
+		Map<String,Module> result = resolve();
+		Assert.assertEquals("a/2.0.0", result.get("a").toString());
+		Assert.assertEquals("b/1.0.0", result.get("b").toString());
+		Assert.assertEquals("c/2.0.0", result.get("c").toString());
+	}
+
+	@Test
+	public void testConflictExplanation() throws Exception {
+		add("a", "1.0.0", 0, "c/[2.0.0,3.0.0)", null);
+		add("b", "1.0.0", 0, "c/[1.0.0,2.0.0)", null);
+		add("c", "1.0.0", 0, null, null);
+		add("c", "2.0.0", 0, null, null);
+
+		String message = resolveFailure();
+		Assert.assertTrue(message, message.startsWith("无法为模块 c 选择满足所有依赖的版本，候选版本：2.0.0（级别 0）、1.0.0（级别 0）；"));
+		Assert.assertTrue(message, message.contains("模块 a/1.0.0 要求版本范围 [2.0.0,3.0.0)"));
+		Assert.assertTrue(message, message.contains("模块 b/1.0.0 要求版本范围 [1.0.0,2.0.0)"));
+	}
+
+	@Test
+	public void testUnsatisfiableExplanation() throws Exception {
+		add("a", "1.0.0", 0, "x/1.0.0+", null);
+		Assert.assertEquals("模块 a/1.0.0 依赖的模块 x/1.0.0+ 不存在或已被其他规则排除", resolveFailure());
+
+		setUp();
+		add("a", "1.0.0", 0, "b/[2.0.0,3.0.0)", null);
+		add("b", "1.0.0", 0, null, null);
+		String message = resolveFailure();
+		Assert.assertTrue(message, message.startsWith("模块 a/1.0.0 声明的依赖模块 b 的版本范围为: [2.0.0,3.0.0)"));
+	}
+
+	@Test
+	public void testOptionalRequirements() throws Exception {
+		// 可选依赖的模块不存在时不作要求，存在时必须在版本范围内
+		add("a", "1.0.0", 0, null, "x/1.0.0+;b/[1.0.0,2.0.0)");
+		add("b", "2.0.0", 0, null, null);
+		add("b", "1.0.0", 0, null, null);
+
+		Map<String,Module> result = resolve();
+		Assert.assertEquals("a/1.0.0", result.get("a").toString());
+		Assert.assertEquals("b/1.0.0", result.get("b").toString());
+		Assert.assertNull(result.get("x"));
+
+		setUp();
+		add("a", "1.0.0", 0, null, "b/[3.0.0,4.0.0)");
+		add("b", "2.0.0", 0, null, null);
+		resolveFailure();
+	}
+
+	@Test
+	public void testRangedRequirements() throws Exception {
+		add("a", "1.0.0", 0, "b/(1.0.0,2.0.0];c/[1.0.0,2.0.0)", null);
+		add("b", "1.0.0", 0, null, null);
+		add("b", "2.0.0", 0, null, null);
+		add("b", "2.0.1", 0, null, null);
+		add("c", "2.0.0", 0, null, null);
+		add("c", "1.9.9", 0, null, null);
+
+		Map<String,Module> result = resolve();
+		Assert.assertEquals("b/2.0.0", result.get("b").toString());
+		Assert.assertEquals("c/1.9.9", result.get("c").toString());
+	}
+
+	@Test
+	public void testMaxSteps() throws Exception {
+		add("x", "3.0.0", 0, "z/[1.0.0,2.0.0)", null);
+		add("x", "2.0.0", 0, "z/[1.0.0,2.0.0)", null);
+		add("y", "3.0.0", 0, "z/[2.0.0,3.0.0)", null);
+		add("y", "2.0.0", 0, "z/[2.0.0,3.0.0)", null);
+		add("z", "2.0.0", 0, null, null);
+		add("z", "1.0.0", 0, null, null);
+
+		try {
+			new ModuleResolver(candidates, 2).resolve();
+			Assert.fail("应当超过搜索步数上限");
+		} catch (UnsatisfiedDependencyException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("模块版本解析超过 2 步，放弃求解。"));
+		}
+		// 不限制步数时以冲突说明失败原因
+		Assert.assertTrue(resolveFailure().startsWith("无法为模块 "));
+	}
+
+	@Test
+	public void testLargeGraph() throws Exception {
+		// 3000 个模块 ID，每个 3 个版本，相邻的模块 ID 相互依赖，每一步都需要排除最高版本
+		int n = 3000;
+		for (int i = 0; i < n; i++) {
+			for (int v = 1; v <= 3; v++) {
+				add("m" + i, v + ".0.0", 0, i + 1 < n ? "m" + (i + 1) + "/[1.0.0,3.0.0)" : null, i > 0 ? "m" + (i - 1) + "/1.0.0+" : null);
+			}
+		}
+		for (int i = 0; i < 1000; i++) {
+			for (int v = 1; v <= 3; v++) {
+				add("k" + i, v + ".0.0", 0, i + 1 < 1000 ? "k" + (i + 1) + "/" + (v == 1 ? "[1.0.0,2.0.0)" : "1.0.0+") : null, null);
+			}
+		}
+		add("top", "1.0.0", 0, "k0/[1.0.0,2.0.0)", null);
+
+		long t = System.currentTimeMillis();
+		Map<String,Module> result = resolve();
+		long elapsed = System.currentTimeMillis() - t;
+		Assert.assertEquals("m0/3.0.0", result.get("m0").toString());
+		Assert.assertEquals("m1/2.0.0", result.get("m1").toString());
+		Assert.assertEquals("k999/1.0.0", result.get("k999").toString());
+		Assert.assertTrue("解析耗时 " + elapsed + " ms", elapsed < 5000);
+	}
+
+	private void add(String id, String version, int level, String require, String requireOptional) throws ModuleException {
+		Properties metadata = new Properties();
+		metadata.setProperty("module.id", id);
+		metadata.setProperty("module.version", version);
+		if (require != null) metadata.setProperty("module.require", require);
+		if (requireOptional != null) metadata.setProperty("module.require.optional", requireOptional);
+		Module module = Module.create(new File(id + "-" + version + "-" + level), null, metadata, new ArrayList<String>());
+		module.setLevel(level);
+		List<Module> modules = candidates.get(id);
+		if (modules == null) {
+			modules = new ArrayList<Module>();
+			candidates.put(id, modules);
+		}
+		modules.add(module);
+	}
+
+	private Map<String,Module> resolve() throws UnsatisfiedDependencyException {
+		return new ModuleResolver(candidates).resolve();
+	}
+
+	private String resolveFailure() {
+		try {
+			resolve();
+		} catch (UnsatisfiedDependencyException e) {
+			return e.getMessage();
+		}
+		Assert.fail("解析应当失败");
+		return null;
+	}
+
+}
@@ -0,0 +1,168 @@
+package com.onewaveinc.mrc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Test;
+
+public class TestModuleShutdownScheduler {
+
+	/**
+	 * 模拟不能按时停止的模块，测试结束时放行
+	 */
+	private final CountDownLatch hang = new CountDownLatch(1);
+
+	private final Map<Module,List<Module>> dependencies = new HashMap<Module,List<Module>>();
+
+	/**
+	 * 开始停止和停止完成的记录，如 stop:a、stopped:a
+	 */
+	private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+	@After
+	public void tearDown() {
+		hang.countDown();
+	}
+
+	@Test
+	public void testReverseDependencyOrder() {
+		// c 依赖 b，b 依赖 a；d 的启动级别更高，最先停止
+		Module a = newModule("a", 1);
+		Module b = newModule("b", 1, a);
+		Module c = newModule("c", 1, b);
+		Module d = newModule("d", 2);
+
+		int stopped = new ModuleShutdownScheduler(4, 0, 0).execute(Arrays.asList(a, b, c, d), dependencies, new Recorder(0, null));
+		Assert.assertEquals(4, stopped);
+		Assert.assertEquals(Arrays.asList("stop:d", "stopped:d", "stop:c", "stopped:c", "stop:b", "stopped:b", "stop:a", "stopped:a"), events);
+	}
+
+	@Test
+	public void testParallelismLimit() {
+		List<Module> modules = new ArrayList<Module>();
+		for (int i = 0; i < 12; i++) {
+			modules.add(newModule("m" + i, 1));
+		}
+		Recorder recorder = new Recorder(30, null);
+		Assert.assertEquals(12, new ModuleShutdownScheduler(3, 0, 0).execute(modules, dependencies, recorder));
+		Assert.assertEquals(3, recorder.maxConcurrency.get());
+	}
+
+	@Test
+	public void testModuleDeadlineHoldsBackDependencies() {
+		// b 依赖 a，b 超过模块的期限。a 在 b 完成后才停止，与之无关的 c 不受影响
+		Module a = newModule("a", 1);
+		Module b = newModule("b", 1, a);
+		Module c = newModule("c", 1);
+		Recorder recorder = new Recorder(0, null);
+		recorder.delays.put("b", 400L);
+
+		long t = System.currentTimeMillis();
+		int stopped = new ModuleShutdownScheduler(2, 50, 10000).execute(Arrays.asList(a, b, c), dependencies, recorder);
+		Assert.assertEquals(2, stopped);
+		Assert.assertTrue(System.currentTimeMillis() - t >= 400);
+		Assert.assertTrue(events.indexOf("stopped:c") < events.indexOf("stopped:b"));
+		Assert.assertTrue(events.indexOf("stopped:b") < events.indexOf("stop:a"));
+		// 超过期限的 b 仍占用并行数，c 停止后 a 也不会额外使用线程
+		Assert.assertTrue(recorder.maxConcurrency.get() <= 2);
+	}
+
+	@Test
+	public void testModuleDeadlineOccupiesThread() {
+		// 并行数为 1，c 超过期限后，与之无关的 b 仍要等待 c 完成
+		Module b = newModule("b", 1);
+		Module c = newModule("c", 1);
+		Recorder recorder = new Recorder(0, null);
+		recorder.delays.put("c", 300L);
+
+		Assert.assertEquals(1, new ModuleShutdownScheduler(1, 50, 10000).execute(Arrays.asList(b, c), dependencies, recorder));
+		Assert.assertEquals(Arrays.asList("stop:c", "stopped:c", "stop:b", "stopped:b"), events);
+		Assert.assertEquals(1, recorder.maxConcurrency.get());
+	}
+
+	@Test
+	public void testGlobalDeadline() {
+		// b 一直不能停止，超过整个停止过程的期限后放弃等待，a 不被停止
+		Module a = newModule("a", 1);
+		Module b = newModule("b", 1, a);
+		Module c = newModule("c", 0);
+
+		long t = System.currentTimeMillis();
+		int stopped = new ModuleShutdownScheduler(2, 50, 300).execute(Arrays.asList(c, a, b), dependencies, new Recorder(0, "b"));
+		long elapsed = System.currentTimeMillis() - t;
+		Assert.assertEquals(0, stopped);
+		Assert.assertTrue(elapsed >= 300 && elapsed < 5000);
+		Assert.assertEquals(Arrays.asList("stop:b"), events);
+	}
+
+	@Test
+	public void testModuleDeadlineWithoutGlobalDeadline() {
+		// 未设置整个停止过程的期限时，超过模块期限的 b 视为已停止，a 不再等待它
+		Module a = newModule("a", 1);
+		Module b = newModule("b", 1, a);
+
+		int stopped = new ModuleShutdownScheduler(2, 50, 0).execute(Arrays.asList(a, b), dependencies, new Recorder(0, "b"));
+		Assert.assertEquals(1, stopped);
+		Assert.assertEquals(Arrays.asList("stop:b", "stop:a", "stopped:a"), events);
+	}
+
+	private Module newModule(String id, int startLevel, Module... required) {
+		Module module = TestModuleContextClassLoader.newModule(id);
+		module.setStartLevel(startLevel);
+		dependencies.put(module, Arrays.asList(required));
+		return module;
+	}
+
+	/**
+	 * 记录停止顺序和同时停止的模块数
+	 */
+	private class Recorder implements ModuleVisitor {
+
+		private final AtomicInteger concurrency = new AtomicInteger();
+
+		final Map<String,Long> delays = new ConcurrentHashMap<String,Long>();
+
+		private final long delay;
+
+		private final String hangingModule;
+
+		final AtomicInteger maxConcurrency = new AtomicInteger();
+
+		Recorder(long delay, String hangingModule) {
+			this.delay = delay;
+			this.hangingModule = hangingModule;
+		}
+
+		public void visit(Module module) throws Exception {
+			int current = concurrency.incrementAndGet();
+			for (;;) {
+				int max = maxConcurrency.get();
+				if (current <= max || maxConcurrency.compareAndSet(max, current)) break;
+			}
+			events.add("stop:" + module.getId());
+			try {
+				if (module.getId().equals(hangingModule)) {
+					hang.await(30, TimeUnit.SECONDS);
+					return;
+				}
+				Long moduleDelay = delays.get(module.getId());
+				Thread.sleep(moduleDelay != null ? moduleDelay : delay);
+				events.add("stopped:" + module.getId());
+			} finally {
+				concurrency.decrementAndGet();
+			}
+		}
+
+	}
+
+}
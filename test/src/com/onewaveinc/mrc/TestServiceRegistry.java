@@ -0,0 +1,121 @@
+package com.onewaveinc.mrc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class TestServiceRegistry {
+
+	private static final ServiceKey<String> STRING = ServiceKey.of("service", String.class);
+
+	private static final ServiceKey<Integer> INTEGER = ServiceKey.of("service", Integer.class);
+
+	private final ServiceRegistry registry = new ServiceRegistry();
+
+	@Test
+	public void testRankingTies() {
+		registry.register(STRING, "a", 5);
+		registry.register(STRING, "b", 5);
+		registry.register(STRING, "c", 10);
+		registry.register(STRING, "d", -1);
+
+		// 排名相同时先注册的在前
+		Assert.assertEquals(Arrays.asList("c", "a", "b", "d"), registry.getServices(STRING));
+		Assert.assertEquals("c", registry.getService(STRING));
+		Assert.assertEquals("c", registry.getAttribute("service"));
+	}
+
+	@Test
+	public void testServicesOfOtherTypesAreSkipped() {
+		registry.register(INTEGER, 1, 10);
+		registry.register(STRING, "a", 0);
+
+		// 排名更高的服务不是 String，getService 与 getServices 一致地忽略它
+		Assert.assertEquals("a", registry.getService(STRING));
+		Assert.assertEquals(Arrays.asList("a"), registry.getServices(STRING));
+		Assert.assertEquals(Integer.valueOf(1), registry.getService(INTEGER));
+		Assert.assertEquals(Integer.valueOf(1), registry.getAttribute("service"));
+		Assert.assertNull(registry.getService(ServiceKey.of("service", Long.class)));
+		Assert.assertNull(registry.getService(ServiceKey.of("missing", String.class)));
+	}
+
+	@Test
+	public void testAttributeAndTypedService() {
+		registry.setAttribute("service", "attribute");
+		Assert.assertEquals("attribute", registry.getAttribute("service"));
+
+		// 以更高排名注册的服务优先于属性值
+		ServiceRegistry.Registration registration = registry.register(INTEGER, 1, 1);
+		Assert.assertEquals(Integer.valueOf(1), registry.getAttribute("service"));
+		Assert.assertEquals("attribute", registry.getService(STRING));
+
+		// 设置属性只替换原属性值，不影响注册的服务
+		registry.setAttribute("service", "replaced");
+		Assert.assertEquals(Arrays.asList("replaced"), registry.getServices(STRING));
+		Assert.assertEquals(Integer.valueOf(1), registry.getAttribute("service"));
+		registration.unregister();
+		Assert.assertEquals("replaced", registry.getAttribute("service"));
+		registry.setAttribute("service", null);
+		Assert.assertNull(registry.getAttribute("service"));
+	}
+
+	@Test
+	public void testReferenceFollowsRegistrations() {
+		ServiceReference<String> reference = registry.getReference(STRING);
+		ServiceReference<Integer> integerReference = registry.getReference(INTEGER);
+		Assert.assertSame(reference, registry.getReference(ServiceKey.of("service", String.class)));
+		Assert.assertNull(reference.get());
+
+		ServiceRegistry.Registration a = registry.register(STRING, "a", 1);
+		Assert.assertEquals("a", reference.get());
+		ServiceRegistry.Registration b = registry.register(STRING, "b", 2);
+		Assert.assertEquals("b", reference.get());
+		ServiceRegistry.Registration one = registry.register(INTEGER, 1, 3);
+		Assert.assertEquals("b", reference.get());
+		Assert.assertEquals(Integer.valueOf(1), integerReference.get());
+
+		b.unregister();
+		Assert.assertEquals("a", reference.get());
+		a.unregister();
+		Assert.assertNull(reference.get());
+		one.unregister();
+		Assert.assertNull(integerReference.get());
+
+		// 后获取的服务引用同样指向当前的服务
+		registry.register(STRING, "c", 0);
+		Assert.assertEquals("c", registry.getReference(ServiceKey.of("service", CharSequence.class)).get());
+	}
+
+	@Test
+	public void testListeners() {
+		final List<String> events = new ArrayList<String>();
+		ServiceListener listener = new ServiceListener() {
+			public void serviceChanged(ServiceEvent event) {
+				events.add(event.getEvent() + ":" + event.getService() + ":" + event.getRanking());
+			}
+		};
+		// 出错的监听器不影响其他监听器
+		registry.addServiceListener(STRING, new ServiceListener() {
+			public void serviceChanged(ServiceEvent event) {
+				throw new IllegalStateException("test");
+			}
+		});
+		registry.addServiceListener(STRING, listener);
+
+		ServiceRegistry.Registration registration = registry.register(STRING, "a", 2);
+		registry.setAttribute("service", "b");
+		registry.setAttribute("service", "c");
+		registration.unregister();
+		// 重复注销无效果
+		registration.unregister();
+		Assert.assertEquals(Arrays.asList("registered:a:2", "registered:b:0", "unregistered:b:0", "registered:c:0", "unregistered:a:2"), events);
+
+		registry.removeServiceListener(STRING, listener);
+		registry.register(STRING, "d", 0);
+		Assert.assertEquals(5, events.size());
+	}
+
+}
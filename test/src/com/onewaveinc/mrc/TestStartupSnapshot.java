@@ -0,0 +1,138 @@
+package com.onewaveinc.mrc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestStartupSnapshot {
+
+	private static final String KEY = "1.0;mrc.mount=false";
+
+	private File directory;
+
+	private File file;
+
+	private List<File> modulesDirectory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("mrc-snapshot", "");
+		directory.delete();
+		for (int i = 0; i < 6; i++) {
+			writeModule(new File(directory, "m" + (i % 2) + "/module" + i), "module" + i);
+		}
+		file = new File(directory, "mrc-startup.snapshot");
+		modulesDirectory = Arrays.asList(new File(directory, "m0"), new File(directory, "m1"));
+	}
+
+	@After
+	public void tearDown() {
+		TestModuleContextClassLoader.delete(directory);
+	}
+
+	@Test
+	public void testReuseOnMatch() throws Exception {
+		List<Module> modules = install();
+		modules.get(1).setEnabled(false);
+		new StartupSnapshot(file).store(KEY, "module1", modulesDirectory, modules);
+
+		StartupSnapshot snapshot = load();
+		Assert.assertTrue(snapshot.isUpToDate(KEY, modulesDirectory));
+		Assert.assertEquals("module1", snapshot.getDisabled());
+		List<Module> restored = snapshot.restore();
+		Assert.assertEquals(modules.size(), restored.size());
+		for (int i = 0; i < modules.size(); i++) {
+			Module module = modules.get(i);
+			Module restoredModule = restored.get(i);
+			Assert.assertEquals(module.getId(), restoredModule.getId());
+			Assert.assertEquals(module.getVersion(), restoredModule.getVersion());
+			Assert.assertEquals(module.getRootDirectory(), restoredModule.getRootDirectory());
+			Assert.assertEquals(module.getLevel(), restoredModule.getLevel());
+			Assert.assertEquals(module.isEnabled(), restoredModule.isEnabled());
+			Assert.assertEquals(module.getClassPath(), restoredModule.getClassPath());
+		}
+	}
+
+	@Test
+	public void testRebuildOnMismatch() throws Exception {
+		new StartupSnapshot(file).store(KEY, "", modulesDirectory, install());
+
+		// 影响解析结果的配置发生变化
+		Assert.assertFalse(load().isUpToDate("1.0;mrc.mount=true", modulesDirectory));
+		Assert.assertFalse(load().isUpToDate(KEY, modulesDirectory.subList(0, 1)));
+
+		// 模块安装目录中增加了模块
+		writeModule(new File(directory, "m1/module6"), "module6");
+		Assert.assertFalse(load().isUpToDate(KEY, modulesDirectory));
+		// 重新解析后保存的快照再次有效
+		new StartupSnapshot(file).store(KEY, "", modulesDirectory, install());
+		Assert.assertTrue(load().isUpToDate(KEY, modulesDirectory));
+		Assert.assertEquals(7, load().restore().size());
+
+		// 模块元数据发生变化
+		TestModuleContextClassLoader.writeFile(new File(directory, "m0/module0" + Module.METADATA_FILE), "module.id=module0\nmodule.version=1.0.10\n");
+		Assert.assertFalse(load().isUpToDate(KEY, modulesDirectory));
+		new StartupSnapshot(file).store(KEY, "", modulesDirectory, install());
+		Assert.assertTrue(load().isUpToDate(KEY, modulesDirectory));
+		// 快照文件被替换，不留下临时文件
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("m0", "m1", "mrc-startup.snapshot")), new HashSet<String>(Arrays.asList(directory.list())));
+
+		// 类路径项被删除
+		Assert.assertTrue(new File(directory, "m1/module1/lib/module1.jar").delete());
+		Assert.assertFalse(load().isUpToDate(KEY, modulesDirectory));
+	}
+
+	@Test
+	public void testInvalidSnapshot() throws Exception {
+		Assert.assertFalse(new StartupSnapshot(file).load());
+		TestModuleContextClassLoader.writeFile(file, "invalid");
+		Assert.assertFalse(new StartupSnapshot(file).load());
+
+		// 截断的快照文件
+		new StartupSnapshot(file).store(KEY, "", modulesDirectory, install());
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(out.length() / 2);
+		} finally {
+			out.close();
+		}
+		Assert.assertFalse(new StartupSnapshot(file).load());
+	}
+
+	private StartupSnapshot load() {
+		StartupSnapshot snapshot = new StartupSnapshot(file);
+		Assert.assertTrue(snapshot.load());
+		return snapshot;
+	}
+
+	/**
+	 * 完整地安装模块安装目录中的模块
+	 */
+	private List<Module> install() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(ModuleContext.PROPERTY_MODULES_DIR, "m0;m1");
+		ModuleContext moduleContext = new ModuleContext(directory.getAbsolutePath(), properties);
+		for (String name : new String[] { "loadProperties", "installModules" }) {
+			Method method = ModuleContext.class.getDeclaredMethod(name);
+			method.setAccessible(true);
+			method.invoke(moduleContext);
+		}
+		return moduleContext.getModules();
+	}
+
+	private static void writeModule(File moduleDirectory, String id) throws IOException {
+		TestModuleContextClassLoader.writeFile(new File(moduleDirectory.getAbsolutePath() + Module.METADATA_FILE), "module.id=" + id + "\nmodule.version=1.0.0\n");
+		TestModuleContextClassLoader.writeFile(new File(moduleDirectory, "lib/" + id + ".jar"), id);
+	}
+
+}
@@ -0,0 +1,110 @@
+package com.onewaveinc.mrc;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class TestStartupTimeline {
+
+	private final StartupTimeline timeline = new StartupTimeline();
+
+	@Test
+	public void testEntriesOrderedByStart() throws Exception {
+		Module a = TestModuleContextClassLoader.newModule("a");
+		long install = timeline.begin();
+		Thread.sleep(2);
+		long start = timeline.begin();
+		Thread.sleep(2);
+		// 后开始的先结束，时间线仍按开始时间排列
+		timeline.end("start", a, start);
+		timeline.end("install", install);
+
+		List<StartupTimeline.Entry> entries = timeline.getEntries();
+		Assert.assertEquals(2, entries.size());
+		Assert.assertEquals("install", entries.get(0).getPhase());
+		Assert.assertNull(entries.get(0).getModule());
+		Assert.assertEquals("start", entries.get(1).getPhase());
+		Assert.assertEquals("a/" + a.getVersion(), entries.get(1).getModule());
+		Assert.assertTrue(entries.get(0).getStartNanos() < entries.get(1).getStartNanos());
+		Assert.assertTrue(entries.get(0).getDurationNanos() > entries.get(1).getDurationNanos());
+		Assert.assertEquals(Thread.currentThread().getName(), entries.get(0).getThread());
+	}
+
+	@Test
+	public void testConcurrentRecording() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			final Module module = TestModuleContextClassLoader.newModule("m" + i);
+			Thread thread = new Thread("mrc-start-" + i) {
+				public void run() {
+					try {
+						latch.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < 100; j++) {
+						timeline.end("start", module, timeline.begin());
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		latch.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		List<StartupTimeline.Entry> entries = timeline.getEntries();
+		Assert.assertEquals(800, entries.size());
+		for (int i = 1; i < entries.size(); i++) {
+			Assert.assertTrue(entries.get(i - 1).getStartNanos() <= entries.get(i).getStartNanos());
+		}
+	}
+
+	@Test
+	public void testFinish() throws Exception {
+		Assert.assertFalse(timeline.isFinished());
+		timeline.finish();
+		Assert.assertTrue(timeline.isFinished());
+		long total = timeline.getTotalNanos();
+		Thread.sleep(2);
+		// 结束后总耗时不再变化，重复结束无效果
+		timeline.finish();
+		Assert.assertEquals(total, timeline.getTotalNanos());
+	}
+
+	@Test
+	public void testWriteJson() throws Exception {
+		Module a = TestModuleContextClassLoader.newModule("a\"b");
+		timeline.end("install", timeline.begin());
+		Thread.sleep(2);
+		timeline.end("start", a, timeline.begin());
+		timeline.finish();
+
+		// 数字的格式不受默认语言环境影响
+		Locale locale = Locale.getDefault();
+		Locale.setDefault(Locale.GERMANY);
+		StringWriter out = new StringWriter();
+		try {
+			timeline.writeJson(out);
+		} finally {
+			Locale.setDefault(locale);
+		}
+		String json = out.toString();
+		String number = "\\d+\\.\\d{3}";
+		String thread = "\"thread\":\"" + Thread.currentThread().getName() + "\"";
+		String pattern = "\\{\"startTime\":" + timeline.getStartTime() + ",\"totalMillis\":" + number + ",\"finished\":true,\"entries\":\\["
+				+ "\\{\"phase\":\"install\",\"startMillis\":" + number + ",\"durationMillis\":" + number + "," + thread + "\\},"
+				+ "\\{\"phase\":\"start\",\"module\":\"a\\\\\"b/" + a.getVersion() + "\",\"startMillis\":" + number + ",\"durationMillis\":" + number + ","
+				+ thread + "\\}\\]\\}";
+		Assert.assertTrue(json, json.matches(pattern));
+	}
+
+}